@@ -36,6 +36,7 @@ public class NfcSyncPGPContentSignerBuilder
     private long    keyID;
 
     private Map signedHashes;
+    private boolean keepDigest;
 
     public static class NfcInteractionNeeded extends RuntimeException
     {
@@ -86,6 +87,18 @@ public class NfcSyncPGPContentSignerBuilder
         return this;
     }
 
+    /**
+     * Keeps the digest once it is computed, so generate() can be called again after the hash
+     * has been signed, without hashing all data a second time. Only for signature generators
+     * which create a single signature, i.e. not for certifications of several user ids.
+     */
+    public NfcSyncPGPContentSignerBuilder setKeepDigest(boolean keepDigest)
+    {
+        this.keepDigest = keepDigest;
+
+        return this;
+    }
+
     public PGPContentSigner build(final int signatureType, PGPPrivateKey privateKey)
         throws PGPException {
         // NOTE: privateKey is null in this case!
@@ -96,9 +109,12 @@ public class NfcSyncPGPContentSignerBuilder
         throws PGPException
     {
         final PGPDigestCalculator digestCalculator = digestCalculatorProviderBuilder.build().get(hashAlgorithm);
+        final boolean keepDigest = this.keepDigest;
 
         return new PGPContentSigner()
         {
+            private byte[] digest;
+
             public int getType()
             {
                 return signatureType;
@@ -125,7 +141,7 @@ public class NfcSyncPGPContentSignerBuilder
             }
 
             public byte[] getSignature() {
-                byte[] digest = digestCalculator.getDigest();
+                byte[] digest = getDigest();
                 ByteBuffer buf = ByteBuffer.wrap(digest);
                 if (signedHashes.containsKey(buf)) {
                     return (byte[]) signedHashes.get(buf);
@@ -137,7 +153,15 @@ public class NfcSyncPGPContentSignerBuilder
 
             public byte[] getDigest()
             {
-                return digestCalculator.getDigest();
+                if (!keepDigest)
+                {
+                    return digestCalculator.getDigest();
+                }
+                if (digest == null)
+                {
+                    digest = digestCalculator.getDigest();
+                }
+                return digest;
             }
         };
     }
@@ -22,25 +22,66 @@ import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.net.Proxy;
 import java.util.ArrayList;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 
 /**
  * Search two or more types of server for online keys.
+ *
+ * All searches share a single bounded thread pool. Each keyserver has a deadline of its own,
+ * after which its search is cancelled, while results from the other keyservers are still used.
+ * Cancelling aborts the HTTP requests of the search, so it frees its pool thread right away.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    // maximum number of keyserver searches running at the same time, over all callers
+    private static final int MAX_THREADS = 6;
+
+    private static final ThreadPoolExecutor sSearchExecutor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sSearchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface SearchListener {
+        /**
+         * Called with the results of a single keyserver, as soon as it answers. This is always
+         * called on the thread which called search, before search returns. The results are
+         * copies, which are not touched by the search afterwards.
+         */
+        void onSearchResults(Keyserver keyserver, List<ImportKeysListEntry> results);
+    }
+
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy)
             throws Keyserver.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null);
+    }
+
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy,
+            @Nullable SearchListener listener)
+            throws Keyserver.CloudSearchFailureException {
         final ArrayList<Keyserver> servers = new ArrayList<>();
 
-        // it's a Vector for sync, multiple threads might report problems
-        final Vector<Keyserver.CloudSearchFailureException> problems = new Vector<>();
+        // only accessed from this thread, searches report problems through their futures
+        final ArrayList<Keyserver.CloudSearchFailureException> problems = new ArrayList<>();
 
         if (cloudPrefs.searchKeyserver) {
             servers.add(new HkpKeyserver(cloudPrefs.keyserver, proxy));
@@ -53,38 +94,81 @@ public class CloudSearch {
         }
         final ImportKeysList results = new ImportKeysList(servers.size());
 
-        ArrayList<Thread> searchThreads = new ArrayList<>();
+        CompletionService<List<ImportKeysListEntry>> completionService =
+                new ExecutorCompletionService<>(sSearchExecutor);
+        HashMap<Future<List<ImportKeysListEntry>>, PendingSearch> pending = new HashMap<>();
+
+        long startTime = System.currentTimeMillis();
         for (final Keyserver keyserver : servers) {
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        results.addAll(keyserver.search(query));
-                    } catch (Keyserver.CloudSearchFailureException e) {
-                        problems.add(e);
-                    }
-                    results.finishedAdding(); // notifies if all searchers done
-                }
-            };
-            Thread searchThread = new Thread(r);
-            searchThreads.add(searchThread);
-            searchThread.start();
+            keyserver.setTimeout(getSearchTimeout(proxy));
+            Future<List<ImportKeysListEntry>> future = completionService.submit(
+                    new Callable<List<ImportKeysListEntry>>() {
+                        @Override
+                        public List<ImportKeysListEntry> call() throws Exception {
+                            return keyserver.search(query);
+                        }
+                    });
+            pending.put(future, new PendingSearch(keyserver, startTime + getSearchTimeout(proxy)));
         }
 
-        // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-        synchronized (results) {
+        while (!pending.isEmpty()) {
+            // cancel searches which are past their deadline, and find the next deadline
+            long now = System.currentTimeMillis();
+            long nextDeadline = Long.MAX_VALUE;
+            Iterator<Future<List<ImportKeysListEntry>>> it = pending.keySet().iterator();
+            while (it.hasNext()) {
+                Future<List<ImportKeysListEntry>> future = it.next();
+                PendingSearch search = pending.get(future);
+                if (search.mDeadline <= now) {
+                    // interrupting doesn't end blocking reads, so abort the requests as well
+                    future.cancel(true);
+                    search.mKeyserver.cancel();
+                    it.remove();
+                } else {
+                    nextDeadline = Math.min(nextDeadline, search.mDeadline);
+                }
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            Future<List<ImportKeysListEntry>> done;
             try {
-                if (proxy == Proxy.NO_PROXY) {
-                    results.wait(30 * SECONDS);
+                done = completionService.poll(nextDeadline - now, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                for (Future<List<ImportKeysListEntry>> future : pending.keySet()) {
+                    future.cancel(true);
+                    pending.get(future).mKeyserver.cancel();
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            // null means a deadline passed, unknown futures are ones we already cancelled
+            PendingSearch search = done != null ? pending.remove(done) : null;
+            if (search == null) {
+                continue;
+            }
+
+            try {
+                List<ImportKeysListEntry> batch = done.get();
+                if (listener != null) {
+                    // merging into results modifies entries, so the listener gets its own
+                    listener.onSearchResults(search.mKeyserver, copyEntries(batch));
+                }
+                results.addAll(batch);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Keyserver.CloudSearchFailureException) {
+                    problems.add((Keyserver.CloudSearchFailureException) e.getCause());
                 } else {
-                    results.wait(10 * SECONDS);
+                    Log.e(Constants.TAG, "Unexpected error in cloud search", e);
+                    problems.add(new Keyserver.QueryFailedException(String.valueOf(e.getCause())));
                 }
-                for (Thread thread : searchThreads) {
-                    // kill threads that haven't returned yet
-                    thread.interrupt();
-		}
-            } catch (InterruptedException ignored) {
+            } catch (InterruptedException e) {
+                // can't happen, the future is done
+                Thread.currentThread().interrupt();
             }
+            results.finishedAdding();
         }
 
         if (results.outstandingSuppliers() > 0) {
@@ -106,4 +190,27 @@ public class CloudSearch {
 
         return results;
     }
+
+    /** Copies each entry, so the copies can be merged or shown independently of the originals. */
+    public static ArrayList<ImportKeysListEntry> copyEntries(List<ImportKeysListEntry> entries) {
+        ArrayList<ImportKeysListEntry> copies = new ArrayList<>(entries.size());
+        for (ImportKeysListEntry entry : entries) {
+            copies.add(new ImportKeysListEntry(entry));
+        }
+        return copies;
+    }
+
+    private static long getSearchTimeout(Proxy proxy) {
+        return proxy == Proxy.NO_PROXY ? 30 * SECONDS : 10 * SECONDS;
+    }
+
+    private static class PendingSearch {
+        final Keyserver mKeyserver;
+        final long mDeadline;
+
+        PendingSearch(Keyserver keyserver, long deadline) {
+            mKeyserver = keyserver;
+            mDeadline = deadline;
+        }
+    }
 }
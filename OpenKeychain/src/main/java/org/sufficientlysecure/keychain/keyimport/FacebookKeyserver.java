@@ -23,6 +23,7 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
@@ -34,6 +35,7 @@ import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientRegistry;
 
 import java.io.IOException;
 import java.net.Proxy;
@@ -100,16 +102,16 @@ public class FacebookKeyserver extends Keyserver {
     }
 
     private String query(String fbUsername) throws QueryFailedException {
+        Call call = null;
         try {
             String request = String.format(FB_KEY_URL_FORMAT, fbUsername);
             Log.d(Constants.TAG, "fetching from Facebook with: " + request + " proxy: " + mProxy);
 
-            OkHttpClient client = new OkHttpClient();
-            client.setProxy(mProxy);
-
             URL url = new URL(request);
+            OkHttpClient client = OkHttpClientRegistry.getClient(url, mProxy);
 
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            call = startCall(client, new Request.Builder().url(url).build());
+            Response response = call.execute();
 
             // contains body both in case of success or failure
             String responseBody = response.body().string();
@@ -126,6 +128,10 @@ public class FacebookKeyserver extends Keyserver {
             throw new QueryFailedException("Cannot connect to Facebook. "
                     + "Check your Internet connection!"
                     + (mProxy == Proxy.NO_PROXY ? "" : " Using proxy " + mProxy));
+        } finally {
+            if (call != null) {
+                finishCall(call);
+            }
         }
     }
 
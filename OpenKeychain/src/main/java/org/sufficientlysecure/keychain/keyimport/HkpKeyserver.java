@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
@@ -28,10 +29,11 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.TlsHelper;
+import org.sufficientlysecure.keychain.util.OkHttpClientRegistry;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -200,30 +202,23 @@ public class HkpKeyserver extends Keyserver {
     }
 
     /**
-     * returns a client with pinned certificate if necessary
+     * returns a client with pinned certificate if necessary. The client shares its connection
+     * pool with all other keyserver clients, see OkHttpClientRegistry.
      *
      * @param url   url to be queried by client
      * @param proxy proxy to be used by client
      * @return client with a pinned certificate if necessary
      */
     public static OkHttpClient getClient(URL url, Proxy proxy) throws IOException {
-        OkHttpClient client = new OkHttpClient();
-
-        try {
-            TlsHelper.usePinnedCertificateIfAvailable(client, url);
-        } catch (TlsHelper.TlsHelperException e) {
-            Log.w(Constants.TAG, e);
-        }
+        OkHttpClient client = OkHttpClientRegistry.getClient(url, proxy != null ? proxy : Proxy.NO_PROXY);
 
         // don't follow any redirects
         client.setFollowRedirects(false);
         client.setFollowSslRedirects(false);
 
         if (proxy != null) {
-            client.setProxy(proxy);
             client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
         } else {
-            client.setProxy(Proxy.NO_PROXY);
             client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
         }
         client.setReadTimeout(45000, TimeUnit.MILLISECONDS);
@@ -232,11 +227,10 @@ public class HkpKeyserver extends Keyserver {
     }
 
     private String query(String request, @NonNull Proxy proxy) throws QueryFailedException, HttpError {
+        Call call = null;
         try {
-            URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
-            Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
-            OkHttpClient client = getClient(url, proxy);
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            call = newCall(request, new Request.Builder(), proxy);
+            Response response = call.execute();
 
             String responseBody = response.body().string(); // contains body both in case of success or failure
 
@@ -247,11 +241,28 @@ public class HkpKeyserver extends Keyserver {
             }
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
-            throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
-                    (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
+            throw unavailable(proxy);
+        } finally {
+            if (call != null) {
+                finishCall(call);
+            }
         }
     }
 
+    /** Creates a call for the request, which must be passed to finishCall when done. */
+    private Call newCall(String request, Request.Builder builder, @NonNull Proxy proxy)
+            throws IOException {
+        URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
+        Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
+        OkHttpClient client = getClient(url, proxy);
+        return startCall(client, builder.url(url).build());
+    }
+
+    private QueryUnavailableException unavailable(Proxy proxy) {
+        return new QueryUnavailableException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
+                (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
+    }
+
     /**
      * Results are sorted by creation date of key!
      */
@@ -386,7 +397,7 @@ public class HkpKeyserver extends Keyserver {
             data = query(request, mProxy);
         } catch (HttpError httpError) {
             Log.d(Constants.TAG, "Failed to get key at HkpKeyserver", httpError);
-            throw new QueryFailedException("not found");
+            throw getFailed(httpError.getCode());
         }
         if (data == null) {
             throw new QueryFailedException("data is null");
@@ -398,6 +409,85 @@ public class HkpKeyserver extends Keyserver {
         throw new QueryFailedException("data is null");
     }
 
+    /**
+     * Like get(String), but sends the validators of an earlier download along, so a keyserver
+     * which supports conditional requests can tell that the keyring didn't change instead of
+     * sending it again.
+     *
+     * @param knownState the state of the earlier download, or null to download unconditionally
+     */
+    public GetResult get(String keyIdHex, KeyserverKeyState knownState) throws QueryFailedException {
+        String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+        Log.d(Constants.TAG, "hkp keyserver conditional get: " + request + " using Proxy: " + mProxy);
+
+        Request.Builder builder = new Request.Builder();
+        if (knownState != null && knownState.mETag != null) {
+            builder.header("If-None-Match", knownState.mETag);
+        }
+        if (knownState != null && knownState.mLastModified != null) {
+            builder.header("If-Modified-Since", knownState.mLastModified);
+        }
+
+        String data;
+        String eTag, lastModified;
+        Call call = null;
+        try {
+            call = newCall(request, builder, mProxy);
+            Response response = call.execute();
+            if (knownState != null && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.body().close();
+                return new GetResult(null, knownState.mETag, knownState.mLastModified);
+            }
+            data = response.body().string();
+            if (!response.isSuccessful()) {
+                Log.d(Constants.TAG, "Failed to get key at HkpKeyserver",
+                        new HttpError(response.code(), data));
+                throw getFailed(response.code());
+            }
+            eTag = response.header("ETag");
+            lastModified = response.header("Last-Modified");
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
+            throw unavailable(mProxy);
+        } finally {
+            if (call != null) {
+                finishCall(call);
+            }
+        }
+
+        Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
+        if (matcher.find()) {
+            return new GetResult(matcher.group(1), eTag, lastModified);
+        }
+        throw new QueryFailedException("data is null");
+    }
+
+    /** Server errors and rate limiting are temporary, anything else means the key isn't there. */
+    private QueryFailedException getFailed(int code) {
+        if (code >= 500 || code == 429) {
+            return new QueryUnavailableException("Keyserver '" + mHost + "' failed with error " + code);
+        }
+        return new QueryFailedException("not found");
+    }
+
+    /** The result of a conditional get. */
+    public static class GetResult {
+        /** The armored keyring, or null if it wasn't modified since the earlier download. */
+        public final String mArmoredKey;
+        public final String mETag;
+        public final String mLastModified;
+
+        public GetResult(String armoredKey, String eTag, String lastModified) {
+            mArmoredKey = armoredKey;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return mArmoredKey == null;
+        }
+    }
+
     @Override
     public void add(String armoredKey) throws AddKeyException {
         try {
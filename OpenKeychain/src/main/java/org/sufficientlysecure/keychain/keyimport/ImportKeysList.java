@@ -18,14 +18,22 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ *
+ * Entries are indexed by fingerprint, so finding the dupe of an incoming entry takes constant
+ * time. The index is kept up to date by the removal methods of this class, but not for removals
+ * through iterators or sublists.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
 
+    private final HashMap<String, ImportKeysListEntry> mFingerprintIndex = new HashMap<>();
+
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
     }
@@ -48,14 +56,70 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
+        // entries without fingerprint never have the same key as any other, see hasSameKeyAs
+        String fingerprint = toAdd.getFingerprintHex();
+        if (fingerprint != null) {
+            ImportKeysListEntry existing = mFingerprintIndex.get(fingerprint);
+            if (existing != null) {
                 return mergeDupes(toAdd, existing);
             }
+            mFingerprintIndex.put(fingerprint, toAdd);
         }
         return super.add(toAdd);
     }
 
+    @Override
+    public synchronized ImportKeysListEntry set(int index, ImportKeysListEntry element) {
+        ImportKeysListEntry previous = super.set(index, element);
+        rebuildIndex();
+        return previous;
+    }
+
+    @Override
+    public synchronized ImportKeysListEntry remove(int index) {
+        ImportKeysListEntry removed = super.remove(index);
+        rebuildIndex();
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        boolean removed = super.remove(o);
+        rebuildIndex();
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        boolean removed = super.removeAll(c);
+        rebuildIndex();
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c) {
+        boolean removed = super.retainAll(c);
+        rebuildIndex();
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        mFingerprintIndex.clear();
+    }
+
+    private void rebuildIndex() {
+        mFingerprintIndex.clear();
+        for (ImportKeysListEntry entry : this) {
+            String fingerprint = entry.getFingerprintHex();
+            // the first entry wins, same as with a linear scan
+            if (fingerprint != null && !mFingerprintIndex.containsKey(fingerprint)) {
+                mFingerprintIndex.put(fingerprint, entry);
+            }
+        }
+    }
+
     // being a little anal about the ArrayList#addAll contract here
     private boolean mergeDupes(ImportKeysListEntry incoming, ImportKeysListEntry existing) {
         boolean modified = false;
@@ -93,8 +157,9 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
         ArrayList<String> incomingIDs = incoming.getUserIds();
         ArrayList<String> existingIDs = existing.getUserIds();
+        HashSet<String> knownIDs = new HashSet<>(existingIDs);
         for (String incomingID : incomingIDs) {
-            if (!existingIDs.contains(incomingID)) {
+            if (knownIDs.add(incomingID)) {
                 // prepend  HKP server results to the start of the list,
                 // so that the UI (for cloud key search, which is picking the first list item)
                 // shows the right main email address, as mail addresses returned by HKP servers
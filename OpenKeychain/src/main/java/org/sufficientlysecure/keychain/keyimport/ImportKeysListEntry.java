@@ -280,6 +280,36 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         mOrigins = new ArrayList<>();
     }
 
+    /**
+     * Copy constructor, the copy shares no mutable state with the original
+     */
+    public ImportKeysListEntry(ImportKeysListEntry other) {
+        mPrimaryUserId = other.mPrimaryUserId;
+        mUserIds = new ArrayList<>(other.mUserIds);
+        if (other.mMergedUserIds != null) {
+            mMergedUserIds = new HashMap<>();
+            for (String name : other.mMergedUserIds.keySet()) {
+                mMergedUserIds.put(name, new HashSet<>(other.mMergedUserIds.get(name)));
+            }
+        }
+        mKeyId = other.mKeyId;
+        mKeyIdHex = other.mKeyIdHex;
+        mRevoked = other.mRevoked;
+        mExpired = other.mExpired;
+        mDate = other.mDate != null ? new Date(other.mDate.getTime()) : null;
+        mFingerprintHex = other.mFingerprintHex;
+        mBitStrength = other.mBitStrength;
+        mCurveOid = other.mCurveOid;
+        mAlgorithm = other.mAlgorithm;
+        mSecretKey = other.mSecretKey;
+        mKeybaseName = other.mKeybaseName;
+        mFbUsername = other.mFbUsername;
+        mQuery = other.mQuery;
+        mOrigins = new ArrayList<>(other.mOrigins);
+        mHashCode = other.mHashCode;
+        mSelected = other.mSelected;
+    }
+
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
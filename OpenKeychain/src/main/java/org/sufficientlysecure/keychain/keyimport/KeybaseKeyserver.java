@@ -27,8 +27,13 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.OkHttpKeybaseClient;
 
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeybaseKeyserver extends Keyserver {
@@ -36,10 +41,45 @@ public class KeybaseKeyserver extends Keyserver {
 
     Proxy mProxy;
 
+    // connections opened by the keybase library, which are aborted by cancel
+    private final HashSet<HttpURLConnection> mConnections = new HashSet<>();
+    private boolean mCancelled = false;
+
     public KeybaseKeyserver(Proxy proxy) {
         mProxy = proxy;
     }
 
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mConnections) {
+            mCancelled = true;
+            for (HttpURLConnection connection : mConnections) {
+                connection.disconnect();
+            }
+            mConnections.clear();
+        }
+    }
+
+    private OkHttpKeybaseClient createClient() {
+        return new OkHttpKeybaseClient() {
+            @Override
+            public URLConnection openConnection(URL url, Proxy proxy, boolean isKeybase)
+                    throws IOException {
+                URLConnection connection = super.openConnection(url, proxy, isKeybase);
+                synchronized (mConnections) {
+                    if (mCancelled) {
+                        throw new IOException("Canceled");
+                    }
+                    if (connection instanceof HttpURLConnection) {
+                        mConnections.add((HttpURLConnection) connection);
+                    }
+                }
+                return connection;
+            }
+        };
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryFailedException,
             QueryNeedsRepairException {
@@ -54,7 +94,7 @@ public class KeybaseKeyserver extends Keyserver {
         }
 
         try {
-            KeybaseQuery keybaseQuery = new KeybaseQuery(new OkHttpKeybaseClient());
+            KeybaseQuery keybaseQuery = new KeybaseQuery(createClient());
             keybaseQuery.setProxy(mProxy);
             Iterable<Match> matches = keybaseQuery.search(query);
             for (Match match : matches) {
@@ -109,7 +149,7 @@ public class KeybaseKeyserver extends Keyserver {
     @Override
     public String get(String id) throws QueryFailedException {
         try {
-            KeybaseQuery keybaseQuery = new KeybaseQuery(new OkHttpKeybaseClient());
+            KeybaseQuery keybaseQuery = new KeybaseQuery(createClient());
             keybaseQuery.setProxy(mProxy);
             return User.keyForUsername(keybaseQuery, id);
         } catch (KeybaseException e) {
@@ -21,7 +21,13 @@ package org.sufficientlysecure.keychain.keyimport;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
 
 public abstract class Keyserver {
 
@@ -45,6 +51,18 @@ public abstract class Keyserver {
         }
     }
 
+    /**
+     * A failure which may go away on its own: the keyserver couldn't be reached, had an internal
+     * error, or asked us to slow down.
+     */
+    public static class QueryUnavailableException extends QueryFailedException {
+        private static final long serialVersionUID = 2703768928624654519L;
+
+        public QueryUnavailableException(String message) {
+            super(message);
+        }
+    }
+
     public static class QueryNeedsRepairException extends CloudSearchFailureException {
         private static final long serialVersionUID = 2693768928624654512L;
     }
@@ -68,6 +86,59 @@ public abstract class Keyserver {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    // requests in progress, which are aborted by cancel
+    private final HashSet<Call> mCalls = new HashSet<>();
+    private boolean mCancelled = false;
+    private long mTimeoutMillis = 0;
+
+    /**
+     * Limits the connect, read and write timeouts of each request to timeoutMillis, so a stalled
+     * request doesn't outlive the search it belongs to.
+     */
+    public void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Aborts all requests of this keyserver which are in progress, and fails all later ones.
+     * Unlike interrupting the thread of a search, this also ends blocking socket reads.
+     */
+    public void cancel() {
+        synchronized (mCalls) {
+            mCancelled = true;
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+            mCalls.clear();
+        }
+    }
+
+    /**
+     * Creates a call which is aborted by cancel, with the timeout set by setTimeout. The response
+     * body must be read before the call is passed to finishCall.
+     */
+    protected Call startCall(OkHttpClient client, Request request) throws IOException {
+        if (mTimeoutMillis > 0) {
+            client.setConnectTimeout(Math.min(client.getConnectTimeout(), mTimeoutMillis), TimeUnit.MILLISECONDS);
+            client.setReadTimeout(Math.min(client.getReadTimeout(), mTimeoutMillis), TimeUnit.MILLISECONDS);
+            client.setWriteTimeout(Math.min(client.getWriteTimeout(), mTimeoutMillis), TimeUnit.MILLISECONDS);
+        }
+        Call call = client.newCall(request);
+        synchronized (mCalls) {
+            if (mCancelled) {
+                throw new IOException("Canceled");
+            }
+            mCalls.add(call);
+        }
+        return call;
+    }
+
+    protected void finishCall(Call call) {
+        synchronized (mCalls) {
+            mCalls.remove(call);
+        }
+    }
+
     public abstract List<ImportKeysListEntry> search(String query)
             throws QueryFailedException, QueryNeedsRepairException;
 
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * Describes the copy of a keyring on a keyserver, as of its last download: the keyserver it was
+ * downloaded from, a hash of the downloaded data, and the validators the keyserver sent along
+ * with it, if any.
+ *
+ * If the keyserver still has the same copy, it was already merged into the keyring in the
+ * database, and merging it again can't change anything. Other keyservers may have another copy.
+ */
+public class KeyserverKeyState {
+
+    public final String mKeyserver;
+    public final byte[] mContentHash;
+    public final String mETag;
+    public final String mLastModified;
+
+    public KeyserverKeyState(String keyserver, byte[] contentHash, String eTag, String lastModified) {
+        mKeyserver = keyserver;
+        mContentHash = contentHash;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    public static KeyserverKeyState fromDownload(String keyserver, HkpKeyserver.GetResult result) {
+        return new KeyserverKeyState(keyserver, hash(result.mArmoredKey),
+                result.mETag, result.mLastModified);
+    }
+
+    /** Returns true if the download has the same content as the one this state describes. */
+    public boolean isSameContent(HkpKeyserver.GetResult result) {
+        return Arrays.equals(mContentHash, hash(result.mArmoredKey));
+    }
+
+    private static byte[] hash(String armoredKey) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(armoredKey.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -16,6 +16,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientRegistry;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -240,7 +241,7 @@ public abstract class LinkedTokenResource extends LinkedResource {
             throws IOException, HttpStatusException {
 
         Log.d("Connection to: "+request.url().getHost(),"");
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = OkHttpClientRegistry.getClient(request.url(), null);
         if(pins !=null){
             client.setCertificatePinner(getCertificatePinner(request.url().getHost(),pins));
         }
@@ -20,15 +20,23 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -54,7 +62,6 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -85,6 +92,11 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     private static final int INDEX_SECKEY_DATA = 2;
     private static final int INDEX_HAS_ANY_SECRET = 3;
 
+    // size of the in-memory buffer between export and encryption
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    // keyrings per thread which may be exported but not yet written in a parallel export
+    private static final int MAX_IN_FLIGHT_PER_THREAD = 4;
+
     public BackupOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -105,47 +117,84 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             log.add(LogType.MSG_BACKUP_ALL, 0);
         }
 
+        long startTime = System.currentTimeMillis();
+
         try {
 
-            boolean nonEncryptedOutput = backupInput.mSymmetricPassphrase == null;
+            if (backupInput.mSymmetricPassphrase != null) {
+                return exportEncrypted(log, backupInput, startTime);
+            }
 
-            Uri backupOutputUri = nonEncryptedOutput
-                    ? backupInput.mOutputUri
-                    : TemporaryFileProvider.createFile(mContext);
+            DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                    mContext.getContentResolver().openOutputStream(backupInput.mOutputUri)));
 
-            int exportedDataSize;
+            boolean backupSuccess = exportKeysToStream(
+                    log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
 
-            { // export key data, and possibly return if we don't encrypt
+            if (!backupSuccess) {
+                // if there was an error, it will be in the log so we just have to return
+                return new ExportResult(ExportResult.RESULT_ERROR, log);
+            }
 
-                DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
-                        mContext.getContentResolver().openOutputStream(backupOutputUri)));
+            // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
+            return createSuccessResult(log, outStream.size(), startTime);
 
-                boolean backupSuccess = exportKeysToStream(
-                        log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
 
-                exportedDataSize = outStream.size();
+        }
 
-                if (!backupSuccess) {
-                    // if there was an error, it will be in the log so we just have to return
-                    return new ExportResult(ExportResult.RESULT_ERROR, log);
-                }
+    }
+
+    /**
+     * Exports keys and encrypts them in a single pass. The exported data is produced on a
+     * separate thread, and passed to the encryption through a bounded in-memory pipe. This way
+     * the plaintext never touches the disk, and memory use doesn't depend on the number of keys.
+     */
+    private ExportResult exportEncrypted(OperationLog log, final BackupKeyringParcel backupInput,
+            long startTime) throws FileNotFoundException {
+
+        OutputStream outStream = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
+        outStream = new BufferedOutputStream(outStream);
+
+        final PipedInputStream pipeInStream = new PipedInputStream(PIPE_BUFFER_SIZE);
+        final DataOutputStream pipeOutStream;
+        try {
+            pipeOutStream = new DataOutputStream(new BufferedOutputStream(
+                    new PipedOutputStream(pipeInStream), PIPE_BUFFER_SIZE));
+        } catch (IOException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-                if (nonEncryptedOutput) {
-                    // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
-                    log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-                    return new ExportResult(ExportResult.RESULT_OK, log);
+        // the export thread gets its own log, which is merged after it is done
+        final OperationLog exportLog = new OperationLog();
+        ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+        Future<Boolean> exportFuture = exportExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    return exportKeysToStream(exportLog, backupInput.mMasterKeyIds,
+                            backupInput.mExportSecret, pipeOutStream);
+                } finally {
+                    // the encryption reads until the pipe is closed, whatever happened here
+                    pipeOutStream.close();
                 }
             }
+        });
+        exportExecutor.shutdown();
 
-            PgpSignEncryptOperation pseOp = new PgpSignEncryptOperation(mContext, mProviderHelper, mProgressable, mCancelled);
+        PgpSignEncryptResult encryptResult;
+        try {
+            // progress is reported by the export, since we don't know the size of its output
+            PgpSignEncryptOperation pseOp = new PgpSignEncryptOperation(mContext, mProviderHelper, null, mCancelled);
 
             PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel();
             inputParcel.setSymmetricPassphrase(backupInput.mSymmetricPassphrase);
             inputParcel.setEnableAsciiArmorOutput(true);
             inputParcel.setAddBackupHeader(true);
 
-            InputStream inStream = mContext.getContentResolver().openInputStream(backupOutputUri);
-
             String filename;
             if (backupInput.mMasterKeyIds != null && backupInput.mMasterKeyIds.length == 1) {
                 filename = Constants.FILE_BACKUP_PREFIX + KeyFormattingUtils.convertKeyIdToHex(backupInput.mMasterKeyIds[0]);
@@ -154,31 +203,71 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             }
             filename += backupInput.mExportSecret ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-            InputData inputData = new InputData(inStream, exportedDataSize, filename);
-
-            OutputStream outStream = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
-            outStream = new BufferedOutputStream(outStream);
+            InputData inputData = new InputData(pipeInStream, -1, filename);
 
-            PgpSignEncryptResult encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
-            if (!encryptResult.success()) {
-                log.addByMerge(encryptResult, 1);
-                // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
+            encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
+        } finally {
+            // if the encryption stopped early, this makes the export fail rather than block
+            try {
+                pipeInStream.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error closing pipe", e);
             }
+        }
 
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-            return new ExportResult(ExportResult.RESULT_OK, log);
+        boolean exportSuccess;
+        try {
+            exportSuccess = exportFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "error during export", e);
+            exportLog.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            exportSuccess = false;
+        }
+        log.addAll(exportLog.toList());
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+        if (!exportSuccess) {
+            // if there was an error, it will be in the log so we just have to return
             return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
+        if (!encryptResult.success()) {
+            log.addByMerge(encryptResult, 1);
+            // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        log.add(encryptResult, 1);
+        return createSuccessResult(log, pipeOutStream.size(), startTime);
+
+    }
+
+    private ExportResult createSuccessResult(OperationLog log, long exportedBytes, long startTime) {
+        long operationTime = System.currentTimeMillis() - startTime;
+        long bytesPerSecond = ExportResult.getBytesPerSecond(exportedBytes, operationTime);
+
+        log.add(LogType.MSG_BACKUP_THROUGHPUT, 1, Long.toString(exportedBytes),
+                String.format("%.2f", operationTime / 1000.0), Long.toString(bytesPerSecond));
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+
+        ExportResult result = new ExportResult(ExportResult.RESULT_OK, log);
+        result.mExportedBytes = exportedBytes;
+        result.mOperationTime = operationTime;
+        return result;
     }
 
     boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, OutputStream outStream) {
+        return exportKeysToStream(log, masterKeyIds, exportSecret, outStream,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Exports the given keys to outStream. With more than one thread, keyrings are decoded,
+     * canonicalized and armored on a pool of numThreads threads. Results are written in the
+     * same order as the serial export, and at most MAX_IN_FLIGHT_PER_THREAD keyrings per
+     * thread are held in memory at any time, so the output and log are the same either way.
+     */
+    boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+            OutputStream outStream, int numThreads) {
 
         // noinspection unused TODO use these in a log entry
         int okSecret = 0, okPublic = 0;
@@ -187,38 +276,77 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
         Cursor cursor = queryForKeys(masterKeyIds);
 
-        if (cursor == null || !cursor.moveToFirst()) {
-            log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
-            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
-        }
+        ExecutorService exportExecutor = null;
 
         try {
 
+            // inside the try, so outStream is closed and a reader on the other end doesn't block
+            if (cursor == null || !cursor.moveToFirst()) {
+                log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+                return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+            }
+
             int numKeys = cursor.getCount();
 
             updateProgress(mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys),
                     0, numKeys);
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
+            if (numThreads > 1 && numKeys > 1) {
+                exportExecutor = Executors.newFixedThreadPool(numThreads);
+                int maxInFlight = numThreads * MAX_IN_FLIGHT_PER_THREAD;
+                ArrayDeque<Future<ExportedKeyRing>> inFlight = new ArrayDeque<>(maxInFlight);
+
+                while (!cursor.isAfterLast()) {
+                    // the cursor is read on this thread only, workers get the raw data
+                    final long keyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                    final byte[] pubKeyData = cursor.getBlob(INDEX_PUBKEY_DATA);
+                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+                    final byte[] secKeyData = exportSecret && hasSecret
+                            ? cursor.getBlob(INDEX_SECKEY_DATA) : null;
 
-                long keyId = cursor.getLong(INDEX_MASTER_KEY_ID);
-                log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+                    inFlight.add(exportExecutor.submit(new Callable<ExportedKeyRing>() {
+                        @Override
+                        public ExportedKeyRing call() throws Exception {
+                            return exportKeyRing(keyId, pubKeyData, secKeyData);
+                        }
+                    }));
 
-                if (writePublicKeyToStream(log, outStream, cursor)) {
-                    okPublic += 1;
+                    if (inFlight.size() >= maxInFlight) {
+                        writeExportedKeyRing(log, outStream, inFlight.remove().get());
+                        updateProgress(progress++, numKeys);
+                    }
+                    cursor.moveToNext();
+                }
 
-                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
-                    if (exportSecret && hasSecret) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
-                        if (writeSecretKeyToStream(log, outStream, cursor)) {
-                            okSecret += 1;
+                while (!inFlight.isEmpty()) {
+                    writeExportedKeyRing(log, outStream, inFlight.remove().get());
+                    updateProgress(progress++, numKeys);
+                }
+
+            } else {
+
+                // For each public masterKey id
+                while (!cursor.isAfterLast()) {
+
+                    long keyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                    log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+
+                    if (writeKeyRingToStream(log, outStream, cursor.getBlob(INDEX_PUBKEY_DATA))) {
+                        okPublic += 1;
+
+                        boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+                        if (exportSecret && hasSecret) {
+                            log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
+                            if (writeKeyRingToStream(log, outStream, cursor.getBlob(INDEX_SECKEY_DATA))) {
+                                okSecret += 1;
+                            }
                         }
                     }
+
+                    updateProgress(progress++, numKeys);
+                    cursor.moveToNext();
                 }
 
-                updateProgress(progress++, numKeys);
-                cursor.moveToNext();
             }
 
             updateProgress(R.string.progress_done, numKeys, numKeys);
@@ -226,49 +354,64 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         } catch (IOException e) {
             log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "error during parallel export", e);
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return false;
         } finally {
+            if (exportExecutor != null) {
+                exportExecutor.shutdownNow();
+            }
             // Make sure the stream is closed
             if (outStream != null) try {
                 outStream.close();
             } catch (Exception e) {
                 Log.e(Constants.TAG, "error closing stream", e);
             }
-            cursor.close();
+            if (cursor != null) {
+                cursor.close();
+            }
         }
 
         return true;
 
     }
 
-    private boolean writePublicKeyToStream(OperationLog log, OutputStream outStream, Cursor cursor)
+    /** Decodes, canonicalizes and armors a single keyring, logging to a log of its own. */
+    private ExportedKeyRing exportKeyRing(long keyId, byte[] pubKeyData, byte[] secKeyData)
             throws IOException {
+        ExportedKeyRing exported = new ExportedKeyRing();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pubKeyData.length * 2);
+
+        exported.mLog.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+        writeKeyRingToStream(exported.mLog, out, pubKeyData);
+        if (secKeyData != null) {
+            exported.mLog.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
+            writeKeyRingToStream(exported.mLog, out, secKeyData);
+        }
 
-        ArmoredOutputStream arOutStream = null;
+        exported.mData = out.toByteArray();
+        return exported;
+    }
 
-        try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_PUBKEY_DATA);
-            CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-            ring.encode(arOutStream);
+    private void writeExportedKeyRing(OperationLog log, OutputStream outStream,
+            ExportedKeyRing exported) throws IOException {
+        log.addAll(exported.mLog.toList());
+        outStream.write(exported.mData);
+    }
 
-        } catch (PgpGeneralException e) {
-            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
-        }
-        return true;
+    private static class ExportedKeyRing {
+        final OperationLog mLog = new OperationLog();
+        byte[] mData;
     }
 
-    private boolean writeSecretKeyToStream(OperationLog log, OutputStream outStream, Cursor cursor)
+    private boolean writeKeyRingToStream(OperationLog log, OutputStream outStream, byte[] data)
             throws IOException {
 
         ArmoredOutputStream arOutStream = null;
 
         try {
             arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_SECKEY_DATA);
             CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
             ring.encode(arOutStream);
 
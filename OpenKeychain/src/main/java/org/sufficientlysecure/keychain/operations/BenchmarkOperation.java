@@ -20,11 +20,14 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Random;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
@@ -38,16 +41,22 @@ import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.LocalPassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -146,6 +155,70 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
             return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
         }
 
+        // passphrase cache lookups, through the service and from the in-process cache
+        int numLookups = 20;
+        try {
+            long startTime = System.nanoTime();
+            for (i = 0; i < numLookups; i++) {
+                PassphraseCacheService.getCachedPassphraseFromService(
+                        mContext, Constants.key.symmetric, Constants.key.symmetric);
+            }
+            long lookupTime = (System.nanoTime() - startTime) / numLookups;
+            log.add(LogType.MSG_BENCH_PASSPHRASE_CACHE_SERVICE, 1,
+                    String.format("%.2f", lookupTime / 1000000.0));
+        } catch (PassphraseCacheService.KeyNotFoundException e) {
+            log.add(LogType.MSG_BENCH_PASSPHRASE_CACHE_SERVICE_ERROR, 1);
+        }
+
+        {
+            LocalPassphraseCache localCache = new LocalPassphraseCache();
+            localCache.put(Constants.key.symmetric, Constants.key.symmetric, passphrase,
+                    LocalPassphraseCache.MAX_TTL_MILLIS);
+            numLookups = 100000;
+            long startTime = System.nanoTime();
+            for (i = 0; i < numLookups; i++) {
+                localCache.get(Constants.key.symmetric, Constants.key.symmetric);
+            }
+            long lookupTime = (System.nanoTime() - startTime) / numLookups;
+            localCache.clear();
+            log.add(LogType.MSG_BENCH_PASSPHRASE_CACHE_LOCAL, 1,
+                    String.format("%.3f", lookupTime / 1000.0));
+        }
+
+        // serial and pipelined encryption, for each compression algorithm and two input sizes
+        {
+            // compressible data, from an alphabet of 16 characters
+            byte[] data = new byte[8 * 1024 * 1024];
+            new Random().nextBytes(data);
+            for (i = 0; i < data.length; i++) {
+                data[i] = (byte) ('a' + (data[i] & 0x0f));
+            }
+
+            int[] algorithms = new int[] {
+                    CompressionAlgorithmTags.UNCOMPRESSED, CompressionAlgorithmTags.ZIP,
+                    CompressionAlgorithmTags.ZLIB, CompressionAlgorithmTags.BZIP2
+            };
+            String[] algorithmNames = new String[] { "no", "ZIP", "ZLIB", "BZIP2" };
+            int[] sizes = new int[] { 1024 * 1024, data.length };
+
+            for (int size : sizes) {
+                for (int j = 0; j < algorithms.length; j++) {
+                    PgpSignEncryptResult serialResult =
+                            benchmarkEncryption(data, size, algorithms[j], false, passphrase);
+                    PgpSignEncryptResult pipelinedResult =
+                            benchmarkEncryption(data, size, algorithms[j], true, passphrase);
+                    if (!serialResult.success() || !pipelinedResult.success()) {
+                        log.add(serialResult.success() ? pipelinedResult : serialResult, 1);
+                        log.add(LogType.MSG_INTERNAL_ERROR, 0);
+                        return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+                    }
+                    log.add(LogType.MSG_BENCH_PIPELINE, 1, algorithmNames[j], Integer.toString(size / 1024),
+                            String.format("%.2f", getMegabytesPerSecond(size, serialResult.mOperationTime)),
+                            String.format("%.2f", getMegabytesPerSecond(size, pipelinedResult.mOperationTime)));
+                }
+            }
+        }
+
         log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
         log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
         log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
@@ -154,4 +227,22 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
         return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
     }
 
+    private PgpSignEncryptResult benchmarkEncryption(byte[] data, int size, int compressionAlgorithm,
+                                                     boolean pipelined, Passphrase passphrase) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper, null, mCancelled);
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setSymmetricPassphrase(passphrase);
+        input.setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+        input.setCompressionAlgorithm(compressionAlgorithm);
+        input.setEnableAsciiArmorOutput(true);
+        input.setPipelined(pipelined);
+
+        return op.execute(input, new CryptoInputParcel(),
+                new InputData(new ByteArrayInputStream(data, 0, size), size), new ByteArrayOutputStream());
+    }
+
+    private static double getMegabytesPerSecond(long bytes, long timeMillis) {
+        return bytes * 1000.0 / (1024 * 1024) / Math.max(timeMillis, 1);
+    }
+
 }
@@ -20,14 +20,22 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +50,7 @@ import org.sufficientlysecure.keychain.keyimport.FacebookKeyserver;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyserverKeyState;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -84,6 +93,10 @@ import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     public static final int MAX_THREADS = 10;
+    /** Maximum number of keyrings written in a single database transaction. */
+    public static final int BATCH_SIZE = 100;
+    /** Maximum number of keyrings held in the import pipeline at any time. */
+    private static final int MAX_IN_FLIGHT = 4 * BATCH_SIZE;
 
     public ImportOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
@@ -102,15 +115,15 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
     }
 
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-                                                String keyServerUri, Proxy proxy) {
+    private ImportKeyResult pipelinedKeyImport(ParcelableFileCache<ParcelableKeyRing> cache,
+                                               String keyServerUri, Proxy proxy) {
 
         // get entries from cached file
         try {
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyServerUri, mProgressable, proxy);
+            return pipelinedKeyImport(it, numEntries, keyServerUri, proxy);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -150,15 +163,14 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         }
 
         int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
+        int downloadedKeys = 0, skippedKeys = 0;
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
 
         boolean cancelled = false;
         int position = 0;
         double progSteps = 100.0 / num;
 
-        KeybaseKeyserver keybaseServer = null;
-        FacebookKeyserver facebookServer = null;
-        HkpKeyserver keyServer = null;
+        KeyRingFetcher fetcher = new KeyRingFetcher(keyServerUri, proxy, mProviderHelper);
 
         // iterate over all entries
         while (entries.hasNext()) {
@@ -172,132 +184,26 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             try {
 
-                UncachedKeyRing key = null;
-
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
+                FetchResult fetched = fetcher.fetch(entry, log);
+                if (fetched.mDownloaded) {
+                    downloadedKeys += 1;
                 }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri, proxy);
-                        }
-
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
-                            }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.d(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver(proxy);
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
-
-                            if (keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
-                                key = keybaseKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-
-                    // if the key is from Facebook, fetch from there
-                    if (entry.mFbUsername != null) {
-                        // Make sure we have this cached
-                        if (facebookServer == null) {
-                            facebookServer = new FacebookKeyserver(proxy);
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername).getBytes();
-                            UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
 
-                            if (facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-
-                            // If there already is a key, merge the two
-                            if (key != null && facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                facebookKey = key.merge(facebookKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (facebookKey != null) {
-                                    key = facebookKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (facebookKey != null) {
-                                key = facebookKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
+                // nothing to merge or save, only note that the key was checked
+                if (fetched.mUnchanged) {
+                    skippedKeys += 1;
+                    mProviderHelper.renewKeyLastUpdatedTime(fetched.mMasterKeyId,
+                            GregorianCalendar.getInstance().getTimeInMillis(),
+                            TimeUnit.MILLISECONDS);
+                    position++;
+                    continue;
                 }
 
+                UncachedKeyRing key = fetched.mKeyRing;
                 if (key == null) {
                     log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
                     badKeys += 1;
+                    position++;
                     continue;
                 }
 
@@ -305,6 +211,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 if (entry.mBytes == null && key.isSecret()) {
                     log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
                     badKeys += 1;
+                    position++;
                     continue;
                 }
 
@@ -341,6 +248,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                         // If no byte data was supplied, import from keyserver took place
                         // this prevents file imports being noted as keyserver imports
                         mProviderHelper.renewKeyLastUpdatedTime(key.getMasterKeyId(),
+                                fetched.mKeyserverState,
                                 GregorianCalendar.getInstance().getTimeInMillis(),
                                 TimeUnit.MILLISECONDS);
                     }
@@ -386,7 +294,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         }
 
         // special return case: no new keys at all
-        if (badKeys == 0 && newKeys == 0 && updatedKeys == 0) {
+        if (badKeys == 0 && newKeys == 0 && updatedKeys == 0 && skippedKeys == 0) {
             resultType = ImportKeyResult.RESULT_FAIL_NOTHING;
         } else {
             if (newKeys > 0) {
@@ -397,7 +305,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             }
             if (badKeys > 0) {
                 resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                if (newKeys == 0 && updatedKeys == 0) {
+                if (newKeys == 0 && updatedKeys == 0 && skippedKeys == 0) {
                     resultType |= ImportKeyResult.RESULT_ERROR;
                 }
             }
@@ -408,9 +316,9 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
         if (!cancelled) {
             // Final log entry, it's easier to do this individually
-            if ((newKeys > 0 || updatedKeys > 0) && badKeys > 0) {
+            if ((newKeys > 0 || updatedKeys > 0 || skippedKeys > 0) && badKeys > 0) {
                 log.add(LogType.MSG_IMPORT_PARTIAL, 1);
-            } else if (newKeys > 0 || updatedKeys > 0) {
+            } else if (newKeys > 0 || updatedKeys > 0 || skippedKeys > 0) {
                 log.add(LogType.MSG_IMPORT_SUCCESS, 1);
             } else {
                 log.add(LogType.MSG_IMPORT_ERROR, 1);
@@ -418,7 +326,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         }
 
         return new ImportKeyResult(resultType, log, newKeys, updatedKeys, badKeys, secret,
-                importedMasterKeyIdsArray);
+                downloadedKeys, skippedKeys, importedMasterKeyIdsArray);
     }
 
     @NonNull
@@ -429,11 +337,11 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
         ImportKeyResult result;
 
-        if (keyList == null) {// import from file, do serially
+        if (keyList == null) {// import from file, entries are read from the cache as we go
             ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(mContext,
                     "key_import.pcl");
 
-            result = serialKeyRingImport(cache, null, null);
+            result = pipelinedKeyImport(cache, null, null);
         } else {
             Proxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -448,69 +356,619 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 proxy = cryptoInput.getParcelableProxy().getProxy();
             }
 
-            result = multiThreadedKeyImport(keyList.iterator(), keyList.size(), keyServer, proxy);
+            result = pipelinedKeyImport(keyList.iterator(), keyList.size(), keyServer, proxy);
         }
 
         ContactSyncAdapterService.requestContactsSync();
         return result;
     }
 
+    /**
+     * Imports keyrings in a pipeline of three stages: keyrings are retrieved and decoded on a
+     * pool of MAX_THREADS threads, then merged with the database state and canonicalized on a
+     * pool of one thread per cpu, and finally written by a single writer thread, which saves up
+     * to BATCH_SIZE keyrings per database transaction.
+     * <p/>
+     * The writer takes keyrings strictly in the order of the iterator, so the ordering guarantees
+     * of serialKeyRingImport hold here as well. At most MAX_IN_FLIGHT keyrings are in the
+     * pipeline at any time, which keeps memory usage independent of the number of keyrings.
+     */
     @NonNull
-    private ImportKeyResult multiThreadedKeyImport(@NonNull Iterator<ParcelableKeyRing> keyListIterator,
-                                                   int totKeys, final String keyServer,
-                                                   final Proxy proxy) {
-        Log.d(Constants.TAG, "Multi-threaded key import starting");
-        KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
+    private ImportKeyResult pipelinedKeyImport(@NonNull Iterator<ParcelableKeyRing> entries,
+                                               int num, String keyServerUri, Proxy proxy) {
+        Log.d(Constants.TAG, "Pipelined key import starting");
+        updateProgress(R.string.progress_importing, 0, num);
 
-        final ProgressScaler ignoreProgressable = new ProgressScaler();
+        // If there aren't even any keys, do nothing here.
+        if (!entries.hasNext()) {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, num);
+            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
+        }
 
-        ExecutorService importExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        int numCpus = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor fetchExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        fetchExecutor.allowCoreThreadTimeOut(true);
+        ThreadPoolExecutor prepareExecutor = new ThreadPoolExecutor(numCpus, numCpus,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        prepareExecutor.allowCoreThreadTimeOut(true);
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
 
-        ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                new ExecutorCompletionService<>(importExecutor);
+        KeyRingFetcher fetcher = new KeyRingFetcher(keyServerUri, proxy, mProviderHelper);
+        BlockingQueue<PipelineEntry> inFlight = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+        Future<ImportKeyResult> writerResult =
+                writerExecutor.submit(new PipelineWriter(inFlight, num, System.currentTimeMillis()));
 
-        while (keyListIterator.hasNext()) { // submit all key rings to be imported
+        try {
+            while (entries.hasNext() && !checkCancelled()) {
+                PipelineEntry entry = new PipelineEntry(entries.next());
+                // blocks while the writer is MAX_IN_FLIGHT keyrings behind
+                while (!inFlight.offer(entry, 1, TimeUnit.SECONDS)) {
+                    if (writerResult.isDone()) {
+                        throw new IllegalStateException("writer stage stopped unexpectedly");
+                    }
+                }
+                fetchExecutor.execute(new FetchStage(entry, fetcher, prepareExecutor));
+            }
+            inFlight.put(PipelineEntry.END_OF_INPUT);
 
-            final ParcelableKeyRing pkRing = keyListIterator.next();
+            return writerResult.get();
+        } catch (InterruptedException | ExecutionException | IllegalStateException e) {
+            Log.e(Constants.TAG, "Error in pipelined import", e);
+            writerResult.cancel(true);
 
-            Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                    () {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, num);
+            log.add(LogType.MSG_IMPORT_ERROR, 1);
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        } finally {
+            fetchExecutor.shutdownNow();
+            prepareExecutor.shutdownNow();
+            writerExecutor.shutdownNow();
+        }
 
-                @Override
-                public ImportKeyResult call() {
+    }
 
-                    if (checkCancelled()) {
-                        return null;
-                    }
+    /** A single keyring on its way through the import pipeline. */
+    private static class PipelineEntry {
+        static final PipelineEntry END_OF_INPUT = new PipelineEntry(null);
+
+        final ParcelableKeyRing mEntry;
+        // log of the retrieval stage, the save result brings its own log
+        final OperationLog mLog = new OperationLog();
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        FetchResult mFetched;
+        UncachedKeyRing mKeyRing;
+        ProviderHelper.PreparedPublicKeyRing mPrepared;
+        boolean mCancelled;
+
+        PipelineEntry(ParcelableKeyRing entry) {
+            mEntry = entry;
+        }
+    }
 
-                    ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                    list.add(pkRing);
+    /** First stage: retrieve and decode a keyring, then pass it on to the prepare stage. */
+    private class FetchStage implements Runnable {
+        private final PipelineEntry mEntry;
+        private final KeyRingFetcher mFetcher;
+        private final ExecutorService mPrepareExecutor;
+
+        FetchStage(PipelineEntry entry, KeyRingFetcher fetcher, ExecutorService prepareExecutor) {
+            mEntry = entry;
+            mFetcher = fetcher;
+            mPrepareExecutor = prepareExecutor;
+        }
+
+        @Override
+        public void run() {
+            boolean handedOver = false;
+            try {
+                if (checkCancelled()) {
+                    mEntry.mCancelled = true;
+                    return;
+                }
 
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable, proxy);
+                mEntry.mFetched = mFetcher.fetch(mEntry.mEntry, mEntry.mLog);
+                if (mEntry.mFetched.mUnchanged) {
+                    return;
                 }
-            };
+                UncachedKeyRing key = mEntry.mFetched.mKeyRing;
+                if (key == null) {
+                    mEntry.mLog.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                    return;
+                }
+                // never import secret keys from keyserver!
+                if (mEntry.mEntry.mBytes == null && key.isSecret()) {
+                    mEntry.mLog.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+                    return;
+                }
+                mEntry.mKeyRing = key;
 
-            importCompletionService.submit(importOperationCallable);
+                // secret keyrings are merged and saved by the writer directly
+                if (!key.isSecret()) {
+                    mPrepareExecutor.execute(new PrepareStage(mEntry));
+                    handedOver = true;
+                }
+            } catch (IOException | PgpGeneralException e) {
+                Log.e(Constants.TAG, "Encountered bad key on import!", e);
+            } finally {
+                if (!handedOver) {
+                    mEntry.mDone.countDown();
+                }
+            }
         }
+    }
+
+    /** Second stage: merge with the keyring in the database (if any), and canonicalize. */
+    private class PrepareStage implements Runnable {
+        private final PipelineEntry mEntry;
 
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
+        PrepareStage(PipelineEntry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public void run() {
             try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                        "import", e);
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException();
+                if (checkCancelled()) {
+                    mEntry.mCancelled = true;
+                    return;
+                }
+                // a fresh ProviderHelper per keyring, so each gets its own log
+                mEntry.mPrepared = new ProviderHelper(mContext)
+                        .preparePublicKeyRing(mEntry.mKeyRing, mEntry.mEntry.mExpectedFingerprint);
+            } finally {
+                mEntry.mDone.countDown();
+            }
+        }
+    }
+
+    /**
+     * Third stage: write keyrings to the database, in batches where possible, and collect the
+     * results. This is the only stage that writes to the database.
+     */
+    private class PipelineWriter implements Callable<ImportKeyResult> {
+        private final BlockingQueue<PipelineEntry> mInFlight;
+        private final int mNum;
+        private final long mStartTime;
+
+        private final OperationLog mLog = new OperationLog();
+        private final ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
+        // keyrings written during this import, those must be merged again if they come up twice
+        private final HashSet<Long> mWrittenMasterKeyIds = new HashSet<>();
+        private final ArrayList<PipelineEntry> mBatch = new ArrayList<>(BATCH_SIZE);
+        // keys retrieved from keyservers, with the keyserver state to store for each, if any
+        private final LinkedHashMap<Long, KeyserverKeyState> mKeyserverStates = new LinkedHashMap<>();
+
+        private int mNewKeys = 0, mUpdatedKeys = 0, mBadKeys = 0, mSecret = 0;
+        private int mDownloadedKeys = 0, mSkippedKeys = 0;
+        private int mPosition = 0;
+        private boolean mCancelled = false;
+
+        PipelineWriter(BlockingQueue<PipelineEntry> inFlight, int num, long startTime) {
+            mInFlight = inFlight;
+            mNum = num;
+            mStartTime = startTime;
+        }
+
+        @Override
+        public ImportKeyResult call() throws InterruptedException {
+            mLog.add(LogType.MSG_IMPORT, 0, mNum);
+
+            PipelineEntry entry;
+            while ((entry = mInFlight.take()) != PipelineEntry.END_OF_INPUT) {
+                entry.mDone.await();
+
+                if (entry.mCancelled || checkCancelled()) {
+                    mCancelled = true;
+                    continue;
+                }
+
+                if (entry.mFetched != null && entry.mFetched.mDownloaded) {
+                    mDownloadedKeys += 1;
+                }
+                if (entry.mFetched != null && entry.mFetched.mUnchanged) {
+                    // nothing to merge or save, only note that the key was checked
+                    mLog.addAll(entry.mLog.toList());
+                    mSkippedKeys += 1;
+                    if (!mKeyserverStates.containsKey(entry.mFetched.mMasterKeyId)) {
+                        mKeyserverStates.put(entry.mFetched.mMasterKeyId, null);
+                    }
+                    mPosition += 1;
+                    updateProgress(mPosition, mNum);
+                    continue;
+                }
+
+                if (entry.mKeyRing == null) {
+                    // failed to retrieve, this is already in the entry's log
+                    mLog.addAll(entry.mLog.toList());
+                    mBadKeys += 1;
+                    mPosition += 1;
+                    updateProgress(mPosition, mNum);
+                    continue;
+                }
+
+                long masterKeyId = entry.mKeyRing.getMasterKeyId();
+                if (entry.mPrepared != null && !mWrittenMasterKeyIds.contains(masterKeyId)) {
+                    mWrittenMasterKeyIds.add(masterKeyId);
+                    mBatch.add(entry);
+                    if (mBatch.size() >= BATCH_SIZE) {
+                        writeBatch();
+                    }
+                    continue;
+                }
+
+                // secret keyrings and keyrings which were already written during this import
+                // are saved one by one, after everything before them has been written.
+                writeBatch();
+                saveSingle(entry);
+                mWrittenMasterKeyIds.add(masterKeyId);
+            }
+            writeBatch();
+            // for skipped keys after the last write
+            renewLastUpdated();
+
+            return getResult();
+        }
+
+        private void writeBatch() {
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            Log.d(Constants.TAG, "Writing batch of " + mBatch.size() + " keyrings");
+
+            ArrayList<ProviderHelper.PreparedPublicKeyRing> prepared = new ArrayList<>(mBatch.size());
+            for (PipelineEntry entry : mBatch) {
+                prepared.add(entry.mPrepared);
+            }
+
+            List<SaveKeyringResult> results;
+            // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+            // and https://github.com/open-keychain/open-keychain/issues/1480
+            synchronized (mProviderHelper) {
+                results = mProviderHelper.savePreparedPublicKeyRings(prepared);
+            }
+            for (int i = 0; i < mBatch.size(); i++) {
+                addResult(mBatch.get(i), results.get(i));
+            }
+            mBatch.clear();
+            renewLastUpdated();
+        }
+
+        private void saveSingle(PipelineEntry entry) {
+            UncachedKeyRing key = entry.mKeyRing;
+            SaveKeyringResult result;
+            synchronized (mProviderHelper) {
+                mProviderHelper.clearLog();
+                if (key.isSecret()) {
+                    result = mProviderHelper.saveSecretKeyRing(key, new ProgressScaler());
+                } else {
+                    result = mProviderHelper.savePublicKeyRing(key, new ProgressScaler(),
+                            entry.mEntry.mExpectedFingerprint);
+                }
+            }
+            addResult(entry, result);
+            renewLastUpdated();
+        }
+
+        private void addResult(PipelineEntry entry, SaveKeyringResult result) {
+            UncachedKeyRing key = entry.mKeyRing;
+
+            mLog.addAll(entry.mLog.toList());
+            if (!result.success()) {
+                mBadKeys += 1;
+            } else {
+                if (result.updated()) {
+                    mUpdatedKeys += 1;
+                } else {
+                    mNewKeys += 1;
+                    if (key.isSecret()) {
+                        mSecret += 1;
+                    }
+                }
+                mImportedMasterKeyIds.add(key.getMasterKeyId());
+                if (entry.mEntry.mBytes == null) {
+                    // synonymous to isDownloadFromKeyserver, see serialKeyRingImport
+                    mKeyserverStates.put(key.getMasterKeyId(), entry.mFetched.mKeyserverState);
+                }
+            }
+            mLog.add(result, 2);
+
+            mPosition += 1;
+            updateProgress(mPosition, mNum);
+        }
+
+        private void renewLastUpdated() {
+            if (mKeyserverStates.isEmpty()) {
+                return;
+            }
+            synchronized (mProviderHelper) {
+                mProviderHelper.renewKeysLastUpdatedTime(mKeyserverStates,
+                        GregorianCalendar.getInstance().getTimeInMillis(), TimeUnit.MILLISECONDS);
+            }
+            mKeyserverStates.clear();
+        }
+
+        private ImportKeyResult getResult() {
+
+            // Special: consolidate on secret key import (cannot be cancelled!)
+            if (mSecret > 0) {
+                setPreventCancel();
+                ConsolidateResult result;
+                synchronized (mProviderHelper) {
+                    result = mProviderHelper.consolidateDatabaseStep1(new ProgressScaler());
+                }
+                mLog.add(result, 1);
+            }
+
+            long duration = Math.max(System.currentTimeMillis() - mStartTime, 1);
+            mLog.add(LogType.MSG_IMPORT_THROUGHPUT, 1, Integer.toString(mPosition),
+                    String.format("%.2f", duration / 1000.0),
+                    String.format("%.1f", mPosition * 1000.0 / duration));
+
+            long[] importedMasterKeyIdsArray = new long[mImportedMasterKeyIds.size()];
+            for (int i = 0; i < mImportedMasterKeyIds.size(); ++i) {
+                importedMasterKeyIdsArray[i] = mImportedMasterKeyIds.get(i);
+            }
+
+            int resultType = 0;
+            if (mCancelled) {
+                mLog.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                resultType |= ImportKeyResult.RESULT_CANCELLED;
+            }
+
+            // special return case: no new keys at all
+            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0 && mSkippedKeys == 0) {
+                resultType = mCancelled ? resultType : ImportKeyResult.RESULT_FAIL_NOTHING;
+            } else {
+                if (mNewKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
+                }
+                if (mUpdatedKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_OK_UPDATED;
+                }
+                if (mBadKeys > 0) {
+                    resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
+                    if (mNewKeys == 0 && mUpdatedKeys == 0 && mSkippedKeys == 0) {
+                        resultType |= ImportKeyResult.RESULT_ERROR;
+                    }
+                }
+                if (mLog.containsWarnings()) {
+                    resultType |= ImportKeyResult.RESULT_WARNINGS;
+                }
+            }
+
+            if (!mCancelled) {
+                // Final log entry, it's easier to do this individually
+                if ((mNewKeys > 0 || mUpdatedKeys > 0 || mSkippedKeys > 0) && mBadKeys > 0) {
+                    mLog.add(LogType.MSG_IMPORT_PARTIAL, 1);
+                } else if (mNewKeys > 0 || mUpdatedKeys > 0 || mSkippedKeys > 0) {
+                    mLog.add(LogType.MSG_IMPORT_SUCCESS, 1);
+                } else {
+                    mLog.add(LogType.MSG_IMPORT_ERROR, 1);
+                }
+            }
+
+            return new ImportKeyResult(resultType, mLog, mNewKeys, mUpdatedKeys, mBadKeys, mSecret,
+                    mDownloadedKeys, mSkippedKeys, importedMasterKeyIdsArray);
+        }
+    }
+
+    /** Returns the keyserver keys are fetched from. Tests override this to stub it. */
+    HkpKeyserver createKeyserver(String keyServerUri, Proxy proxy) {
+        return new HkpKeyserver(keyServerUri, proxy);
+    }
+
+    /** The outcome of retrieving a single keyring, see KeyRingFetcher. */
+    private static class FetchResult {
+        // the retrieved keyring, null if it could not be obtained or is unchanged
+        UncachedKeyRing mKeyRing;
+        // the keyring is unchanged on the keyserver since its last download
+        boolean mUnchanged;
+        long mMasterKeyId;
+        // the keyring data was downloaded from a keyserver
+        boolean mDownloaded;
+        // state to store once the keyring is saved, if it was retrieved from a keyserver only
+        KeyserverKeyState mKeyserverState;
+    }
+
+    /**
+     * Retrieves the keyring referenced by a ParcelableKeyRing, either by decoding its data or by
+     * downloading it from keyservers, keybase.io and/or Facebook. Keyserver instances are created
+     * on first use and reused for all entries retrieved through the same fetcher, which may be
+     * shared by the threads of the fetch stage.
+     * <p/>
+     * A keyring which is retrieved from a keyserver alone is only downloaded if it changed there
+     * since its last download, going by the validators and content hash stored in updated_keys.
+     * Otherwise, there is nothing to merge into the keyring in the database, and the result is
+     * marked as unchanged.
+     */
+    private class KeyRingFetcher {
+        private final String mKeyServerUri;
+        private final Proxy mProxy;
+        private final ProviderHelper mProviderHelper;
+
+        private HkpKeyserver mKeyServer;
+        private KeybaseKeyserver mKeybaseServer;
+        private FacebookKeyserver mFacebookServer;
+
+        KeyRingFetcher(String keyServerUri, Proxy proxy, ProviderHelper providerHelper) {
+            mKeyServerUri = keyServerUri;
+            mProxy = proxy;
+            mProviderHelper = providerHelper;
+        }
+
+        /**
+         * Returns the retrieved keyring, which is null if it could not be obtained from any
+         * source, or if it is unchanged on the keyserver.
+         */
+        FetchResult fetch(ParcelableKeyRing entry, OperationLog log)
+                throws IOException, PgpGeneralException {
+
+            FetchResult result = new FetchResult();
+            UncachedKeyRing key = null;
+
+            // If there is already byte data, use that
+            if (entry.mBytes != null) {
+                key = UncachedKeyRing.decodeFromData(entry.mBytes);
+            }
+            // Otherwise, we need to fetch the data from a server first
+            else {
+
+                // We fetch from keyservers first, because we tend to get more certificates
+                // from there, so the number of certificates which are merged in later is
+                // smaller.
+
+                // If we have a keyServerUri and a fingerprint or at least a keyId,
+                // download from HKP
+                if (mKeyServerUri != null
+                        && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                    HkpKeyserver keyServer = getKeyServer(log);
+
+                    // the stored state only describes keyrings which came from the keyserver alone
+                    boolean keyserverOnly = entry.mKeybaseName == null && entry.mFbUsername == null;
+                    KeyserverKeyState knownState = null;
+                    if (keyserverOnly && entry.mExpectedFingerprint != null
+                            && entry.mExpectedFingerprint.length() == 40) {
+                        result.mMasterKeyId = new BigInteger(
+                                entry.mExpectedFingerprint.substring(24), 16).longValue();
+                        knownState = mProviderHelper.getKeyserverKeyState(
+                                result.mMasterKeyId, mKeyServerUri);
+                    }
+
+                    try {
+                        HkpKeyserver.GetResult download;
+                        // Download by fingerprint, or keyId - whichever is available
+                        if (entry.mExpectedFingerprint != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                                    entry.mExpectedFingerprint.substring(24));
+                            download = keyServer.get("0x" + entry.mExpectedFingerprint, knownState);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                            download = keyServer.get(entry.mKeyIdHex, knownState);
+                        }
+                        result.mDownloaded = !download.isNotModified();
+
+                        if (download.isNotModified() || knownState != null
+                                && knownState.isSameContent(download)) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED, 3);
+                            result.mUnchanged = true;
+                            return result;
+                        }
+
+                        key = UncachedKeyRing.decodeFromData(download.mArmoredKey.getBytes());
+                        if (key != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                            if (keyserverOnly) {
+                                result.mKeyserverState =
+                                        KeyserverKeyState.fromDownload(mKeyServerUri, download);
+                            }
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        Log.d(Constants.TAG, "query failed", e);
+                        log.add(e instanceof Keyserver.QueryUnavailableException
+                                ? LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_UNAVAILABLE
+                                : LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
+                }
+
+                // If we have a keybase name, try to fetch from there
+                if (entry.mKeybaseName != null) {
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                        byte[] data = getKeybaseServer().get(entry.mKeybaseName).getBytes();
+                        UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
+
+                        if (keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
+
+                        // If there already is a key, merge the two
+                        if (key != null && keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            keybaseKey = key.merge(keybaseKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (keybaseKey != null) {
+                                key = keybaseKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                            }
+                        } else if (keybaseKey != null) {
+                            key = keybaseKey;
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
+                }
+
+                // if the key is from Facebook, fetch from there
+                if (entry.mFbUsername != null) {
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
+                        byte[] data = getFacebookServer().get(entry.mFbUsername).getBytes();
+                        UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
+
+                        if (facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
+
+                        // If there already is a key, merge the two
+                        if (key != null && facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            facebookKey = key.merge(facebookKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (facebookKey != null) {
+                                key = facebookKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                            }
+                        } else if (facebookKey != null) {
+                            key = facebookKey;
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
                 }
             }
+
+            result.mKeyRing = key;
+            return result;
         }
-        return accumulator.getConsolidatedResult();
 
+        // Make sure we have the keyserver instances cached
+        private synchronized HkpKeyserver getKeyServer(OperationLog log) {
+            if (mKeyServer == null) {
+                log.add(LogType.MSG_IMPORT_KEYSERVER, 1, mKeyServerUri);
+                mKeyServer = createKeyserver(mKeyServerUri, mProxy);
+            }
+            return mKeyServer;
+        }
+
+        private synchronized KeybaseKeyserver getKeybaseServer() {
+            if (mKeybaseServer == null) {
+                mKeybaseServer = new KeybaseKeyserver(mProxy);
+            }
+            return mKeybaseServer;
+        }
+
+        private synchronized FacebookKeyserver getFacebookServer() {
+            if (mFacebookServer == null) {
+                mFacebookServer = new FacebookKeyserver(mProxy);
+            }
+            return mFacebookServer;
+        }
     }
 
     /**
@@ -526,6 +984,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         private int mNewKeys = 0;
         private int mUpdatedKeys = 0;
         private int mSecret = 0;
+        private int mDownloadedKeys = 0;
+        private int mSkippedKeys = 0;
         private int mResultType = 0;
         private boolean mHasCancelledResult;
 
@@ -568,6 +1028,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             mNewKeys += result.mNewKeys;
             mUpdatedKeys += result.mUpdatedKeys;
             mSecret += result.mSecret;
+            mDownloadedKeys += result.mDownloadedKeys;
+            mSkippedKeys += result.mSkippedKeys;
 
             long[] masterKeyIds = result.getImportedMasterKeyIds();
             for (long masterKeyId : masterKeyIds) {
@@ -586,7 +1048,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             // adding required information to mResultType
             // special case,no keys requested for import
-            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0
+            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0 && mSkippedKeys == 0
                     && (mResultType & ImportKeyResult.RESULT_CANCELLED)
                     != ImportKeyResult.RESULT_CANCELLED) {
                 mResultType = ImportKeyResult.RESULT_FAIL_NOTHING;
@@ -599,7 +1061,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 }
                 if (mBadKeys > 0) {
                     mResultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                    if (mNewKeys == 0 && mUpdatedKeys == 0) {
+                    if (mNewKeys == 0 && mUpdatedKeys == 0 && mSkippedKeys == 0) {
                         mResultType |= ImportKeyResult.RESULT_ERROR;
                     }
                 }
@@ -614,7 +1076,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             }
 
             return new ImportKeyResult(mResultType, mImportLog, mNewKeys, mUpdatedKeys, mBadKeys,
-                    mSecret, masterKeyIds);
+                    mSecret, mDownloadedKeys, mSkippedKeys, masterKeyIds);
         }
 
         public boolean isImportFinished() {
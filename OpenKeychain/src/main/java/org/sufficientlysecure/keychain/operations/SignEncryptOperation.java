@@ -21,11 +21,19 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.net.Uri;
@@ -37,6 +45,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.Operat
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.PreparedKeys;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
@@ -55,6 +64,9 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * This is a high-level operation, which encapsulates one or more sign/encrypt
  * operations, using URIs or byte arrays as input and output.
  *
+ * The signing and encryption keys are resolved and unlocked once for all inputs.
+ * In parallel mode, URIs are processed on a worker pool, with one worker per core.
+ *
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
  */
@@ -78,9 +90,10 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         byte[] outputBytes = null;
 
         int total = inputBytes != null ? 1 : inputUris.size(), count = 0;
-        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+        ResultCollector collector = new ResultCollector(input, cryptoInput, log);
+        ArrayList<PgpSignEncryptResult> results = collector.mResults;
 
-        NfcSignOperationsBuilder pendingInputBuilder = null;
+        long startTime = System.currentTimeMillis();
 
         // if signing subkey has not explicitly been set, get first usable subkey capable of signing
         if (input.getSignatureMasterKeyId() != Constants.key.none
@@ -95,6 +108,24 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
+        // the keys are the same for all inputs, so they are resolved and unlocked only once
+        PreparedKeys keys = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                new ProgressScaler(mProgressable, 0, 100 / Math.max(total, 1), 100), mCancelled)
+                .prepareKeys(input, cryptoInput);
+        if (keys.getResult() != null) {
+            SignEncryptResult result = collector.add(keys.getResult());
+            if (result == null) {
+                throw new AssertionError("Keys were not prepared, but no error was returned. This is a bug!");
+            }
+            return result;
+        }
+
+        if (input.isParallel() && inputBytes == null
+                && inputUris.size() > 1 && outputUris.size() == inputUris.size()) {
+            return executeParallel(input, cryptoInput, keys, collector, startTime);
+        }
+
+        long processedBytes = 0;
         do {
 
             if (checkCancelled()) {
@@ -118,10 +149,7 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                     log.add(LogType.MSG_SE_INPUT_URI, 1);
                     Uri uri = inputUris.removeFirst();
                     try {
-                        InputStream is = FileHelper.openInputStreamSafe(mContext.getContentResolver(), uri);
-                        long fileSize = FileHelper.getFileSize(mContext, uri, 0);
-                        String filename = FileHelper.getFilename(mContext, uri);
-                        inputData = new InputData(is, fileSize, filename);
+                        inputData = openInputData(uri);
                     } catch (FileNotFoundException e) {
                         log.add(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND, 1);
                         return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
@@ -150,23 +178,12 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
                     new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
-            PgpSignEncryptResult result = op.execute(input, cryptoInput, inputData, outStream);
-            results.add(result);
-            log.add(result, 2);
+            PgpSignEncryptResult result = op.execute(input, cryptoInput, keys, inputData, outStream);
+            processedBytes += inputData.getStreamPosition();
 
-            if (result.isPending()) {
-                RequiredInputParcel requiredInput = result.getRequiredInputParcel();
-                // Passphrase returns immediately, nfc are aggregated
-                if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
-                    return new SignEncryptResult(log, requiredInput, results, cryptoInput);
-                }
-                if (pendingInputBuilder == null) {
-                    pendingInputBuilder = new NfcSignOperationsBuilder(requiredInput.mSignatureTime,
-                            input.getSignatureMasterKeyId(), input.getSignatureSubKeyId());
-                }
-                pendingInputBuilder.addAll(requiredInput);
-            } else if (!result.success()) {
-                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+            SignEncryptResult terminalResult = collector.add(result);
+            if (terminalResult != null) {
+                return terminalResult;
             }
 
             if (outStream instanceof ByteArrayOutputStream) {
@@ -175,17 +192,219 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
         } while (!inputUris.isEmpty());
 
-        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
-            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        if (!outputUris.isEmpty() && !collector.isPending()) {
+            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
         }
 
-        if (!outputUris.isEmpty()) {
-            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
+        return collector.finish(outputBytes, processedBytes, startTime);
+
+    }
+
+    /**
+     * Signs and/or encrypts each input uri into the output uri at the same position, on a
+     * bounded pool of workers. Results are collected in input order, so the log and the pending
+     * input are the same as if the uris were processed one after another.
+     */
+    private SignEncryptResult executeParallel(final SignEncryptParcel input,
+                                              final CryptoInputParcel cryptoInput,
+                                              final PreparedKeys keys, ResultCollector collector,
+                                              long startTime) {
+        OperationLog log = collector.mLog;
+        List<Uri> inputUris = input.getInputUris();
+        List<Uri> outputUris = input.getOutputUris();
+        final int total = inputUris.size();
+
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), total));
+        log.add(LogType.MSG_SE_PARALLEL, 1, Integer.toString(total), Integer.toString(workers));
+
+        // once a file failed, files which have not been started yet are skipped
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicInteger done = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        ArrayList<Future<FileResult>> futures = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            final Uri inputUri = inputUris.get(i);
+            final Uri outputUri = outputUris.get(i);
+            futures.add(executor.submit(new Callable<FileResult>() {
+                @Override
+                public FileResult call() {
+                    if (failed.get() || checkCancelled()) {
+                        FileResult skipped = new FileResult();
+                        skipped.mSkipped = true;
+                        return skipped;
+                    }
+                    FileResult fileResult = processFile(input, cryptoInput, keys, inputUri, outputUri);
+                    if (fileResult.mError != null
+                            || !fileResult.mResult.success() && !fileResult.mResult.isPending()) {
+                        failed.set(true);
+                    }
+                    synchronized (done) {
+                        updateProgress(done.incrementAndGet(), total);
+                    }
+                    return fileResult;
+                }
+            }));
+        }
+
+        long processedBytes = 0;
+        try {
+            for (Future<FileResult> future : futures) {
+                FileResult fileResult = future.get();
+                if (fileResult.mSkipped) {
+                    // a failure of a later file may have been first, so keep looking for it
+                    log.add(LogType.MSG_SE_INPUT_SKIPPED, 1);
+                    continue;
+                }
+
+                log.add(LogType.MSG_SE_INPUT_URI, 1);
+                if (fileResult.mError != null) {
+                    log.add(fileResult.mError, 1);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, collector.mResults);
+                }
+                processedBytes += fileResult.mProcessedBytes;
+
+                SignEncryptResult terminalResult = collector.add(fileResult.mResult);
+                if (terminalResult != null) {
+                    return terminalResult;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted while waiting for sign/encrypt results", e);
+            // reported as cancelled below, but the caller may need to know as well
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // same as an exception in a sequential operation
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // all files were collected, unless some were skipped because of cancellation
+        if (checkCancelled() || collector.mResults.size() < total) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, collector.mResults);
+        }
+
+        return collector.finish(null, processedBytes, startTime);
+    }
+
+    private FileResult processFile(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+                                   PreparedKeys keys, Uri inputUri, Uri outputUri) {
+        FileResult fileResult = new FileResult();
+
+        InputData inputData;
+        try {
+            inputData = openInputData(inputUri);
+        } catch (FileNotFoundException e) {
+            fileResult.mError = LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND;
+            return fileResult;
         }
 
-        log.add(LogType.MSG_SE_SUCCESS, 1);
-        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, outputBytes);
+        try {
+            OutputStream outStream;
+            try {
+                outStream = mContext.getContentResolver().openOutputStream(outputUri);
+            } catch (FileNotFoundException e) {
+                fileResult.mError = LogType.MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND;
+                return fileResult;
+            }
 
+            // progress is reported per file, so the operation itself gets none
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                    null, mCancelled);
+            fileResult.mResult = op.execute(input, cryptoInput, keys, inputData, outStream);
+            fileResult.mProcessedBytes = inputData.getStreamPosition();
+            return fileResult;
+        } finally {
+            try {
+                inputData.getInputStream().close();
+            } catch (IOException e) {
+                // nothing to do here
+            }
+        }
+    }
+
+    private InputData openInputData(Uri uri) throws FileNotFoundException {
+        InputStream is = FileHelper.openInputStreamSafe(mContext.getContentResolver(), uri);
+        long fileSize = FileHelper.getFileSize(mContext, uri, 0);
+        String filename = FileHelper.getFilename(mContext, uri);
+        return new InputData(is, fileSize, filename);
+    }
+
+    /**
+     * The outcome of a single file in parallel mode: either an error opening it, or a result.
+     * Files which were not started after a failure or cancellation are marked as skipped.
+     */
+    private static class FileResult {
+        boolean mSkipped;
+        LogType mError;
+        PgpSignEncryptResult mResult;
+        long mProcessedBytes;
+    }
+
+    /**
+     * Collects the results of the sign/encrypt sub-operations in order. Pending passphrase input
+     * is returned immediately, while pending nfc input is aggregated over all sub-operations.
+     */
+    private static class ResultCollector {
+        final SignEncryptParcel mInput;
+        final CryptoInputParcel mCryptoInput;
+        final OperationLog mLog;
+        final ArrayList<PgpSignEncryptResult> mResults = new ArrayList<>();
+        NfcSignOperationsBuilder mPendingInputBuilder;
+
+        ResultCollector(SignEncryptParcel input, CryptoInputParcel cryptoInput, OperationLog log) {
+            mInput = input;
+            mCryptoInput = cryptoInput;
+            mLog = log;
+        }
+
+        /** Adds a result, and returns the result of the whole operation if it must terminate. */
+        SignEncryptResult add(PgpSignEncryptResult result) {
+            mResults.add(result);
+            mLog.add(result, 2);
+
+            if (result.isPending()) {
+                RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+                // Passphrase returns immediately, nfc are aggregated
+                if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
+                    return new SignEncryptResult(mLog, requiredInput, mResults, mCryptoInput);
+                }
+                if (mPendingInputBuilder == null) {
+                    mPendingInputBuilder = new NfcSignOperationsBuilder(requiredInput.mSignatureTime,
+                            mInput.getSignatureMasterKeyId(), mInput.getSignatureSubKeyId());
+                }
+                mPendingInputBuilder.addAll(requiredInput);
+            } else if (!result.success()) {
+                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, mLog, mResults);
+            }
+            return null;
+        }
+
+        boolean isPending() {
+            return mPendingInputBuilder != null && !mPendingInputBuilder.isEmpty();
+        }
+
+        SignEncryptResult finish(byte[] outputBytes, long processedBytes, long startTime) {
+            if (isPending()) {
+                return new SignEncryptResult(mLog, mPendingInputBuilder.build(), mResults, mCryptoInput);
+            }
+
+            long operationTime = Math.max(System.currentTimeMillis() - startTime, 1);
+            SignEncryptResult result = new SignEncryptResult(
+                    SignEncryptResult.RESULT_OK, mLog, mResults, outputBytes);
+            result.mProcessedBytes = processedBytes;
+            result.mProcessedFiles = mResults.size();
+            result.mOperationTime = operationTime;
+
+            mLog.add(LogType.MSG_SE_THROUGHPUT, 1, Integer.toString(mResults.size()),
+                    String.format("%.2f", operationTime / 1000.0),
+                    String.format("%.2f", result.getMegabytesPerSecond()),
+                    String.format("%.1f", result.getFilesPerSecond()));
+            mLog.add(LogType.MSG_SE_SUCCESS, 1);
+            return result;
+        }
     }
 
 }
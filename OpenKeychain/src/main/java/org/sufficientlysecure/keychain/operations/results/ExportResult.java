@@ -24,18 +24,33 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 
 public class ExportResult extends InputPendingResult {
 
+    // size of the exported key data before encryption, and total time taken in milliseconds
+    public long mExportedBytes;
+    public long mOperationTime;
+
     public ExportResult(int result, OperationLog log) {
         super(result, log);
     }
 
-    /** Construct from a parcel - trivial because we have no extra data. */
     public ExportResult(Parcel source) {
         super(source);
+        mExportedBytes = source.readLong();
+        mOperationTime = source.readLong();
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
+        dest.writeLong(mExportedBytes);
+        dest.writeLong(mOperationTime);
+    }
+
+    public long getBytesPerSecond() {
+        return getBytesPerSecond(mExportedBytes, mOperationTime);
+    }
+
+    public static long getBytesPerSecond(long bytes, long timeMillis) {
+        return bytes * 1000 / Math.max(timeMillis, 1);
     }
 
     public static Creator<ExportResult> CREATOR = new Creator<ExportResult>() {
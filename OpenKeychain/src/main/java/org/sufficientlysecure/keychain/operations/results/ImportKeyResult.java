@@ -35,6 +35,8 @@ import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 public class ImportKeyResult extends InputPendingResult {
 
     public final int mNewKeys, mUpdatedKeys, mBadKeys, mSecret;
+    // keys downloaded from a keyserver, and keys skipped because their copy there was unchanged
+    public final int mDownloadedKeys, mSkippedKeys;
     public final long[] mImportedMasterKeyIds;
 
     // At least one new key
@@ -78,6 +80,8 @@ public class ImportKeyResult extends InputPendingResult {
         mUpdatedKeys = source.readInt();
         mBadKeys = source.readInt();
         mSecret = source.readInt();
+        mDownloadedKeys = source.readInt();
+        mSkippedKeys = source.readInt();
         mImportedMasterKeyIds = source.createLongArray();
     }
 
@@ -88,11 +92,19 @@ public class ImportKeyResult extends InputPendingResult {
     public ImportKeyResult(int result, OperationLog log,
                            int newKeys, int updatedKeys, int badKeys, int secret,
                            long[] importedMasterKeyIds) {
+        this(result, log, newKeys, updatedKeys, badKeys, secret, 0, 0, importedMasterKeyIds);
+    }
+
+    public ImportKeyResult(int result, OperationLog log,
+                           int newKeys, int updatedKeys, int badKeys, int secret,
+                           int downloadedKeys, int skippedKeys, long[] importedMasterKeyIds) {
         super(result, log);
         mNewKeys = newKeys;
         mUpdatedKeys = updatedKeys;
         mBadKeys = badKeys;
         mSecret = secret;
+        mDownloadedKeys = downloadedKeys;
+        mSkippedKeys = skippedKeys;
         mImportedMasterKeyIds = importedMasterKeyIds;
     }
 
@@ -104,6 +116,8 @@ public class ImportKeyResult extends InputPendingResult {
         mUpdatedKeys = 0;
         mBadKeys = 0;
         mSecret = 0;
+        mDownloadedKeys = 0;
+        mSkippedKeys = 0;
         mImportedMasterKeyIds = new long[]{};
     }
 
@@ -114,6 +128,8 @@ public class ImportKeyResult extends InputPendingResult {
         dest.writeInt(mUpdatedKeys);
         dest.writeInt(mBadKeys);
         dest.writeInt(mSecret);
+        dest.writeInt(mDownloadedKeys);
+        dest.writeInt(mSkippedKeys);
         dest.writeLongArray(mImportedMasterKeyIds);
     }
 
@@ -167,6 +183,9 @@ public class ImportKeyResult extends InputPendingResult {
             } else if (isOkNew()) {
                 str = activity.getResources().getQuantityString(
                         R.plurals.import_keys_added, mNewKeys, mNewKeys, withWarnings);
+            } else if (mSkippedKeys > 0) {
+                str = activity.getResources().getQuantityString(
+                        R.plurals.import_keys_unchanged, mSkippedKeys, mSkippedKeys, withWarnings);
             } else {
                 duration = 0;
                 style = Style.ERROR;
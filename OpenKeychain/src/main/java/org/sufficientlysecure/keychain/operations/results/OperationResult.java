@@ -340,6 +340,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
         MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
         MSG_IP_ENCODE_FAIL (LogLevel.DEBUG, R.string.msg_ip_encode_fail),
+        MSG_IP_UPSERT (LogLevel.DEBUG, R.string.msg_ip_upsert),
         MSG_IP_ERROR_IO_EXC (LogLevel.ERROR, R.string.msg_ip_error_io_exc),
         MSG_IP_ERROR_OP_EXC (LogLevel.ERROR, R.string.msg_ip_error_op_exc),
         MSG_IP_ERROR_REMOTE_EX (LogLevel.ERROR, R.string.msg_ip_error_remote_ex),
@@ -712,14 +713,18 @@ public abstract class OperationResult implements Parcelable {
         MSG_SE (LogLevel.START, R.string.msg_se),
         MSG_SE_INPUT_BYTES (LogLevel.INFO, R.string.msg_se_input_bytes),
         MSG_SE_INPUT_URI (LogLevel.INFO, R.string.msg_se_input_uri),
+        MSG_SE_INPUT_SKIPPED (LogLevel.INFO, R.string.msg_se_input_skipped),
+        MSG_SE_PARALLEL (LogLevel.INFO, R.string.msg_se_parallel),
         MSG_SE_ERROR_NO_INPUT (LogLevel.DEBUG, R.string.msg_se_error_no_input),
         MSG_SE_ERROR_INPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_input_uri_not_found),
         MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_output_uri_not_found),
         MSG_SE_ERROR_TOO_MANY_INPUTS (LogLevel.ERROR, R.string.msg_se_error_too_many_inputs),
+        MSG_SE_THROUGHPUT (LogLevel.INFO, R.string.msg_se_throughput),
         MSG_SE_SUCCESS (LogLevel.OK, R.string.msg_se_success),
 
         // pgpsignencrypt
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
+        MSG_PSE_PIPELINED (LogLevel.DEBUG, R.string.msg_pse_pipelined),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
@@ -735,6 +740,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_KEY_WARN (LogLevel.WARN, R.string.msg_pse_key_warn),
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
+        MSG_PSE_SUSPENDED (LogLevel.DEBUG, R.string.msg_pse_suspended),
+        MSG_PSE_RESUMING (LogLevel.DEBUG, R.string.msg_pse_resuming),
         MSG_PSE_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_pse_pending_passphrase),
         MSG_PSE (LogLevel.DEBUG, R.string.msg_pse),
         MSG_PSE_SIGNING (LogLevel.DEBUG, R.string.msg_pse_signing),
@@ -767,17 +774,20 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_FETCH_ERROR (LogLevel.ERROR, R.string.msg_import_fetch_error),
         MSG_IMPORT_FETCH_ERROR_DECODE (LogLevel.ERROR, R.string.msg_import_fetch_error_decode),
         MSG_IMPORT_FETCH_ERROR_KEYSERVER(LogLevel.ERROR, R.string.msg_import_fetch_error_keyserver),
+        MSG_IMPORT_FETCH_ERROR_KEYSERVER_UNAVAILABLE (LogLevel.ERROR, R.string.msg_import_fetch_error_keyserver_unavailable),
         MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET (LogLevel.ERROR, R.string.msg_import_fetch_error_keyserver_secret),
         MSG_IMPORT_FETCH_KEYBASE (LogLevel.INFO, R.string.msg_import_fetch_keybase),
         MSG_IMPORT_FETCH_FACEBOOK (LogLevel.INFO, R.string.msg_import_fetch_facebook),
         MSG_IMPORT_FETCH_KEYSERVER (LogLevel.INFO, R.string.msg_import_fetch_keyserver),
         MSG_IMPORT_FETCH_KEYSERVER_OK (LogLevel.DEBUG, R.string.msg_import_fetch_keyserver_ok),
+        MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED (LogLevel.OK, R.string.msg_import_fetch_keyserver_unchanged),
         MSG_IMPORT_KEYSERVER (LogLevel.DEBUG, R.string.msg_import_keyserver),
         MSG_IMPORT_MERGE (LogLevel.DEBUG, R.string.msg_import_merge),
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
+        MSG_IMPORT_THROUGHPUT (LogLevel.INFO, R.string.msg_import_throughput),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
         MSG_BACKUP(LogLevel.START, R.plurals.msg_backup),
@@ -787,6 +797,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_BACKUP_ERROR_URI_OPEN(LogLevel.ERROR, R.string.msg_backup_error_uri_open),
         MSG_BACKUP_ERROR_DB(LogLevel.ERROR, R.string.msg_backup_error_db),
         MSG_BACKUP_ERROR_IO(LogLevel.ERROR, R.string.msg_backup_error_io),
+        MSG_BACKUP_THROUGHPUT(LogLevel.INFO, R.string.msg_backup_throughput),
         MSG_BACKUP_SUCCESS(LogLevel.OK, R.string.msg_backup_success),
 
         MSG_UPLOAD(LogLevel.START, R.string.msg_upload),
@@ -900,6 +911,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
+        MSG_BENCH_PASSPHRASE_CACHE_SERVICE (LogLevel.INFO, R.string.msg_bench_passphrase_cache_service),
+        MSG_BENCH_PASSPHRASE_CACHE_SERVICE_ERROR (LogLevel.WARN, R.string.msg_bench_passphrase_cache_service_error),
+        MSG_BENCH_PASSPHRASE_CACHE_LOCAL (LogLevel.INFO, R.string.msg_bench_passphrase_cache_local),
+        MSG_BENCH_PIPELINE (LogLevel.INFO, R.string.msg_bench_pipeline),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
 
         ;
@@ -29,6 +29,10 @@ public class SignEncryptResult extends InputPendingResult {
     ArrayList<PgpSignEncryptResult> mResults;
     byte[] mResultBytes;
 
+    public long mProcessedBytes;
+    public int mProcessedFiles;
+    public long mOperationTime;
+
     public SignEncryptResult(OperationLog log, RequiredInputParcel requiredInput,
                              ArrayList<PgpSignEncryptResult> results,
                              CryptoInputParcel cryptoInputParcel) {
@@ -50,6 +54,9 @@ public class SignEncryptResult extends InputPendingResult {
     public SignEncryptResult(Parcel source) {
         super(source);
         mResults = source.createTypedArrayList(PgpSignEncryptResult.CREATOR);
+        mProcessedBytes = source.readLong();
+        mProcessedFiles = source.readInt();
+        mOperationTime = source.readLong();
     }
 
     public byte[] getResultBytes() {
@@ -60,6 +67,14 @@ public class SignEncryptResult extends InputPendingResult {
         return mResults;
     }
 
+    public double getMegabytesPerSecond() {
+        return mProcessedBytes * 1000.0 / (1024 * 1024) / Math.max(mOperationTime, 1);
+    }
+
+    public double getFilesPerSecond() {
+        return mProcessedFiles * 1000.0 / Math.max(mOperationTime, 1);
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -67,6 +82,9 @@ public class SignEncryptResult extends InputPendingResult {
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
         dest.writeTypedList(mResults);
+        dest.writeLong(mProcessedBytes);
+        dest.writeInt(mProcessedFiles);
+        dest.writeLong(mOperationTime);
     }
 
     public static final Creator<SignEncryptResult> CREATOR = new Creator<SignEncryptResult>() {
@@ -47,6 +47,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.LocalPassphraseCache;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -171,6 +172,10 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return true;
         }
 
+        // an unlocked key is only cached if the cache wasn't cleared while unlocking it
+        UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance();
+        int unlockedKeyCacheGeneration = unlockedKeyCache.getGeneration();
+
         // try to extract keys using the passphrase
         try {
 
@@ -181,6 +186,14 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
                 return true;
             }
 
+            // if this key was unlocked with this passphrase recently, we can skip the S2K
+            PGPPrivateKey cachedPrivateKey = unlockedKeyCache.get(mSecretKey, passphrase);
+            if (cachedPrivateKey != null) {
+                mPrivateKey = cachedPrivateKey;
+                mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+                return true;
+            }
+
             byte[] sessionKey;
             sessionKey = passphrase.getCachedSessionKeyForParameters(keyEncryptionAlgorithm, s2k);
             if (sessionKey == null) {
@@ -201,16 +214,27 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         if (mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+        // only keep the unlocked key for as long as its passphrase is cached in this process
+        LocalPassphraseCache passphraseCache = LocalPassphraseCache.peekInstance();
+        if (passphraseCache != null) {
+            long expiryTime = passphraseCache.getExpiryTime(
+                    mRing.getMasterKeyId(), getKeyId(), passphrase);
+            if (expiryTime > 0) {
+                unlockedKeyCache.put(
+                        mSecretKey, passphrase, mPrivateKey, expiryTime, unlockedKeyCacheGeneration);
+            }
+        }
         return true;
     }
 
     private PGPContentSignerBuilder getContentSignerBuilder(int hashAlgo,
-            Map<ByteBuffer,byte[]> signedHashes) {
+            Map<ByteBuffer,byte[]> signedHashes, boolean singleSignature) {
         if (mPrivateKeyState == PRIVATE_KEY_STATE_DIVERT_TO_CARD) {
             // use synchronous "NFC based" SignerBuilder
             return new NfcSyncPGPContentSignerBuilder(
                     mSecretKey.getPublicKey().getAlgorithm(), hashAlgo,
                     mSecretKey.getKeyID(), signedHashes)
+                    .setKeepDigest(singleSignature)
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
         } else {
             // content signer based on signing key algorithm and chosen hash algorithm
@@ -222,7 +246,7 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
 
     public PGPSignatureGenerator getCertSignatureGenerator(Map<ByteBuffer, byte[]> signedHashes) {
         PGPContentSignerBuilder contentSignerBuilder = getContentSignerBuilder(
-                PgpSecurityConstants.CERTIFY_HASH_ALGO, signedHashes);
+                PgpSecurityConstants.CERTIFY_HASH_ALGO, signedHashes, false);
 
         if (mPrivateKeyState == PRIVATE_KEY_STATE_LOCKED) {
             throw new PrivateKeyNotUnlockedException();
@@ -256,7 +280,9 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             creationTimestamp = new Date();
         }
 
-        PGPContentSignerBuilder contentSignerBuilder = getContentSignerBuilder(hashAlgo, signedHashes);
+        // a data signature generator creates only one signature, which may be generated again
+        // after the hash was signed by a security token, see PgpSignEncryptOperation
+        PGPContentSignerBuilder contentSignerBuilder = getContentSignerBuilder(hashAlgo, signedHashes, true);
 
         int signatureType;
         if (cleartext) {
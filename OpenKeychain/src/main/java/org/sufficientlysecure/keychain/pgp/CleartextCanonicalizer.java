@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SignatureException;
+
+
+/**
+ * Byte level canonicalization of the text of cleartext signatures, as defined in
+ * http://tools.ietf.org/html/rfc4880#section-7.1
+ * <p/>
+ * Lines may end with CR, LF or CRLF. Trailing spaces and tabs are stripped, and lines are
+ * signed with CRLF line endings, except for the last one. The text is streamed in chunks of any
+ * size, only a run of whitespace which might turn out to be trailing is held back, so no memory
+ * is allocated per line. Dash-escaping is done by the ArmoredOutputStream and
+ * ArmoredInputStream the text is written to or read from.
+ * <p/>
+ * For reading the cleartext from an ArmoredInputStream line by line, see readLine.
+ */
+public class CleartextCanonicalizer {
+
+    /** Receives the canonicalized text, which is signed or verified. */
+    public interface SignedDataSink {
+        void update(byte[] data, int off, int len) throws SignatureException;
+    }
+
+    public static final int NO_LOOKAHEAD = -2;
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+    private final OutputStream mTextOut;
+    private final SignedDataSink mSignedOut;
+
+    // whitespace which is only part of the text if followed by something else on its line
+    private byte[] mWhitespace = new byte[64];
+    private int mWhitespaceLength;
+
+    private boolean mSkipLf;
+    private boolean mLineStarted;
+    private boolean mLineSigned;
+    private long mCompletedLines;
+
+    /**
+     * @param textOut receives the canonicalized text, each line ending with CRLF, or null
+     * @param signedOut receives the canonicalized text without the last line ending, or null
+     */
+    public CleartextCanonicalizer(OutputStream textOut, SignedDataSink signedOut) {
+        mTextOut = textOut;
+        mSignedOut = signedOut;
+    }
+
+    public void update(byte[] data, int off, int len) throws IOException, SignatureException {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            byte b = data[i];
+            if (mSkipLf) {
+                mSkipLf = false;
+                if (b == '\n') {
+                    i++;
+                    continue;
+                }
+            }
+            if (b == '\r' || b == '\n') {
+                endLine();
+                mSkipLf = b == '\r';
+                i++;
+                continue;
+            }
+
+            // a run of line content, of which only the part up to the last non-whitespace is written
+            int start = i;
+            int contentEnd = -1;
+            for (; i < end; i++) {
+                b = data[i];
+                if (b == '\r' || b == '\n') {
+                    break;
+                }
+                if (b != ' ' && b != '\t') {
+                    contentEnd = i + 1;
+                }
+            }
+            mLineStarted = true;
+
+            if (contentEnd < 0) {
+                holdWhitespace(data, start, i);
+                continue;
+            }
+            if (!mLineSigned) {
+                mLineSigned = true;
+                if (mCompletedLines > 0) {
+                    writeSigned(CRLF, 0, CRLF.length);
+                }
+            }
+            if (mWhitespaceLength > 0) {
+                write(mWhitespace, 0, mWhitespaceLength);
+                mWhitespaceLength = 0;
+            }
+            write(data, start, contentEnd - start);
+            holdWhitespace(data, contentEnd, i);
+        }
+    }
+
+    /** Completes the last line, which does not need to have a line ending. */
+    public void finish() throws IOException, SignatureException {
+        if (mLineStarted || mCompletedLines == 0) {
+            endLine();
+        }
+    }
+
+    private void endLine() throws IOException, SignatureException {
+        if (!mLineSigned && mCompletedLines > 0) {
+            // an empty line
+            writeSigned(CRLF, 0, CRLF.length);
+        }
+        if (mTextOut != null) {
+            mTextOut.write(CRLF);
+        }
+        mWhitespaceLength = 0;
+        mLineStarted = false;
+        mLineSigned = false;
+        mCompletedLines += 1;
+    }
+
+    private void holdWhitespace(byte[] data, int start, int end) {
+        int len = end - start;
+        if (len == 0) {
+            return;
+        }
+        if (mWhitespaceLength + len > mWhitespace.length) {
+            byte[] whitespace = new byte[Math.max(mWhitespace.length * 2, mWhitespaceLength + len)];
+            System.arraycopy(mWhitespace, 0, whitespace, 0, mWhitespaceLength);
+            mWhitespace = whitespace;
+        }
+        System.arraycopy(data, start, mWhitespace, mWhitespaceLength, len);
+        mWhitespaceLength += len;
+    }
+
+    private void write(byte[] data, int off, int len) throws IOException, SignatureException {
+        if (mTextOut != null) {
+            mTextOut.write(data, off, len);
+        }
+        writeSigned(data, off, len);
+    }
+
+    private void writeSigned(byte[] data, int off, int len) throws SignatureException {
+        if (mSignedOut != null) {
+            mSignedOut.update(data, off, len);
+        }
+    }
+
+    /**
+     * Reads a line, as readInputLine of ClearSignedFileProcessor in Bouncy Castle does. The line
+     * is written to lineOut without its line ending, after resetting it, so its buffer is reused
+     * for all lines.
+     * <p/>
+     * Bytes are read one at a time, so nothing after the line ending but the returned lookahead
+     * is consumed, which matters for an ArmoredInputStream.
+     *
+     * @param lookAhead the first byte of the line as returned by the last call, or NO_LOOKAHEAD
+     * @return the byte after the line ending, or -1 at the end of input
+     */
+    public static int readLine(ByteArrayOutputStream lineOut, InputStream in, int lookAhead)
+            throws IOException {
+        lineOut.reset();
+
+        int ch = lookAhead == NO_LOOKAHEAD ? in.read() : lookAhead;
+        while (ch >= 0) {
+            if (ch == '\r' || ch == '\n') {
+                int next = in.read();
+                if (ch == '\r' && next == '\n') {
+                    next = in.read();
+                }
+                return next;
+            }
+
+            lineOut.write(ch);
+            ch = in.read();
+        }
+        return -1;
+    }
+
+}
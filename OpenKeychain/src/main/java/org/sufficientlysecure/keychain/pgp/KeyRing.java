@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 
 import java.io.Serializable;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -92,6 +93,27 @@ public abstract class KeyRing {
         return userIdString;
     }
 
+    /**
+     * Returns the email address of a user id in normalized form, or null if it has none. Like
+     * lookups by email always did, this only considers an address in angle brackets at the very
+     * end of the user id.
+     */
+    public static String extractEmail(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0 || start + 1 >= userId.length() - 1) {
+            return null;
+        }
+        return normalizeEmail(userId.substring(start + 1, userId.length() - 1));
+    }
+
+    /** Normalizes an email address for comparison, such that lookups are case insensitive. */
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ENGLISH);
+    }
+
     public static class UserId implements Serializable {
         public final String name;
         public final String email;
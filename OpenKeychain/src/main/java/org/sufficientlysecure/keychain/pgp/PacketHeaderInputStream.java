@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/** An InputStream which passes through a sequence of OpenPGP packets unchanged, while
+ * following their framing as described in RFC 4880, Section 4.2.
+ *
+ * This allows learning the length of a packet from its header, without reading the body of
+ * the packet. Only the length headers are parsed, bodies are skipped over in bulk, so the
+ * overhead of wrapping a stream with this class is negligible.
+ */
+public class PacketHeaderInputStream extends FilterInputStream {
+
+    private static final int STATE_TAG = 0;
+    private static final int STATE_LENGTH_OLD = 1;
+    private static final int STATE_LENGTH_NEW = 2;
+    private static final int STATE_LENGTH_NEW_TWO = 3;
+    private static final int STATE_LENGTH_NEW_FOUR = 4;
+    private static final int STATE_BODY = 5;
+    // indeterminate length or invalid data, we can't follow the framing any further
+    private static final int STATE_UNTRACKED = 6;
+
+    private int mState = STATE_TAG;
+
+    private int mPacketTag = -1;
+    private long mPacketBodyLength = -1;
+
+    private boolean mFirstChunk;
+    private boolean mPartialChunk;
+    private long mChunkRemaining;
+
+    private int mLengthBytesNeeded;
+    private long mLengthValue;
+
+    public PacketHeaderInputStream(InputStream in) {
+        super(in);
+    }
+
+    /** Returns the tag of the packet which is currently being read, or -1 if unknown. */
+    public int getPacketTag() {
+        return mPacketTag;
+    }
+
+    /** Returns the length of the body of the packet which is currently being read, as given
+     * in its header. If the packet uses partial or indeterminate body lengths, or its header
+     * hasn't been read completely, this returns -1.
+     */
+    public long getPacketBodyLength() {
+        return mPacketBodyLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            if (mState == STATE_BODY) {
+                consumeBody(1);
+            } else if (mState != STATE_UNTRACKED) {
+                processHeaderByte(b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = in.read(b, off, len);
+        if (result > 0) {
+            process(b, off, result);
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        // skipped bytes must be seen, or we lose track of the framing
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void process(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (mState == STATE_UNTRACKED) {
+                return;
+            }
+            if (mState == STATE_BODY) {
+                int n = (int) Math.min(mChunkRemaining, len);
+                off += n;
+                len -= n;
+                consumeBody(n);
+            } else {
+                processHeaderByte(b[off] & 0xff);
+                off += 1;
+                len -= 1;
+            }
+        }
+    }
+
+    private void consumeBody(int n) {
+        mChunkRemaining -= n;
+        if (mChunkRemaining == 0) {
+            endChunk();
+        }
+    }
+
+    private void processHeaderByte(int b) {
+        switch (mState) {
+            case STATE_TAG: {
+                if ((b & 0x80) == 0) {
+                    mPacketTag = -1;
+                    mPacketBodyLength = -1;
+                    mState = STATE_UNTRACKED;
+                    return;
+                }
+                mFirstChunk = true;
+                mPacketBodyLength = -1;
+                if ((b & 0x40) != 0) {
+                    mPacketTag = b & 0x3f;
+                    mState = STATE_LENGTH_NEW;
+                    return;
+                }
+                mPacketTag = (b & 0x3f) >> 2;
+                switch (b & 0x03) {
+                    case 0: mLengthBytesNeeded = 1; break;
+                    case 1: mLengthBytesNeeded = 2; break;
+                    case 2: mLengthBytesNeeded = 4; break;
+                    default: {
+                        // indeterminate length, the packet extends to the end of the stream
+                        mState = STATE_UNTRACKED;
+                        return;
+                    }
+                }
+                mLengthValue = 0;
+                mState = STATE_LENGTH_OLD;
+                return;
+            }
+            case STATE_LENGTH_OLD: {
+                mLengthValue = (mLengthValue << 8) | b;
+                if (--mLengthBytesNeeded == 0) {
+                    startChunk(mLengthValue, false);
+                }
+                return;
+            }
+            case STATE_LENGTH_NEW: {
+                if (b < 192) {
+                    startChunk(b, false);
+                } else if (b <= 223) {
+                    mLengthValue = ((b - 192) << 8) + 192;
+                    mState = STATE_LENGTH_NEW_TWO;
+                } else if (b == 255) {
+                    mLengthValue = 0;
+                    mLengthBytesNeeded = 4;
+                    mState = STATE_LENGTH_NEW_FOUR;
+                } else {
+                    startChunk(1L << (b & 0x1f), true);
+                }
+                return;
+            }
+            case STATE_LENGTH_NEW_TWO: {
+                startChunk(mLengthValue + b, false);
+                return;
+            }
+            case STATE_LENGTH_NEW_FOUR: {
+                mLengthValue = (mLengthValue << 8) | b;
+                if (--mLengthBytesNeeded == 0) {
+                    startChunk(mLengthValue, false);
+                }
+                return;
+            }
+            default: {
+                throw new IllegalStateException("unhandled state!");
+            }
+        }
+    }
+
+    private void startChunk(long length, boolean partial) {
+        if (mFirstChunk) {
+            mPacketBodyLength = partial ? -1 : length;
+            mFirstChunk = false;
+        }
+        mPartialChunk = partial;
+        mChunkRemaining = length;
+        mState = STATE_BODY;
+        if (length == 0) {
+            endChunk();
+        }
+    }
+
+    private void endChunk() {
+        // a partial chunk is followed by another length header, without a tag
+        mState = mPartialChunk ? STATE_LENGTH_NEW : STATE_TAG;
+    }
+
+}
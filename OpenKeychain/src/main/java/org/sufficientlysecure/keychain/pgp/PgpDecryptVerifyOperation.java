@@ -36,6 +36,7 @@ import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
 import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPDataValidationException;
 import org.bouncycastle.openpgp.PGPEncryptedData;
@@ -162,10 +163,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         return verifyCleartextSignature(aIn, outputStream, 0);
                     } else {
                         // else: ascii armored encryption! go on...
-                        return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                        return decryptVerify(input, cryptoInput, inputData, in, outputStream, 0);
                     }
                 } else {
-                    return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                    return decryptVerify(input, cryptoInput, inputData, in, outputStream, 0);
                 }
             }
         } catch (PGPException e) {
@@ -265,7 +266,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     @NonNull
     private DecryptVerifyResult decryptVerify(
             PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
-            InputStream in, OutputStream out, int indent) throws IOException, PGPException {
+            InputData inputData, InputStream in, OutputStream out, int indent)
+            throws IOException, PGPException {
 
         OperationLog log = new OperationLog();
 
@@ -285,11 +287,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OpenPgpDecryptionResultBuilder decryptionResultBuilder = new OpenPgpDecryptionResultBuilder();
 
+        // if we only want metadata, follow the packet headers to find the length of the
+        // literal data without reading its body. this is only done in that case, so the
+        // full decryption path stays untouched.
+        boolean trackPacketHeaders = input.isDecryptMetadataOnly();
+        PacketHeaderInputStream headerStream = null;
+
         JcaSkipMarkerPGPObjectFactory plainFact;
         Object dataChunk;
         EncryptStreamResult esResult = null;
         { // resolve encrypted (symmetric and asymmetric) packets
-            JcaSkipMarkerPGPObjectFactory pgpF = new JcaSkipMarkerPGPObjectFactory(in);
+            if (trackPacketHeaders) {
+                headerStream = new PacketHeaderInputStream(in);
+            }
+            JcaSkipMarkerPGPObjectFactory pgpF =
+                    new JcaSkipMarkerPGPObjectFactory(headerStream != null ? headerStream : in);
             Object obj = pgpF.nextObject();
 
             if (obj instanceof PGPEncryptedDataList) {
@@ -316,7 +328,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     decryptionResultBuilder.setInsecure(true);
                 }
 
-                plainFact = new JcaSkipMarkerPGPObjectFactory(esResult.cleartextStream);
+                InputStream cleartextStream = esResult.cleartextStream;
+                if (trackPacketHeaders) {
+                    headerStream = new PacketHeaderInputStream(cleartextStream);
+                    cleartextStream = headerStream;
+                }
+                plainFact = new JcaSkipMarkerPGPObjectFactory(cleartextStream);
                 dataChunk = plainFact.nextObject();
 
             } else {
@@ -341,7 +358,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             PGPCompressedData compressedData = (PGPCompressedData) dataChunk;
 
-            JcaSkipMarkerPGPObjectFactory fact = new JcaSkipMarkerPGPObjectFactory(compressedData.getDataStream());
+            InputStream decompressedStream = compressedData.getDataStream();
+            if (trackPacketHeaders) {
+                headerStream = new PacketHeaderInputStream(decompressedStream);
+                decompressedStream = headerStream;
+            }
+            JcaSkipMarkerPGPObjectFactory fact = new JcaSkipMarkerPGPObjectFactory(decompressedStream);
             dataChunk = fact.nextObject();
             plainFact = fact;
         }
@@ -404,8 +426,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             log.add(LogType.MSG_DC_CLEAR_META_MIME, indent + 1, mimeType);
 
-            // this operation skips the entire stream to find the data length!
-            Long originalSize = literalData.findDataLength();
+            // if the literal data packet has a fixed length, we can take it from the header
+            Long originalSize = getLiteralDataLengthFromHeader(headerStream, literalData);
+            if (originalSize == null) {
+                // this operation skips the entire stream to find the data length!
+                originalSize = literalData.findDataLength();
+            }
 
             if (originalSize != null) {
                 log.add(LogType.MSG_DC_CLEAR_META_SIZE, indent + 1,
@@ -434,7 +460,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long opTime, startTime = System.currentTimeMillis();
 
         long alreadyWritten = 0;
-        long wholeSize = 0; // TODO inputData.getSize() - inputData.getStreamPosition();
+        // progress is measured in consumed input bytes, since we don't know the output size
+        long wholeSize = inputData.getSize();
         int length;
         byte[] buffer = new byte[8192];
         byte[] firstBytes = new byte[48];
@@ -457,9 +484,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             }
 
             alreadyWritten += length;
-            // noinspection ConstantConditions, TODO progress
             if (wholeSize > 0) {
-                long progress = 100 * alreadyWritten / wholeSize;
+                long progress = 100 * inputData.getStreamPosition() / wholeSize;
                 // stop at 100% for wrong file sizes...
                 if (progress > 100) {
                     progress = 100;
@@ -480,7 +506,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         opTime = System.currentTimeMillis()-startTime;
-        Log.d(Constants.TAG, "decrypt time taken: " + String.format("%.2f", opTime / 1000.0) + "s");
+        Log.d(Constants.TAG, "decrypt time taken: " + String.format("%.2f", opTime / 1000.0) + "s, "
+                + String.format("%.2f", alreadyWritten / 1048576.0 / Math.max(opTime, 1) * 1000.0) + " MB/s");
 
         // special treatment to detect pgp mime types
         // TODO move into CharsetVerifier? seems like that would be a plausible place for this logic
@@ -537,6 +564,26 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     }
 
+    /** Returns the length of the literal data, as determined from the packet header, or
+     * null if it can't be determined that way (e.g. for partial body lengths).
+     */
+    private static Long getLiteralDataLengthFromHeader(
+            PacketHeaderInputStream headerStream, PGPLiteralData literalData) {
+        if (headerStream == null || headerStream.getPacketTag() != PacketTags.LITERAL_DATA) {
+            return null;
+        }
+        long bodyLength = headerStream.getPacketBodyLength();
+        if (bodyLength < 0) {
+            return null;
+        }
+        // format octet, filename length octet, filename, four octet date
+        long headerLength = 1 + 1 + literalData.getRawFileName().length + 4;
+        if (bodyLength < headerLength) {
+            return null;
+        }
+        return bodyLength - headerLength;
+    }
+
     private EncryptStreamResult handleEncryptedPacket(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             PGPEncryptedDataList enc, OperationLog log, int indent, int currentProgress, boolean useBackupCode) throws PGPException {
 
@@ -827,18 +874,16 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             updateProgress(R.string.progress_reading_data, 0, 100);
 
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int lookAhead = CleartextCanonicalizer.readLine(line, aIn, CleartextCanonicalizer.NO_LOOKAHEAD);
             byte[] lineSep = getLineSeparator();
 
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
+            line.writeTo(out);
             out.write(lineSep);
 
             while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
+                lookAhead = CleartextCanonicalizer.readLine(line, aIn, lookAhead);
+                line.writeTo(out);
                 out.write(lineSep);
             }
 
@@ -965,71 +1010,6 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return result;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
-    }
-
     private static byte[] getLineSeparator() {
         String nl = System.getProperty("line.separator");
         return nl.getBytes();
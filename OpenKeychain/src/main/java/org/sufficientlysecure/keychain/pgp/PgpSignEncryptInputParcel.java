@@ -45,6 +45,8 @@ public class PgpSignEncryptInputParcel implements Parcelable {
     protected boolean mHiddenRecipients = false;
     protected boolean mIntegrityProtected = true;
     protected boolean mAddBackupHeader = false;
+    protected boolean mPipelined = false;
+    protected boolean mResumable = false;
 
     public PgpSignEncryptInputParcel() {
 
@@ -72,6 +74,8 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         mHiddenRecipients = source.readInt() == 1;
         mIntegrityProtected = source.readInt() == 1;
         mAddBackupHeader = source.readInt() == 1;
+        mPipelined = source.readInt() == 1;
+        mResumable = source.readInt() == 1;
     }
 
     @Override
@@ -103,6 +107,8 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         dest.writeInt(mHiddenRecipients ? 1 : 0);
         dest.writeInt(mIntegrityProtected ? 1 : 0);
         dest.writeInt(mAddBackupHeader ? 1 : 0);
+        dest.writeInt(mPipelined ? 1 : 0);
+        dest.writeInt(mResumable ? 1 : 0);
     }
 
     public String getCharset() {
@@ -260,6 +266,32 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         return mHiddenRecipients;
     }
 
+    /**
+     * Compress, encrypt and armor on threads of their own. The output is the same as without,
+     * this only uses more cores for a single input.
+     */
+    public PgpSignEncryptInputParcel setPipelined(boolean pipelined) {
+        this.mPipelined = pipelined;
+        return this;
+    }
+
+    public boolean isPipelined() {
+        return mPipelined;
+    }
+
+    /**
+     * If the signing key diverts to a security token, keep the output of the first pass in a
+     * temp file, so that once the hash is signed, only the signature needs to be appended.
+     */
+    public PgpSignEncryptInputParcel setResumable(boolean resumable) {
+        this.mResumable = resumable;
+        return this;
+    }
+
+    public boolean isResumable() {
+        return mResumable;
+    }
+
     public static final Creator<PgpSignEncryptInputParcel> CREATOR = new Creator<PgpSignEncryptInputParcel>() {
         public PgpSignEncryptInputParcel createFromParcel(final Parcel source) {
             return new PgpSignEncryptInputParcel(source);
@@ -52,20 +52,24 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.PipelinedOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -85,16 +89,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class PgpSignEncryptOperation extends BaseOperation {
 
-    private static byte[] NEW_LINE;
-
-    static {
-        try {
-            NEW_LINE = "\r\n".getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(Constants.TAG, "UnsupportedEncodingException", e);
-        }
-    }
-
     public PgpSignEncryptOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
     }
@@ -115,9 +109,23 @@ public class PgpSignEncryptOperation extends BaseOperation {
      */
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
                                      InputData inputData, OutputStream outputStream) {
+        PreparedKeys keys = prepareKeys(input, cryptoInput);
+        if (keys.getResult() != null) {
+            return keys.getResult();
+        }
+        return execute(input, cryptoInput, keys, inputData, outputStream);
+    }
+
+    /**
+     * Resolves the signing key and the encryption keys of the given parameters, and unlocks the
+     * signing key. The returned keys can be used to sign and/or encrypt any number of inputs,
+     * unless their getResult() returns an error or pending result.
+     */
+    public PreparedKeys prepareKeys(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
 
         int indent = 0;
         OperationLog log = new OperationLog();
+        PreparedKeys keys = new PreparedKeys(log);
 
         log.add(LogType.MSG_PSE, indent);
         indent += 1;
@@ -125,46 +133,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
         boolean enableSignature = input.getSignatureMasterKeyId() != Constants.key.none;
         boolean enableEncryption = ((input.getEncryptionMasterKeyIds() != null && input.getEncryptionMasterKeyIds().length > 0)
                 || input.getSymmetricPassphrase() != null);
-        boolean enableCompression = (input.getCompressionAlgorithm() != CompressionAlgorithmTags.UNCOMPRESSED);
-
-        Log.d(Constants.TAG, "enableSignature:" + enableSignature
-                + "\nenableEncryption:" + enableEncryption
-                + "\nenableCompression:" + enableCompression
-                + "\nenableAsciiArmorOutput:" + input.isEnableAsciiArmorOutput()
-                + "\nisHiddenRecipients:" + input.isHiddenRecipients());
-
-        // add additional key id to encryption ids (mostly to do self-encryption)
-        if (enableEncryption && input.getAdditionalEncryptId() != Constants.key.none) {
-            input.setEncryptionMasterKeyIds(Arrays.copyOf(input.getEncryptionMasterKeyIds(), input.getEncryptionMasterKeyIds().length + 1));
-            input.getEncryptionMasterKeyIds()[input.getEncryptionMasterKeyIds().length - 1] = input.getAdditionalEncryptId();
-        }
-
-        ArmoredOutputStream armorOut = null;
-        OutputStream out;
-        if (input.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
-            if (input.getVersionHeader() != null) {
-                armorOut.setHeader("Version", input.getVersionHeader());
-            }
-            // if we have a charset, put it in the header
-            if (input.getCharset() != null) {
-                armorOut.setHeader("Charset", input.getCharset());
-            }
-            // add proprietary header to indicate that this is a key backup
-            if (input.isAddBackupHeader()) {
-                armorOut.setHeader("BackupVersion", "2");
-            }
-            out = armorOut;
-        } else {
-            out = outputStream;
-        }
 
         /* Get keys for signature generation for later usage */
-        CanonicalizedSecretKey signingKey = null;
         if (enableSignature) {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
+            CanonicalizedSecretKey signingKey;
             try {
                 long signingMasterKeyId = input.getSignatureMasterKeyId();
                 long signingSubKeyId = input.getSignatureSubKeyId();
@@ -177,10 +152,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // Make sure we are allowed to sign here!
                 if (!signingKey.canSign()) {
                     log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return keys;
                 }
 
-                switch (mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
+                CanonicalizedSecretKey.SecretKeyType secretKeyType =
+                        mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId);
+                keys.mDivertToCard = secretKeyType == CanonicalizedSecretKey.SecretKeyType.DIVERT_TO_CARD;
+                switch (secretKeyType) {
                     case DIVERT_TO_CARD:
                     case PASSPHRASE_EMPTY: {
                         if (!signingKey.unlock(new Passphrase())) {
@@ -203,20 +182,23 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         }
                         if (localPassphrase == null) {
                             log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
+                            keys.mResult = new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
                                     signingMasterKeyId, signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()), cryptoInput);
+                            return keys;
                         }
                         if (!signingKey.unlock(localPassphrase)) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return keys;
                         }
                         break;
                     }
 
                     case GNU_DUMMY: {
                         log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        return keys;
                     }
                     default: {
                         throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
@@ -226,11 +208,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             } catch (ProviderHelper.NotFoundException e) {
                 log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return keys;
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return keys;
             }
+            keys.mSigningKey = signingKey;
 
             // Use requested hash algo
             int requestedAlgorithm = input.getSignatureHashAlgorithm();
@@ -240,41 +225,29 @@ public class PgpSignEncryptOperation extends BaseOperation {
         }
         updateProgress(R.string.progress_preparing_streams, 2, 100);
 
-        /* Initialize PGPEncryptedDataGenerator for later usage */
-        PGPEncryptedDataGenerator cPk = null;
+        /* Get keys for encryption for later usage */
         if (enableEncryption) {
-
-            // Use requested encryption algo
-            int algo = input.getSymmetricEncryptionAlgorithm();
-            if (algo == PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT) {
-                algo = PgpSecurityConstants.DEFAULT_SYMMETRIC_ALGORITHM;
-            }
-            JcePGPDataEncryptorBuilder encryptorBuilder =
-                    new JcePGPDataEncryptorBuilder(algo)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
-                            .setWithIntegrityPacket(input.isIntegrityProtected());
-
-            cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
-
             if (input.getSymmetricPassphrase() != null) {
                 // Symmetric encryption
                 log.add(LogType.MSG_PSE_SYMMETRIC, indent);
-
-                JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator =
-                        new JcePBEKeyEncryptionMethodGenerator(input.getSymmetricPassphrase().getCharArray());
-                cPk.addMethod(symmetricEncryptionGenerator);
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
+                // add additional key id to encryption ids (mostly to do self-encryption)
+                long[] encryptionMasterKeyIds = input.getEncryptionMasterKeyIds();
+                if (input.getAdditionalEncryptId() != Constants.key.none) {
+                    encryptionMasterKeyIds = Arrays.copyOf(encryptionMasterKeyIds, encryptionMasterKeyIds.length + 1);
+                    encryptionMasterKeyIds[encryptionMasterKeyIds.length - 1] = input.getAdditionalEncryptId();
+                }
+
                 // Asymmetric encryption
-                for (long id : input.getEncryptionMasterKeyIds()) {
+                for (long id : encryptionMasterKeyIds) {
                     try {
                         CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
                                 KeyRings.buildUnifiedKeyRingUri(id));
                         Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
                         for (Long subKeyId : encryptSubKeyIds) {
-                            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                            cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                            keys.mEncryptionKeys.add(keyRing.getPublicKey(subKeyId));
                             log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(subKeyId));
                         }
@@ -282,20 +255,63 @@ public class PgpSignEncryptOperation extends BaseOperation {
                             log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(id));
                             if (input.isFailOnMissingEncryptionKeyIds()) {
-                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                                keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                                return keys;
                             }
                         }
                     } catch (ProviderHelper.NotFoundException e) {
                         log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
                                 KeyFormattingUtils.convertKeyIdToHex(id));
                         if (input.isFailOnMissingEncryptionKeyIds()) {
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            keys.mResult = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return keys;
                         }
                     }
                 }
             }
         }
 
+        return keys;
+    }
+
+    /**
+     * Signs and/or encrypts data based on parameters of class, using keys from prepareKeys. This
+     * does not access the database, so it may run for several inputs at the same time.
+     */
+    public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+                                        PreparedKeys keys, InputData inputData, OutputStream outputStream) {
+
+        int indent = 1;
+        OperationLog log = new OperationLog();
+        // every result carries the log of key preparation, as if its keys were prepared for it
+        log.addAll(keys.mLog.toList());
+
+        boolean enableSignature = input.getSignatureMasterKeyId() != Constants.key.none;
+        boolean enableEncryption = ((input.getEncryptionMasterKeyIds() != null && input.getEncryptionMasterKeyIds().length > 0)
+                || input.getSymmetricPassphrase() != null);
+        boolean enableCompression = (input.getCompressionAlgorithm() != CompressionAlgorithmTags.UNCOMPRESSED);
+
+        Log.d(Constants.TAG, "enableSignature:" + enableSignature
+                + "\nenableEncryption:" + enableEncryption
+                + "\nenableCompression:" + enableCompression
+                + "\nenableAsciiArmorOutput:" + input.isEnableAsciiArmorOutput()
+                + "\nisHiddenRecipients:" + input.isHiddenRecipients());
+
+        CanonicalizedSecretKey signingKey = keys.mSigningKey;
+
+        if (enableSignature && input.isResumable()) {
+            // if this input was suspended until its hash was signed, only the signature is left
+            PendingOutput suspended = SuspendedSignatureCache.getInstance().take(
+                    cryptoInput.getCryptoData(), signingKey.getKeyId(), inputData);
+            if (suspended != null) {
+                log.add(LogType.MSG_PSE_RESUMING, indent);
+                suspended.mSignedHashes.putAll(cryptoInput.getCryptoData());
+                // the time spent waiting for the token is not part of the operation time
+                suspended.mStartTime = System.currentTimeMillis();
+                return finish(input, cryptoInput, signingKey, log, indent, suspended, outputStream);
+            }
+        }
+
         /* Initialize signature generator object for later usage */
         PGPSignatureGenerator signatureGenerator = null;
         if (enableSignature) {
@@ -312,18 +328,86 @@ public class PgpSignEncryptOperation extends BaseOperation {
             }
         }
 
+        // for a security token, the output is kept in a temp file while the hash is signed. only
+        // if it is encrypted though, the plaintext must not be written to disk
+        OutputStream finalOutputStream = outputStream;
+        File tempFile = null;
+        if (enableSignature && enableEncryption && input.isResumable() && keys.mDivertToCard) {
+            try {
+                tempFile = SuspendedSignatureCache.createTempFile(mContext);
+                outputStream = new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16);
+            } catch (IOException e) {
+                if (tempFile != null && !tempFile.delete()) {
+                    Log.e(Constants.TAG, "could not delete temp file " + tempFile);
+                }
+                log.add(LogType.MSG_PSE_ERROR_IO, indent);
+                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+            }
+        }
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (input.isEnableAsciiArmorOutput()) {
+            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            if (input.getVersionHeader() != null) {
+                armorOut.setHeader("Version", input.getVersionHeader());
+            }
+            // if we have a charset, put it in the header
+            if (input.getCharset() != null) {
+                armorOut.setHeader("Charset", input.getCharset());
+            }
+            // add proprietary header to indicate that this is a key backup
+            if (input.isAddBackupHeader()) {
+                armorOut.setHeader("BackupVersion", "2");
+            }
+            out = armorOut;
+        } else {
+            out = outputStream;
+        }
+
+        /* Initialize PGPEncryptedDataGenerator for later usage */
+        PGPEncryptedDataGenerator cPk = null;
+        if (enableEncryption) {
+
+            // Use requested encryption algo
+            int algo = input.getSymmetricEncryptionAlgorithm();
+            if (algo == PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT) {
+                algo = PgpSecurityConstants.DEFAULT_SYMMETRIC_ALGORITHM;
+            }
+            JcePGPDataEncryptorBuilder encryptorBuilder =
+                    new JcePGPDataEncryptorBuilder(algo)
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .setWithIntegrityPacket(input.isIntegrityProtected());
+
+            cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
+
+            if (input.getSymmetricPassphrase() != null) {
+                JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator =
+                        new JcePBEKeyEncryptionMethodGenerator(input.getSymmetricPassphrase().getCharArray());
+                cPk.addMethod(symmetricEncryptionGenerator);
+            } else {
+                for (CanonicalizedPublicKey key : keys.mEncryptionKeys) {
+                    cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                }
+            }
+        }
+
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
-        PGPCompressedDataGenerator compressGen = null;
         OutputStream pOut;
-        OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
 
-        ByteArrayOutputStream detachedByteOut = null;
-        ArmoredOutputStream detachedArmorOut = null;
-        BCPGOutputStream detachedBcpgOut = null;
-
-        long opTime, startTime = System.currentTimeMillis();
+        PendingOutput output = new PendingOutput();
+        output.mOutputStream = outputStream;
+        output.mTempFile = tempFile;
+        output.mArmorOut = armorOut;
+        output.mOut = out;
+        output.mSignatureGenerator = signatureGenerator;
+        output.mSignedHashes = cryptoInput.getCryptoData();
+        output.mSigningKeyId = signingKey != null ? signingKey.getKeyId() : Constants.key.none;
+        output.mInputName = inputData.getOriginalFilename();
+        output.mInputSize = inputData.getSize();
+        output.mStartTime = System.currentTimeMillis();
 
         try {
 
@@ -337,7 +421,20 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                OutputStream encryptedOut = out;
+                if (input.isPipelined()) {
+                    log.add(LogType.MSG_PSE_PIPELINED, indent);
+                    output.mOutputPipe = new PipelinedOutputStream(out, "pse-output");
+                    encryptedOut = output.mOutputPipe;
+                }
+
+                output.mEncryptionOut = cPk.open(encryptedOut, new byte[1 << 16]);
+
+                OutputStream plainOut = output.mEncryptionOut;
+                if (input.isPipelined()) {
+                    output.mEncryptionPipe = new PipelinedOutputStream(output.mEncryptionOut, "pse-encrypt");
+                    plainOut = output.mEncryptionPipe;
+                }
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
@@ -347,10 +444,15 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
                         algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
                     }
-                    compressGen = new PGPCompressedDataGenerator(algo);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                    output.mCompressGen = new PGPCompressedDataGenerator(algo);
+                    OutputStream compressedOut = output.mCompressGen.open(plainOut);
+                    if (input.isPipelined()) {
+                        output.mCompressionPipe = new PipelinedOutputStream(compressedOut, "pse-compress");
+                        compressedOut = output.mCompressionPipe;
+                    }
+                    bcpgOut = new BCPGOutputStream(compressedOut);
                 } else {
-                    bcpgOut = new BCPGOutputStream(encryptionOut);
+                    bcpgOut = new BCPGOutputStream(plainOut);
                 }
 
                 if (enableSignature) {
@@ -398,28 +500,30 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // write -----BEGIN PGP SIGNED MESSAGE-----
                 armorOut.beginClearText(input.getSignatureHashAlgorithm());
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
-                final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-                // update signature buffer with first line
-                processLine(reader.readLine(), armorOut, signatureGenerator);
+                // the text ends with a newline, see http://tools.ietf.org/html/rfc4880#section-7
+                final PGPSignatureGenerator cleartextSignatureGenerator = signatureGenerator;
+                CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer(armorOut,
+                        new CleartextCanonicalizer.SignedDataSink() {
+                            @Override
+                            public void update(byte[] data, int off, int len) throws SignatureException {
+                                cleartextSignatureGenerator.update(data, off, len);
+                            }
+                        });
 
-                // TODO: progress: fake annealing?
-                while (true) {
-                    String line = reader.readLine();
+                long alreadyWritten = 0;
+                int length;
+                byte[] buffer = new byte[1 << 16];
+                InputStream in = inputData.getInputStream();
+                while ((length = in.read(buffer)) > 0) {
+                    canonicalizer.update(buffer, 0, length);
 
-                    // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                    if (line == null) {
-                        armorOut.write(NEW_LINE);
-                        break;
+                    alreadyWritten += length;
+                    if (inputData.getSize() > 0) {
+                        long progress = 100 * alreadyWritten / inputData.getSize();
+                        progressScaler.setProgress((int) progress, 100);
                     }
-
-                    armorOut.write(NEW_LINE);
-
-                    // update signature buffer with input line
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
                 }
+                canonicalizer.finish();
 
                 armorOut.endClearText();
 
@@ -433,17 +537,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 InputStream in = new BufferedInputStream(inputData.getInputStream());
 
                 // handle output stream separately for detached signatures
-                detachedByteOut = new ByteArrayOutputStream();
-                OutputStream detachedOut = detachedByteOut;
+                output.mDetachedByteOut = new ByteArrayOutputStream();
+                OutputStream detachedOut = output.mDetachedByteOut;
                 if (input.isEnableAsciiArmorOutput()) {
-                    detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
+                    output.mDetachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
                     if (input.getVersionHeader() != null) {
-                        detachedArmorOut.setHeader("Version", input.getVersionHeader());
+                        output.mDetachedArmorOut.setHeader("Version", input.getVersionHeader());
                     }
 
-                    detachedOut = detachedArmorOut;
+                    detachedOut = output.mDetachedArmorOut;
                 }
-                detachedBcpgOut = new BCPGOutputStream(detachedOut);
+                output.mDetachedBcpgOut = new BCPGOutputStream(detachedOut);
 
                 long alreadyWritten = 0;
                 int length;
@@ -476,8 +580,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
                     }
 
-                    compressGen = new PGPCompressedDataGenerator(algo);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(out));
+                    output.mCompressGen = new PGPCompressedDataGenerator(algo);
+                    bcpgOut = new BCPGOutputStream(output.mCompressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
                 }
@@ -508,65 +612,102 @@ public class PgpSignEncryptOperation extends BaseOperation {
             } else {
                 throw new AssertionError("cannot clearsign in non-ascii armored text, this is a bug!");
             }
+            output.mSignatureOut = pOut;
+
+        } catch (SignatureException e) {
+            output.discard();
+            log.add(LogType.MSG_PSE_ERROR_SIG, indent);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } catch (PGPException e) {
+            output.discard();
+            log.add(LogType.MSG_PSE_ERROR_PGP, indent);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } catch (IOException e) {
+            output.discard();
+            log.add(LogType.MSG_PSE_ERROR_IO, indent);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } catch (RuntimeException e) {
+            // stops the pipeline threads, and deletes the temp file
+            output.discard();
+            throw e;
+        }
 
-            if (enableSignature) {
+        return finish(input, cryptoInput, signingKey, log, indent, output, finalOutputStream);
+    }
+
+    /**
+     * Generates the signature and closes the outputs. If the signing key diverts to a security
+     * token and the output is written to a temp file, the output is suspended until the hash was
+     * signed, after which only this step is executed again.
+     */
+    private PgpSignEncryptResult finish(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+                                        CanonicalizedSecretKey signingKey, OperationLog log, int indent,
+                                        PendingOutput output, OutputStream outputStream) {
+
+        boolean suspended = false;
+        long opTime;
+        try {
+
+            if (output.mSignatureGenerator != null) {
                 updateProgress(R.string.progress_generating_signature, 95, 100);
                 try {
-                    if (detachedBcpgOut != null) {
-                        signatureGenerator.generate().encode(detachedBcpgOut);
+                    if (output.mDetachedBcpgOut != null) {
+                        output.mSignatureGenerator.generate().encode(output.mDetachedBcpgOut);
                     } else {
-                        signatureGenerator.generate().encode(pOut);
+                        output.mSignatureGenerator.generate().encode(output.mSignatureOut);
                     }
                 } catch (NfcSyncPGPContentSignerBuilder.NfcInteractionNeeded e) {
                     // this secret key diverts to a OpenPGP card, throw exception with hash that will be signed
                     log.add(LogType.MSG_PSE_PENDING_NFC, indent);
+                    if (output.mTempFile != null) {
+                        // keep everything but the signature, until the hash was signed. the
+                        // pipeline threads are not kept waiting for that
+                        output.detachPipelines();
+                        output.mHashToSign = e.hashToSign;
+                        SuspendedSignatureCache.getInstance().put(output);
+                        suspended = true;
+                        log.add(LogType.MSG_PSE_SUSPENDED, indent + 1);
+                    }
                     return new PgpSignEncryptResult(log, RequiredInputParcel.createNfcSignOperation(
                             signingKey.getRing().getMasterKeyId(), signingKey.getKeyId(),
                             e.hashToSign, e.hashAlgo, cryptoInput.getSignatureTime()), cryptoInput);
                 }
             }
 
-            opTime = System.currentTimeMillis() -startTime;
-            Log.d(Constants.TAG, "sign/encrypt time taken: " + String.format("%.2f",
-                    opTime / 1000.0) + "s");
-
             // closing outputs
-            // NOTE: closing needs to be done in the correct order!
-            if (encryptionOut != null) {
-                if (compressGen != null) {
-                    compressGen.close();
-                }
+            output.close();
 
-                encryptionOut.close();
-            }
-            // Note: Closing ArmoredOutputStream does not close the underlying stream
-            if (armorOut != null) {
-                armorOut.close();
-            }
-            // Note: Closing ArmoredOutputStream does not close the underlying stream
-            if (detachedArmorOut != null) {
-                detachedArmorOut.close();
-            }
-            // Also closes detachedBcpgOut
-            if (detachedByteOut != null) {
-                detachedByteOut.close();
-            }
-            if (out != null) {
-                out.close();
-            }
-            if (outputStream != null) {
+            if (output.mTempFile != null) {
+                // nothing is compressed or encrypted again, the output is only copied
+                InputStream tempIn = new FileInputStream(output.mTempFile);
+                try {
+                    int length;
+                    byte[] buffer = new byte[1 << 16];
+                    while ((length = tempIn.read(buffer)) > 0) {
+                        outputStream.write(buffer, 0, length);
+                    }
+                } finally {
+                    tempIn.close();
+                }
                 outputStream.close();
             }
 
-        } catch (SignatureException e) {
-            log.add(LogType.MSG_PSE_ERROR_SIG, indent);
-            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+            // measured after closing, which waits for the pipeline to be drained
+            opTime = System.currentTimeMillis() - output.mStartTime;
+            Log.d(Constants.TAG, "sign/encrypt time taken: " + String.format("%.2f",
+                    opTime / 1000.0) + "s");
+
         } catch (PGPException e) {
             log.add(LogType.MSG_PSE_ERROR_PGP, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            // stops the pipeline threads if the operation did not complete
+            if (!suspended) {
+                output.discard();
+            }
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -574,14 +715,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
         log.add(LogType.MSG_PSE_OK, indent);
         PgpSignEncryptResult result = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_OK, log);
         result.mOperationTime = opTime;
-        if (detachedByteOut != null) {
+        if (output.mDetachedByteOut != null) {
             try {
-                detachedByteOut.flush();
-                detachedByteOut.close();
+                output.mDetachedByteOut.flush();
+                output.mDetachedByteOut.close();
             } catch (IOException e) {
                 // silently catch
             }
-            result.setDetachedSignature(detachedByteOut.toByteArray());
+            result.setDetachedSignature(output.mDetachedByteOut.toByteArray());
             try {
                 String digestName = PGPUtil.getDigestName(input.getSignatureHashAlgorithm());
                 // construct micalg parameter according to https://tools.ietf.org/html/rfc3156#section-5
@@ -594,32 +735,141 @@ public class PgpSignEncryptOperation extends BaseOperation {
     }
 
     /**
-     * Remove whitespaces on line endings
+     * The keys of a sign/encrypt operation: the unlocked signing key, and the encryption subkeys
+     * of all recipients. Once prepared, they can be shared by operations on several threads.
      */
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    public static class PreparedKeys {
+        private final OperationLog mLog;
+        private CanonicalizedSecretKey mSigningKey;
+        private boolean mDivertToCard;
+        private final ArrayList<CanonicalizedPublicKey> mEncryptionKeys = new ArrayList<>();
+        private PgpSignEncryptResult mResult;
+
+        private PreparedKeys(OperationLog log) {
+            mLog = log;
+        }
 
-        if (pLine == null) {
-            return;
+        /** Returns the error or pending result if the keys could not be prepared, null otherwise. */
+        public PgpSignEncryptResult getResult() {
+            return mResult;
         }
+    }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
+    /**
+     * The state of an operation once all input is written: the signature which is left to be
+     * generated, and the outputs which are left to be closed. While the hash is signed by a
+     * security token, this is kept in the SuspendedSignatureCache.
+     */
+    static class PendingOutput {
+        OutputStream mOutputStream;
+        ArmoredOutputStream mArmorOut;
+        OutputStream mOut;
+        PGPCompressedDataGenerator mCompressGen;
+        OutputStream mEncryptionOut;
+        ByteArrayOutputStream mDetachedByteOut;
+        ArmoredOutputStream mDetachedArmorOut;
+        BCPGOutputStream mDetachedBcpgOut;
+        OutputStream mSignatureOut;
+        // in pipelined mode, the streams after these run on threads of their own
+        PipelinedOutputStream mCompressionPipe;
+        PipelinedOutputStream mEncryptionPipe;
+        PipelinedOutputStream mOutputPipe;
+
+        PGPSignatureGenerator mSignatureGenerator;
+        // the map of signed hashes the signature generator looks up its hash in
+        Map<ByteBuffer, byte[]> mSignedHashes;
+        long mStartTime;
+
+        // only set in resumable mode
+        File mTempFile;
+        byte[] mHashToSign;
+        long mSigningKeyId;
+        String mInputName;
+        long mInputSize;
+        long mExpiryTime;
+
+        boolean matches(long signingKeyId, InputData inputData) {
+            return mSigningKeyId == signingKeyId && mInputSize == inputData.getSize()
+                    && (mInputName == null ? inputData.getOriginalFilename() == null
+                            : mInputName.equals(inputData.getOriginalFilename()));
+        }
 
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
+        /** Stops the pipeline threads, after which the remaining data is written directly. */
+        void detachPipelines() throws IOException {
+            // in the order of the data, each stage writes into the next one
+            if (mCompressionPipe != null) {
+                mCompressionPipe.detach();
+            }
+            if (mEncryptionPipe != null) {
+                mEncryptionPipe.detach();
+            }
+            if (mOutputPipe != null) {
+                mOutputPipe.detach();
             }
-            len--;
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        /** Closes the outputs. NOTE: closing needs to be done in the correct order! */
+        void close() throws IOException {
+            // NOTE: each pipeline stage must be drained before its stream is closed
+            if (mEncryptionOut != null) {
+                if (mCompressionPipe != null) {
+                    mCompressionPipe.close();
+                }
+                if (mCompressGen != null) {
+                    mCompressGen.close();
+                }
+                if (mEncryptionPipe != null) {
+                    mEncryptionPipe.close();
+                }
+
+                mEncryptionOut.close();
+
+                if (mOutputPipe != null) {
+                    mOutputPipe.close();
+                }
+            }
+            // Note: Closing ArmoredOutputStream does not close the underlying stream
+            if (mArmorOut != null) {
+                mArmorOut.close();
+            }
+            // Note: Closing ArmoredOutputStream does not close the underlying stream
+            if (mDetachedArmorOut != null) {
+                mDetachedArmorOut.close();
+            }
+            // Also closes detachedBcpgOut
+            if (mDetachedByteOut != null) {
+                mDetachedByteOut.close();
+            }
+            if (mOut != null) {
+                mOut.close();
+            }
+            if (mOutputStream != null) {
+                mOutputStream.close();
+            }
+        }
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+        /** Stops the pipeline threads if the operation did not complete, and deletes the temp file. */
+        void discard() {
+            if (mCompressionPipe != null) {
+                mCompressionPipe.abort();
+            }
+            if (mEncryptionPipe != null) {
+                mEncryptionPipe.abort();
+            }
+            if (mOutputPipe != null) {
+                mOutputPipe.abort();
+            }
+            if (mTempFile != null) {
+                try {
+                    mOutputStream.close();
+                } catch (IOException e) {
+                    // nothing to do here
+                }
+                if (mTempFile.exists() && !mTempFile.delete()) {
+                    Log.e(Constants.TAG, "could not delete temp file " + mTempFile);
+                }
+            }
         }
-        pSignatureGenerator.update(data);
     }
 
 }
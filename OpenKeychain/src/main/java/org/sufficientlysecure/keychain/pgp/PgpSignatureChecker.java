@@ -1,11 +1,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.SignatureException;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
@@ -171,22 +167,15 @@ class PgpSignatureChecker {
 
     public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-
-        int lookAhead = readInputLine(outputBuffer, sigIn);
-
-        processLine(signature, outputBuffer.toByteArray());
-
-        while (lookAhead != -1) {
-            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
-
-            signature.update((byte) '\r');
-            signature.update((byte) '\n');
-
-            processLine(signature, outputBuffer.toByteArray());
-        }
+        CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer(null,
+                new CleartextCanonicalizer.SignedDataSink() {
+                    @Override
+                    public void update(byte[] data, int off, int len) throws SignatureException {
+                        signature.update(data, off, len);
+                    }
+                });
+        canonicalizer.update(clearText, 0, clearText.length);
+        canonicalizer.finish();
 
     }
 
@@ -264,81 +253,4 @@ class PgpSignatureChecker {
         return signatureResultBuilder.build();
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     */
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
-    }
-
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.openpgp.PGPKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/**
+ * Verifies the self signatures on user ids, user attributes and subkeys of a keyring up front,
+ * for UncachedKeyRing.canonicalize.
+ *
+ * Keyrings with hundreds of user ids spend nearly all of their canonicalization verifying self
+ * certificates one by one. This collects all of them first and verifies them on a shared pool
+ * of one thread per cpu, or on the executor given. Canonicalization then looks up each result in the same order it used
+ * to verify them in, so the selection of certificates and the log are the same as if all of
+ * them were verified serially. Signatures which aren't collected here, or are known to the
+ * VerifiedSignatureCache already, are simply not found and handled as before.
+ */
+class SelfSignatureVerifier {
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    // for fewer signatures than this, handing them to other threads isn't worth it
+    static final int MIN_PARALLEL_SIGNATURES = 8;
+
+    private static final ThreadPoolExecutor sVerifyExecutor = new ThreadPoolExecutor(
+            NUM_THREADS, NUM_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sVerifyExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final PGPPublicKey mMasterKey;
+    private final VerifiedSignatureCache mSignatureCache;
+    private final ExecutorService mExecutor;
+    private final ArrayList<Verification> mPending = new ArrayList<>();
+    // signatures are identified by object, canonicalize iterates the same ones as we do here
+    private final IdentityHashMap<PGPSignature, Verification> mVerifications =
+            new IdentityHashMap<>();
+
+    /**
+     * @param executor executor to verify signatures on, or null to leave all of them to
+     *                 canonicalize
+     */
+    SelfSignatureVerifier(PGPPublicKey masterKey, VerifiedSignatureCache signatureCache,
+                          ExecutorService executor) {
+        mMasterKey = masterKey;
+        mSignatureCache = signatureCache;
+        mExecutor = executor;
+    }
+
+    /** Returns the shared pool, or null if there is only one cpu to verify on anyway. */
+    static ExecutorService getDefaultExecutor() {
+        return NUM_THREADS < 2 ? null : sVerifyExecutor;
+    }
+
+    /** Queues the self certificates of all user ids and user attributes, and all subkey bindings. */
+    void addAll(PGPKeyRing ring) {
+        long masterKeyId = mMasterKey.getKeyID();
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(mMasterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = mMasterKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId && isCertification(zert.getSignatureType())) {
+                    queue(new Verification(zert, rawUserId, null, null));
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(mMasterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = mMasterKey.getSignaturesForUserAttribute(userAttribute);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId && isCertification(zert.getSignatureType())) {
+                    queue(new Verification(zert, null, userAttribute, null));
+                }
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                int type = zert.getSignatureType();
+                if (zert.getKeyID() == masterKeyId && (type == PGPSignature.SUBKEY_BINDING
+                        || type == PGPSignature.SUBKEY_REVOCATION)) {
+                    queue(new Verification(zert, null, null, key));
+                }
+            }
+        }
+    }
+
+    private static boolean isCertification(int type) {
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    private void queue(Verification verification) {
+        // the same signature object twice would be verified concurrently
+        if (mVerifications.containsKey(verification.mSignature)) {
+            return;
+        }
+        if (mSignatureCache != null) {
+            byte[] digest = verification.digest();
+            if (digest != null && mSignatureCache.isVerified(digest)) {
+                return;
+            }
+        }
+        mPending.add(verification);
+        mVerifications.put(verification.mSignature, verification);
+    }
+
+    /**
+     * Verifies all queued signatures, returning once all of them are done. If there is no
+     * executor, or too few signatures to be worth it, nothing is verified, and canonicalize does
+     * so as it used to.
+     */
+    void verifyAll() {
+        if (mExecutor == null || mPending.size() < MIN_PARALLEL_SIGNATURES) {
+            mPending.clear();
+            mVerifications.clear();
+            return;
+        }
+
+        ArrayList<Future<Void>> futures = new ArrayList<>(mPending.size());
+        for (Verification verification : mPending) {
+            futures.add(mExecutor.submit(verification));
+        }
+        mPending.clear();
+
+        // wait for all of them even if interrupted, the signatures must not be touched while
+        // a verification is still running
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // can't happen, verifications catch their exceptions
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the result of verifying this signature, or null if it wasn't verified here. An
+     * exception thrown during verification is thrown again, exactly as verifySignature would.
+     */
+    Boolean getResult(PGPSignature signature) throws PgpGeneralException {
+        Verification verification = mVerifications.get(signature);
+        if (verification == null) {
+            return null;
+        }
+        if (verification.mException instanceof PgpGeneralException) {
+            throw (PgpGeneralException) verification.mException;
+        }
+        if (verification.mException != null) {
+            throw (RuntimeException) verification.mException;
+        }
+        return verification.mVerified;
+    }
+
+    int getVerifiedCount() {
+        return mVerifications.size();
+    }
+
+    private class Verification implements Callable<Void> {
+        final PGPSignature mSignature;
+        final byte[] mRawUserId;
+        final PGPUserAttributeSubpacketVector mUserAttribute;
+        final PGPPublicKey mSubKey;
+
+        boolean mVerified;
+        Exception mException;
+
+        Verification(PGPSignature signature, byte[] rawUserId,
+                     PGPUserAttributeSubpacketVector userAttribute, PGPPublicKey subKey) {
+            mSignature = signature;
+            mRawUserId = rawUserId;
+            mUserAttribute = userAttribute;
+            mSubKey = subKey;
+        }
+
+        byte[] digest() {
+            if (mRawUserId != null) {
+                return UncachedKeyRing.signatureDigest(mSignatureCache, mMasterKey, mSignature,
+                        mMasterKey.getFingerprint(), mRawUserId);
+            } else if (mUserAttribute != null) {
+                return UncachedKeyRing.signatureDigest(mSignatureCache, mMasterKey, mSignature,
+                        mMasterKey.getFingerprint(), UncachedKeyRing.encodeUserAttribute(mUserAttribute));
+            } else {
+                return UncachedKeyRing.signatureDigest(mSignatureCache, mMasterKey, mSignature,
+                        mMasterKey.getFingerprint(), mSubKey.getFingerprint());
+            }
+        }
+
+        @Override
+        public Void call() {
+            try {
+                WrappedSignature cert = new WrappedSignature(mSignature);
+                cert.init(mMasterKey);
+                if (mRawUserId != null) {
+                    mVerified = cert.verifySignature(mMasterKey, mRawUserId);
+                } else if (mUserAttribute != null) {
+                    mVerified = cert.verifySignature(mMasterKey, mUserAttribute);
+                } else {
+                    mVerified = cert.verifySignature(mMasterKey, mSubKey);
+                }
+            } catch (PgpGeneralException | RuntimeException e) {
+                mException = e;
+            }
+            return null;
+        }
+    }
+
+}
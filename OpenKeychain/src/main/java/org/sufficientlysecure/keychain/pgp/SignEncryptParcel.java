@@ -36,6 +36,8 @@ import java.util.List;
  *   if there is a byte array present.
  * - Once the output uris are empty, there must be exactly one input (uri xor bytes)
  *   left, which will be returned in a byte array as part of the result parcel.
+ * - If parallel is set and there is an output uri for each input uri, the uris may
+ *   be processed at the same time. The results are still in input order.
  *
  */
 public class SignEncryptParcel extends PgpSignEncryptInputParcel {
@@ -43,6 +45,7 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
     public ArrayList<Uri> mInputUris = new ArrayList<>();
     public ArrayList<Uri> mOutputUris = new ArrayList<>();
     public byte[] mBytes;
+    public boolean mParallel;
 
     public SignEncryptParcel() {
         super();
@@ -54,6 +57,7 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
         mInputUris = src.createTypedArrayList(Uri.CREATOR);
         mOutputUris = src.createTypedArrayList(Uri.CREATOR);
         mBytes = src.createByteArray();
+        mParallel = src.readInt() == 1;
 
     }
 
@@ -69,6 +73,14 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
         mBytes = bytes;
     }
 
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
     public List<Uri> getInputUris() {
         return Collections.unmodifiableList(mInputUris);
     }
@@ -96,6 +108,7 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
         dest.writeTypedList(mInputUris);
         dest.writeTypedList(mOutputUris);
         dest.writeByteArray(mBytes);
+        dest.writeInt(mParallel ? 1 : 0);
     }
 
     public static final Creator<SignEncryptParcel> CREATOR = new Creator<SignEncryptParcel>() {
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.PendingOutput;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * A process-wide cache of sign/encrypt operations which wait for their hash to be signed by a
+ * security token, keyed by that hash.
+ *
+ * Without this, an operation with a security token is executed twice: once to find the hash,
+ * and once more after the hash was signed, reading, compressing and encrypting all data again.
+ * In resumable mode, the encrypted output of the first pass is written to a temp file, and the
+ * operation is suspended here right before its signature is generated, with its pipeline
+ * threads stopped. Once the signed hash is supplied, the second pass only appends the signature
+ * and copies the temp file to the actual output. Unencrypted output is never written to disk,
+ * so operations which only sign are executed twice as before.
+ *
+ * If a suspended operation is not resumed in time, or the process is killed meanwhile, the
+ * operation is simply executed again in full, so this is purely an optimization. Expired
+ * operations are removed by a sweep, suspended operations are dropped along with the passphrase
+ * cache, and temp files left behind by a killed process are deleted on startup.
+ */
+public class SuspendedSignatureCache {
+
+    // entries hold a temp file the size of the output, so they are not kept around for long
+    static final long MAX_TTL_MILLIS = 15 * 60 * 1000;
+
+    // a directory of its own, so files of other users of the cache dir are never deleted
+    private static final String TEMP_FILES_DIR = "suspended_signatures";
+    private static final String TEMP_FILE_PREFIX = "pse";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final SuspendedSignatureCache sInstance = new SuspendedSignatureCache();
+
+    private static final ScheduledThreadPoolExecutor sSweeper;
+    static {
+        sSweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SuspendedSignatureCache sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sSweeper.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ConcurrentHashMap<ByteBuffer, PendingOutput> mSuspended = new ConcurrentHashMap<>();
+
+    public static SuspendedSignatureCache getInstance() {
+        return sInstance;
+    }
+
+    SuspendedSignatureCache() {
+    }
+
+    void put(PendingOutput output) {
+        removeExpired();
+        output.mExpiryTime = now() + MAX_TTL_MILLIS;
+        PendingOutput oldOutput = mSuspended.put(ByteBuffer.wrap(output.mHashToSign), output);
+        if (oldOutput != null && oldOutput != output) {
+            oldOutput.discard();
+        }
+        sSweeper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                removeExpired();
+            }
+        }, MAX_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the suspended operation for this input, if its hash is among the signed hashes.
+     * Several inputs of the same name and size can't be told apart, if more than one matches
+     * they are all dropped and null is returned, so the operation is executed again in full.
+     */
+    PendingOutput take(Map<ByteBuffer, byte[]> signedHashes, long signingKeyId, InputData inputData) {
+        removeExpired();
+
+        ArrayList<ByteBuffer> matches = new ArrayList<>();
+        for (ByteBuffer hash : signedHashes.keySet()) {
+            PendingOutput output = mSuspended.get(hash);
+            if (output != null && output.matches(signingKeyId, inputData)) {
+                matches.add(hash);
+            }
+        }
+
+        PendingOutput result = null;
+        for (ByteBuffer hash : matches) {
+            PendingOutput output = mSuspended.remove(hash);
+            if (output == null) {
+                // taken by another thread meanwhile
+                continue;
+            }
+            if (matches.size() == 1) {
+                result = output;
+            } else {
+                output.discard();
+            }
+        }
+        return result;
+    }
+
+    /** Drops all suspended operations, and deletes their temp files. */
+    public void clear() {
+        Iterator<PendingOutput> it = mSuspended.values().iterator();
+        while (it.hasNext()) {
+            PendingOutput output = it.next();
+            it.remove();
+            output.discard();
+        }
+    }
+
+    public int size() {
+        return mSuspended.size();
+    }
+
+    /** Creates a temp file for the output of an operation which may be suspended. */
+    static File createTempFile(Context context) throws IOException {
+        File tempFilesDir = getTempFilesDir(context);
+        if (!tempFilesDir.isDirectory() && !tempFilesDir.mkdirs()) {
+            throw new IOException("could not create " + tempFilesDir);
+        }
+        return File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, tempFilesDir);
+    }
+
+    /** Returns the directory which holds the temp files of suspended operations, and nothing else. */
+    public static File getTempFilesDir(Context context) {
+        return new File(context.getCacheDir(), TEMP_FILES_DIR);
+    }
+
+    /**
+     * Deletes the temp files of all operations which were suspended in an earlier process. Must
+     * be called before any operation is suspended in this one.
+     */
+    public static void deleteTempFiles(Context context) {
+        File[] files = getTempFilesDir(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.e(Constants.TAG, "could not delete temp file " + file);
+            }
+        }
+    }
+
+    /** Drops all suspended operations which are past their expiry time. */
+    void removeExpired() {
+        long now = now();
+        for (Map.Entry<ByteBuffer, PendingOutput> entry : mSuspended.entrySet()) {
+            PendingOutput output = entry.getValue();
+            if (now >= output.mExpiryTime && mSuspended.remove(entry.getKey(), output)) {
+                output.discard();
+            }
+        }
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+}
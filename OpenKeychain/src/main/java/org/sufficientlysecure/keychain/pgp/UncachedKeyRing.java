@@ -24,6 +24,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -34,6 +37,7 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
@@ -322,6 +326,33 @@ public class UncachedKeyRing {
      */
     @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, null);
+    }
+
+    /**
+     * Canonicalizes this keyring, as above. Self signatures found in the given cache are taken
+     * as verified, all others are verified and added to it if they check out. This yields the
+     * same result as without a cache, but saves a lot of work for keyrings which are merged and
+     * canonicalized over and over, e.g. on each refresh from a keyserver.
+     *
+     * @param signatureCache cache of verified signatures, or null to verify all signatures
+     */
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+                                             VerifiedSignatureCache signatureCache) {
+        return canonicalize(log, indent, forExport, signatureCache,
+                SelfSignatureVerifier.getDefaultExecutor());
+    }
+
+    /**
+     * Canonicalizes this keyring, as above.
+     *
+     * @param verifyExecutor executor to verify self signatures on up front, or null to verify
+     *                       them one by one during canonicalization
+     */
+    @SuppressWarnings("ConstantConditions")
+    CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+                                      VerifiedSignatureCache signatureCache,
+                                      ExecutorService verifyExecutor) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -350,6 +381,12 @@ public class UncachedKeyRing {
             return null;
         }
 
+        // verify self signatures in parallel up front, the checks below only look up the results
+        SelfSignatureVerifier verifier =
+                new SelfSignatureVerifier(masterKey, signatureCache, verifyExecutor);
+        verifier.addAll(mRing);
+        verifier.verifyAll();
+
         {
             log.add(LogType.MSG_KC_MASTER,
                     indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
@@ -391,12 +428,17 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
-                        log.add(LogType.MSG_KC_MASTER_BAD, indent);
-                        modified = PGPPublicKey.removeCertification(modified, zert);
-                        badCerts += 1;
-                        continue;
+                    byte[] digest = signatureDigest(signatureCache, masterKey, zert,
+                            masterKey.getFingerprint());
+                    if (!isKnownVerified(signatureCache, digest)) {
+                        cert.init(masterKey);
+                        if (!cert.verifySignature(masterKey)) {
+                            log.add(LogType.MSG_KC_MASTER_BAD, indent);
+                            modified = PGPPublicKey.removeCertification(modified, zert);
+                            badCerts += 1;
+                            continue;
+                        }
+                        onVerified(signatureCache, digest);
                     }
                 } catch (PgpGeneralException e) {
                     log.add(LogType.MSG_KC_MASTER_BAD_ERR, indent);
@@ -548,13 +590,22 @@ public class UncachedKeyRing {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
-                                log.add(LogType.MSG_KC_UID_BAD,
-                                        indent, userId);
-                                modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
-                                badCerts += 1;
-                                continue;
+                            byte[] digest = signatureDigest(signatureCache, masterKey, zert,
+                                    masterKey.getFingerprint(), rawUserId);
+                            if (!isKnownVerified(signatureCache, digest)) {
+                                Boolean verified = verifier.getResult(zert);
+                                if (verified == null) {
+                                    cert.init(masterKey);
+                                    verified = cert.verifySignature(masterKey, rawUserId);
+                                }
+                                if (!verified) {
+                                    log.add(LogType.MSG_KC_UID_BAD,
+                                            indent, userId);
+                                    modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
+                                    badCerts += 1;
+                                    continue;
+                                }
+                                onVerified(signatureCache, digest);
                             }
                         } catch (PgpGeneralException e) {
                             log.add(LogType.MSG_KC_UID_BAD_ERR,
@@ -713,13 +764,23 @@ public class UncachedKeyRing {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
-                                    log.add(LogType.MSG_KC_UAT_BAD,
-                                            indent);
-                                    modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
-                                    badCerts += 1;
-                                    continue;
+                                byte[] digest = signatureDigest(signatureCache, masterKey, zert,
+                                        masterKey.getFingerprint(),
+                                        encodeUserAttribute(userAttribute));
+                                if (!isKnownVerified(signatureCache, digest)) {
+                                    Boolean verified = verifier.getResult(zert);
+                                    if (verified == null) {
+                                        cert.init(masterKey);
+                                        verified = cert.verifySignature(masterKey, userAttribute);
+                                    }
+                                    if (!verified) {
+                                        log.add(LogType.MSG_KC_UAT_BAD,
+                                                indent);
+                                        modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
+                                        badCerts += 1;
+                                        continue;
+                                    }
+                                    onVerified(signatureCache, digest);
                                 }
                             } catch (PgpGeneralException e) {
                                 log.add(LogType.MSG_KC_UAT_BAD_ERR,
@@ -903,11 +964,20 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
-                            log.add(LogType.MSG_KC_SUB_BAD, indent);
-                            badCerts += 1;
-                            continue;
+                        byte[] digest = signatureDigest(signatureCache, masterKey, zert,
+                                masterKey.getFingerprint(), key.getFingerprint());
+                        if (!isKnownVerified(signatureCache, digest)) {
+                            Boolean verified = verifier.getResult(zert);
+                            if (verified == null) {
+                                cert.init(masterKey);
+                                verified = cert.verifySignature(masterKey, key);
+                            }
+                            if (!verified) {
+                                log.add(LogType.MSG_KC_SUB_BAD, indent);
+                                badCerts += 1;
+                                continue;
+                            }
+                            onVerified(signatureCache, digest);
                         }
                     } catch (PgpGeneralException e) {
                         log.add(LogType.MSG_KC_SUB_BAD_ERR, indent);
@@ -944,8 +1014,16 @@ public class UncachedKeyRing {
                             for (int i = 0; i < list.size(); i++) {
                                 WrappedSignature subsig = new WrappedSignature(list.get(i));
                                 if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
+                                    // this one is made by the subkey
+                                    byte[] digest = signatureDigest(signatureCache, key, list.get(i),
+                                            masterKey.getFingerprint(), key.getFingerprint());
+                                    if (isKnownVerified(signatureCache, digest)) {
+                                        ok = true;
+                                        continue;
+                                    }
                                     subsig.init(key);
                                     if (subsig.verifySignature(masterKey, key)) {
+                                        onVerified(signatureCache, digest);
                                         ok = true;
                                     } else {
                                         log.add(LogType.MSG_KC_SUB_PRIMARY_BAD, indent);
@@ -981,11 +1059,20 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
-                            log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
-                            badCerts += 1;
-                            continue;
+                        byte[] digest = signatureDigest(signatureCache, masterKey, zert,
+                                masterKey.getFingerprint(), key.getFingerprint());
+                        if (!isKnownVerified(signatureCache, digest)) {
+                            Boolean verified = verifier.getResult(zert);
+                            if (verified == null) {
+                                cert.init(masterKey);
+                                verified = cert.verifySignature(masterKey, key);
+                            }
+                            if (!verified) {
+                                log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
+                                badCerts += 1;
+                                continue;
+                            }
+                            onVerified(signatureCache, digest);
                         }
                     } catch (PgpGeneralException e) {
                         log.add(LogType.MSG_KC_SUB_REVOKE_BAD_ERR, indent);
@@ -1062,6 +1149,57 @@ public class UncachedKeyRing {
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, 0);
     }
 
+    /**
+     * Returns a digest which identifies a signature made by signer over the given material, for
+     * lookup in the signature cache. Returns null if there is no cache, or on any error.
+     */
+    static byte[] signatureDigest(VerifiedSignatureCache signatureCache,
+                                          PGPPublicKey signer, PGPSignature signature,
+                                          byte[]... material) {
+        if (signatureCache == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            updateWithLength(digest, signer.getFingerprint());
+            for (byte[] part : material) {
+                if (part == null) {
+                    return null;
+                }
+                updateWithLength(digest, part);
+            }
+            updateWithLength(digest, signature.getEncoded());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(Constants.TAG, "error computing signature digest", e);
+            return null;
+        }
+    }
+
+    // a length prefix for each part, so different splits of the same bytes can't collide
+    private static void updateWithLength(MessageDigest digest, byte[] data) {
+        digest.update(ByteBuffer.allocate(4).putInt(data.length).array());
+        digest.update(data);
+    }
+
+    static byte[] encodeUserAttribute(PGPUserAttributeSubpacketVector userAttribute) {
+        try {
+            return new WrappedUserAttribute(userAttribute).getEncoded();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isKnownVerified(VerifiedSignatureCache signatureCache, byte[] digest) {
+        return digest != null && signatureCache.isVerified(digest);
+    }
+
+    private static void onVerified(VerifiedSignatureCache signatureCache, byte[] digest) {
+        if (digest != null) {
+            signatureCache.onVerified(digest);
+        }
+    }
+
     /** This operation merges information from a different keyring, returning a combined
      * UncachedKeyRing.
      *
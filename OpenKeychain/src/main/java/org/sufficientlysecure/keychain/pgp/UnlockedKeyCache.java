@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * A process-wide cache of unlocked private keys, keyed by subkey id.
+ *
+ * Unlocking a secret key requires applying its S2K function to the passphrase, which is
+ * deliberately expensive. When the same key is used repeatedly within a short time, e.g. for
+ * a batch of decryptions, this cache allows skipping the S2K entirely. An entry is only ever
+ * returned for the exact passphrase it was unlocked with, and only for the same encrypted
+ * secret key, so a changed passphrase or re-encrypted key always takes the regular route.
+ *
+ * The lifetime of this cache is bound to the one of LocalPassphraseCache: a key is only cached
+ * while its passphrase is cached in this process, entries expire together with that
+ * passphrase, and the cache is wiped whenever the passphrase cache is cleared. Expired entries
+ * are removed by a sweep at their expiry time, not only on the next lookup. Note that wiping
+ * here means dropping all references, the key material held by BouncyCastle can't be
+ * overwritten.
+ *
+ * As in LocalPassphraseCache, each clear starts a new generation. A key which was unlocked
+ * while the cache was cleared must not be put afterwards, so callers pass the generation they
+ * observed before unlocking to put, and keys of an older generation are dropped.
+ */
+public class UnlockedKeyCache {
+
+    private static final UnlockedKeyCache sInstance = new UnlockedKeyCache();
+
+    private static final ScheduledThreadPoolExecutor sSweeper;
+    static {
+        sSweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UnlockedKeyCache sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sSweeper.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ConcurrentHashMap<Long, UnlockedKey> mKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public static UnlockedKeyCache getInstance() {
+        return sInstance;
+    }
+
+    UnlockedKeyCache() {
+    }
+
+    /**
+     * Returns the private key for this secret key, if it was recently unlocked with the same
+     * passphrase. Returns null otherwise.
+     */
+    public PGPPrivateKey get(PGPSecretKey secretKey, Passphrase passphrase) {
+        long keyId = secretKey.getKeyID();
+        UnlockedKey unlockedKey = mKeys.get(keyId);
+        if (unlockedKey == null) {
+            return null;
+        }
+        if (now() >= unlockedKey.mExpiryTime) {
+            if (mKeys.remove(keyId, unlockedKey)) {
+                unlockedKey.wipe();
+            }
+            return null;
+        }
+        if (!unlockedKey.matches(secretKey, passphrase)) {
+            return null;
+        }
+        return unlockedKey.mPrivateKey;
+    }
+
+    /** Returns the current generation, to be passed to put after unlocking a key. */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Caches the private key until expiryTime, which is in the time base of
+     * SystemClock.elapsedRealtime, and should be the expiry time of the cached passphrase.
+     * Nothing is cached if the cache was cleared since the given generation.
+     */
+    public void put(PGPSecretKey secretKey, Passphrase passphrase, PGPPrivateKey privateKey,
+                    long expiryTime, int generation) {
+        long delay = expiryTime - now();
+        if (delay <= 0 || generation != mGeneration.get()) {
+            return;
+        }
+        long keyId = secretKey.getKeyID();
+        UnlockedKey unlockedKey = new UnlockedKey(secretKey, passphrase, privateKey, expiryTime);
+        UnlockedKey oldKey = mKeys.put(keyId, unlockedKey);
+        if (oldKey != null) {
+            oldKey.wipe();
+        }
+        // a clear which raced with this put might have missed the new key
+        if (generation != mGeneration.get()) {
+            if (mKeys.remove(keyId, unlockedKey)) {
+                unlockedKey.wipe();
+            }
+            return;
+        }
+        sSweeper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                removeExpired();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drops all unlocked keys which are past their expiry time. */
+    public void removeExpired() {
+        long now = now();
+        Iterator<UnlockedKey> it = mKeys.values().iterator();
+        while (it.hasNext()) {
+            UnlockedKey unlockedKey = it.next();
+            if (now >= unlockedKey.mExpiryTime) {
+                it.remove();
+                unlockedKey.wipe();
+            }
+        }
+    }
+
+    /** Drops all unlocked keys, and overwrites the passphrases they were unlocked with. */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        Iterator<UnlockedKey> it = mKeys.values().iterator();
+        while (it.hasNext()) {
+            UnlockedKey unlockedKey = it.next();
+            it.remove();
+            unlockedKey.wipe();
+        }
+    }
+
+    public int size() {
+        return mKeys.size();
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static class UnlockedKey {
+        private final PGPPrivateKey mPrivateKey;
+        private final char[] mPassphrase;
+        // these identify the encrypted secret key, which changes with every change of passphrase
+        private final byte[] mKeyIv;
+        private final byte[] mS2kIv;
+        private final long mExpiryTime;
+        private volatile boolean mWiped = false;
+
+        UnlockedKey(PGPSecretKey secretKey, Passphrase passphrase, PGPPrivateKey privateKey,
+                long expiryTime) {
+            mPrivateKey = privateKey;
+            mPassphrase = passphrase.getCharArray().clone();
+            mKeyIv = secretKey.getIV();
+            mS2kIv = getS2kIv(secretKey);
+            mExpiryTime = expiryTime;
+        }
+
+        boolean matches(PGPSecretKey secretKey, Passphrase passphrase) {
+            boolean matches = Arrays.equals(mKeyIv, secretKey.getIV())
+                    && Arrays.equals(mS2kIv, getS2kIv(secretKey))
+                    && constantTimeEquals(mPassphrase, passphrase.getCharArray());
+            // checked last, in case we compared against a passphrase that was wiped meanwhile
+            return matches && !mWiped;
+        }
+
+        void wipe() {
+            mWiped = true;
+            Arrays.fill(mPassphrase, ' ');
+        }
+
+        private static byte[] getS2kIv(PGPSecretKey secretKey) {
+            S2K s2k = secretKey.getS2K();
+            return s2k != null ? s2k.getIV() : null;
+        }
+
+        private static boolean constantTimeEquals(char[] a, char[] b) {
+            if (a.length != b.length) {
+                return false;
+            }
+            int result = 0;
+            for (int i = 0; i < a.length; i++) {
+                result |= a[i] ^ b[i];
+            }
+            return result == 0;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+/**
+ * A set of signatures which are known to verify, used by UncachedKeyRing.canonicalize to skip
+ * signatures it has verified before.
+ *
+ * Signatures are identified by a digest over the signing key, the signed material and the
+ * signature packet itself, so an entry can never be valid for anything but the exact signature
+ * it was created for. Implementations must be thread-safe.
+ */
+public interface VerifiedSignatureCache {
+
+    /** Returns true if the signature with this digest was verified successfully before. */
+    boolean isVerified(byte[] digest);
+
+    /** Called for each signature which was verified successfully. */
+    void onVerified(byte[] digest);
+
+}
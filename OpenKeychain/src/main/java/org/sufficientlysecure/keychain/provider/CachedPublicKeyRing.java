@@ -18,6 +18,8 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.List;
+
 import android.database.Cursor;
 import android.net.Uri;
 
@@ -42,6 +44,12 @@ import org.sufficientlysecure.keychain.util.Log;
  * query, while object construction is (almost) free. A common pattern is
  * mProviderHelper.getCachedKeyRing(uri).getterMethod()
  *
+ * For keyrings identified by master key id, all metadata is loaded with a
+ * single query on first access, and then served from the process-wide
+ * KeyRingMetadataCache until the keyring changes. A snapshot, as obtained from
+ * ProviderHelper.getCachedPublicKeyRingSnapshot(s), is loaded on construction
+ * and never queries the database again.
+ *
  * TODO Ensure that the values returned here always match the ones returned by
  * the parsed KeyRing!
  *
@@ -50,14 +58,54 @@ public class CachedPublicKeyRing extends KeyRing {
 
     final ProviderHelper mProviderHelper;
     final Uri mUri;
+    // master key id from the uri, if this is a plain unified keyring uri
+    private final Long mMasterKeyId;
+    private final KeyRingMetadataCache.Metadata mSnapshot;
 
     public CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri) {
+        this(providerHelper, uri, null);
+    }
+
+    CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri, KeyRingMetadataCache.Metadata snapshot) {
         mProviderHelper = providerHelper;
         mUri = uri;
+        mMasterKeyId = snapshot != null ? Long.valueOf(snapshot.mMasterKeyId) : parseMasterKeyId(uri);
+        mSnapshot = snapshot;
+    }
+
+    private static Long parseMasterKeyId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 3 || !KeychainContract.PATH_UNIFIED.equals(segments.get(2))) {
+            return null;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Returns the metadata of this keyring if it is identified by id, or null otherwise. */
+    private KeyRingMetadataCache.Metadata getMetadata() throws PgpKeyNotFoundException {
+        if (mSnapshot != null) {
+            return mSnapshot;
+        }
+        if (mMasterKeyId == null) {
+            return null;
+        }
+        try {
+            return mProviderHelper.getKeyRingMetadata(mMasterKeyId);
+        } catch (NotFoundException e) {
+            throw new PgpKeyNotFoundException(e);
+        }
     }
 
     @Override
     public long getMasterKeyId() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mMasterKeyId;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
@@ -84,6 +132,10 @@ public class CachedPublicKeyRing extends KeyRing {
     }
 
     public byte[] getFingerprint() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mFingerprint;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.FINGERPRINT, ProviderHelper.FIELD_TYPE_BLOB);
@@ -95,6 +147,14 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public String getPrimaryUserId() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            // same contract as getGenericData, which never returns null values
+            if (metadata.mPrimaryUserId == null) {
+                throw new PgpKeyNotFoundException("No primary user id");
+            }
+            return metadata.mPrimaryUserId;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.USER_ID,
@@ -111,6 +171,10 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public boolean isRevoked() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mIsRevoked;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.IS_REVOKED,
@@ -123,6 +187,10 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public boolean canCertify() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mCanCertify;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.HAS_CERTIFY,
@@ -135,6 +203,10 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public long getEncryptId() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mEncryptId;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeyRings.HAS_ENCRYPT,
@@ -157,6 +229,10 @@ public class CachedPublicKeyRing extends KeyRing {
      *
      */
     public long getSecretSignId() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mSecretSignId;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeyRings.HAS_SIGN,
@@ -169,17 +245,25 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public int getVerified() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mVerified;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.VERIFIED,
                     ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Integer) data;
+            return ((Long) data).intValue();
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
         }
     }
 
     public boolean hasAnySecret() throws PgpKeyNotFoundException {
+        KeyRingMetadataCache.Metadata metadata = getMetadata();
+        if (metadata != null) {
+            return metadata.mHasAnySecret;
+        }
         try {
             Object data = mProviderHelper.getGenericData(mUri,
                     KeychainContract.KeyRings.HAS_ANY_SECRET,
@@ -196,6 +280,19 @@ public class CachedPublicKeyRing extends KeyRing {
     }
 
     public SecretKeyType getSecretKeyType(long keyId) throws NotFoundException {
+        if (mSnapshot != null || mMasterKeyId != null) {
+            KeyRingMetadataCache.Metadata metadata;
+            try {
+                metadata = getMetadata();
+            } catch (PgpKeyNotFoundException e) {
+                throw new NotFoundException();
+            }
+            SecretKeyType secretKeyType = mProviderHelper.getSecretKeyTypes(metadata).get(keyId);
+            if (secretKeyType == null) {
+                throw new NotFoundException();
+            }
+            return secretKeyType;
+        }
         Object data = mProviderHelper.getGenericData(Keys.buildKeysUri(mUri),
                 KeyRings.HAS_SECRET,
                 ProviderHelper.FIELD_TYPE_INTEGER,
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+
+/**
+ * Inserts rows into a single table through compiled statements, one for each set of columns.
+ *
+ * Saving a keyring inserts dozens of rows into the keys, user_packets and certs tables, always
+ * with the same columns, and SQLiteDatabase.insert builds and looks up the same statement for
+ * each of them. The statements here are kept and only bound anew.
+ *
+ * Compiled statements are only used inside a transaction of the calling thread, which is how
+ * KeychainProvider.applyBatch runs all operations of a save. No other thread can write at the
+ * same time then, so a statement is never used concurrently, and waiting for the lock here can
+ * never block on a connection held by another writer. Outside of a transaction, this falls back
+ * to a regular insert.
+ */
+class CompiledInsert {
+
+    private final String mTable;
+    private final boolean mReplace;
+
+    private SQLiteDatabase mDatabase;
+    private final HashMap<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    /** If replace is true, conflicting rows are replaced, like SQLiteDatabase.replaceOrThrow. */
+    CompiledInsert(String table, boolean replace) {
+        mTable = table;
+        mReplace = replace;
+    }
+
+    /**
+     * Inserts a row, like SQLiteDatabase.insertOrThrow. Returns the row id of the new row.
+     *
+     * @throws android.database.SQLException if the row couldn't be inserted
+     */
+    long insertOrThrow(SQLiteDatabase db, ContentValues values) {
+        if (!db.inTransaction()) {
+            return mReplace
+                    ? db.replaceOrThrow(mTable, null, values)
+                    : db.insertOrThrow(mTable, null, values);
+        }
+
+        // sorted, so the same set of columns is always bound in the same order
+        TreeSet<String> columns = new TreeSet<>(values.keySet());
+        synchronized (this) {
+            SQLiteStatement statement = getStatement(db, columns);
+            statement.clearBindings();
+            int index = 1;
+            for (String column : columns) {
+                bind(statement, index++, values.get(column));
+            }
+            return statement.executeInsert();
+        }
+    }
+
+    private SQLiteStatement getStatement(SQLiteDatabase db, TreeSet<String> columns) {
+        if (db != mDatabase) {
+            // statements are tied to the database object they were compiled for
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+            mDatabase = db;
+        }
+
+        String columnList = TextUtils.join(", ", columns);
+        SQLiteStatement statement = mStatements.get(columnList);
+        if (statement == null) {
+            String[] placeholders = new String[columns.size()];
+            for (int i = 0; i < placeholders.length; i++) {
+                placeholders[i] = "?";
+            }
+            statement = db.compileStatement("INSERT" + (mReplace ? " OR REPLACE" : "")
+                    + " INTO " + mTable + " (" + columnList + ")"
+                    + " VALUES (" + TextUtils.join(", ", placeholders) + ")");
+            mStatements.put(columnList, statement);
+        }
+        return statement;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+}
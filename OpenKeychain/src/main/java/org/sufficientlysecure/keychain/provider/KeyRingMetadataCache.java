@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * A process-wide cache of keyring metadata, as used by CachedPublicKeyRing.
+ *
+ * A CachedPublicKeyRing used to make one database query per getter call, which adds up quickly
+ * for code that looks at many keys, or at the same keys over and over. This class holds an
+ * immutable snapshot of all metadata of a keyring, keyed by master key id, so that a keyring
+ * can be loaded with a single query and repeated lookups don't hit the database at all.
+ *
+ * The cache is dropped as a whole whenever anything below KeyRings.CONTENT_URI changes. In the
+ * process of the KeychainProvider this happens synchronously on each write, other processes are
+ * notified through a ContentObserver. Snapshots which were loaded concurrently with a change are
+ * never stored, so the cache can't be repopulated with stale data.
+ */
+public class KeyRingMetadataCache {
+
+    /** Maximum number of keyrings held, the cache is dropped entirely when it grows beyond. */
+    static final int MAX_ENTRIES = 2000;
+    /** Hit rates are logged every so many lookups. */
+    private static final int LOG_INTERVAL = 200;
+
+    private static volatile KeyRingMetadataCache sInstance;
+
+    private final ConcurrentHashMap<Long, Metadata> mEntries = new ConcurrentHashMap<>();
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public static KeyRingMetadataCache getInstance(Context context) {
+        KeyRingMetadataCache instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (KeyRingMetadataCache.class) {
+            if (sInstance == null) {
+                KeyRingMetadataCache cache = new KeyRingMetadataCache();
+                cache.registerInvalidation(context.getApplicationContext());
+                sInstance = cache;
+            }
+            return sInstance;
+        }
+    }
+
+    KeyRingMetadataCache() {
+    }
+
+    private void registerInvalidation(Context context) {
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    /**
+     * Drops all cached metadata if the given uri refers to keyring data. To be called by the
+     * KeychainProvider for every change, before notifying observers.
+     */
+    public static void onChange(Uri uri) {
+        KeyRingMetadataCache instance = sInstance;
+        if (instance != null && uri != null
+                && uri.toString().startsWith(KeyRings.CONTENT_URI.toString())) {
+            instance.clear();
+        }
+    }
+
+    /** Returns the cached metadata for a master key id, or null if there is none. */
+    public Metadata get(long masterKeyId) {
+        Metadata metadata = mEntries.get(masterKeyId);
+        long lookups;
+        if (metadata != null) {
+            lookups = mHits.incrementAndGet() + mMisses.get();
+        } else {
+            lookups = mMisses.incrementAndGet() + mHits.get();
+        }
+        if (lookups % LOG_INTERVAL == 0) {
+            logHitRate();
+        }
+        return metadata;
+    }
+
+    /**
+     * Returns a token which must be passed to put for data loaded after this call. If the cache
+     * is invalidated in between, the data is not stored.
+     */
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    public void put(Metadata metadata, long generation) {
+        if (mGeneration.get() != generation) {
+            return;
+        }
+        if (mEntries.size() >= MAX_ENTRIES) {
+            Log.d(Constants.TAG, "KeyRingMetadataCache: size limit reached, clearing");
+            mEntries.clear();
+        }
+        mEntries.put(metadata.mMasterKeyId, metadata);
+        // invalidated while we were storing? then this entry may be stale, too
+        if (mGeneration.get() != generation) {
+            mEntries.remove(metadata.mMasterKeyId, metadata);
+        }
+    }
+
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    private void logHitRate() {
+        long hits = mHits.get();
+        long misses = mMisses.get();
+        long total = hits + misses;
+        Log.d(Constants.TAG, "KeyRingMetadataCache: " + hits + " hits, " + misses + " misses ("
+                + (total > 0 ? hits * 100 / total : 0) + "% hit rate), " + size() + " entries");
+    }
+
+    /** An immutable snapshot of the metadata of a single keyring. */
+    public static class Metadata {
+        final long mMasterKeyId;
+        final byte[] mFingerprint;
+        // null if the keyring has no user id
+        final String mPrimaryUserId;
+        final boolean mIsRevoked;
+        final boolean mCanCertify;
+        final long mEncryptId;
+        final long mSecretSignId;
+        final int mVerified;
+        final boolean mHasAnySecret;
+
+        // loaded separately on first use, since these are per subkey
+        private volatile HashMap<Long, SecretKeyType> mSecretKeyTypes;
+
+        Metadata(long masterKeyId, byte[] fingerprint, String primaryUserId, boolean isRevoked,
+                boolean canCertify, long encryptId, long secretSignId, int verified,
+                boolean hasAnySecret) {
+            mMasterKeyId = masterKeyId;
+            mFingerprint = fingerprint;
+            mPrimaryUserId = primaryUserId;
+            mIsRevoked = isRevoked;
+            mCanCertify = canCertify;
+            mEncryptId = encryptId;
+            mSecretSignId = secretSignId;
+            mVerified = verified;
+            mHasAnySecret = hasAnySecret;
+        }
+
+        HashMap<Long, SecretKeyType> getSecretKeyTypes() {
+            return mSecretKeyTypes;
+        }
+
+        void setSecretKeyTypes(HashMap<Long, SecretKeyType> secretKeyTypes) {
+            mSecretKeyTypes = secretKeyTypes;
+        }
+    }
+
+}
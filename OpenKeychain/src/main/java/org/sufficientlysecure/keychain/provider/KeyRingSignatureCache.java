@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.VerifiedSignatureCache;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * A VerifiedSignatureCache for the self signatures of a single keyring, backed by the
+ * verified_signatures table.
+ *
+ * All known digests of the keyring are loaded with a single query up front, and newly verified
+ * ones are written back in a single transaction by save. Keyserver refreshes mostly deliver
+ * signatures we have seen before, so canonicalization after a merge rarely needs to verify
+ * anything at all.
+ */
+class KeyRingSignatureCache implements VerifiedSignatureCache {
+
+    private final ContentResolver mContentResolver;
+    private final long mMasterKeyId;
+    // ByteBuffers compare by content, unlike arrays
+    private final Set<ByteBuffer> mKnown;
+    private final Set<ByteBuffer> mNew =
+            Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    private final Set<ByteBuffer> mUsed =
+            Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    private boolean mPruneUnused;
+
+    private KeyRingSignatureCache(ContentResolver contentResolver, long masterKeyId,
+                                  Set<ByteBuffer> known) {
+        mContentResolver = contentResolver;
+        mMasterKeyId = masterKeyId;
+        mKnown = known;
+    }
+
+    static KeyRingSignatureCache load(ContentResolver contentResolver, long masterKeyId) {
+        Set<ByteBuffer> known =
+                Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+        Cursor cursor = contentResolver.query(VerifiedSignatures.buildVerifiedSignaturesUri(masterKeyId),
+                new String[] { VerifiedSignatures.DIGEST }, null, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                known.add(ByteBuffer.wrap(cursor.getBlob(0)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new KeyRingSignatureCache(contentResolver, masterKeyId, known);
+    }
+
+    @Override
+    public boolean isVerified(byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        if (mKnown.contains(key)) {
+            mUsed.add(key);
+            return true;
+        }
+        return mNew.contains(key);
+    }
+
+    @Override
+    public void onVerified(byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        if (!mKnown.contains(key)) {
+            mNew.add(key);
+        }
+    }
+
+    int getKnownCount() {
+        return mKnown.size();
+    }
+
+    int getNewCount() {
+        return mNew.size();
+    }
+
+    /**
+     * Marks the keyring as completely canonicalized, so that known digests which were not looked
+     * up belong to signatures which are no longer part of it. These are deleted by save.
+     */
+    void pruneUnused() {
+        mPruneUnused = true;
+    }
+
+    /**
+     * Writes all newly verified digests to the database, and deletes unused ones if pruneUnused
+     * was called. Failure here is not fatal.
+     */
+    void save() {
+        ArrayList<ByteBuffer> unused = new ArrayList<>();
+        if (mPruneUnused) {
+            for (ByteBuffer digest : mKnown) {
+                if (!mUsed.contains(digest)) {
+                    unused.add(digest);
+                }
+            }
+        }
+        if (mNew.isEmpty() && unused.isEmpty()) {
+            return;
+        }
+
+        Uri uri = VerifiedSignatures.buildVerifiedSignaturesUri(mMasterKeyId);
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<>(mNew.size() + unused.size());
+        for (ByteBuffer digest : mNew) {
+            operations.add(ContentProviderOperation.newInsert(uri)
+                    .withValue(VerifiedSignatures.DIGEST, digest.array())
+                    .build());
+        }
+        for (ByteBuffer digest : unused) {
+            // blobs can't be passed as selection arguments
+            operations.add(ContentProviderOperation.newDelete(uri)
+                    .withSelection(VerifiedSignatures.DIGEST + " = X'"
+                            + Hex.toHexString(digest.array()) + "'", null)
+                    .build());
+        }
+
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            mKnown.addAll(mNew);
+            mKnown.removeAll(unused);
+            mNew.clear();
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "could not save verified signatures", e);
+        }
+    }
+
+}
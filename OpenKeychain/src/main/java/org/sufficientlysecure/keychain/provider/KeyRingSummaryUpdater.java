@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaries;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+
+/**
+ * Maintains the keyring_summaries table, which holds the flags of the unified keyring query that
+ * used to be computed per row, by joining the keys table four more times and looking for other
+ * keyrings with the same primary user id.
+ *
+ * The capability columns hold the key which is usable for each capability for the longest time,
+ * along with its expiry. Whether the keyring is still capable can then be decided at query time
+ * with a single comparison against the current time, so nothing here goes stale as keys expire.
+ * A key is usable if it isn't revoked and, except for encryption, its secret key is available.
+ */
+class KeyRingSummaryUpdater {
+
+    private static final String[] KEYS_PROJECTION = new String[] {
+            Keys.KEY_ID, Keys.IS_REVOKED, Keys.HAS_SECRET, Keys.EXPIRY,
+            Keys.CAN_ENCRYPT, Keys.CAN_SIGN, Keys.CAN_CERTIFY, Keys.CAN_AUTHENTICATE
+    };
+    private static final int INDEX_KEY_ID = 0;
+    private static final int INDEX_IS_REVOKED = 1;
+    private static final int INDEX_HAS_SECRET = 2;
+    private static final int INDEX_EXPIRY = 3;
+    private static final int INDEX_CAN_ENCRYPT = 4;
+    private static final int INDEX_CAN_SIGN = 5;
+    private static final int INDEX_CAN_CERTIFY = 6;
+    private static final int INDEX_CAN_AUTHENTICATE = 7;
+
+    private KeyRingSummaryUpdater() {
+    }
+
+    /** Recomputes the capability columns of a keyring from its keys. */
+    static void updateCapabilities(SQLiteDatabase db, long masterKeyId) {
+        String[] args = new String[] { Long.toString(masterKeyId) };
+
+        Capability encrypt = new Capability(), sign = new Capability(),
+                certify = new Capability(), authenticate = new Capability();
+        Cursor cursor = db.query(Tables.KEYS, KEYS_PROJECTION, Keys.MASTER_KEY_ID + " = ?", args,
+                null, null, Keys.RANK + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(INDEX_IS_REVOKED) != 0) {
+                    continue;
+                }
+                long keyId = cursor.getLong(INDEX_KEY_ID);
+                Long expiry = cursor.isNull(INDEX_EXPIRY) ? null : cursor.getLong(INDEX_EXPIRY);
+                // same condition as the has_secret > 1 of the former query
+                boolean hasSecret = cursor.getInt(INDEX_HAS_SECRET) > 1;
+
+                if (cursor.getInt(INDEX_CAN_ENCRYPT) == 1) {
+                    encrypt.offer(keyId, expiry);
+                }
+                if (hasSecret && cursor.getInt(INDEX_CAN_SIGN) == 1) {
+                    sign.offer(keyId, expiry);
+                }
+                if (hasSecret && cursor.getInt(INDEX_CAN_CERTIFY) == 1) {
+                    certify.offer(keyId, expiry);
+                }
+                if (hasSecret && cursor.getInt(INDEX_CAN_AUTHENTICATE) == 1) {
+                    authenticate.offer(keyId, expiry);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues(8);
+        encrypt.put(values, KeyRingSummaries.ENCRYPT_KEY_ID, KeyRingSummaries.ENCRYPT_EXPIRY);
+        sign.put(values, KeyRingSummaries.SIGN_KEY_ID, KeyRingSummaries.SIGN_EXPIRY);
+        certify.put(values, KeyRingSummaries.CERTIFY_KEY_ID, KeyRingSummaries.CERTIFY_EXPIRY);
+        authenticate.put(values, KeyRingSummaries.AUTHENTICATE_KEY_ID,
+                KeyRingSummaries.AUTHENTICATE_EXPIRY);
+
+        ensureRow(db, masterKeyId);
+        db.update(Tables.KEY_RING_SUMMARIES, values, KeyRingSummaries.MASTER_KEY_ID + " = ?", args);
+    }
+
+    /** Updates the duplicate flags after a primary user id was inserted for a keyring. */
+    static void onPrimaryUserIdInserted(SQLiteDatabase db, long masterKeyId, String userId) {
+        ensureRow(db, masterKeyId);
+        updateDuplicates(db, userId);
+    }
+
+    /**
+     * Recomputes the duplicate flag of all keyrings with the given primary user id. This must be
+     * called after each delete of a primary user id, with that user id.
+     */
+    static void updateDuplicates(SQLiteDatabase db, String userId) {
+        if (userId == null) {
+            return;
+        }
+
+        // both are lookups in uids_by_rank
+        db.execSQL("UPDATE " + Tables.KEY_RING_SUMMARIES
+                + " SET " + KeyRingSummaries.HAS_DUPLICATE_USER_ID + " = ("
+                    + "SELECT COUNT(*) FROM " + Tables.USER_PACKETS
+                    + " WHERE " + UserPackets.RANK + " = 0 AND " + UserPackets.USER_ID + " = ?"
+                + ") > 1"
+                + " WHERE " + KeyRingSummaries.MASTER_KEY_ID + " IN ("
+                    + "SELECT " + UserPackets.MASTER_KEY_ID + " FROM " + Tables.USER_PACKETS
+                    + " WHERE " + UserPackets.RANK + " = 0 AND " + UserPackets.USER_ID + " = ?"
+                + ")", new Object[] { userId, userId });
+    }
+
+    /** Returns the primary user id of a keyring, or null if it has none. */
+    static String getPrimaryUserId(SQLiteDatabase db, long masterKeyId) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] { UserPackets.USER_ID },
+                UserPackets.MASTER_KEY_ID + " = ? AND " + UserPackets.RANK + " = 0",
+                new String[] { Long.toString(masterKeyId) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Recomputes the summaries of all keyrings, when upgrading to database version 17. */
+    static void rebuild(SQLiteDatabase db) {
+        db.delete(Tables.KEY_RING_SUMMARIES, null, null);
+
+        Cursor cursor = db.query(Tables.KEY_RINGS_PUBLIC, new String[] { KeyRingData.MASTER_KEY_ID },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                updateCapabilities(db, cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL("UPDATE " + Tables.KEY_RING_SUMMARIES
+                + " SET " + KeyRingSummaries.HAS_DUPLICATE_USER_ID + " = EXISTS ("
+                    + "SELECT * FROM " + Tables.USER_PACKETS + " AS uid"
+                    + " INNER JOIN " + Tables.USER_PACKETS + " AS dups ON ("
+                        + "dups." + UserPackets.RANK + " = 0"
+                        + " AND dups." + UserPackets.USER_ID + " = uid." + UserPackets.USER_ID
+                        + " AND dups." + UserPackets.MASTER_KEY_ID + " != uid." + UserPackets.MASTER_KEY_ID
+                    + ")"
+                    + " WHERE uid." + UserPackets.MASTER_KEY_ID + " = "
+                        + Tables.KEY_RING_SUMMARIES + "." + KeyRingSummaries.MASTER_KEY_ID
+                    + " AND uid." + UserPackets.RANK + " = 0"
+                + ")");
+    }
+
+    private static void ensureRow(SQLiteDatabase db, long masterKeyId) {
+        ContentValues values = new ContentValues(2);
+        values.put(KeyRingSummaries.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingSummaries.HAS_DUPLICATE_USER_ID, 0);
+        db.insertWithOnConflict(Tables.KEY_RING_SUMMARIES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /** The key usable for a capability for the longest time, of those offered so far. */
+    private static class Capability {
+        Long mKeyId;
+        Long mExpiry;
+
+        void offer(long keyId, Long expiry) {
+            // a key which never expires beats all others, ties go to the first one by rank
+            if (mKeyId == null || (mExpiry != null && (expiry == null || expiry > mExpiry))) {
+                mKeyId = keyId;
+                mExpiry = expiry;
+            }
+        }
+
+        void put(ContentValues values, String keyIdColumn, String expiryColumn) {
+            values.put(keyIdColumn, mKeyId);
+            values.put(expiryColumn, mExpiry);
+        }
+    }
+
+}
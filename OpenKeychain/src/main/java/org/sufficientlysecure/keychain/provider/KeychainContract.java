@@ -18,10 +18,12 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 
 public class KeychainContract {
 
@@ -54,6 +56,16 @@ public class KeychainContract {
     interface UpdatedKeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
+        // describe the copy on the keyserver as of its last download, see KeyserverKeyState
+        String KEYSERVER = "keyserver";
+        String CONTENT_HASH = "content_hash";
+        String ETAG = "etag";
+        String LAST_MODIFIED = "last_modified";
+    }
+
+    interface VerifiedSignaturesColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String DIGEST = "digest"; // sha-256 over signer, signed material and signature
     }
 
     interface UserPacketsColumns {
@@ -66,6 +78,26 @@ public class KeychainContract {
         String IS_REVOKED = "is_revoked";
     }
 
+    interface UserEmailsColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to user_packets
+        String RANK = "rank"; // foreign key to user_packets
+        String EMAIL = "email"; // normalized, see KeyRing.extractEmail
+    }
+
+    interface KeyRingSummariesColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to keyrings_public
+        String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
+        // for each capability, the usable key which expires last, and its expiry (null if never)
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+    }
+
     interface CertsColumns {
         String MASTER_KEY_ID = "master_key_id";
         String RANK = "rank";
@@ -104,6 +136,8 @@ public class KeychainContract {
 
     public static final String BASE_UPDATED_KEYS = "updated_keys";
 
+    public static final String BASE_VERIFIED_SIGNATURES = "verified_signatures";
+
     public static final String PATH_UNIFIED = "unified";
 
     public static final String PATH_FIND = "find";
@@ -114,6 +148,7 @@ public class KeychainContract {
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
+    public static final String PATH_USER_PACKETS = "user_packets";
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
@@ -258,6 +293,18 @@ public class KeychainContract {
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
     }
 
+    public static class VerifiedSignatures implements VerifiedSignaturesColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_VERIFIED_SIGNATURES).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.verified_signatures";
+
+        public static Uri buildVerifiedSignaturesUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
+        }
+    }
+
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
         public static final String VERIFIED = "verified";
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
@@ -287,6 +334,12 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_USER_IDS).build();
         }
 
+        /** All user ids and user attributes of a keyring, as stored. */
+        public static Uri buildUserPacketsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_USER_PACKETS).build();
+        }
+
         public static Uri buildLinkedIdsUri(Uri uri) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_LINKED_IDS).build();
         }
@@ -357,6 +410,35 @@ public class KeychainContract {
         }
     }
 
+    /**
+     * The normalized email address of each user id, for indexed lookups by email. These rows
+     * have no uri of their own, the provider maintains them along with the user ids.
+     */
+    public static class UserEmails implements UserEmailsColumns {
+
+        /**
+         * Returns the given email addresses normalized and escaped as a list for an sql IN
+         * clause, or null if there are none. Empty addresses are skipped.
+         */
+        public static String buildEmailList(String[] emails) {
+            StringBuilder list = new StringBuilder();
+            for (String email : emails) {
+                if (email == null || email.trim().isEmpty()) {
+                    continue;
+                }
+                if (list.length() > 0) {
+                    list.append(", ");
+                }
+                list.append(DatabaseUtils.sqlEscapeString(KeyRing.normalizeEmail(email)));
+            }
+            return list.length() > 0 ? list.toString() : null;
+        }
+
+    }
+
+    public static class KeyRingSummaries implements KeyRingSummariesColumns {
+    }
+
     public static class Certs implements CertsColumns, BaseColumns {
         public static final String USER_ID = UserPacketsColumns.USER_ID;
         public static final String SIGNER_UID = "signer_user_id";
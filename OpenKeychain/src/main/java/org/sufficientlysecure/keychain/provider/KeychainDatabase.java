@@ -18,24 +18,33 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummariesColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmailsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignaturesColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -54,7 +63,9 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 14;
+    private static final int DATABASE_VERSION = 18;
+    // prepared statements kept per connection, the default is 25
+    private static final int MAX_SQL_CACHE_SIZE = 50;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -64,7 +75,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
+        String USER_EMAILS = "user_emails";
+        String KEY_RING_SUMMARIES = "keyring_summaries";
         String CERTS = "certs";
+        String VERIFIED_SIGNATURES = "verified_signatures";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -126,6 +140,43 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_USER_EMAILS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.USER_EMAILS + "("
+                + UserEmailsColumns.MASTER_KEY_ID + " INTEGER, "
+                + UserEmailsColumns.RANK + " INTEGER, "
+                + UserEmailsColumns.EMAIL + " TEXT NOT NULL, "
+
+                + "PRIMARY KEY(" + UserEmailsColumns.MASTER_KEY_ID + ", " + UserEmailsColumns.RANK + "), "
+                + "FOREIGN KEY(" + UserEmailsColumns.MASTER_KEY_ID + ", " + UserEmailsColumns.RANK + ") REFERENCES "
+                    + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_USER_EMAILS_INDEX =
+            "CREATE INDEX IF NOT EXISTS emails_by_email ON " + Tables.USER_EMAILS + " ("
+                + UserEmailsColumns.EMAIL + ", " + UserEmailsColumns.MASTER_KEY_ID + ");";
+
+    private static final String CREATE_KEYS_BY_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_by_key_id ON " + Tables.KEYS + " ("
+                + KeysColumns.KEY_ID + ", " + KeysColumns.MASTER_KEY_ID + ");";
+
+    private static final String CREATE_KEY_RING_SUMMARIES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RING_SUMMARIES + " ("
+                + KeyRingSummariesColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyRingSummariesColumns.HAS_DUPLICATE_USER_ID + " INTEGER, "
+
+                + KeyRingSummariesColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeyRingSummariesColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeyRingSummariesColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeyRingSummariesColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeyRingSummariesColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeyRingSummariesColumns.CERTIFY_EXPIRY + " INTEGER, "
+                + KeyRingSummariesColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeyRingSummariesColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeyRingSummariesColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -150,10 +201,22 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
                     + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
+                    + UpdatedKeysColumns.KEYSERVER + " TEXT, "
+                    + UpdatedKeysColumns.CONTENT_HASH + " BLOB, "
+                    + UpdatedKeysColumns.ETAG + " TEXT, "
+                    + UpdatedKeysColumns.LAST_MODIFIED + " TEXT, "
                     + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    private static final String CREATE_VERIFIED_SIGNATURES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.VERIFIED_SIGNATURES + " ("
+                + VerifiedSignaturesColumns.MASTER_KEY_ID + " INTEGER NOT NULL, "
+                + VerifiedSignaturesColumns.DIGEST + " BLOB NOT NULL, "
+                + "PRIMARY KEY(" + VerifiedSignaturesColumns.MASTER_KEY_ID + ", "
+                    + VerifiedSignaturesColumns.DIGEST + ")"
+            + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -193,6 +256,12 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
 
+        // with a write-ahead log, readers get their own connections and aren't blocked
+        // by writers, like imports of many keyrings
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized (KeychainDatabase.class) {
@@ -215,8 +284,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_EMAILS);
+        db.execSQL(CREATE_KEY_RING_SUMMARIES);
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_UPDATE_KEYS);
+        db.execSQL(CREATE_VERIFIED_SIGNATURES);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
@@ -226,6 +298,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL(CREATE_USER_EMAILS_INDEX);
+        db.execSQL(CREATE_KEYS_BY_KEY_ID_INDEX);
 
     }
 
@@ -235,6 +309,17 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+
+            // setWriteAheadLoggingEnabled is not available before jelly bean
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                    && !db.enableWriteAheadLogging()) {
+                Log.w(Constants.TAG, "Could not enable write-ahead logging!");
+            }
+            // only sync at checkpoints rather than on each commit. in wal mode, the last
+            // transactions before a power loss may be rolled back, but nothing is corrupted
+            db.execSQL("PRAGMA synchronous=NORMAL;");
+            // the unified keyring queries differ in their projections
+            db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
         }
     }
 
@@ -301,11 +386,27 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 13:
                 // do nothing here, just consolidate
             case 14:
-                db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
-                db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                         + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
-                db.execSQL("CREATE INDEX verified_certs ON certs ("
+                db.execSQL("CREATE INDEX IF NOT EXISTS verified_certs ON certs ("
                         + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+            case 15:
+                db.execSQL(CREATE_VERIFIED_SIGNATURES);
+            case 16:
+                db.execSQL(CREATE_USER_EMAILS);
+                db.execSQL(CREATE_USER_EMAILS_INDEX);
+                db.execSQL(CREATE_KEYS_BY_KEY_ID_INDEX);
+                populateUserEmails(db);
+            case 17:
+                db.execSQL(CREATE_KEY_RING_SUMMARIES);
+                KeyRingSummaryUpdater.rebuild(db);
+            case 18:
+                // the table already has these columns if it was created in case 12
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.KEYSERVER, "TEXT");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.CONTENT_HASH, "BLOB");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.ETAG, "TEXT");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.LAST_MODIFIED, "TEXT");
 
         }
 
@@ -316,6 +417,42 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(cursor.getColumnIndex("name")))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    /** Fills the user_emails table from all stored user ids, when upgrading to version 16. */
+    private static void populateUserEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] {
+                UserPacketsColumns.MASTER_KEY_ID, UserPacketsColumns.RANK, UserPacketsColumns.USER_ID
+        }, UserPacketsColumns.USER_ID + " IS NOT NULL", null, null, null, null);
+        try {
+            ContentValues values = new ContentValues(3);
+            while (cursor.moveToNext()) {
+                String email = KeyRing.extractEmail(cursor.getString(2));
+                if (email == null) {
+                    continue;
+                }
+                values.put(UserEmailsColumns.MASTER_KEY_ID, cursor.getLong(0));
+                values.put(UserEmailsColumns.RANK, cursor.getInt(1));
+                values.put(UserEmailsColumns.EMAIL, email);
+                db.insertWithOnConflict(Tables.USER_EMAILS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
@@ -469,15 +606,71 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!out.canWrite()) {
             throw new IOException("Cannot write " + out.getName());
         }
+        if (restore) {
+            // connections of the provider would keep using their view of the old database
+            closeProviderDatabase(context);
+        }
+        // with a write-ahead log, recent transactions are not in the database file yet, and
+        // on restore they would be replayed on top of the restored database
+        checkpoint(context);
         copy(in, out);
+        if (restore) {
+            File dbFile = context.getDatabasePath(DATABASE_NAME);
+            // noinspection ResultOfMethodCallIgnored - empty after the checkpoint, anyways
+            new File(dbFile.getPath() + "-wal").delete();
+            // noinspection ResultOfMethodCallIgnored
+            new File(dbFile.getPath() + "-shm").delete();
+            KeyRingMetadataCache.onChange(KeyRings.CONTENT_URI);
+            TrustedKeysCache.onChange();
+        }
+    }
+
+    private static void closeProviderDatabase(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(KeychainContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            return;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof KeychainProvider) {
+                // reopened on next use
+                ((KeychainProvider) provider).getDb().close();
+            }
+        } finally {
+            client.release();
+        }
+    }
+
+    /** Moves all transactions from the write-ahead log into the database file. */
+    private static void checkpoint(Context context) throws IOException {
+        KeychainDatabase helper = new KeychainDatabase(context);
+        try {
+            Cursor cursor = helper.getWritableDatabase().rawQuery(
+                    "PRAGMA wal_checkpoint(TRUNCATE);", null);
+            try {
+                // busy, frames in the log, frames checkpointed
+                if (!cursor.moveToFirst() || cursor.getInt(0) != 0
+                        || cursor.getInt(1) != cursor.getInt(2)) {
+                    throw new IOException("Cannot checkpoint " + DATABASE_NAME);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            helper.close();
+        }
     }
 
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        getWritableDatabase().execSQL("delete from " + Tables.VERIFIED_SIGNATURES);
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        KeyRingMetadataCache.onChange(KeyRings.CONTENT_URI);
+        TrustedKeysCache.onChange();
     }
 
 }
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -32,23 +35,29 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaries;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmails;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -67,6 +76,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_USER_PACKETS = 209;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -81,6 +91,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
 
+    private static final int VERIFIED_SIGNATURES = 600;
+
     protected UriMatcher mUriMatcher;
 
     /**
@@ -139,6 +151,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/unified
          * key_rings/_/keys
          * key_rings/_/user_ids
+         * key_rings/_/user_packets
          * key_rings/_/linked_ids
          * key_rings/_/linked_ids/_
          * key_rings/_/linked_ids/_/certs
@@ -157,6 +170,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                 + KeychainContract.PATH_USER_IDS,
                 KEY_RING_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                + KeychainContract.PATH_USER_PACKETS,
+                KEY_RING_USER_PACKETS);
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_LINKED_IDS,
                 KEY_RING_LINKED_IDS);
@@ -207,11 +223,23 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/*", UPDATED_KEYS_SPECIFIC);
 
+        /**
+         * verified self signatures of a keyring, by master key id
+         */
+        matcher.addURI(authority, KeychainContract.BASE_VERIFIED_SIGNATURES + "/*", VERIFIED_SIGNATURES);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    // the rows inserted most often, many times for each saved keyring
+    private final CompiledInsert mKeysInsert = new CompiledInsert(Tables.KEYS, false);
+    private final CompiledInsert mUserPacketsInsert = new CompiledInsert(Tables.USER_PACKETS, false);
+    private final CompiledInsert mCertsInsert = new CompiledInsert(Tables.CERTS, true);
+    // keyrings whose keys changed during the batch applied on this thread, see applyBatch
+    private final ThreadLocal<HashSet<Long>> mBatchKeysChanged = new ThreadLocal<>();
+
     /**
      * {@inheritDoc}
      */
@@ -241,6 +269,7 @@ public class KeychainProvider extends ContentProvider {
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
+            case KEY_RING_USER_PACKETS:
                 return UserPackets.CONTENT_TYPE;
 
             case KEY_RING_SECRET:
@@ -251,6 +280,9 @@ public class KeychainProvider extends ContentProvider {
             case UPDATED_KEYS_SPECIFIC:
                 return UpdatedKeys.CONTENT_ITEM_TYPE;
 
+            case VERIFIED_SIGNATURES:
+                return VerifiedSignatures.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -309,13 +341,8 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
                 projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                        "(EXISTS (SELECT * FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.USER_ID
-                                    + " = "+ Tables.USER_PACKETS + "." + UserPackets.USER_ID
-                                + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
+                        Tables.KEY_RING_SUMMARIES + "." + KeyRingSummaries.HAS_DUPLICATE_USER_ID
+                                + " AS " + KeyRings.HAS_DUPLICATE_USER_ID);
                 projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
@@ -327,15 +354,23 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
                         "(" + Tables.KEY_RINGS_SECRET + "." + KeyRings.MASTER_KEY_ID + " IS NOT NULL)" +
                                 " AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                // precomputed per keyring, only expiry depends on the time of the query
+                long now = new Date().getTime() / 1000;
+                projectionMap.put(KeyRings.HAS_ENCRYPT, buildCapabilityColumn(
+                        KeyRingSummaries.ENCRYPT_KEY_ID, KeyRingSummaries.ENCRYPT_EXPIRY, now)
+                        + " AS " + KeyRings.HAS_ENCRYPT);
+                projectionMap.put(KeyRings.HAS_SIGN, buildCapabilityColumn(
+                        KeyRingSummaries.SIGN_KEY_ID, KeyRingSummaries.SIGN_EXPIRY, now)
+                        + " AS " + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.HAS_CERTIFY, buildCapabilityColumn(
+                        KeyRingSummaries.CERTIFY_KEY_ID, KeyRingSummaries.CERTIFY_EXPIRY, now)
+                        + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, buildCapabilityColumn(
+                        KeyRingSummaries.AUTHENTICATE_KEY_ID, KeyRingSummaries.AUTHENTICATE_EXPIRY, now)
+                        + " AS " + KeyRings.HAS_AUTHENTICATE);
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                                + " < " + now + ") AS " + KeyRings.IS_EXPIRED);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -373,45 +408,12 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
+                        // a single primary key lookup, also used by selections on the flags
+                        + " LEFT JOIN " + Tables.KEY_RING_SUMMARIES + " ON ("
+                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                            + " = "
+                                + Tables.KEY_RING_SUMMARIES + "." + KeyRingSummaries.MASTER_KEY_ID
+                            + ")"
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
                 // in case there are multiple verifying certificates
@@ -426,11 +428,10 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // not correlated, so this is a single lookup in keys_by_key_id
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -438,7 +439,21 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
-                    case KEY_RINGS_FIND_BY_EMAIL:
+                    case KEY_RINGS_FIND_BY_EMAIL: {
+                        String emailList = UserEmails.buildEmailList(
+                                uri.getLastPathSegment().split(" *, *"));
+                        if (emailList != null) {
+                            // a lookup in emails_by_email, rather than a LIKE over all user ids
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT " + UserEmails.MASTER_KEY_ID + " FROM " + Tables.USER_EMAILS
+                                    + " WHERE " + UserEmails.EMAIL + " IN (" + emailList + ")"
+                                    + ")");
+                        } else {
+                            Log.e(Constants.TAG, "Malformed find by email query!");
+                            qb.appendWhere(" AND 0");
+                        }
+                        break;
+                    }
                     case KEY_RINGS_FIND_BY_USER_ID: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
                         boolean gotCondition = false;
@@ -452,12 +467,7 @@ public class KeychainProvider extends ContentProvider {
                                 emailWhere += " OR ";
                             }
                             emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            if (match == KEY_RINGS_FIND_BY_EMAIL) {
-                                emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                            } else {
-                                emailWhere += DatabaseUtils.sqlEscapeString("%" + chunks[i] + "%");
-                            }
+                            emailWhere += DatabaseUtils.sqlEscapeString("%" + chunks[i] + "%");
                             gotCondition = true;
                         }
                         if(gotCondition) {
@@ -562,6 +572,26 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RING_USER_PACKETS: {
+                // plain user packets of all types, without any joins
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(UserPackets._ID, "oid AS _id");
+                projectionMap.put(UserPackets.MASTER_KEY_ID, UserPackets.MASTER_KEY_ID);
+                projectionMap.put(UserPackets.TYPE, UserPackets.TYPE);
+                projectionMap.put(UserPackets.USER_ID, UserPackets.USER_ID);
+                projectionMap.put(UserPackets.ATTRIBUTE_DATA, UserPackets.ATTRIBUTE_DATA);
+                projectionMap.put(UserPackets.RANK, UserPackets.RANK);
+                projectionMap.put(UserPackets.IS_PRIMARY, UserPackets.IS_PRIMARY);
+                projectionMap.put(UserPackets.IS_REVOKED, UserPackets.IS_REVOKED);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_PACKETS);
+                qb.appendWhere(UserPackets.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+
+                break;
+            }
+
             case KEY_RINGS_PUBLIC:
             case KEY_RING_PUBLIC: {
                 HashMap<String, String> projectionMap = new HashMap<>();
@@ -662,6 +692,14 @@ public class KeychainProvider extends ContentProvider {
                         + UpdatedKeys.MASTER_KEY_ID);
                 projectionMap.put(UpdatedKeys.LAST_UPDATED, Tables.UPDATED_KEYS + "."
                         + UpdatedKeys.LAST_UPDATED);
+                projectionMap.put(UpdatedKeys.KEYSERVER, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.KEYSERVER);
+                projectionMap.put(UpdatedKeys.CONTENT_HASH, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.CONTENT_HASH);
+                projectionMap.put(UpdatedKeys.ETAG, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.ETAG);
+                projectionMap.put(UpdatedKeys.LAST_MODIFIED, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.LAST_MODIFIED);
                 qb.setProjectionMap(projectionMap);
                 if (match == UPDATED_KEYS_SPECIFIC) {
                     qb.appendWhere(UpdatedKeys.MASTER_KEY_ID + " = ");
@@ -670,6 +708,18 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case VERIFIED_SIGNATURES: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(VerifiedSignatures.MASTER_KEY_ID, VerifiedSignatures.MASTER_KEY_ID);
+                projectionMap.put(VerifiedSignatures.DIGEST, VerifiedSignatures.DIGEST);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.VERIFIED_SIGNATURES);
+                qb.appendWhere(VerifiedSignatures.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                break;
+            }
+
             case API_APPS: {
                 qb.setTables(Tables.API_APPS);
 
@@ -774,6 +824,7 @@ public class KeychainProvider extends ContentProvider {
 
         Uri rowUri = null;
         Long keyId = null;
+        boolean trustedKeysChanged = false;
         try {
             final int match = mUriMatcher.match(uri);
 
@@ -786,11 +837,13 @@ public class KeychainProvider extends ContentProvider {
                 case KEY_RING_SECRET: {
                     db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    trustedKeysChanged = true;
                     break;
                 }
                 case KEY_RING_KEYS: {
-                    db.insertOrThrow(Tables.KEYS, null, values);
+                    mKeysInsert.insertOrThrow(db, values);
                     keyId = values.getAsLong(Keys.MASTER_KEY_ID);
+                    onKeysChanged(db, keyId);
                     break;
                 }
                 case KEY_RING_USER_IDS: {
@@ -804,19 +857,47 @@ public class KeychainProvider extends ContentProvider {
                     if (((Number) values.get(UserPacketsColumns.RANK)).intValue() == 0 && values.get(UserPacketsColumns.USER_ID) == null) {
                         throw new AssertionError("Rank 0 user packet must be a user id!");
                     }
-                    db.insertOrThrow(Tables.USER_PACKETS, null, values);
+                    mUserPacketsInsert.insertOrThrow(db, values);
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
+
+                    // deleted on cascade along with the user id
+                    String email = KeyRing.extractEmail(values.getAsString(UserPackets.USER_ID));
+                    if (email != null) {
+                        ContentValues emailValues = new ContentValues(3);
+                        emailValues.put(UserEmails.MASTER_KEY_ID, keyId);
+                        emailValues.put(UserEmails.RANK, values.getAsInteger(UserPackets.RANK));
+                        emailValues.put(UserEmails.EMAIL, email);
+                        db.insertOrThrow(Tables.USER_EMAILS, null, emailValues);
+                    }
+                    if (values.getAsInteger(UserPackets.RANK) == 0) {
+                        KeyRingSummaryUpdater.onPrimaryUserIdInserted(db, keyId,
+                                values.getAsString(UserPackets.USER_ID));
+                    }
                     break;
                 }
                 case KEY_RING_CERTS: {
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
-                    db.replaceOrThrow(Tables.CERTS, null, values);
+                    mCertsInsert.insertOrThrow(db, values);
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
                 }
+                case VERIFIED_SIGNATURES: {
+                    // nobody observes these, so there is no need to notify
+                    values.put(VerifiedSignatures.MASTER_KEY_ID,
+                            Long.parseLong(uri.getPathSegments().get(1)));
+                    db.insertWithOnConflict(Tables.VERIFIED_SIGNATURES, null, values,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                    return uri;
+                }
                 case UPDATED_KEYS: {
-                    long updatedKeyId = db.replace(Tables.UPDATED_KEYS, null, values);
+                    // update rather than replace, so renewing only the time keeps the
+                    // keyserver state of the key
+                    long updatedKeyId = values.getAsLong(UpdatedKeys.MASTER_KEY_ID);
+                    if (db.update(Tables.UPDATED_KEYS, values, UpdatedKeys.MASTER_KEY_ID + " = ?",
+                            new String[] { Long.toString(updatedKeyId) }) == 0) {
+                        updatedKeyId = db.insert(Tables.UPDATED_KEYS, null, values);
+                    }
                     rowUri = UpdatedKeys.CONTENT_URI.buildUpon().appendPath("" + updatedKeyId)
                             .build();
                     break;
@@ -854,7 +935,11 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
+            KeyRingMetadataCache.onChange(uri);
             getContext().getContentResolver().notifyChange(uri, null);
+            if (trustedKeysChanged) {
+                notifyTrustedKeysChanged();
+            }
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -863,6 +948,51 @@ public class KeychainProvider extends ContentProvider {
         return rowUri;
     }
 
+    /**
+     * Applies all operations of a batch inside a single database transaction. Besides making
+     * the batch atomic, this saves a commit (and fsync) per operation.
+     *
+     * The capabilities of a keyring are recomputed once at the end of the batch, rather than
+     * for each of its key rows.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        ContentProviderResult[] results;
+        HashSet<Long> keysChanged = new HashSet<>();
+        db.beginTransaction();
+        mBatchKeysChanged.set(keysChanged);
+        try {
+            results = super.applyBatch(operations);
+            for (long masterKeyId : keysChanged) {
+                KeyRingSummaryUpdater.updateCapabilities(db, masterKeyId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchKeysChanged.remove();
+            db.endTransaction();
+        }
+
+        // observers were notified by each operation before the commit, and may have seen old data
+        for (ContentProviderOperation operation : operations) {
+            if (operation.getUri().toString().startsWith(KeyRings.CONTENT_URI.toString())) {
+                KeyRingMetadataCache.onChange(KeyRings.CONTENT_URI);
+                getContext().getContentResolver().notifyChange(KeyRings.CONTENT_URI, null);
+                break;
+            }
+        }
+        for (ContentProviderOperation operation : operations) {
+            if (mUriMatcher.match(operation.getUri()) == KEY_RING_SECRET) {
+                notifyTrustedKeysChanged();
+                break;
+            }
+        }
+
+        return results;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -873,12 +1003,15 @@ public class KeychainProvider extends ContentProvider {
         final SQLiteDatabase db = getDb().getWritableDatabase();
 
         int count;
+        boolean trustedKeysChanged = false;
         final int match = mUriMatcher.match(uri);
 
         switch (match) {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                db.delete(Tables.VERIFIED_SIGNATURES, null, null);
+                trustedKeysChanged = true;
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -887,8 +1020,18 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
+                // the secret keyring is deleted on cascade as well
+                trustedKeysChanged = hasSecretKeyRing(db, uri.getPathSegments().get(1));
+                String primaryUserId = KeyRingSummaryUpdater.getPrimaryUserId(db,
+                        Long.parseLong(uri.getPathSegments().get(1)));
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                if (count > 0) {
+                    KeyRingSummaryUpdater.updateDuplicates(db, primaryUserId);
+                    // not a foreign key, since signatures are verified before a keyring is saved
+                    db.delete(Tables.VERIFIED_SIGNATURES, VerifiedSignatures.MASTER_KEY_ID + " = ?",
+                            new String[] { uri.getPathSegments().get(1) });
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -899,9 +1042,46 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                trustedKeysChanged = count > 0;
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RING_KEYS:
+            case KEY_RING_USER_PACKETS:
+            case KEY_RING_CERTS: {
+                // single rows of a keyring, for incremental updates. certs of a deleted user
+                // packet are deleted by ON DELETE CASCADE
+                String table = match == KEY_RING_KEYS ? Tables.KEYS
+                        : match == KEY_RING_USER_PACKETS ? Tables.USER_PACKETS : Tables.CERTS;
+                // make sure we get a long value here
+                Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                String selection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                String primaryUserId = match == KEY_RING_USER_PACKETS
+                        ? KeyRingSummaryUpdater.getPrimaryUserId(db, mkid) : null;
+                count = db.delete(table, selection, selectionArgs);
+                if (match == KEY_RING_KEYS) {
+                    onKeysChanged(db, mkid);
+                } else if (primaryUserId != null
+                        && KeyRingSummaryUpdater.getPrimaryUserId(db, mkid) == null) {
+                    // the other keyrings with this user id may not be duplicates any more
+                    KeyRingSummaryUpdater.updateDuplicates(db, primaryUserId);
+                }
+                uri = KeyRings.buildGenericKeyRingUri(mkid);
+                break;
+            }
+
+            case VERIFIED_SIGNATURES: {
+                String selection = VerifiedSignatures.MASTER_KEY_ID + " = "
+                        + Long.parseLong(uri.getPathSegments().get(1));
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                // nobody observes these, so there is no need to notify
+                return db.delete(Tables.VERIFIED_SIGNATURES, selection, selectionArgs);
+            }
 
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
@@ -924,11 +1104,50 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
+        KeyRingMetadataCache.onChange(uri);
         getContext().getContentResolver().notifyChange(uri, null);
+        if (trustedKeysChanged) {
+            notifyTrustedKeysChanged();
+        }
 
         return count;
     }
 
+    /**
+     * Returns a column which is the key id stored for a capability in the keyring summary, if
+     * that key hasn't expired yet, or null.
+     */
+    private static String buildCapabilityColumn(String keyIdColumn, String expiryColumn, long now) {
+        String keyId = Tables.KEY_RING_SUMMARIES + "." + keyIdColumn;
+        String expiry = Tables.KEY_RING_SUMMARIES + "." + expiryColumn;
+        return "(CASE WHEN " + expiry + " IS NULL OR " + expiry + " >= " + now
+                + " THEN " + keyId + " END)";
+    }
+
+    /**
+     * Recomputes the capabilities of a keyring after its keys changed, or defers this to the
+     * end of the batch if one is being applied.
+     */
+    private void onKeysChanged(SQLiteDatabase db, long masterKeyId) {
+        HashSet<Long> keysChanged = mBatchKeysChanged.get();
+        if (keysChanged != null) {
+            keysChanged.add(masterKeyId);
+        } else {
+            KeyRingSummaryUpdater.updateCapabilities(db, masterKeyId);
+        }
+    }
+
+    private static boolean hasSecretKeyRing(SQLiteDatabase db, String masterKeyId) {
+        return DatabaseUtils.queryNumEntries(db, Tables.KEY_RINGS_SECRET,
+                KeyRings.MASTER_KEY_ID + " = ?", new String[] { masterKeyId }) > 0;
+    }
+
+    /** Drops the set of trusted keys in this process, and notifies all others to do so. */
+    private void notifyTrustedKeysChanged() {
+        TrustedKeysCache.onChange();
+        getContext().getContentResolver().notifyChange(TrustedKeysCache.CHANGED_URI, null);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -939,6 +1158,7 @@ public class KeychainProvider extends ContentProvider {
         final SQLiteDatabase db = getDb().getWritableDatabase();
 
         int count = 0;
+        boolean trustedKeysChanged = false;
         try {
             final int match = mUriMatcher.match(uri);
             switch (match) {
@@ -954,6 +1174,25 @@ public class KeychainProvider extends ContentProvider {
                         actualSelection += " AND (" + selection + ")";
                     }
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    onKeysChanged(db, mkid);
+                    break;
+                }
+                case KEY_RING_PUBLIC: {
+                    // an update of the row itself, unlike an insert, doesn't cascade to the
+                    // keys, user packets and certs of this keyring
+                    if (values.size() != 1 || !values.containsKey(KeyRingData.KEY_RING_DATA)) {
+                        throw new UnsupportedOperationException(
+                                "Only key_ring_data column may be updated!");
+                    }
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRingData.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                    // trusted keys are parsed from the public keyring
+                    trustedKeysChanged = hasSecretKeyRing(db, Long.toString(mkid));
+                    uri = KeyRings.buildGenericKeyRingUri(mkid);
                     break;
                 }
                 case API_APPS_BY_PACKAGE_NAME: {
@@ -972,7 +1211,11 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
+            KeyRingMetadataCache.onChange(uri);
             getContext().getContentResolver().notifyChange(uri, null);
+            if (trustedKeysChanged) {
+                notifyTrustedKeysChanged();
+            }
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
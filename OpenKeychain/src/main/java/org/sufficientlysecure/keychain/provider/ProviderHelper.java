@@ -28,9 +28,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -40,9 +42,13 @@ import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.KeyserverKeyState;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
@@ -69,8 +75,8 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
@@ -94,6 +100,8 @@ public class ProviderHelper {
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
     private int mIndent;
+    // if false, existing keyrings are always deleted and inserted anew. only for benchmarks!
+    boolean mIncrementalUpsert = true;
 
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
@@ -147,6 +155,35 @@ public class ProviderHelper {
     public static final int FIELD_TYPE_STRING = 4;
     public static final int FIELD_TYPE_BLOB = 5;
 
+    private static final String[] METADATA_PROJECTION = new String[] {
+            KeyRings.MASTER_KEY_ID, KeyRings.FINGERPRINT, KeyRings.USER_ID, KeyRings.IS_REVOKED,
+            KeyRings.HAS_CERTIFY, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN, KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET
+    };
+    private static final int INDEX_METADATA_MASTER_KEY_ID = 0;
+    private static final int INDEX_METADATA_FINGERPRINT = 1;
+    private static final int INDEX_METADATA_USER_ID = 2;
+    private static final int INDEX_METADATA_IS_REVOKED = 3;
+    private static final int INDEX_METADATA_HAS_CERTIFY = 4;
+    private static final int INDEX_METADATA_HAS_ENCRYPT = 5;
+    private static final int INDEX_METADATA_HAS_SIGN = 6;
+    private static final int INDEX_METADATA_VERIFIED = 7;
+    private static final int INDEX_METADATA_HAS_ANY_SECRET = 8;
+
+    // stays well below sqlite's limit of 999 variables per statement
+    private static final int MAX_METADATA_IDS_PER_QUERY = 500;
+
+    private static final String[] UPDATED_KEYS_PROJECTION = new String[] {
+            UpdatedKeys.MASTER_KEY_ID, UpdatedKeys.LAST_UPDATED, UpdatedKeys.KEYSERVER,
+            UpdatedKeys.CONTENT_HASH, UpdatedKeys.ETAG, UpdatedKeys.LAST_MODIFIED
+    };
+    private static final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
+    private static final int INDEX_UPDATED_KEYS_LAST_UPDATED = 1;
+    private static final int INDEX_UPDATED_KEYS_KEYSERVER = 2;
+    private static final int INDEX_UPDATED_KEYS_CONTENT_HASH = 3;
+    private static final int INDEX_UPDATED_KEYS_ETAG = 4;
+    private static final int INDEX_UPDATED_KEYS_LAST_MODIFIED = 5;
+
     public Object getGenericData(Uri uri, String column, int type) throws NotFoundException {
         Object result = getGenericData(uri, new String[]{column}, new int[]{type}, null).get(column);
         if (result == null) {
@@ -211,7 +248,20 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /**
+     * Returns the master keys of all keyrings with a secret key. These are cached process-wide,
+     * see TrustedKeysCache, the returned set must not be modified.
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        return TrustedKeysCache.getInstance(mContext).get(new TrustedKeysCache.Loader() {
+            @Override
+            public LongSparseArray<CanonicalizedPublicKey> load() {
+                return loadTrustedMasterKeys();
+            }
+        });
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -257,6 +307,129 @@ public class ProviderHelper {
         return new CachedPublicKeyRing(this, KeyRings.buildUnifiedKeyRingUri(id));
     }
 
+    /**
+     * Returns a CachedPublicKeyRing with all of its metadata loaded upfront, so none of its
+     * getters will query the database.
+     */
+    public CachedPublicKeyRing getCachedPublicKeyRingSnapshot(long id) throws PgpKeyNotFoundException {
+        try {
+            return new CachedPublicKeyRing(this, KeyRings.buildUnifiedKeyRingUri(id), getKeyRingMetadata(id));
+        } catch (NotFoundException e) {
+            throw new PgpKeyNotFoundException(e);
+        }
+    }
+
+    /**
+     * Returns snapshots for all of the given master key ids which are in the database, using a
+     * single query for all keyrings which aren't cached yet. Ids which aren't found are omitted.
+     */
+    public LongSparseArray<CachedPublicKeyRing> getCachedPublicKeyRingSnapshots(long[] ids) {
+        LongSparseArray<CachedPublicKeyRing> result = new LongSparseArray<>(ids.length);
+        KeyRingMetadataCache cache = KeyRingMetadataCache.getInstance(mContext);
+
+        ArrayList<Long> missingIds = new ArrayList<>();
+        for (long id : ids) {
+            KeyRingMetadataCache.Metadata metadata = cache.get(id);
+            if (metadata != null) {
+                result.put(id, new CachedPublicKeyRing(this, KeyRings.buildUnifiedKeyRingUri(id), metadata));
+            } else {
+                missingIds.add(id);
+            }
+        }
+
+        for (int i = 0; i < missingIds.size(); i += MAX_METADATA_IDS_PER_QUERY) {
+            List<Long> chunk = missingIds.subList(i,
+                    Math.min(missingIds.size(), i + MAX_METADATA_IDS_PER_QUERY));
+            for (KeyRingMetadataCache.Metadata metadata : loadKeyRingMetadata(cache, chunk)) {
+                result.put(metadata.mMasterKeyId, new CachedPublicKeyRing(this,
+                        KeyRings.buildUnifiedKeyRingUri(metadata.mMasterKeyId), metadata));
+            }
+        }
+
+        return result;
+    }
+
+    /** Returns the metadata of a keyring, from the process-wide cache or from the database. */
+    KeyRingMetadataCache.Metadata getKeyRingMetadata(long masterKeyId) throws NotFoundException {
+        KeyRingMetadataCache cache = KeyRingMetadataCache.getInstance(mContext);
+        KeyRingMetadataCache.Metadata metadata = cache.get(masterKeyId);
+        if (metadata != null) {
+            return metadata;
+        }
+        List<KeyRingMetadataCache.Metadata> loaded =
+                loadKeyRingMetadata(cache, Collections.singletonList(masterKeyId));
+        if (loaded.isEmpty()) {
+            throw new NotFoundException();
+        }
+        return loaded.get(0);
+    }
+
+    private List<KeyRingMetadataCache.Metadata> loadKeyRingMetadata(
+            KeyRingMetadataCache cache, List<Long> masterKeyIds) {
+        // must be obtained before the query, see KeyRingMetadataCache.put
+        long generation = cache.getGeneration();
+
+        String[] selectionArgs = new String[masterKeyIds.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selectionArgs[i] = Long.toString(masterKeyIds.get(i));
+        }
+        String selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN ("
+                + TextUtils.join(",", Collections.nCopies(selectionArgs.length, "?")) + ")";
+
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                METADATA_PROJECTION, selection, selectionArgs, null);
+        try {
+            ArrayList<KeyRingMetadataCache.Metadata> result = new ArrayList<>(selectionArgs.length);
+            if (cursor != null && cursor.moveToFirst()) do {
+                // every keyring has a fingerprint, but it might have no user id to show
+                if (cursor.isNull(INDEX_METADATA_FINGERPRINT)) {
+                    continue;
+                }
+                KeyRingMetadataCache.Metadata metadata = new KeyRingMetadataCache.Metadata(
+                        cursor.getLong(INDEX_METADATA_MASTER_KEY_ID),
+                        cursor.getBlob(INDEX_METADATA_FINGERPRINT),
+                        cursor.getString(INDEX_METADATA_USER_ID),
+                        cursor.getLong(INDEX_METADATA_IS_REVOKED) > 0,
+                        !cursor.isNull(INDEX_METADATA_HAS_CERTIFY),
+                        cursor.getLong(INDEX_METADATA_HAS_ENCRYPT),
+                        cursor.getLong(INDEX_METADATA_HAS_SIGN),
+                        cursor.getInt(INDEX_METADATA_VERIFIED),
+                        cursor.getLong(INDEX_METADATA_HAS_ANY_SECRET) > 0);
+                cache.put(metadata, generation);
+                result.add(metadata);
+            } while (cursor.moveToNext());
+            return result;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Returns the secret key types of all subkeys of a keyring, loading them on first use. */
+    HashMap<Long, SecretKeyType> getSecretKeyTypes(KeyRingMetadataCache.Metadata metadata) {
+        HashMap<Long, SecretKeyType> secretKeyTypes = metadata.getSecretKeyTypes();
+        if (secretKeyTypes != null) {
+            return secretKeyTypes;
+        }
+
+        Cursor cursor = mContentResolver.query(Keys.buildKeysUri(metadata.mMasterKeyId),
+                new String[] { Keys.KEY_ID, Keys.HAS_SECRET }, null, null, null);
+        try {
+            secretKeyTypes = new HashMap<>();
+            if (cursor != null && cursor.moveToFirst()) do {
+                secretKeyTypes.put(cursor.getLong(0), SecretKeyType.fromNum(cursor.getInt(1)));
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        metadata.setSecretKeyTypes(secretKeyTypes);
+        return secretKeyTypes;
+    }
+
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
         return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
     }
@@ -331,49 +504,100 @@ public class ProviderHelper {
     /**
      * Saves an UncachedKeyRing of the public variant into the db.
      * <p/>
-     * This method will not delete all previous data for this masterKeyId from the database prior
-     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
-     * and need to be saved externally to be preserved past the operation.
+     * If the keyring is already in the database, only the rows which changed are written, as
+     * part of a single batch. Otherwise, all previous data for this masterKeyId is deleted and
+     * all public data inserted. Either way, secret keyrings are left deleted and need to be
+     * saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
-    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
-                                               Progressable progress, boolean selfCertsAreTrusted) {
+    int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
+                                       Progressable progress, boolean selfCertsAreTrusted) {
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int result = buildPublicKeyRingOperations(keyRing, progress, selfCertsAreTrusted, operations);
+        if (result == SaveKeyringResult.RESULT_ERROR) {
+            return result;
+        }
+
+        try {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if ((result & SaveKeyringResult.UPDATED) == 0) {
+                // the first operation of the batch deletes the old version of this keyring
+                result |= logDeleteOldResult(results[0]);
+            }
+
+            log(LogType.MSG_IP_SUCCESS);
+            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+            return result;
+
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Log.e(Constants.TAG, "RemoteException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Log.e(Constants.TAG, "OperationApplicationException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        }
 
-        // start with ok result
-        int result = SaveKeyringResult.SAVED_PUBLIC;
+    }
+
+    private int logDeleteOldResult(ContentProviderResult deleteResult) {
+        if (deleteResult.count != null && deleteResult.count > 0) {
+            log(LogType.MSG_IP_DELETE_OLD_OK);
+            return SaveKeyringResult.UPDATED;
+        } else {
+            log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            return 0;
+        }
+    }
+
+    /**
+     * Builds the batch of database operations which write all public data of a keyring.
+     * <p/>
+     * If the keyring is in the database already, the operations only touch rows which changed,
+     * and UPDATED is returned along with SAVED_PUBLIC. Otherwise, the first operation added is
+     * the deletion of the old version of this keyring, which also deletes all keys, user ids and
+     * certificates on cascade.
+     *
+     * @return SAVED_PUBLIC (plus UPDATED) on success, or RESULT_ERROR
+     */
+    int buildPublicKeyRingOperations(CanonicalizedPublicKeyRing keyRing,
+            Progressable progress, boolean selfCertsAreTrusted,
+            ArrayList<ContentProviderOperation> operations) {
 
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
+        // the rows which make up this keyring, user packets and certs by rank
+        ContentValues keyRingRow = new ContentValues();
+        ArrayList<ContentValues> keyRows = new ArrayList<>();
+        ArrayList<ContentValues> userPacketRows = new ArrayList<>();
+        ArrayList<ArrayList<ContentValues>> certRows = new ArrayList<>();
+
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
-            // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
-
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
-                ContentValues values = new ContentValues();
-                values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+                keyRingRow.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    keyRingRow.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
-
-                Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
-                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             progress.setProgress(LogType.MSG_IP_INSERT_SUBKEYS.getMsgId(), 40, 100);
             mIndent += 1;
             { // insert subkeys
-                Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
                 for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
                     long keyId = key.getKeyId();
@@ -430,7 +654,7 @@ public class ProviderHelper {
                         }
                     }
 
-                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                    keyRows.add(values);
                     ++rank;
                     mIndent -= 1;
                 }
@@ -440,6 +664,20 @@ public class ProviderHelper {
             // get a list of owned secret keys, for verification filtering
             LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
 
+            // collect all certificates first, so those by trusted keys are verified in parallel
+            TrustedCertVerifier certVerifier = new TrustedCertVerifier(masterKey, trustedKeys);
+            ArrayList<byte[]> rawUserIds = masterKey.getUnorderedRawUserIds();
+            ArrayList<List<WrappedSignature>> userIdCerts = new ArrayList<>();
+            for (byte[] rawUserId : rawUserIds) {
+                userIdCerts.add(certVerifier.addUserId(rawUserId));
+            }
+            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
+            ArrayList<List<WrappedSignature>> userAttributeCerts = new ArrayList<>();
+            for (WrappedUserAttribute userAttribute : userAttributes) {
+                userAttributeCerts.add(certVerifier.addUserAttribute(userAttribute));
+            }
+            certVerifier.verifyAll();
+
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
             List<UserPacketItem> uids = new ArrayList<>();
@@ -450,7 +688,8 @@ public class ProviderHelper {
                 log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
             }
             mIndent += 1;
-            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+            for (int i = 0; i < rawUserIds.size(); i++) {
+                byte[] rawUserId = rawUserIds.get(i);
                 String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
 
                 UserPacketItem item = new UserPacketItem();
@@ -462,8 +701,7 @@ public class ProviderHelper {
                 log(LogType.MSG_IP_UID_PROCESSING, userId);
                 mIndent += 1;
                 // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForRawId(rawUserId))) {
+                for (WrappedSignature cert : userIdCerts.get(i)) {
                     long certId = cert.getKeyId();
                     // self signature
                     if (certId == masterKeyId) {
@@ -491,9 +729,8 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
                         // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, rawUserId)) {
+                        if (!certVerifier.isVerified(cert)) {
                             log(LogType.MSG_IP_UID_CERT_BAD);
                             continue;
                         }
@@ -536,14 +773,14 @@ public class ProviderHelper {
             }
             mIndent -= 1;
 
-            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
             // Don't spam the log if there aren't even any attributes
             if (!userAttributes.isEmpty()) {
                 log(LogType.MSG_IP_UAT_CLASSIFYING);
             }
 
             mIndent += 1;
-            for (WrappedUserAttribute userAttribute : userAttributes) {
+            for (int i = 0; i < userAttributes.size(); i++) {
+                WrappedUserAttribute userAttribute = userAttributes.get(i);
 
                 UserPacketItem item = new UserPacketItem();
                 uids.add(item);
@@ -562,8 +799,7 @@ public class ProviderHelper {
                 }
                 mIndent += 1;
                 // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                for (WrappedSignature cert : userAttributeCerts.get(i)) {
                     long certId = cert.getKeyId();
                     // self signature
                     if (certId == masterKeyId) {
@@ -591,9 +827,8 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
                         // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, userAttribute)) {
+                        if (!certVerifier.isVerified(cert)) {
                             log(LogType.MSG_IP_UAT_CERT_BAD);
                             continue;
                         }
@@ -644,10 +879,12 @@ public class ProviderHelper {
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+                userPacketRows.add(buildUserPacketValues(masterKeyId, item, userIdRank));
+                ArrayList<ContentValues> certs = new ArrayList<>();
+                certRows.add(certs);
 
                 if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
+                    certs.add(buildCertValues(masterKeyId, userIdRank, item.selfRevocation,
                             Certs.VERIFIED_SELF));
                     // don't bother with trusted certs if the uid is revoked, anyways
                     continue;
@@ -657,7 +894,7 @@ public class ProviderHelper {
                     throw new AssertionError("User ids MUST be self-certified at this point!!");
                 }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                certs.add(buildCertValues(masterKeyId, userIdRank, item.selfCert,
                         selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
                 // iterate over signatures
@@ -668,8 +905,8 @@ public class ProviderHelper {
                         // don't further process it
                         continue;
                     }
-                    // otherwise, build database operation
-                    operations.add(buildCertOperations(
+                    // otherwise, build database row
+                    certs.add(buildCertValues(
                             masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
             }
@@ -682,15 +919,33 @@ public class ProviderHelper {
             mIndent -= 1;
         }
 
+        if (mIncrementalUpsert && buildUpsertOperations(masterKeyId, keyRingRow, keyRows,
+                userPacketRows, certRows, selfCertsAreTrusted, operations)) {
+            return SaveKeyringResult.SAVED_PUBLIC | SaveKeyringResult.UPDATED;
+        }
+
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+        operations.add(ContentProviderOperation.newDelete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+        operations.add(ContentProviderOperation.newInsert(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId)).withValues(keyRingRow).build());
+        for (ContentValues values : keyRows) {
+            operations.add(ContentProviderOperation.newInsert(
+                    Keys.buildKeysUri(masterKeyId)).withValues(values).build());
+        }
+        for (int rank = 0; rank < userPacketRows.size(); rank++) {
+            operations.add(ContentProviderOperation.newInsert(
+                    UserPackets.buildUserIdsUri(masterKeyId)).withValues(userPacketRows.get(rank)).build());
+            for (ContentValues values : certRows.get(rank)) {
+                operations.add(ContentProviderOperation.newInsert(
+                        Certs.buildCertsUri(masterKeyId)).withValues(values).build());
+            }
+        }
+
         // before deleting key, retrieve it's last updated time
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
         Cursor lastUpdatedCursor = mContentResolver.query(
                 UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        UpdatedKeys.MASTER_KEY_ID,
-                        UpdatedKeys.LAST_UPDATED
-                },
+                UPDATED_KEYS_PROJECTION,
                 UpdatedKeys.MASTER_KEY_ID + " = ?",
                 new String[]{"" + masterKeyId},
                 null
@@ -698,11 +953,7 @@ public class ProviderHelper {
         if (lastUpdatedCursor.moveToNext()) {
             // there was an entry to re-insert
             // this operation must happen after the new key is inserted
-            ContentValues lastUpdatedEntry = new ContentValues(2);
-            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID,
-                    lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED,
-                    lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
+            ContentValues lastUpdatedEntry = readUpdatedKeysRow(lastUpdatedCursor);
             operations.add(
                     ContentProviderOperation
                             .newInsert(UpdatedKeys.CONTENT_URI)
@@ -712,37 +963,207 @@ public class ProviderHelper {
         }
         lastUpdatedCursor.close();
 
+        return SaveKeyringResult.SAVED_PUBLIC;
+
+    }
+
+    private static final String[] KEY_ROW_COLUMNS = new String[] {
+            Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.KEY_CURVE_OID, Keys.ALGORITHM,
+            Keys.FINGERPRINT, Keys.CAN_CERTIFY, Keys.CAN_ENCRYPT, Keys.CAN_SIGN,
+            Keys.CAN_AUTHENTICATE, Keys.IS_REVOKED, Keys.CREATION, Keys.EXPIRY,
+            // must be last, see buildUpsertOperations
+            Keys.HAS_SECRET
+    };
+    private static final String[] USER_PACKET_ROW_COLUMNS = new String[] {
+            UserPackets.RANK, UserPackets.TYPE, UserPackets.USER_ID, UserPackets.ATTRIBUTE_DATA,
+            UserPackets.IS_PRIMARY, UserPackets.IS_REVOKED
+    };
+    private static final String[] CERT_ROW_COLUMNS = new String[] {
+            Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.CREATION, Certs.VERIFIED, Certs.DATA
+    };
+
+    /**
+     * Builds the operations which bring the stored rows of a keyring up to date, by comparing
+     * them with the rows built for the new version. Unchanged rows are not touched at all, a
+     * changed key or user packet row is deleted and inserted again, and so are the certificates
+     * of a changed user packet. Certificates of an unchanged user packet are diffed one by one.
+     * <p/>
+     * Since the keyring row itself is only updated, this doesn't cascade, and the last updated
+     * time of the keyring stays in place. The secret keyring is deleted all the same, since it
+     * is saved again afterwards.
+     *
+     * @return false if the keyring isn't in the database, in which case no operations are added
+     */
+    private boolean buildUpsertOperations(long masterKeyId, ContentValues keyRingRow,
+            List<ContentValues> keyRows, List<ContentValues> userPacketRows,
+            List<ArrayList<ContentValues>> certRows, boolean selfCertsAreTrusted,
+            ArrayList<ContentProviderOperation> operations) {
+
+        Cursor keys = null, userPackets = null, certs = null;
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            keys = mContentResolver.query(Keys.buildKeysUri(masterKeyId),
+                    KEY_ROW_COLUMNS, null, null, null);
+            if (keys == null || keys.getCount() == 0) {
+                return false;
+            }
+            userPackets = mContentResolver.query(UserPackets.buildUserPacketsUri(masterKeyId),
+                    USER_PACKET_ROW_COLUMNS, null, null, null);
+            certs = mContentResolver.query(Certs.buildCertsUri(masterKeyId),
+                    CERT_ROW_COLUMNS, null, null, null);
+            if (userPackets == null || certs == null) {
+                return false;
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            int firstOperation = operations.size();
+            int unchanged = 0;
+
+            operations.add(ContentProviderOperation.newUpdate(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId))
+                    .withValue(KeyRingData.KEY_RING_DATA, keyRingRow.getAsByteArray(KeyRingData.KEY_RING_DATA))
+                    .build());
+            operations.add(ContentProviderOperation.newDelete(
+                    KeyRingData.buildSecretKeyRingUri(masterKeyId)).build());
+
+            // has_secret is set again along with the secret keyring, if there is one
+            int keyColumns = selfCertsAreTrusted ? KEY_ROW_COLUMNS.length - 1 : KEY_ROW_COLUMNS.length;
+            SparseIntArray storedKeys = indexRowsByRank(keys);
+            for (int rank = 0; rank < Math.max(keyRows.size(), storedKeys.size()); rank++) {
+                ContentValues row = rank < keyRows.size() ? keyRows.get(rank) : null;
+                int position = storedKeys.get(rank, -1);
+                if (row != null && position >= 0 && keys.moveToPosition(position)
+                        && rowMatches(row, keys, KEY_ROW_COLUMNS, keyColumns)) {
+                    unchanged += 1;
+                    continue;
+                }
+                if (position >= 0) {
+                    operations.add(ContentProviderOperation.newDelete(Keys.buildKeysUri(masterKeyId))
+                            .withSelection(Keys.RANK + " = ?", new String[] { Integer.toString(rank) })
+                            .build());
+                }
+                if (row != null) {
+                    operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(masterKeyId))
+                            .withValues(row).build());
+                }
+            }
 
-            log(LogType.MSG_IP_SUCCESS);
-            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
-            return result;
+            // certs of each stored user packet, by certifier
+            SparseArray<HashMap<Long, Integer>> storedCerts = new SparseArray<>();
+            if (certs.moveToFirst()) do {
+                HashMap<Long, Integer> certsForRank = storedCerts.get(certs.getInt(0));
+                if (certsForRank == null) {
+                    certsForRank = new HashMap<>();
+                    storedCerts.put(certs.getInt(0), certsForRank);
+                }
+                certsForRank.put(certs.getLong(1), certs.getPosition());
+            } while (certs.moveToNext());
 
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Log.e(Constants.TAG, "RemoteException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Log.e(Constants.TAG, "OperationApplicationException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
+            SparseIntArray storedUserPackets = indexRowsByRank(userPackets);
+            for (int rank = 0; rank < Math.max(userPacketRows.size(), storedUserPackets.size()); rank++) {
+                ContentValues row = rank < userPacketRows.size() ? userPacketRows.get(rank) : null;
+                int position = storedUserPackets.get(rank, -1);
+
+                if (row != null && position >= 0 && userPackets.moveToPosition(position)
+                        && rowMatches(row, userPackets, USER_PACKET_ROW_COLUMNS, USER_PACKET_ROW_COLUMNS.length)) {
+                    unchanged += 1;
+
+                    HashMap<Long, Integer> certsForRank = storedCerts.get(rank);
+                    if (certsForRank == null) {
+                        certsForRank = new HashMap<>();
+                    }
+                    for (ContentValues certRow : certRows.get(rank)) {
+                        Integer certPosition = certsForRank.remove(certRow.getAsLong(Certs.KEY_ID_CERTIFIER));
+                        if (certPosition != null && certs.moveToPosition(certPosition)
+                                && rowMatches(certRow, certs, CERT_ROW_COLUMNS, CERT_ROW_COLUMNS.length)) {
+                            unchanged += 1;
+                            continue;
+                        }
+                        // certs are inserted with replace semantics
+                        operations.add(ContentProviderOperation.newInsert(Certs.buildCertsUri(masterKeyId))
+                                .withValues(certRow).build());
+                    }
+                    // whatever is left over isn't part of the new version
+                    for (Long certifier : certsForRank.keySet()) {
+                        operations.add(ContentProviderOperation.newDelete(Certs.buildCertsUri(masterKeyId))
+                                .withSelection(Certs.RANK + " = ? AND " + Certs.KEY_ID_CERTIFIER + " = ?",
+                                        new String[] { Integer.toString(rank), Long.toString(certifier) })
+                                .build());
+                    }
+                    continue;
+                }
+
+                // certs of this user packet are deleted on cascade
+                if (position >= 0) {
+                    operations.add(ContentProviderOperation.newDelete(
+                            UserPackets.buildUserPacketsUri(masterKeyId))
+                            .withSelection(UserPackets.RANK + " = ?", new String[] { Integer.toString(rank) })
+                            .build());
+                }
+                if (row != null) {
+                    operations.add(ContentProviderOperation.newInsert(UserPackets.buildUserIdsUri(masterKeyId))
+                            .withValues(row).build());
+                    for (ContentValues certRow : certRows.get(rank)) {
+                        operations.add(ContentProviderOperation.newInsert(Certs.buildCertsUri(masterKeyId))
+                                .withValues(certRow).build());
+                    }
+                }
+            }
+
+            log(LogType.MSG_IP_UPSERT, operations.size() - firstOperation, unchanged);
+            return true;
+
+        } finally {
+            if (keys != null) {
+                keys.close();
+            }
+            if (userPackets != null) {
+                userPackets.close();
+            }
+            if (certs != null) {
+                certs.close();
+            }
         }
 
     }
 
+    /** Maps the rank, expected in the first column, to the position of each row of a cursor. */
+    private static SparseIntArray indexRowsByRank(Cursor cursor) {
+        SparseIntArray result = new SparseIntArray(cursor.getCount());
+        if (cursor.moveToFirst()) do {
+            result.put(cursor.getInt(0), cursor.getPosition());
+        } while (cursor.moveToNext());
+        return result;
+    }
+
+    /**
+     * Returns true if the first numColumns columns of the current cursor row hold the same
+     * values as the given ContentValues. Columns missing from the values are expected to be null.
+     */
+    private static boolean rowMatches(ContentValues values, Cursor cursor, String[] columns, int numColumns) {
+        for (int i = 0; i < numColumns; i++) {
+            Object value = values.get(columns[i]);
+            if (value == null || cursor.isNull(i)) {
+                if (value != null || !cursor.isNull(i)) {
+                    return false;
+                }
+            } else if (value instanceof Boolean) {
+                if ((Boolean) value != (cursor.getLong(i) != 0)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (((Number) value).longValue() != cursor.getLong(i)) {
+                    return false;
+                }
+            } else if (value instanceof byte[]) {
+                if (!Arrays.equals((byte[]) value, cursor.getBlob(i))) {
+                    return false;
+                }
+            } else if (!value.equals(cursor.getString(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static class UserPacketItem implements Comparable<UserPacketItem> {
         Integer type;
         String userId;
@@ -778,6 +1199,16 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * Marks all keys of a keyring as having no secret. Key rows left unchanged by an upsert keep
+     * their old has_secret value, which is stale if the secret keyring could not be saved again.
+     */
+    private void clearHasSecret(long masterKeyId) {
+        ContentValues values = new ContentValues();
+        values.put(Keys.HAS_SECRET, SecretKeyType.UNAVAILABLE.getNum());
+        mContentResolver.update(Keys.buildKeysUri(masterKeyId), values, null, null);
+    }
+
     /**
      * Saves an UncachedKeyRing of the secret variant into the db.
      * This method will fail if no corresponding public keyring is in the database!
@@ -802,11 +1233,13 @@ public class ProviderHelper {
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
                 if (mContentResolver.insert(uri, values) == null) {
                     log(LogType.MSG_IS_DB_EXCEPTION);
+                    clearHasSecret(masterKeyId);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
             } catch (IOException e) {
                 Log.e(Constants.TAG, "Failed to encode key!", e);
                 log(LogType.MSG_IS_ERROR_IO_EXC);
+                clearHasSecret(masterKeyId);
                 return SaveKeyringResult.RESULT_ERROR;
             }
 
@@ -888,17 +1321,96 @@ public class ProviderHelper {
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress, String expectedFingerprint) {
 
+        PreparedPublicKeyRing prepared = preparePublicKeyRing(publicRing, expectedFingerprint);
+        if (prepared.mResult != null) {
+            return prepared.mResult;
+        }
+
+        mIndent += 1;
+        try {
+            int result = saveCanonicalizedPublicKeyRing(
+                    prepared.mPublicRing, progress, prepared.mSecretRing != null);
+
+            // Save the saved keyring (if any)
+            if (prepared.mSecretRing != null) {
+                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                int secretResult = saveCanonicalizedSecretKeyRing(prepared.mSecretRing);
+                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                    result |= SaveKeyringResult.SAVED_SECRET;
+                }
+            }
+
+            return new SaveKeyringResult(result, mLog, prepared.mSecretRing);
+        } finally {
+            mIndent -= 1;
+        }
+
+    }
+
+    /**
+     * A public keyring which has been merged with the data from the database and canonicalized,
+     * but not yet written. Either mResult is set, in which case there is nothing left to write,
+     * or mPublicRing contains the keyring to save.
+     */
+    public static class PreparedPublicKeyRing {
+        final long mMasterKeyId;
+        final SaveKeyringResult mResult;
+        final CanonicalizedPublicKeyRing mPublicRing;
+        final CanonicalizedSecretKeyRing mSecretRing;
+        final OperationLog mLog;
+        final int mIndent;
+
+        private PreparedPublicKeyRing(long masterKeyId, SaveKeyringResult result) {
+            mMasterKeyId = masterKeyId;
+            mResult = result;
+            mPublicRing = null;
+            mSecretRing = null;
+            mLog = null;
+            mIndent = 0;
+        }
+
+        private PreparedPublicKeyRing(CanonicalizedPublicKeyRing publicRing,
+                CanonicalizedSecretKeyRing secretRing, OperationLog log, int indent) {
+            mMasterKeyId = publicRing.getMasterKeyId();
+            mResult = null;
+            mPublicRing = publicRing;
+            mSecretRing = secretRing;
+            mLog = log;
+            mIndent = indent;
+        }
+
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+
+        /** Returns the final result if no write is necessary, or null otherwise. */
+        public SaveKeyringResult getResult() {
+            return mResult;
+        }
+    }
+
+    /**
+     * Merges a public keyring into the one in the database (if any), and canonicalizes it. This
+     * is the expensive part of savePublicKeyRing, but only reads from the database, so it may be
+     * called for different keyrings in parallel, with one ProviderHelper instance per thread.
+     * The result can be written using savePreparedPublicKeyRings.
+     */
+    public PreparedPublicKeyRing preparePublicKeyRing(UncachedKeyRing publicRing, String expectedFingerprint) {
+
+        long masterKeyId = publicRing.getMasterKeyId();
+        KeyRingSignatureCache signatureCache = null;
         try {
-            long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return new PreparedPublicKeyRing(masterKeyId,
+                        new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
             }
 
             CanonicalizedPublicKeyRing canPublicRing;
+            signatureCache = KeyRingSignatureCache.load(mContentResolver, masterKeyId);
 
             // If there is an old keyring, merge it
             try {
@@ -910,28 +1422,34 @@ public class ProviderHelper {
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(
+                        mLog, mIndent, false, signatureCache);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
                 // Early breakout if nothing changed
                 if (Arrays.hashCode(publicRing.getEncoded())
                         == Arrays.hashCode(oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null));
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(
+                        mLog, mIndent, false, signatureCache);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
             }
@@ -946,12 +1464,15 @@ public class ProviderHelper {
                 log(LogType.MSG_IP_MERGE_SECRET);
                 secretRing = secretRing.merge(publicRing, mLog, mIndent);
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
                 // This has always been a secret key ring, this is a safe cast
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(
+                        mLog, mIndent, false, signatureCache);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 }
 
             } catch (NotFoundException e) {
@@ -964,36 +1485,143 @@ public class ProviderHelper {
             if (expectedFingerprint != null) {
                 if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
                     log(LogType.MSG_IP_FINGERPRINT_ERROR);
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return new PreparedPublicKeyRing(masterKeyId,
+                            new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
                 } else {
                     log(LogType.MSG_IP_FINGERPRINT_OK);
                 }
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            // every signature of the keyring has been looked up at this point
+            signatureCache.pruneUnused();
+            return new PreparedPublicKeyRing(canPublicRing, canSecretRing, mLog, mIndent);
 
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            return new PreparedPublicKeyRing(masterKeyId,
+                    new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
+        } finally {
+            // signatures which verified are worth remembering, whatever became of the keyring
+            if (signatureCache != null) {
+                signatureCache.save();
+            }
+            mIndent -= 1;
+        }
+
+    }
+
+    /**
+     * Writes a number of prepared public keyrings to the database in a single batch, which
+     * KeychainProvider applies in a single transaction. Each keyring is logged into its own
+     * log, as obtained during preparation. Prepared keyrings which already carry a final result
+     * are passed through unchanged. If the batch fails, each of its keyrings is written again in
+     * a transaction of its own, so a single bad keyring does not fail the others.
+     * <p/>
+     * The caller must make sure that no keyring was modified in the database since it was
+     * prepared, in particular that there are no two entries with the same master key id.
+     */
+    public List<SaveKeyringResult> savePreparedPublicKeyRings(List<PreparedPublicKeyRing> preparedRings) {
+
+        int num = preparedRings.size();
+        SaveKeyringResult[] results = new SaveKeyringResult[num];
+        int[] batchResults = new int[num];
+        int[] deleteOperationIndexes = new int[num];
+        int[] endOperationIndexes = new int[num];
+        ProviderHelper[] helpers = new ProviderHelper[num];
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            PreparedPublicKeyRing prepared = preparedRings.get(i);
+            if (prepared.mResult != null) {
+                results[i] = prepared.mResult;
+                continue;
+            }
+
+            // use one helper per keyring, so everything is logged where it belongs
+            helpers[i] = new ProviderHelper(mContext, prepared.mLog, prepared.mIndent);
+            helpers[i].mIncrementalUpsert = mIncrementalUpsert;
+            deleteOperationIndexes[i] = operations.size();
+            batchResults[i] = helpers[i].buildPublicKeyRingOperations(prepared.mPublicRing,
+                    new ProgressScaler(), prepared.mSecretRing != null, operations);
+            if (batchResults[i] == SaveKeyringResult.RESULT_ERROR) {
+                // drop whatever was added for this keyring, so the rest of the batch is unaffected
+                operations.subList(deleteOperationIndexes[i], operations.size()).clear();
+                results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, prepared.mLog, null);
+            }
+            endOperationIndexes[i] = operations.size();
+        }
+
+        if (operations.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        ContentProviderResult[] deleteResults = new ContentProviderResult[num];
+        try {
+            ContentProviderResult[] operationResults =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < num; i++) {
+                // an updated keyring may need no operations at all
+                if (results[i] == null && endOperationIndexes[i] > deleteOperationIndexes[i]) {
+                    deleteResults[i] = operationResults[deleteOperationIndexes[i]];
+                }
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "Exception during batch import, writing keyrings one by one", e);
+            for (int i = 0; i < num; i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                // no operation refers back to another one, so each keyring can be applied alone
+                ArrayList<ContentProviderOperation> keyRingOperations = new ArrayList<>(
+                        operations.subList(deleteOperationIndexes[i], endOperationIndexes[i]));
+                try {
+                    ContentProviderResult[] keyRingResults = mContentResolver.applyBatch(
+                            KeychainContract.CONTENT_AUTHORITY, keyRingOperations);
+                    if (keyRingResults.length > 0) {
+                        deleteResults[i] = keyRingResults[0];
+                    }
+                } catch (RemoteException | OperationApplicationException e2) {
+                    Log.e(Constants.TAG, "Exception during import", e2);
+                    helpers[i].log(e2 instanceof RemoteException
+                            ? LogType.MSG_IP_ERROR_REMOTE_EX : LogType.MSG_IP_ERROR_OP_EXC);
+                    results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR,
+                            preparedRings.get(i).mLog, null);
+                }
+            }
+        }
+
+        for (int i = 0; i < num; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            PreparedPublicKeyRing prepared = preparedRings.get(i);
+            ProviderHelper helper = helpers[i];
+
+            helper.log(LogType.MSG_IP_APPLY_BATCH);
+            int result = batchResults[i];
+            if ((result & SaveKeyringResult.UPDATED) == 0) {
+                result |= helper.logDeleteOldResult(deleteResults[i]);
+            }
+            helper.log(LogType.MSG_IP_SUCCESS);
+
+            // secret keyrings reference the public one, so they are re-inserted afterwards
+            if (prepared.mSecretRing != null) {
+                int secretResult = helper.saveCanonicalizedSecretKeyRing(prepared.mSecretRing);
                 if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
                     result |= SaveKeyringResult.SAVED_SECRET;
                 }
             }
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
-
-        } catch (IOException e) {
-            log(LogType.MSG_IP_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-        } finally {
-            mIndent -= 1;
+            results[i] = new SaveKeyringResult(result, prepared.mLog, prepared.mSecretRing);
         }
 
+        return Arrays.asList(results);
+
     }
 
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
+        KeyRingSignatureCache signatureCache = null;
         try {
             long masterKeyId = secretRing.getMasterKeyId();
             log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -1005,6 +1633,7 @@ public class ProviderHelper {
             }
 
             CanonicalizedSecretKeyRing canSecretRing;
+            signatureCache = KeyRingSignatureCache.load(mContentResolver, masterKeyId);
 
             // If there is an old secret key, merge it.
             try {
@@ -1021,7 +1650,8 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(
+                        mLog, mIndent, false, signatureCache);
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -1038,7 +1668,8 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(
+                        mLog, mIndent, false, signatureCache);
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -1047,7 +1678,8 @@ public class ProviderHelper {
                         log(LogType.MSG_IS_MERGE_SPECIAL);
                         UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
                         secretRing = secretRing.merge(oldPublicRing, mLog, mIndent);
-                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(
+                                mLog, mIndent, false, signatureCache);
                     } catch (NotFoundException e2) {
                         // nothing, this is handled right in the next line
                     }
@@ -1077,7 +1709,7 @@ public class ProviderHelper {
             }
 
             CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+                    mIndent, false, signatureCache);
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
@@ -1089,6 +1721,9 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // every signature of the keyring has been looked up at this point
+            signatureCache.pruneUnused();
+
             progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
             result = saveCanonicalizedSecretKeyRing(canSecretRing);
 
@@ -1098,6 +1733,9 @@ public class ProviderHelper {
             log(LogType.MSG_IS_ERROR_IO_EXC);
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
+            if (signatureCache != null) {
+                signatureCache.save();
+            }
             mIndent -= 1;
         }
 
@@ -1285,22 +1923,12 @@ public class ProviderHelper {
 
             // first, backup our list of updated key times
             ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
-            final int INDEX_MASTER_KEY_ID = 0;
-            final int INDEX_LAST_UPDATED = 1;
             Cursor lastUpdatedCursor = mContentResolver.query(
                     UpdatedKeys.CONTENT_URI,
-                    new String[]{
-                            UpdatedKeys.MASTER_KEY_ID,
-                            UpdatedKeys.LAST_UPDATED
-                    },
+                    UPDATED_KEYS_PROJECTION,
                     null, null, null);
             while (lastUpdatedCursor.moveToNext()) {
-                ContentValues values = new ContentValues();
-                values.put(UpdatedKeys.MASTER_KEY_ID,
-                        lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-                values.put(UpdatedKeys.LAST_UPDATED,
-                        lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-                updatedKeysValues.add(values);
+                updatedKeysValues.add(readUpdatedKeysRow(lastUpdatedCursor));
             }
             lastUpdatedCursor.close();
 
@@ -1409,10 +2037,10 @@ public class ProviderHelper {
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues to add a certificate to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, WrappedSignature cert, int verified)
             throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
@@ -1423,16 +2051,14 @@ public class ProviderHelper {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build ContentValues to add a user packet to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserPacketItem item, int rank) {
+    private ContentValues
+    buildUserPacketValues(long masterKeyId, UserPacketItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
@@ -1442,9 +2068,7 @@ public class ProviderHelper {
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
         values.put(UserPackets.RANK, rank);
 
-        Uri uri = UserPackets.buildUserIdsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
@@ -1467,11 +2091,86 @@ public class ProviderHelper {
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
-        ContentValues values = new ContentValues();
+        return renewKeyLastUpdatedTime(masterKeyId, null, time, timeUnit);
+    }
+
+    /**
+     * Renews the last updated time of a key, and stores the state of its copy on the keyserver
+     * if one is given. Without a state, the stored one is kept.
+     */
+    public Uri renewKeyLastUpdatedTime(long masterKeyId, KeyserverKeyState keyserverState,
+                                       long time, TimeUnit timeUnit) {
+        return mContentResolver.insert(UpdatedKeys.CONTENT_URI,
+                buildUpdatedKeysRow(masterKeyId, keyserverState, time, timeUnit));
+    }
+
+    /**
+     * Like renewKeyLastUpdatedTime, but for a number of keys in a single transaction. The map
+     * holds the keyserver state for each key, or null to keep the stored one.
+     */
+    public void renewKeysLastUpdatedTime(Map<Long, KeyserverKeyState> keyserverStates, long time,
+                                         TimeUnit timeUnit) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(keyserverStates.size());
+        for (Map.Entry<Long, KeyserverKeyState> entry : keyserverStates.entrySet()) {
+            ContentValues values = buildUpdatedKeysRow(entry.getKey(), entry.getValue(), time, timeUnit);
+            operations.add(ContentProviderOperation.newInsert(UpdatedKeys.CONTENT_URI)
+                    .withValues(values).build());
+        }
+
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "Error updating last updated times", e);
+        }
+    }
+
+    /**
+     * Returns the state of the copy of a key on the given keyserver as of its last download, or
+     * null if it was never downloaded from there or the state is unknown. A state recorded for
+     * another keyserver says nothing about the copy on this one.
+     */
+    public KeyserverKeyState getKeyserverKeyState(long masterKeyId, String keyserver) {
+        Cursor cursor = mContentResolver.query(UpdatedKeys.CONTENT_URI, UPDATED_KEYS_PROJECTION,
+                UpdatedKeys.MASTER_KEY_ID + " = ?", new String[] { Long.toString(masterKeyId) }, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(INDEX_UPDATED_KEYS_CONTENT_HASH)
+                    || !keyserver.equals(cursor.getString(INDEX_UPDATED_KEYS_KEYSERVER))) {
+                return null;
+            }
+            return new KeyserverKeyState(keyserver, cursor.getBlob(INDEX_UPDATED_KEYS_CONTENT_HASH),
+                    cursor.getString(INDEX_UPDATED_KEYS_ETAG),
+                    cursor.getString(INDEX_UPDATED_KEYS_LAST_MODIFIED));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues buildUpdatedKeysRow(long masterKeyId, KeyserverKeyState keyserverState,
+                                                     long time, TimeUnit timeUnit) {
+        ContentValues values = new ContentValues(6);
         values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
         values.put(UpdatedKeys.LAST_UPDATED, timeUnit.toSeconds(time));
+        if (keyserverState != null) {
+            values.put(UpdatedKeys.KEYSERVER, keyserverState.mKeyserver);
+            values.put(UpdatedKeys.CONTENT_HASH, keyserverState.mContentHash);
+            values.put(UpdatedKeys.ETAG, keyserverState.mETag);
+            values.put(UpdatedKeys.LAST_MODIFIED, keyserverState.mLastModified);
+        }
+        return values;
+    }
 
-        return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
+    private static ContentValues readUpdatedKeysRow(Cursor cursor) {
+        ContentValues values = new ContentValues(6);
+        values.put(UpdatedKeys.MASTER_KEY_ID, cursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID));
+        values.put(UpdatedKeys.LAST_UPDATED, cursor.getLong(INDEX_UPDATED_KEYS_LAST_UPDATED));
+        values.put(UpdatedKeys.KEYSERVER, cursor.getString(INDEX_UPDATED_KEYS_KEYSERVER));
+        values.put(UpdatedKeys.CONTENT_HASH, cursor.getBlob(INDEX_UPDATED_KEYS_CONTENT_HASH));
+        values.put(UpdatedKeys.ETAG, cursor.getString(INDEX_UPDATED_KEYS_ETAG));
+        values.put(UpdatedKeys.LAST_MODIFIED, cursor.getString(INDEX_UPDATED_KEYS_LAST_MODIFIED));
+        return values;
     }
 
     public ContentResolver getContentResolver() {
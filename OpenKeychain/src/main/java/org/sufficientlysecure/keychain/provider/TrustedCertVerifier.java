@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.pgp.WrappedSignature;
+import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/**
+ * Verifies the certificates on user ids and user attributes of a keyring which were issued by
+ * one of the trusted keys.
+ *
+ * The certificates of all user packets are collected first, then all those by trusted keys are
+ * verified at once on a shared pool of one thread per cpu. The results are looked up in order
+ * by the classification in ProviderHelper, so its log is the same as if each certificate was
+ * verified where it is classified.
+ */
+class TrustedCertVerifier {
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    // for fewer certificates than this, handing them to other threads isn't worth it
+    private static final int MIN_PARALLEL_CERTS = 4;
+
+    private static final ThreadPoolExecutor sVerifyExecutor = new ThreadPoolExecutor(
+            NUM_THREADS, NUM_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sVerifyExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final UncachedPublicKey mMasterKey;
+    private final LongSparseArray<CanonicalizedPublicKey> mTrustedKeys;
+    private final ArrayList<Verification> mPending = new ArrayList<>();
+    // certificates are identified by object, they are only ever parsed once per save
+    private final IdentityHashMap<WrappedSignature, Verification> mVerifications =
+            new IdentityHashMap<>();
+
+    TrustedCertVerifier(UncachedPublicKey masterKey,
+                        LongSparseArray<CanonicalizedPublicKey> trustedKeys) {
+        mMasterKey = masterKey;
+        mTrustedKeys = trustedKeys;
+    }
+
+    /** Returns all certificates on the given user id, queueing those by trusted keys. */
+    List<WrappedSignature> addUserId(byte[] rawUserId) {
+        ArrayList<WrappedSignature> certs = new ArrayList<>();
+        for (WrappedSignature cert : new IterableIterator<>(
+                mMasterKey.getSignaturesForRawId(rawUserId))) {
+            certs.add(cert);
+            queueIfTrusted(new Verification(cert, rawUserId, null));
+        }
+        return certs;
+    }
+
+    /** Returns all certificates on the given user attribute, queueing those by trusted keys. */
+    List<WrappedSignature> addUserAttribute(WrappedUserAttribute attribute) {
+        ArrayList<WrappedSignature> certs = new ArrayList<>();
+        for (WrappedSignature cert : new IterableIterator<>(
+                mMasterKey.getSignaturesForUserAttribute(attribute))) {
+            certs.add(cert);
+            queueIfTrusted(new Verification(cert, null, attribute));
+        }
+        return certs;
+    }
+
+    private void queueIfTrusted(Verification verification) {
+        long certId = verification.mCert.getKeyId();
+        // self certificates are verified during canonicalization
+        if (certId == mMasterKey.getKeyId() || mTrustedKeys.indexOfKey(certId) < 0) {
+            return;
+        }
+        mPending.add(verification);
+        mVerifications.put(verification.mCert, verification);
+    }
+
+    /** Verifies all queued certificates, returning once all of them are done. */
+    void verifyAll() {
+        if (mPending.size() < MIN_PARALLEL_CERTS) {
+            for (Verification verification : mPending) {
+                verification.call();
+            }
+            mPending.clear();
+            return;
+        }
+
+        ArrayList<Future<Void>> futures = new ArrayList<>(mPending.size());
+        for (Verification verification : mPending) {
+            futures.add(sVerifyExecutor.submit(verification));
+        }
+        mPending.clear();
+
+        // wait for all of them even if interrupted, the certificates must not be touched while
+        // a verification is still running
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // can't happen, verifications catch their exceptions
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns whether a certificate by a trusted key is valid. This must be called only after
+     * verifyAll, with a certificate returned by addUserId or addUserAttribute.
+     */
+    boolean isVerified(WrappedSignature cert) throws PgpGeneralException {
+        Verification verification = mVerifications.get(cert);
+        if (verification == null) {
+            throw new IllegalArgumentException("certificate was never queued for verification!");
+        }
+        if (verification.mException instanceof PgpGeneralException) {
+            throw (PgpGeneralException) verification.mException;
+        }
+        if (verification.mException != null) {
+            throw (RuntimeException) verification.mException;
+        }
+        return verification.mVerified;
+    }
+
+    private class Verification implements Callable<Void> {
+        final WrappedSignature mCert;
+        final byte[] mRawUserId;
+        final WrappedUserAttribute mAttribute;
+
+        boolean mVerified;
+        Exception mException;
+
+        Verification(WrappedSignature cert, byte[] rawUserId, WrappedUserAttribute attribute) {
+            mCert = cert;
+            mRawUserId = rawUserId;
+            mAttribute = attribute;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                mCert.init(mTrustedKeys.get(mCert.getKeyId()));
+                mVerified = mRawUserId != null
+                        ? mCert.verifySignature(mMasterKey, mRawUserId)
+                        : mCert.verifySignature(mMasterKey, mAttribute);
+            } catch (PgpGeneralException | RuntimeException e) {
+                mException = e;
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * A process-wide cache of the trusted master keys, i.e. those of all keyrings with a secret key.
+ * These are used to classify certificates whenever a keyring is saved.
+ *
+ * Loading this set means parsing every secret keyring from the database, which used to happen
+ * once per saved keyring. It is now loaded once, shared by all threads (concurrent import
+ * workers in particular), and dropped only when a secret keyring is saved or deleted. Each drop
+ * increments the version, and a set loaded at an older version is never stored.
+ *
+ * The KeychainProvider drops the set synchronously in its own process, and notifies CHANGED_URI
+ * for all others. This uri lies outside of KeyRings.CONTENT_URI on purpose, so the many
+ * notifications for keyrings without a secret key don't drop the set.
+ */
+public class TrustedKeysCache {
+
+    /** Notified whenever the set of trusted keys changes. There is no data behind this uri. */
+    static final Uri CHANGED_URI = Uri.parse("content://" + KeychainContract.CONTENT_AUTHORITY
+            + "/trusted_keys");
+
+    private static volatile TrustedKeysCache sInstance;
+
+    private final AtomicLong mVersion = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+    private final Object mLoadLock = new Object();
+    private volatile LongSparseArray<CanonicalizedPublicKey> mTrustedKeys;
+
+    public static TrustedKeysCache getInstance(Context context) {
+        TrustedKeysCache instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (TrustedKeysCache.class) {
+            if (sInstance == null) {
+                TrustedKeysCache cache = new TrustedKeysCache();
+                cache.registerInvalidation(context.getApplicationContext());
+                sInstance = cache;
+            }
+            return sInstance;
+        }
+    }
+
+    TrustedKeysCache() {
+    }
+
+    private void registerInvalidation(Context context) {
+        context.getContentResolver().registerContentObserver(CHANGED_URI, false,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    /** Drops the set of trusted keys, if any was loaded in this process. */
+    static void onChange() {
+        TrustedKeysCache instance = sInstance;
+        if (instance != null) {
+            instance.clear();
+        }
+    }
+
+    /**
+     * Returns the trusted keys, using the loader if they aren't cached. Concurrent callers wait
+     * for a single load, rather than all parsing the same keyrings. The returned set is shared,
+     * and must not be modified.
+     */
+    public LongSparseArray<CanonicalizedPublicKey> get(Loader loader) {
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = mTrustedKeys;
+        if (trustedKeys != null) {
+            return trustedKeys;
+        }
+        // a separate lock, so invalidation never waits for the database
+        synchronized (mLoadLock) {
+            trustedKeys = mTrustedKeys;
+            if (trustedKeys == null) {
+                long version = mVersion.get();
+                trustedKeys = loader.load();
+                mLoads.incrementAndGet();
+                put(trustedKeys, version);
+            }
+        }
+        return trustedKeys;
+    }
+
+    private synchronized void put(LongSparseArray<CanonicalizedPublicKey> trustedKeys, long version) {
+        if (mVersion.get() != version) {
+            Log.d(Constants.TAG, "TrustedKeysCache: trusted keys changed while loading");
+            return;
+        }
+        mTrustedKeys = trustedKeys;
+    }
+
+    /** Current version of the set, incremented each time it is dropped. */
+    public long getVersion() {
+        return mVersion.get();
+    }
+
+    /** Number of times the set was loaded from the database. */
+    public long getLoads() {
+        return mLoads.get();
+    }
+
+    public synchronized void clear() {
+        mVersion.incrementAndGet();
+        mTrustedKeys = null;
+    }
+
+    interface Loader {
+        LongSparseArray<CanonicalizedPublicKey> load();
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.support.annotation.NonNull;
+
+
+/**
+ * The input of a single message in a batch, see OpenPgpService.batchImpl. Each message is
+ * preceded by its length as a four byte big-endian integer. Closing it leaves the batch input
+ * open.
+ */
+class FrameInputStream extends FilterInputStream {
+    private final int mLength;
+    private long mRemaining;
+
+    /**
+     * Reads the length of the next message from the batch input, and returns the input of that
+     * message. Returns null if the batch input ends before the next message.
+     *
+     * @throws IOException if the batch input ends within the length, or the length is negative
+     */
+    static FrameInputStream readFrame(InputStream in) throws IOException {
+        int length = in.read();
+        if (length < 0) {
+            return null;
+        }
+        for (int i = 0; i < 3; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("batch input ended within a message length");
+            }
+            length = (length << 8) | b;
+        }
+        if (length < 0) {
+            throw new IOException("invalid message length in batch");
+        }
+        return new FrameInputStream(in, length);
+    }
+
+    FrameInputStream(InputStream in, int length) {
+        super(in);
+        mLength = length;
+        mRemaining = length;
+    }
+
+    /** Returns the length of this message, as given in the batch input. */
+    int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0) {
+            mRemaining -= 1;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+        int read = in.read(b, off, (int) Math.min(len, mRemaining));
+        if (read > 0) {
+            mRemaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, mRemaining));
+        mRemaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), mRemaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // the batch input stays open for the next message
+    }
+
+    /**
+     * Skips the rest of this message, so the batch input is positioned at the next one.
+     *
+     * @throws EOFException if the batch input ends within this message
+     */
+    void skipRemaining() throws IOException {
+        byte[] buf = new byte[4096];
+        while (mRemaining > 0) {
+            if (read(buf, 0, buf.length) < 0) {
+                throw new EOFException("batch input ended within a message");
+            }
+        }
+    }
+}
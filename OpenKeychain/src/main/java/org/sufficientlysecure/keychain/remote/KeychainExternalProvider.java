@@ -26,7 +26,6 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
@@ -39,6 +38,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmails;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
@@ -141,7 +141,9 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 }
 
                 HashMap<String, String> projectionMap = new HashMap<>();
-                projectionMap.put(EmailStatus._ID, "email AS _id");
+                // one row per user id of each keyring, each of which has its own user packet
+                projectionMap.put(EmailStatus._ID,
+                        "MIN(" + Tables.USER_PACKETS + ".oid) AS " + EmailStatus._ID);
                 projectionMap.put(EmailStatus.EMAIL_ADDRESS,
                         Tables.USER_PACKETS + "." + UserPackets.USER_ID + " AS " + EmailStatus.EMAIL_ADDRESS);
                 // we take the minimum (>0) here, where "1" is "verified by known secret key", "2" is "self-certified"
@@ -157,7 +159,13 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 }
 
                 qb.setTables(
-                        Tables.USER_PACKETS
+                        Tables.USER_EMAILS
+                                + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
+                                + Tables.USER_EMAILS + "." + UserEmails.MASTER_KEY_ID + " = "
+                                + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
+                                + " AND " + Tables.USER_EMAILS + "." + UserEmails.RANK + " = "
+                                + Tables.USER_PACKETS + "." + UserPackets.RANK
+                                + ")"
                                 + " INNER JOIN " + Tables.CERTS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = "
                                 + Tables.CERTS + "." + Certs.MASTER_KEY_ID
@@ -179,24 +187,11 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 // uri to watch is all /key_rings/
                 uri = KeyRings.CONTENT_URI;
 
-                boolean gotCondition = false;
-                String emailWhere = "";
-                // JAVA ♥
-                for (int i = 0; i < selectionArgs.length; ++i) {
-                    if (selectionArgs[i].length() == 0) {
-                        continue;
-                    }
-                    if (i != 0) {
-                        emailWhere += " OR ";
-                    }
-                    emailWhere += UserPackets.USER_ID + " LIKE ";
-                    // match '*<email>', so it has to be at the *end* of the user id
-                    emailWhere += DatabaseUtils.sqlEscapeString("%<" + selectionArgs[i] + ">");
-                    gotCondition = true;
-                }
-
-                if (gotCondition) {
-                    qb.appendWhere(" AND (" + emailWhere + ")");
+                // a lookup in emails_by_email, rather than a LIKE over all user ids
+                String emailList = UserEmails.buildEmailList(selectionArgs);
+                if (emailList != null) {
+                    qb.appendWhere(" AND " + Tables.USER_EMAILS + "." + UserEmails.EMAIL
+                            + " IN (" + emailList + ")");
                 } else {
                     // TODO better way to do this?
                     Log.e(Constants.TAG, "Malformed find by email query!");
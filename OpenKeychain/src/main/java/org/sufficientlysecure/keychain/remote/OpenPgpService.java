@@ -19,6 +19,8 @@
 package org.sufficientlysecure.keychain.remote;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -79,6 +81,25 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11));
 
+    /**
+     * Runs the action given in EXTRA_BATCH_ACTION on a sequence of messages, see batchImpl.
+     * This is not part of the OpenPGP API library (yet), clients use it by action string.
+     */
+    public static final String ACTION_BATCH = "org.sufficientlysecure.keychain.action.BATCH";
+    public static final String EXTRA_BATCH_ACTION = "batch_action";
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+
+    /**
+     * Maximum number of messages in one batch, so the results fit into a single Binder reply.
+     * Input after this many messages is not read, and must be sent in another batch.
+     */
+    public static final int MAX_BATCH_MESSAGES = 100;
+
+    static final List<String> BATCH_ACTIONS = Collections.unmodifiableList(Arrays.asList(
+            OpenPgpApi.ACTION_CLEARTEXT_SIGN, OpenPgpApi.ACTION_DETACHED_SIGN,
+            OpenPgpApi.ACTION_ENCRYPT, OpenPgpApi.ACTION_SIGN_AND_ENCRYPT,
+            OpenPgpApi.ACTION_DECRYPT_VERIFY, OpenPgpApi.ACTION_DECRYPT_METADATA));
+
     static final String[] KEY_SEARCH_PROJECTION = new String[]{
             KeyRings._ID,
             KeyRings.MASTER_KEY_ID,
@@ -184,8 +205,11 @@ public class OpenPgpService extends Service {
         }
     }
 
-    private Intent signImpl(Intent data, InputStream inputStream,
-                            OutputStream outputStream, boolean cleartextSign) {
+    private Intent signImpl(Intent data, InputStream inputStream, long inputSize,
+                            OutputStream outputStream, boolean cleartextSign,
+                            @Nullable BatchInput batch) {
+        // pending intents must repeat the whole batch, not a single message of it
+        Intent piData = batch != null ? batch.mData : data;
         try {
             boolean asciiArmor = cleartextSign || data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
@@ -197,7 +221,7 @@ public class OpenPgpService extends Service {
                     .setVersionHeader(null)
                     .setSignatureHashAlgorithm(PgpSecurityConstants.OpenKeychainHashAlgorithmTags.USE_DEFAULT);
 
-            Intent signKeyIdIntent = getSignKeyMasterId(data);
+            Intent signKeyIdIntent = getSignKeyMasterId(piData);
             // NOTE: Fallback to return account settings (Old API)
             if (signKeyIdIntent.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
                     == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
@@ -226,10 +250,11 @@ public class OpenPgpService extends Service {
                 // detached signatures are returned as extra
                 outputStream = null;
             }
-            long inputLength = inputStream.available();
+            long inputLength = getInputLength(inputStream, inputSize);
             InputData inputData = new InputData(inputStream, inputLength);
 
-            CryptoInputParcel inputParcel = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+            CryptoInputParcel inputParcel = batch != null ? batch.mCryptoInput
+                    : CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
             if (inputParcel == null) {
                 inputParcel = new CryptoInputParcel(new Date());
             }
@@ -247,7 +272,7 @@ public class OpenPgpService extends Service {
                 ApiPendingIntentFactory piFactory = new ApiPendingIntentFactory(getBaseContext());
 
                 RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = piFactory.requiredInputPi(data,
+                PendingIntent pIntent = piFactory.requiredInputPi(piData,
                         requiredInput, pgpResult.mCryptoInputParcel);
 
                 // return PendingIntent to be executed by client
@@ -278,8 +303,10 @@ public class OpenPgpService extends Service {
         }
     }
 
-    private Intent encryptAndSignImpl(Intent data, InputStream inputStream,
-                                      OutputStream outputStream, boolean sign) {
+    private Intent encryptAndSignImpl(Intent data, InputStream inputStream, long inputSize,
+                                      OutputStream outputStream, boolean sign,
+                                      @Nullable BatchInput batch) {
+        Intent piData = batch != null ? batch.mData : data;
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
             String originalFilename = data.getStringExtra(OpenPgpApi.EXTRA_ORIGINAL_FILENAME);
@@ -321,8 +348,7 @@ public class OpenPgpService extends Service {
                 keyIds = getUnboxedLongArray(encryptKeyIds);
             }
 
-            // TODO this is not correct!
-            long inputLength = inputStream.available();
+            long inputLength = getInputLength(inputStream, inputSize);
             InputData inputData = new InputData(inputStream, inputLength, originalFilename);
 
             PgpSignEncryptInputParcel pseInput = new PgpSignEncryptInputParcel();
@@ -335,7 +361,7 @@ public class OpenPgpService extends Service {
 
             if (sign) {
 
-                Intent signKeyIdIntent = getSignKeyMasterId(data);
+                Intent signKeyIdIntent = getSignKeyMasterId(piData);
                 // NOTE: Fallback to return account settings (Old API)
                 if (signKeyIdIntent.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
                         == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
@@ -371,12 +397,13 @@ public class OpenPgpService extends Service {
                 }
                 final AccountSettings accSettings = mApiPermissionHelper.getAccSettings(accName);
                 if (accSettings == null || (accSettings.getKeyId() == Constants.key.none)) {
-                    return mApiPermissionHelper.getCreateAccountIntent(data, accName);
+                    return mApiPermissionHelper.getCreateAccountIntent(piData, accName);
                 }
                 pseInput.setAdditionalEncryptId(accSettings.getKeyId());
             }
 
-            CryptoInputParcel inputParcel = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+            CryptoInputParcel inputParcel = batch != null ? batch.mCryptoInput
+                    : CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
             if (inputParcel == null) {
                 inputParcel = new CryptoInputParcel(new Date());
             }
@@ -395,7 +422,7 @@ public class OpenPgpService extends Service {
                 ApiPendingIntentFactory piFactory = new ApiPendingIntentFactory(getBaseContext());
 
                 RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = piFactory.requiredInputPi(data,
+                PendingIntent pIntent = piFactory.requiredInputPi(piData,
                         requiredInput, pgpResult.mCryptoInputParcel);
 
                 // return PendingIntent to be executed by client
@@ -421,24 +448,20 @@ public class OpenPgpService extends Service {
         }
     }
 
-    private Intent decryptAndVerifyImpl(Intent data, InputStream inputStream,
-                                        OutputStream outputStream, boolean decryptMetadataOnly) {
+    private Intent decryptAndVerifyImpl(Intent data, InputStream inputStream, long inputSize,
+                                        OutputStream outputStream, boolean decryptMetadataOnly,
+                                        @Nullable BatchInput batch) {
+        Intent piData = batch != null ? batch.mData : data;
         try {
             // output is optional, e.g., for verifying detached signatures
             if (decryptMetadataOnly) {
                 outputStream = null;
             }
 
-            String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
-            HashSet<Long> allowedKeyIds = mApiDao.getAllowedKeyIdsForApp(
-                    KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
-
-            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
-                allowedKeyIds.addAll(mApiDao.getAllKeyIdsForApp(
-                        ApiAccounts.buildBaseUri(currentPkg)));
-            }
+            HashSet<Long> allowedKeyIds = batch != null ? batch.mAllowedKeyIds : getAllowedKeyIds(data);
 
-            CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+            CryptoInputParcel cryptoInput = batch != null ? batch.mCryptoInput
+                    : CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
             if (cryptoInput == null) {
                 cryptoInput = new CryptoInputParcel();
             }
@@ -452,9 +475,8 @@ public class OpenPgpService extends Service {
 
             PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mProviderHelper, null);
 
-            // TODO this is not correct!
-            long inputLength = inputStream.available();
-            InputData inputData = new InputData(inputStream, inputLength);
+            // progress is computed from consumed input bytes, so only use an exact size here
+            InputData inputData = new InputData(inputStream, inputSize);
 
             // allow only private keys associated with accounts of this app
             // no support for symmetric encryption
@@ -471,7 +493,7 @@ public class OpenPgpService extends Service {
             if (pgpResult.isPending()) {
                 // prepare and return PendingIntent to be executed by client
                 RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = piFactory.requiredInputPi(data,
+                PendingIntent pIntent = piFactory.requiredInputPi(piData,
                         requiredInput, pgpResult.mCryptoInputParcel);
 
                 Intent result = new Intent();
@@ -490,7 +512,7 @@ public class OpenPgpService extends Service {
                     case OpenPgpSignatureResult.RESULT_KEY_MISSING: {
                         // If signature key is missing we return a PendingIntent to retrieve the key
                         result.putExtra(OpenPgpApi.RESULT_INTENT,
-                                piFactory.createImportFromKeyserverPendingIntent(data,
+                                piFactory.createImportFromKeyserverPendingIntent(piData,
                                         signatureResult.getKeyId()));
                         break;
                     }
@@ -501,7 +523,7 @@ public class OpenPgpService extends Service {
                     case OpenPgpSignatureResult.RESULT_INVALID_INSECURE: {
                         // If signature key is known, return PendingIntent to show key
                         result.putExtra(OpenPgpApi.RESULT_INTENT,
-                                piFactory.createShowKeyPendingIntent(data, signatureResult.getKeyId()));
+                                piFactory.createShowKeyPendingIntent(piData, signatureResult.getKeyId()));
                         break;
                     }
                     default:
@@ -576,7 +598,7 @@ public class OpenPgpService extends Service {
                     Intent result = new Intent();
                     String packageName = mApiPermissionHelper.getCurrentCallingPackage();
                     result.putExtra(OpenPgpApi.RESULT_INTENT,
-                            piFactory.createSelectAllowedKeysPendingIntent(data, packageName));
+                            piFactory.createSelectAllowedKeysPendingIntent(piData, packageName));
                     result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
                     return result;
                 }
@@ -598,6 +620,143 @@ public class OpenPgpService extends Service {
 
     }
 
+    private HashSet<Long> getAllowedKeyIds(Intent data) {
+        String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
+        HashSet<Long> allowedKeyIds = mApiDao.getAllowedKeyIdsForApp(
+                KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
+
+        if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
+            allowedKeyIds.addAll(mApiDao.getAllKeyIdsForApp(
+                    ApiAccounts.buildBaseUri(currentPkg)));
+        }
+        return allowedKeyIds;
+    }
+
+    /**
+     * Runs EXTRA_BATCH_ACTION on every message framed on the input stream. Each message is
+     * preceded by its length as a four byte big-endian integer, the input ends after the last
+     * message. For every message, its output is written to the output stream in the same
+     * framing, with a length of zero if the operation did not succeed. The results of all
+     * operations are returned in RESULT_BATCH_RESULTS, in the same order.
+     *
+     * Requirements are checked once for the whole batch, as are the lookups of encryption keys
+     * from user ids and of the keys the calling app may decrypt with. Unlocked keys and cached
+     * passphrases are reused between messages, by UnlockedKeyCache and LocalPassphraseCache.
+     *
+     * If any message requires user interaction, the batch stops there, and only that result is
+     * returned. Its PendingIntent repeats the whole batch, with the crypto input gathered so far,
+     * so the output written up to then must be discarded. At most MAX_BATCH_MESSAGES messages are
+     * processed, RESULT_BATCH_RESULTS tells how many.
+     */
+    Intent batchImpl(Intent data, InputStream inputStream, OutputStream outputStream) {
+        String batchAction = data.getStringExtra(EXTRA_BATCH_ACTION);
+        if (batchAction == null || !BATCH_ACTIONS.contains(batchAction)
+                || inputStream == null || outputStream == null) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                    "Batch requires input and output, and one of " + BATCH_ACTIONS));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
+
+        Intent batchData = new Intent(data);
+        batchData.setAction(batchAction);
+
+        // fetched once, the cache service hands out each crypto input only once
+        CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+        if (cryptoInput == null) {
+            // all messages are signed with the same time, so they can be signed again on retry
+            cryptoInput = new CryptoInputParcel(new Date());
+        }
+
+        HashSet<Long> allowedKeyIds = null;
+        switch (batchAction) {
+            case OpenPgpApi.ACTION_ENCRYPT:
+            case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT: {
+                if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
+                    KeyIdResult keyIdResult = returnKeyIdsFromEmails(
+                            data, data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS));
+                    if (keyIdResult.mRequiredUserInteraction != null) {
+                        return keyIdResult.mRequiredUserInteraction;
+                    }
+                    HashSet<Long> encryptKeyIds = keyIdResult.mKeyIds;
+                    if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
+                        for (long keyId : data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
+                            encryptKeyIds.add(keyId);
+                        }
+                    }
+                    batchData.removeExtra(OpenPgpApi.EXTRA_USER_IDS);
+                    batchData.putExtra(OpenPgpApi.EXTRA_KEY_IDS, getUnboxedLongArray(encryptKeyIds));
+                }
+                break;
+            }
+            case OpenPgpApi.ACTION_DECRYPT_VERIFY:
+            case OpenPgpApi.ACTION_DECRYPT_METADATA: {
+                allowedKeyIds = getAllowedKeyIds(data);
+                break;
+            }
+        }
+
+        BatchInput batch = new BatchInput(data, cryptoInput, allowedKeyIds);
+        DataOutputStream batchOut = new DataOutputStream(outputStream);
+        ArrayList<Intent> results = new ArrayList<>();
+        try {
+            while (results.size() < MAX_BATCH_MESSAGES) {
+                FrameInputStream messageIn = FrameInputStream.readFrame(inputStream);
+                if (messageIn == null) {
+                    break;
+                }
+
+                ByteArrayOutputStream messageOut = new ByteArrayOutputStream();
+                Intent result = executeStreamAction(
+                        batchData, messageIn, messageIn.getLength(), messageOut, batch);
+                // make sure the next message starts at the right position
+                messageIn.skipRemaining();
+
+                if (result != null && result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                        == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
+                    Log.d(Constants.TAG, "batch stopped for user interaction at message " + results.size());
+                    return result;
+                }
+
+                boolean success = result != null && result.getIntExtra(
+                        OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR) == OpenPgpApi.RESULT_CODE_SUCCESS;
+                byte[] output = success ? messageOut.toByteArray() : new byte[0];
+                batchOut.writeInt(output.length);
+                batchOut.write(output);
+                results.add(result);
+            }
+            batchOut.flush();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "batchImpl", e);
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
+
+        Log.d(Constants.TAG, "batch of " + results.size() + " messages done");
+
+        Intent result = new Intent();
+        result.putParcelableArrayListExtra(RESULT_BATCH_RESULTS, results);
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        return result;
+    }
+
+    /** What the messages of a batch share, see batchImpl. */
+    private static class BatchInput {
+        // the ACTION_BATCH intent, from which pending intents are created
+        final Intent mData;
+        final CryptoInputParcel mCryptoInput;
+        final HashSet<Long> mAllowedKeyIds;
+
+        BatchInput(Intent data, CryptoInputParcel cryptoInput, HashSet<Long> allowedKeyIds) {
+            mData = data;
+            mCryptoInput = cryptoInput;
+            mAllowedKeyIds = allowedKeyIds;
+        }
+    }
+
     private Intent getKeyImpl(Intent data, OutputStream outputStream) {
         try {
             ApiPendingIntentFactory piFactory = new ApiPendingIntentFactory(getBaseContext());
@@ -801,6 +960,17 @@ public class OpenPgpService extends Service {
         return null;
     }
 
+    /**
+     * Returns the exact input size if known, or the number of bytes which are immediately
+     * available as a rough estimate otherwise.
+     */
+    private static long getInputLength(InputStream inputStream, long inputSize) throws IOException {
+        if (inputSize >= 0) {
+            return inputSize;
+        }
+        return inputStream.available();
+    }
+
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
         @Override
         public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
@@ -825,9 +995,11 @@ public class OpenPgpService extends Service {
                 (output != null) ? new ParcelFileDescriptor.AutoCloseOutputStream(output) : null;
         InputStream inputStream =
                 (input != null) ? new ParcelFileDescriptor.AutoCloseInputStream(input) : null;
+        // -1 for pipes and sockets, which is what clients usually pass in
+        long inputSize = (input != null) ? input.getStatSize() : -1;
 
         try {
-            return executeInternalWithStreams(data, inputStream, outputStream);
+            return executeInternalWithStreams(data, inputStream, inputSize, outputStream);
         } finally {
             // always close input and output file descriptors even in createErrorPendingIntent cases
             if (inputStream != null) {
@@ -847,10 +1019,43 @@ public class OpenPgpService extends Service {
         }
     }
 
+    /**
+     * Executes one of BATCH_ACTIONS, which work on a single message from the input stream.
+     *
+     * @param batch what the messages of a batch share, or null for a single message
+     */
+    private Intent executeStreamAction(Intent data, InputStream inputStream, long inputSize,
+            OutputStream outputStream, @Nullable BatchInput batch) {
+        switch (data.getAction()) {
+            case OpenPgpApi.ACTION_CLEARTEXT_SIGN: {
+                return signImpl(data, inputStream, inputSize, outputStream, true, batch);
+            }
+            case OpenPgpApi.ACTION_DETACHED_SIGN: {
+                return signImpl(data, inputStream, inputSize, outputStream, false, batch);
+            }
+            case OpenPgpApi.ACTION_ENCRYPT: {
+                return encryptAndSignImpl(data, inputStream, inputSize, outputStream, false, batch);
+            }
+            case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT: {
+                return encryptAndSignImpl(data, inputStream, inputSize, outputStream, true, batch);
+            }
+            case OpenPgpApi.ACTION_DECRYPT_VERIFY: {
+                return decryptAndVerifyImpl(data, inputStream, inputSize, outputStream, false, batch);
+            }
+            case OpenPgpApi.ACTION_DECRYPT_METADATA: {
+                return decryptAndVerifyImpl(data, inputStream, inputSize, outputStream, true, batch);
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
     @Nullable
     protected Intent executeInternalWithStreams(
             @NonNull Intent data,
             @Nullable InputStream inputStream,
+            long inputSize,
             @Nullable OutputStream outputStream) {
 
         Intent errorResult = checkRequirements(data);
@@ -863,28 +1068,21 @@ public class OpenPgpService extends Service {
             case OpenPgpApi.ACTION_CHECK_PERMISSION: {
                 return checkPermissionImpl(data);
             }
-            case OpenPgpApi.ACTION_CLEARTEXT_SIGN: {
-                return signImpl(data, inputStream, outputStream, true);
-            }
             case OpenPgpApi.ACTION_SIGN: {
                 // DEPRECATED: same as ACTION_CLEARTEXT_SIGN
                 Log.w(Constants.TAG, "You are using a deprecated API call, please use ACTION_CLEARTEXT_SIGN instead of ACTION_SIGN!");
-                return signImpl(data, inputStream, outputStream, true);
-            }
-            case OpenPgpApi.ACTION_DETACHED_SIGN: {
-                return signImpl(data, inputStream, outputStream, false);
-            }
-            case OpenPgpApi.ACTION_ENCRYPT: {
-                return encryptAndSignImpl(data, inputStream, outputStream, false);
-            }
-            case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT: {
-                return encryptAndSignImpl(data, inputStream, outputStream, true);
-            }
-            case OpenPgpApi.ACTION_DECRYPT_VERIFY: {
-                return decryptAndVerifyImpl(data, inputStream, outputStream, false);
+                return signImpl(data, inputStream, inputSize, outputStream, true, null);
             }
+            case OpenPgpApi.ACTION_CLEARTEXT_SIGN:
+            case OpenPgpApi.ACTION_DETACHED_SIGN:
+            case OpenPgpApi.ACTION_ENCRYPT:
+            case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT:
+            case OpenPgpApi.ACTION_DECRYPT_VERIFY:
             case OpenPgpApi.ACTION_DECRYPT_METADATA: {
-                return decryptAndVerifyImpl(data, inputStream, outputStream, true);
+                return executeStreamAction(data, inputStream, inputSize, outputStream, null);
+            }
+            case ACTION_BATCH: {
+                return batchImpl(data, inputStream, outputStream);
             }
             case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
                 return getSignKeyIdImpl(data);
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.IOException;
+
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+
+
+/**
+ * Whether a security token accepts APDUs with extended length fields, and up to which length.
+ *
+ * This is announced in the "card capabilities" of the historical bytes (OpenPGP card spec 3.0,
+ * page 23), and the maximum lengths are either in the extended length information (3.0,
+ * page 24), or in the extended capabilities of version 2 cards (2.0, page 21). All of these are
+ * part of the application related data. If any of it is missing, extended length fields are not
+ * used, which all tokens support.
+ */
+public class CardCapabilities {
+
+    public static final CardCapabilities SHORT_ONLY = new CardCapabilities(false, 0, 0);
+
+    private static final int MASK_EXTENDED_LENGTH = 0x40;
+
+    private final boolean mExtendedLength;
+    private final int mMaxCommandLength;
+    private final int mMaxResponseLength;
+
+    public CardCapabilities(boolean extendedLength, int maxCommandLength, int maxResponseLength) {
+        mExtendedLength = extendedLength;
+        mMaxCommandLength = maxCommandLength;
+        mMaxResponseLength = maxResponseLength;
+    }
+
+    /** Parses the capabilities from application related data (DO 6E), recursively parsed. */
+    public static CardCapabilities fromApplicationRelatedData(Iso7816TLV appData) throws IOException {
+        Iso7816TLV historicalBytes = Iso7816TLV.findRecursive(appData, 0x5F52);
+        if (historicalBytes == null || !hasExtendedLengthFlag(historicalBytes.mV)) {
+            return SHORT_ONLY;
+        }
+
+        int maxCommandLength = 0, maxResponseLength = 0;
+
+        Iso7816TLV lengthInfo = Iso7816TLV.findRecursive(appData, 0x7F66);
+        Iso7816TLV aid = Iso7816TLV.findRecursive(appData, 0x4F);
+        Iso7816TLV extendedCapabilities = Iso7816TLV.findRecursive(appData, 0xC0);
+        if (lengthInfo != null) {
+            // two integers (tag 02), the maximum lengths of command and response data
+            Iso7816TLV[] lengths = Iso7816TLV.readList(lengthInfo.mV, false);
+            if (lengths.length == 2) {
+                maxCommandLength = readUnsigned(lengths[0].mV, 0, lengths[0].mV.length);
+                maxResponseLength = readUnsigned(lengths[1].mV, 0, lengths[1].mV.length);
+            }
+        } else if (aid != null && aid.mV.length > 6 && aid.mV[6] < 3
+                && extendedCapabilities != null && extendedCapabilities.mV.length >= 10) {
+            maxCommandLength = readUnsigned(extendedCapabilities.mV, 6, 2);
+            maxResponseLength = readUnsigned(extendedCapabilities.mV, 8, 2);
+        }
+
+        if (maxCommandLength <= CommandApdu.MAX_SHORT_NC || maxResponseLength <= CommandApdu.MAX_SHORT_NE) {
+            return SHORT_ONLY;
+        }
+        return new CardCapabilities(true, maxCommandLength, maxResponseLength);
+    }
+
+    /** Finds the card capabilities (COMPACT-TLV tag 7, length 3) in the historical bytes. */
+    private static boolean hasExtendedLengthFlag(byte[] historicalBytes) {
+        if (historicalBytes.length == 0) {
+            return false;
+        }
+        // with category indicator 00, the last three bytes are a status indicator
+        int end;
+        if (historicalBytes[0] == 0x00) {
+            end = historicalBytes.length - 3;
+        } else if (historicalBytes[0] == (byte) 0x80) {
+            end = historicalBytes.length;
+        } else {
+            return false;
+        }
+
+        int offset = 1;
+        while (offset < end) {
+            int tag = (historicalBytes[offset] & 0xf0) >> 4;
+            int length = historicalBytes[offset] & 0x0f;
+            offset += 1;
+            if (offset + length > end) {
+                return false;
+            }
+            if (tag == 0x7 && length == 3) {
+                return (historicalBytes[offset + 2] & MASK_EXTENDED_LENGTH) != 0;
+            }
+            offset += length;
+        }
+        return false;
+    }
+
+    private static int readUnsigned(byte[] data, int offset, int length) {
+        int result = 0;
+        for (int i = offset; i < offset + length; i++) {
+            result = (result << 8) | (data[i] & 0xff);
+        }
+        return result;
+    }
+
+    public boolean hasExtendedLength() {
+        return mExtendedLength;
+    }
+
+    public int getMaxCommandLength() {
+        return mMaxCommandLength;
+    }
+
+    public int getMaxResponseLength() {
+        return mMaxResponseLength;
+    }
+
+}
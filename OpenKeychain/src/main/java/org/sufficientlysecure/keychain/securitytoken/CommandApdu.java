@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+/**
+ * A command APDU, as defined in ISO 7816-4, section 5.1.
+ *
+ * The expected length of the response is kept as a number Ne rather than an encoded Le field,
+ * so the same command can be encoded with short or extended length fields, or be split up for
+ * command chaining, depending on what the token and the transport support. An Ne of 0 means no
+ * response data is expected, MAX_EXTENDED_NE means as much as the token can return.
+ */
+public class CommandApdu {
+
+    public static final int MAX_SHORT_NC = 255;
+    public static final int MAX_SHORT_NE = 256;
+    public static final int MAX_EXTENDED_NC = 65535;
+    public static final int MAX_EXTENDED_NE = 65536;
+
+    // bit of the CLA byte which indicates that more parts of a chained command follow
+    static final int CLA_CHAINING = 0x10;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final int mCla;
+    private final int mIns;
+    private final int mP1;
+    private final int mP2;
+    private final byte[] mData;
+    private final int mNe;
+
+    public CommandApdu(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+        if (data.length > MAX_EXTENDED_NC) {
+            throw new IllegalArgumentException("Too much data for a command APDU: " + data.length);
+        }
+        if (ne < 0 || ne > MAX_EXTENDED_NE) {
+            throw new IllegalArgumentException("Invalid expected response length: " + ne);
+        }
+        mCla = cla & 0xff;
+        mIns = ins & 0xff;
+        mP1 = p1 & 0xff;
+        mP2 = p2 & 0xff;
+        mData = data;
+        mNe = ne;
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2, byte[] data) {
+        this(cla, ins, p1, p2, data, 0);
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2, int ne) {
+        this(cla, ins, p1, p2, NO_DATA, ne);
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2) {
+        this(cla, ins, p1, p2, NO_DATA, 0);
+    }
+
+    public int getCla() {
+        return mCla;
+    }
+
+    public int getIns() {
+        return mIns;
+    }
+
+    public int getP1() {
+        return mP1;
+    }
+
+    public int getP2() {
+        return mP2;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getNe() {
+        return mNe;
+    }
+
+    /**
+     * Returns a part of this command for command chaining (ISO 7816-4, section 5.1.1.1). Only the
+     * last part is sent without the chaining bit, and expects the response of the whole command.
+     */
+    public CommandApdu getChainedPart(int off, int len, boolean last) {
+        byte[] data = new byte[len];
+        System.arraycopy(mData, off, data, 0, len);
+        if (last) {
+            return new CommandApdu(mCla & ~CLA_CHAINING, mIns, mP1, mP2, data, mNe);
+        }
+        return new CommandApdu(mCla | CLA_CHAINING, mIns, mP1, mP2, data, 0);
+    }
+
+    public int getEncodedLength(boolean extended) {
+        int length = 4;
+        if (mData.length > 0) {
+            length += (extended ? 3 : 1) + mData.length;
+        }
+        if (mNe > 0) {
+            if (!extended) {
+                length += 1;
+            } else {
+                // with an extended Lc field, Le takes two bytes, otherwise three
+                length += mData.length > 0 ? 2 : 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes this command with short or extended length fields. With short fields, at most
+     * MAX_SHORT_NE bytes of response are asked for at once, the rest must be retrieved with GET
+     * RESPONSE.
+     */
+    public byte[] toBytes(boolean extended) {
+        if (!extended && mData.length > MAX_SHORT_NC) {
+            throw new IllegalArgumentException("Too much data for a short APDU, use chaining!");
+        }
+
+        byte[] apdu = new byte[getEncodedLength(extended)];
+        apdu[0] = (byte) mCla;
+        apdu[1] = (byte) mIns;
+        apdu[2] = (byte) mP1;
+        apdu[3] = (byte) mP2;
+        int offset = 4;
+
+        if (mData.length > 0) {
+            if (extended) {
+                apdu[offset++] = 0;
+                apdu[offset++] = (byte) (mData.length >> 8);
+            }
+            apdu[offset++] = (byte) mData.length;
+            System.arraycopy(mData, 0, apdu, offset, mData.length);
+            offset += mData.length;
+        }
+
+        if (mNe > 0) {
+            // the maximum length is encoded as 0 in either form
+            if (extended) {
+                if (mData.length == 0) {
+                    apdu[offset++] = 0;
+                }
+                apdu[offset++] = (byte) (mNe >> 8);
+                apdu[offset] = (byte) mNe;
+            } else {
+                apdu[offset] = (byte) Math.min(mNe, MAX_SHORT_NE);
+            }
+        }
+
+        return apdu;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.IOException;
+
+import nordpol.IsoCard;
+
+
+/** A Transport to a security token connected via NFC. */
+public class IsoCardTransport implements Transport {
+
+    private final IsoCard mIsoCard;
+    private final int mMaxTransceiveLength;
+    private final boolean mExtendedLengthApduSupported;
+
+    /**
+     * @param maxTransceiveLength the maximum length of a command, as returned by
+     *                            IsoDep.getMaxTransceiveLength for the tag
+     * @param extendedLengthApduSupported as returned by IsoDep.isExtendedLengthApduSupported
+     */
+    public IsoCardTransport(IsoCard isoCard, int maxTransceiveLength,
+            boolean extendedLengthApduSupported) {
+        mIsoCard = isoCard;
+        mMaxTransceiveLength = maxTransceiveLength;
+        mExtendedLengthApduSupported = extendedLengthApduSupported;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        return mIsoCard.transceive(command);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mMaxTransceiveLength;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return mExtendedLengthApduSupported;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mIsoCard.isConnected();
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/** A response APDU, as defined in ISO 7816-4, section 5.1: response data and a status word. */
+public class ResponseApdu {
+
+    public static final int SW_SUCCESS = 0x9000;
+
+    private final byte[] mData;
+    private final int mSw;
+
+    public ResponseApdu(byte[] data, int sw) {
+        mData = data;
+        mSw = sw;
+    }
+
+    public static ResponseApdu fromBytes(byte[] response) throws IOException {
+        if (response.length < 2) {
+            throw new IOException("Response APDU without status word!");
+        }
+        int sw = ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+        return new ResponseApdu(Arrays.copyOf(response, response.length - 2), sw);
+    }
+
+    public byte[] toBytes() {
+        byte[] response = Arrays.copyOf(mData, mData.length + 2);
+        response[mData.length] = (byte) (mSw >> 8);
+        response[mData.length + 1] = (byte) mSw;
+        return response;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getSw() {
+        return mSw;
+    }
+
+    public int getSw1() {
+        return mSw >> 8;
+    }
+
+    public int getSw2() {
+        return mSw & 0xff;
+    }
+
+    public boolean isSuccess() {
+        return mSw == SW_SUCCESS;
+    }
+
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * The OpenPGP application of a security token, spoken to through a Transport.
+ *
+ * This implements the commands of the Functional Specification of the OpenPGP application on
+ * ISO Smart Card Operating Systems as used by BaseSecurityTokenNfcActivity, references to pages
+ * are to version 2.0 of that specification.
+ *
+ * Commands are built as byte arrays. If the token and the transport support extended length
+ * fields, each command is sent in a single APDU. Otherwise, command data which doesn't fit into
+ * a short APDU is sent by command chaining, and response data is retrieved with GET RESPONSE.
+ *
+ * On general communication, see also
+ * http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_annex-a.aspx
+ */
+public class SecurityTokenConnection {
+
+    private static final byte[] OPENPGP_AID = Hex.decode("D27600012401");
+
+    // tokens have been seen to reject chained parts of the full 255 bytes
+    private static final int MAX_CHAINED_NC = 254;
+
+    // DigestInfo headers of PKCS#1, followed by the hash itself (page 39)
+    private static final byte[] DSI_SHA1 = Hex.decode(
+            "3021" // Tag/Length of Sequence, the 0x21 includes all following 33 bytes
+            + "3009" // Tag/Length of Sequence, the 0x09 are the following header bytes
+            + "0605" + "2B0E03021A" // OID of SHA1
+            + "0500" // TLV coding of ZERO
+            + "0414"); // 0x14 are 20 hash bytes
+    private static final byte[] DSI_RIPEMD160 = Hex.decode("3021300906052B2403020105000414");
+    private static final byte[] DSI_SHA224 = Hex.decode("302D300D06096086480165030402040500041C");
+    private static final byte[] DSI_SHA256 = Hex.decode("3031300D060960864801650304020105000420");
+    private static final byte[] DSI_SHA384 = Hex.decode("3041300D060960864801650304020205000430");
+    private static final byte[] DSI_SHA512 = Hex.decode("3051300D060960864801650304020305000440");
+
+    private final Transport mTransport;
+    private CardCapabilities mCardCapabilities = CardCapabilities.SHORT_ONLY;
+
+    private Passphrase mPin;
+    private Passphrase mAdminPin;
+    private boolean mPw1ValidForMultipleSignatures;
+    private boolean mPw1ValidatedForSignature;
+    private boolean mPw1ValidatedForDecrypt; // Mode 82 does other things; consider renaming?
+    private boolean mPw3Validated;
+
+    public SecurityTokenConnection(Transport transport) {
+        mTransport = transport;
+    }
+
+    public void setPin(Passphrase pin) {
+        mPin = pin;
+    }
+
+    public void setAdminPin(Passphrase adminPin) {
+        mAdminPin = adminPin;
+    }
+
+    /**
+     * Selects the OpenPGP application, and reads the capabilities and PW status of the token.
+     * This must be called before any other command.
+     */
+    public void connect() throws IOException {
+        // Command APDU (page 51) for SELECT FILE command (page 29)
+        ResponseApdu response = communicate(
+                new CommandApdu(0x00, 0xA4, 0x04, 0x00, OPENPGP_AID, CommandApdu.MAX_SHORT_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Initialization failed!", response.getSw());
+        }
+
+        // the PW status bytes are part of the application related data, which we need anyways
+        Iso7816TLV appData = Iso7816TLV.readSingle(getData(0x6E), true);
+        mCardCapabilities = CardCapabilities.fromApplicationRelatedData(appData);
+
+        Iso7816TLV pwStatus = Iso7816TLV.findRecursive(appData, 0xC4);
+        byte[] pwStatusBytes = pwStatus != null ? pwStatus.mV : getPwStatusBytes();
+        mPw1ValidForMultipleSignatures = (pwStatusBytes[0] == 1);
+        mPw1ValidatedForSignature = false;
+        mPw1ValidatedForDecrypt = false;
+        mPw3Validated = false;
+    }
+
+    public boolean isConnected() {
+        return mTransport.isConnected();
+    }
+
+    public CardCapabilities getCardCapabilities() {
+        return mCardCapabilities;
+    }
+
+    /**
+     * Sends a command to the token, and returns its complete response.
+     *
+     * Depending on the capabilities of the token and transport, this takes one or more APDUs.
+     * A failed part of a chained command is returned as the response of the whole command.
+     */
+    public ResponseApdu communicate(CommandApdu command) throws IOException {
+        int nc = command.getData().length;
+        boolean extended = useExtendedLength(command);
+
+        ResponseApdu response;
+        if (extended) {
+            int ne = Math.min(command.getNe(), mCardCapabilities.getMaxResponseLength());
+            response = transceive(new CommandApdu(command.getCla(), command.getIns(),
+                    command.getP1(), command.getP2(), command.getData(), ne), true);
+        } else if (nc > MAX_CHAINED_NC) {
+            int offset = 0;
+            while (nc - offset > MAX_CHAINED_NC) {
+                response = transceive(command.getChainedPart(offset, MAX_CHAINED_NC, false), false);
+                if (!response.isSuccess()) {
+                    return response;
+                }
+                offset += MAX_CHAINED_NC;
+            }
+            response = transceive(command.getChainedPart(offset, nc - offset, true), false);
+        } else {
+            response = transceive(command, false);
+        }
+
+        // while we are getting 0x61 status codes, retrieve more data
+        if (response.getSw1() != 0x61) {
+            return response;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(response.getData());
+        while (response.getSw1() == 0x61) {
+            Log.d(Constants.TAG, "requesting more data, status " + Integer.toHexString(response.getSw()));
+            int ne = response.getSw2() == 0 ? CommandApdu.MAX_SHORT_NE : response.getSw2();
+            // Send GET RESPONSE command
+            response = transceive(new CommandApdu(0x00, 0xC0, 0x00, 0x00, ne), false);
+            data.write(response.getData());
+        }
+        return new ResponseApdu(data.toByteArray(), response.getSw());
+    }
+
+    /**
+     * Extended length is only used if both token and transport support it, and the command
+     * needs it. Otherwise long commands are chained, and long responses are retrieved with
+     * GET RESPONSE.
+     */
+    private boolean useExtendedLength(CommandApdu command) {
+        if (!mCardCapabilities.hasExtendedLength() || !mTransport.isExtendedLengthApduSupported()) {
+            return false;
+        }
+        int nc = command.getData().length;
+        if (nc <= MAX_CHAINED_NC && command.getNe() <= CommandApdu.MAX_SHORT_NE) {
+            return false;
+        }
+        return nc <= mCardCapabilities.getMaxCommandLength()
+                && command.getEncodedLength(true) <= mTransport.getMaxTransceiveLength();
+    }
+
+    private ResponseApdu transceive(CommandApdu command, boolean extended) throws IOException {
+        byte[] apdu = command.toBytes(extended);
+        try {
+            return ResponseApdu.fromBytes(mTransport.transceive(apdu));
+        } finally {
+            // the apdu may contain a PIN or secret key material
+            Arrays.fill(apdu, (byte) 0);
+        }
+    }
+
+    private byte[] getData(int dataObject) throws IOException {
+        ResponseApdu response = communicate(new CommandApdu(0x00, 0xCA,
+                dataObject >> 8, dataObject & 0xff, CommandApdu.MAX_EXTENDED_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to get data.", response.getSw());
+        }
+        return response.getData();
+    }
+
+    /** Return fingerprints of all keys from application specific data stored
+     * on tag, or null if data not available.
+     *
+     * @return The fingerprints of all subkeys in a contiguous byte array.
+     */
+    public byte[] getFingerprints() throws IOException {
+        Iso7816TLV tlv = Iso7816TLV.readSingle(getData(0x6E), true);
+        Log.d(Constants.TAG, "getFingerprints() Iso7816TLV tlv data:\n" + tlv.prettyPrint());
+
+        Iso7816TLV fptlv = Iso7816TLV.findRecursive(tlv, 0xc5);
+        if (fptlv == null) {
+            return null;
+        }
+
+        return fptlv.mV;
+    }
+
+    /** Return the PW Status Bytes from the token. This is a simple DO; no TLV decoding needed.
+     *
+     * @return Seven bytes in fixed format.
+     */
+    public byte[] getPwStatusBytes() throws IOException {
+        return getData(0xC4);
+    }
+
+    public byte[] getAid() throws IOException {
+        return getData(0x4F);
+    }
+
+    public String getUserId() throws IOException {
+        byte[] data = getData(0x65);
+        try {
+            Iso7816TLV tlv = Iso7816TLV.readSingle(data, true);
+            Iso7816TLV name = Iso7816TLV.findRecursive(tlv, 0x5B);
+            if (name == null) {
+                return "";
+            }
+            return new String(name.mV).replace('<', ' ');
+        } catch (IOException | BufferUnderflowException e) {
+            // Note: This should not happen, but happens with
+            // https://github.com/FluffyKaon/OpenPGP-Card, thus return an empty string for now!
+            Log.e(Constants.TAG, "Couldn't get holder name, returning empty string!", e);
+            return "";
+        }
+    }
+
+    /**
+     * Call COMPUTE DIGITAL SIGNATURE command and returns the MPI value
+     *
+     * @param hash the hash for signing
+     * @return a big integer representing the MPI for the given hash
+     */
+    public byte[] calculateSignature(byte[] hash, int hashAlgo) throws IOException {
+        if (!mPw1ValidatedForSignature) {
+            verifyPin(0x81); // (Verify PW1 with mode 81 for signing)
+        }
+
+        byte[] header;
+        int hashLength;
+        Log.i(Constants.TAG, "Hash: " + hashAlgo);
+        switch (hashAlgo) {
+            case HashAlgorithmTags.SHA1:
+                header = DSI_SHA1;
+                hashLength = 20;
+                break;
+            case HashAlgorithmTags.RIPEMD160:
+                header = DSI_RIPEMD160;
+                hashLength = 20;
+                break;
+            case HashAlgorithmTags.SHA224:
+                header = DSI_SHA224;
+                hashLength = 28;
+                break;
+            case HashAlgorithmTags.SHA256:
+                header = DSI_SHA256;
+                hashLength = 32;
+                break;
+            case HashAlgorithmTags.SHA384:
+                header = DSI_SHA384;
+                hashLength = 48;
+                break;
+            case HashAlgorithmTags.SHA512:
+                header = DSI_SHA512;
+                hashLength = 64;
+                break;
+            default:
+                throw new IOException("Not supported hash algo!");
+        }
+        if (hash.length != hashLength) {
+            throw new IOException("Bad hash length (" + hash.length + ", expected " + hashLength + "!");
+        }
+
+        // digital signature input
+        byte[] dsi = Arrays.concatenate(header, hash);
+
+        // Command APDU for PERFORM SECURITY OPERATION: COMPUTE DIGITAL SIGNATURE (page 37)
+        ResponseApdu response = communicate(
+                new CommandApdu(0x00, 0x2A, 0x9E, 0x9A, dsi, CommandApdu.MAX_EXTENDED_NE));
+
+        Log.d(Constants.TAG, "final response:" + Integer.toHexString(response.getSw()));
+
+        if (!mPw1ValidForMultipleSignatures) {
+            mPw1ValidatedForSignature = false;
+        }
+
+        if (!response.isSuccess()) {
+            throw new CardException("Bad NFC response code: "
+                    + Integer.toHexString(response.getSw()), response.getSw());
+        }
+
+        // Make sure the signature we received is actually the expected number of bytes long!
+        byte[] signature = response.getData();
+        if (signature.length != 128 && signature.length != 256) {
+            throw new IOException("Bad signature length! Expected 128 or 256 bytes, got " + signature.length);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Call DECIPHER command
+     *
+     * @param encryptedSessionKey the encoded session key
+     * @return the decoded session key
+     */
+    public byte[] decryptSessionKey(byte[] encryptedSessionKey) throws IOException {
+        if (!mPw1ValidatedForDecrypt) {
+            verifyPin(0x82); // (Verify PW1 with mode 82 for decryption)
+        }
+
+        // the session key is an MPI. its two bytes of bit length are replaced by the
+        // padding indicator byte 00 (page 41)
+        byte[] cryptogram = new byte[encryptedSessionKey.length - 1];
+        System.arraycopy(encryptedSessionKey, 2, cryptogram, 1, encryptedSessionKey.length - 2);
+
+        // Command APDU for PERFORM SECURITY OPERATION: DECIPHER (page 41)
+        ResponseApdu response = communicate(
+                new CommandApdu(0x00, 0x2A, 0x80, 0x86, cryptogram, CommandApdu.MAX_SHORT_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to decrypt session key", response.getSw());
+        }
+
+        return response.getData();
+    }
+
+    /** Verifies the user's PW1 or PW3 with the appropriate mode.
+     *
+     * @param mode For PW1, this is 0x81 for signing, 0x82 for everything else.
+     *             For PW3 (Admin PIN), mode is 0x83.
+     */
+    public void verifyPin(int mode) throws IOException {
+        if (mPin != null || mode == 0x83) {
+
+            byte[] pin;
+            if (mode == 0x83) {
+                pin = mAdminPin.toStringUnsafe().getBytes();
+            } else {
+                pin = mPin.toStringUnsafe().getBytes();
+            }
+
+            ResponseApdu response = tryPin(mode, pin); // login
+            if (!response.isSuccess()) {
+                throw new CardException("Bad PIN!", response.getSw());
+            }
+
+            if (mode == 0x81) {
+                mPw1ValidatedForSignature = true;
+            } else if (mode == 0x82) {
+                mPw1ValidatedForDecrypt = true;
+            } else if (mode == 0x83) {
+                mPw3Validated = true;
+            }
+        }
+    }
+
+    /**
+     * Resets security token, which deletes all keys and data objects.
+     * This works by entering a wrong PIN and then Admin PIN 4 times respectively.
+     * Afterwards, the token is reactivated.
+     */
+    public void resetAndWipeToken() throws IOException {
+        // try wrong PIN 4 times until counter goes to C0
+        byte[] pin = "XXXXXX".getBytes();
+        for (int i = 0; i <= 4; i++) {
+            ResponseApdu response = tryPin(0x81, pin);
+            if (response.isSuccess()) { // Should NOT accept!
+                throw new CardException("Should never happen, XXXXXX has been accepted!", response.getSw());
+            }
+        }
+
+        // try wrong Admin PIN 4 times until counter goes to C0
+        byte[] adminPin = "XXXXXXXX".getBytes();
+        for (int i = 0; i <= 4; i++) {
+            ResponseApdu response = tryPin(0x83, adminPin);
+            if (response.isSuccess()) { // Should NOT accept!
+                throw new CardException("Should never happen, XXXXXXXX has been accepted", response.getSw());
+            }
+        }
+
+        // reactivate token!
+        ResponseApdu response = communicate(new CommandApdu(0x00, 0xE6, 0x00, 0x00)); // TERMINATE DF
+        if (response.isSuccess()) {
+            response = communicate(new CommandApdu(0x00, 0x44, 0x00, 0x00)); // ACTIVATE FILE
+        }
+        if (!response.isSuccess()) {
+            throw new CardException("Reactivating failed!", response.getSw());
+        }
+
+        mPw1ValidatedForSignature = false;
+        mPw1ValidatedForDecrypt = false;
+        mPw3Validated = false;
+    }
+
+    private ResponseApdu tryPin(int mode, byte[] pin) throws IOException {
+        // Command APDU for VERIFY command (page 32)
+        return communicate(new CommandApdu(0x00, 0x20, 0x00, mode, pin));
+    }
+
+    /** Modifies the user's PW1 or PW3. Before sending, the new PIN will be validated for
+     *  conformance to the token's requirements for key length.
+     *
+     * @param pw For PW1, this is 0x81. For PW3 (Admin PIN), mode is 0x83.
+     * @param newPin The new PW1 or PW3.
+     */
+    public void modifyPin(int pw, byte[] newPin) throws IOException {
+        final int MAX_PW1_LENGTH_INDEX = 1;
+        final int MAX_PW3_LENGTH_INDEX = 3;
+
+        byte[] pwStatusBytes = getPwStatusBytes();
+
+        if (pw == 0x81) {
+            if (newPin.length < 6 || newPin.length > pwStatusBytes[MAX_PW1_LENGTH_INDEX]) {
+                throw new IOException("Invalid PIN length");
+            }
+        } else if (pw == 0x83) {
+            if (newPin.length < 8 || newPin.length > pwStatusBytes[MAX_PW3_LENGTH_INDEX]) {
+                throw new IOException("Invalid PIN length");
+            }
+        } else {
+            throw new IOException("Invalid PW index for modify PIN operation");
+        }
+
+        byte[] pin;
+        if (pw == 0x83) {
+            pin = mAdminPin.toStringUnsafe().getBytes();
+        } else {
+            pin = mPin.toStringUnsafe().getBytes();
+        }
+
+        // Command APDU for CHANGE REFERENCE DATA command (page 32)
+        ResponseApdu response = communicate(
+                new CommandApdu(0x00, 0x24, 0x00, pw, Arrays.concatenate(pin, newPin))); // change PIN
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to change PIN", response.getSw());
+        }
+    }
+
+    /**
+     * Stores a data object on the token. Automatically validates the proper PIN for the operation.
+     * Data objects which don't fit into a short APDU, such as the cardholder certificate
+     * (0x7F21), are sent by command chaining or with extended length.
+     *
+     * @param dataObject The data object to be stored.
+     * @param data The data to store in the object
+     */
+    public void putData(int dataObject, byte[] data) throws IOException {
+        if (dataObject == 0x0101 || dataObject == 0x0103) {
+            if (!mPw1ValidatedForDecrypt) {
+                verifyPin(0x82); // (Verify PW1 for non-signing operations)
+            }
+        } else if (!mPw3Validated) {
+            verifyPin(0x83); // (Verify PW3)
+        }
+
+        ResponseApdu response = communicate(new CommandApdu(0x00, 0xDA,
+                (dataObject & 0xFF00) >> 8, dataObject & 0xFF, data)); // put data
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to put data.", response.getSw());
+        }
+    }
+
+    /**
+     * Puts a key on the token in the given slot.
+     *
+     * @param slot The slot on the token where the key should be stored:
+     *             0xB6: Signature Key
+     *             0xB8: Decipherment Key
+     *             0xA4: Authentication Key
+     */
+    public void putKey(int slot, RSAPrivateCrtKey crtSecretKey) throws IOException {
+        if (slot != 0xB6 && slot != 0xB8 && slot != 0xA4) {
+            throw new IOException("Invalid key slot");
+        }
+
+        // Shouldn't happen; the UI should block the user from getting an incompatible key this far.
+        if (crtSecretKey.getModulus().bitLength() > 2048) {
+            throw new IOException("Key too large to export to Security Token.");
+        }
+
+        // Should happen only rarely; all GnuPG keys since 2006 use public exponent 65537.
+        if (!crtSecretKey.getPublicExponent().equals(new BigInteger("65537"))) {
+            throw new IOException("Invalid public exponent for smart Security Token.");
+        }
+
+        if (!mPw3Validated) {
+            verifyPin(0x83); // (Verify PW3 with mode 83)
+        }
+
+        byte[] header= Hex.decode(
+                "4D82" + "03A2"      // Extended header list 4D82, length of 930 bytes. (page 23)
+                + String.format("%02x", slot) + "00" // CRT to indicate targeted key, no length
+                + "7F48" + "15"      // Private key template 0x7F48, length 21 (decimal, 0x15 hex)
+                + "9103"             // Public modulus, length 3
+                + "928180"           // Prime P, length 128
+                + "938180"           // Prime Q, length 128
+                + "948180"           // Coefficient (1/q mod p), length 128
+                + "958180"           // Prime exponent P (d mod (p - 1)), length 128
+                + "968180"           // Prime exponent Q (d mod (1 - 1)), length 128
+                + "97820100"         // Modulus, length 256, last item in private key template
+                + "5F48" + "820383");// DO 5F48; 899 bytes of concatenated key data will follow
+        byte[] dataToSend = new byte[934];
+        byte[] currentKeyObject;
+        int offset = 0;
+
+        System.arraycopy(header, 0, dataToSend, offset, header.length);
+        offset += header.length;
+        currentKeyObject = crtSecretKey.getPublicExponent().toByteArray();
+        System.arraycopy(currentKeyObject, 0, dataToSend, offset, 3);
+        offset += 3;
+        // NOTE: For a 2048-bit key, these lengths are fixed. However, bigint includes a leading 0
+        // in the array to represent sign, so we take care to set the offset to 1 if necessary.
+        currentKeyObject = crtSecretKey.getPrimeP().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeQ().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getCrtCoefficient().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeExponentP().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeExponentQ().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getModulus().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 256, dataToSend, offset, 256);
+
+        // Now we're ready to communicate with the token.
+        try {
+            // PUT DATA with odd instruction byte, for the extended header list (page 23)
+            ResponseApdu response = communicate(new CommandApdu(0x00, 0xDB, 0x3F, 0xFF, dataToSend));
+            if (!response.isSuccess()) {
+                throw new CardException("Key export to Security Token failed", response.getSw());
+            }
+        } finally {
+            // Clear array with secret data before we return.
+            Arrays.fill(dataToSend, (byte) 0);
+        }
+    }
+
+    /**
+     * Generates a key on the card in the given slot. If the slot is 0xB6 (the signature key),
+     * this command also has the effect of resetting the digital signature counter.
+     * NOTE: This does not set the key fingerprint data object! After calling this command, you
+     * must construct a public key packet using the returned public key data objects, compute the
+     * key fingerprint, and store it on the card using: putData(0xC8, key.getFingerprint())
+     *
+     * @param slot The slot on the card where the key should be generated:
+     *             0xB6: Signature Key
+     *             0xB8: Decipherment Key
+     *             0xA4: Authentication Key
+     * @return the public key data objects, in TLV format. For RSA this will be the public modulus
+     * (0x81) and exponent (0x82). These may come out of order; proper TLV parsing is required.
+     */
+    public byte[] generateKey(int slot) throws IOException {
+        if (slot != 0xB6 && slot != 0xB8 && slot != 0xA4) {
+            throw new IOException("Invalid key slot");
+        }
+
+        if (!mPw3Validated) {
+            verifyPin(0x83); // (Verify PW3 with mode 83)
+        }
+
+        // Command APDU for GENERATE ASYMMETRIC KEY PAIR (page 43)
+        ResponseApdu response = communicate(new CommandApdu(0x00, 0x47, 0x80, 0x00,
+                new byte[] { (byte) slot, 0x00 }, CommandApdu.MAX_EXTENDED_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("On-card key generation failed", response.getSw());
+        }
+
+        byte[] publicKeyData = response.getData();
+        Log.d(Constants.TAG, "Public Key Data Objects: " + Hex.toHexString(publicKeyData));
+
+        return publicKeyData;
+    }
+
+}
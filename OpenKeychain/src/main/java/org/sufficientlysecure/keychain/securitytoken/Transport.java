@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.IOException;
+
+
+/**
+ * Exchanges APDUs with a security token.
+ *
+ * This is all SecurityTokenConnection needs of a token, so the OpenPGP card protocol can be
+ * spoken to a token over NFC as well as to a software implementation of the card.
+ */
+public interface Transport {
+
+    /** Sends an encoded command APDU, and returns the encoded response APDU. */
+    byte[] transceive(byte[] command) throws IOException;
+
+    /** The maximum length of an encoded command APDU which can be sent. */
+    int getMaxTransceiveLength();
+
+    /** Whether extended length APDUs can be sent, so Nc and Ne are not limited to 256. */
+    boolean isExtendedLengthApduSupported();
+
+    boolean isConnected();
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Persists the keys of a keyserver refresh, so a refresh which was interrupted can be resumed
+ * with the keys which are left, instead of starting over.
+ * <p/>
+ * The keys are written to a queue file once when the refresh starts, and each key which is done
+ * is appended to a second file, so recording progress takes a single small write per key.
+ */
+class KeyRefreshQueue {
+
+    private static final String QUEUE_FILE = "keyserver_sync_queue";
+    private static final String DONE_FILE = "keyserver_sync_done";
+
+    private final File mQueueFile;
+    private final File mDoneFile;
+    private Writer mDoneWriter;
+
+    KeyRefreshQueue(File dir) {
+        mQueueFile = new File(dir, QUEUE_FILE);
+        mDoneFile = new File(dir, DONE_FILE);
+    }
+
+    /**
+     * Returns the keys of an interrupted refresh which are not done yet, or null if there is no
+     * refresh to resume, or it was started more than maxAgeMillis ago.
+     *
+     * @param currentKeys the keys which would be refreshed now. Keys which are not among them,
+     *                    such as keys deleted since the interruption, are not resumed.
+     */
+    ArrayList<ParcelableKeyRing> resume(long maxAgeMillis, List<ParcelableKeyRing> currentKeys) {
+        if (!mQueueFile.exists()) {
+            return null;
+        }
+
+        HashSet<String> current = new HashSet<>();
+        for (ParcelableKeyRing key : currentKeys) {
+            current.add(key.mExpectedFingerprint);
+        }
+
+        try {
+            HashSet<String> done = new HashSet<>();
+            if (mDoneFile.exists()) {
+                BufferedReader reader = open(mDoneFile);
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        done.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            ArrayList<ParcelableKeyRing> keys = new ArrayList<>();
+            BufferedReader reader = open(mQueueFile);
+            try {
+                String line = reader.readLine();
+                if (line == null || System.currentTimeMillis() - Long.parseLong(line) > maxAgeMillis) {
+                    Log.d(Constants.TAG, "Discarding outdated keyserver sync queue");
+                    finish();
+                    return null;
+                }
+                while ((line = reader.readLine()) != null) {
+                    // a line is the fingerprint, followed by the key id
+                    String[] fields = line.split(" ", 2);
+                    if (fields.length == 2 && !done.contains(fields[0]) && current.contains(fields[0])) {
+                        keys.add(new ParcelableKeyRing(fields[0], fields[1]));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return keys;
+        } catch (IOException | NumberFormatException e) {
+            Log.e(Constants.TAG, "Error reading keyserver sync queue", e);
+            finish();
+            return null;
+        }
+    }
+
+    /** Persists the keys of a new refresh. Keys without fingerprint are not persisted. */
+    void start(List<ParcelableKeyRing> keys) throws IOException {
+        finish();
+
+        File tempFile = new File(mQueueFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+        try {
+            writer.write(Long.toString(System.currentTimeMillis()));
+            writer.write('\n');
+            for (ParcelableKeyRing key : keys) {
+                if (key.mExpectedFingerprint != null && key.mKeyIdHex != null) {
+                    writer.write(key.mExpectedFingerprint + " " + key.mKeyIdHex + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(mQueueFile)) {
+            throw new IOException("could not write keyserver sync queue");
+        }
+    }
+
+    /** Records that a key is done. */
+    synchronized void markDone(ParcelableKeyRing key) {
+        if (key.mExpectedFingerprint == null) {
+            return;
+        }
+        try {
+            if (mDoneWriter == null) {
+                mDoneWriter = new OutputStreamWriter(new FileOutputStream(mDoneFile, true), "UTF-8");
+            }
+            mDoneWriter.write(key.mExpectedFingerprint + "\n");
+            mDoneWriter.flush();
+        } catch (IOException e) {
+            // worst case, the key is refreshed again when resuming
+            Log.e(Constants.TAG, "Error writing keyserver sync queue", e);
+        }
+    }
+
+    /** Closes the queue, keeping it for a later resume. */
+    synchronized void close() {
+        if (mDoneWriter != null) {
+            try {
+                mDoneWriter.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Error closing keyserver sync queue", e);
+            }
+            mDoneWriter = null;
+        }
+    }
+
+    /** Deletes the queue, once the refresh is complete. */
+    synchronized void finish() {
+        close();
+        mQueueFile.delete();
+        mDoneFile.delete();
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+}
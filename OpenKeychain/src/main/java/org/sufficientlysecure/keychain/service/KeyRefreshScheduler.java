@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportOperation;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Refreshes keys from a keyserver one by one, within the limits of a Config: a number of
+ * concurrent requests, a token bucket for the request rate, and, for the Tor path, a jittered
+ * minimum spacing between requests so each one can go through a fresh circuit. Keys whose
+ * retrieval fails while the keyserver is unavailable are retried with exponential backoff.
+ * <p/>
+ * The limits hold per keyserver, across all schedulers running at the same time. Progress is
+ * recorded in a KeyRefreshQueue, so an interrupted refresh can be resumed with the keys left.
+ */
+public class KeyRefreshScheduler {
+
+    /** Refreshes a single key, usually through an ImportOperation. */
+    public interface KeyRefresher {
+        ImportKeyResult refresh(ParcelableKeyRing keyRing);
+    }
+
+    public static class Config {
+        final String mName;
+        // maximum number of requests to the keyserver at the same time
+        final int mConcurrency;
+        // token bucket: sustained requests per second, and burst size
+        final double mRequestsPerSecond;
+        final int mBurst;
+        // minimum time between the start of two requests, plus a random time up to mJitter
+        final long mSpacingMillis;
+        final long mJitterMillis;
+        // attempts per key, and the backoff before the second one, doubling for each further one
+        final int mMaxAttempts;
+        final long mBackoffMillis;
+        final long mMaxBackoffMillis;
+
+        public Config(String name, int concurrency, double requestsPerSecond, int burst,
+                      long spacingMillis, long jitterMillis,
+                      int maxAttempts, long backoffMillis, long maxBackoffMillis) {
+            mName = name;
+            mConcurrency = concurrency;
+            mRequestsPerSecond = requestsPerSecond;
+            mBurst = burst;
+            mSpacingMillis = spacingMillis;
+            mJitterMillis = jitterMillis;
+            mMaxAttempts = maxAttempts;
+            mBackoffMillis = backoffMillis;
+            mMaxBackoffMillis = maxBackoffMillis;
+        }
+
+        /** A few concurrent requests, at a rate a public keyserver can take. */
+        public static Config forDirect() {
+            return new Config("direct", 4, 2.0, 4, 0, 0,
+                    3, TimeUnit.SECONDS.toMillis(5), TimeUnit.MINUTES.toMillis(1));
+        }
+
+        /**
+         * One request at a time, each between spacing and twice the spacing after the previous
+         * one, as performed by parcimonie. See
+         * https://github.com/open-keychain/open-keychain/issues/1337
+         */
+        public static Config forTor(long spacingMillis) {
+            return new Config("tor", 1, 2.0, 1, spacingMillis, spacingMillis,
+                    3, spacingMillis, 4 * spacingMillis);
+        }
+    }
+
+    private static final HashMap<String, Limiter> sLimiters = new HashMap<>();
+
+    private final Config mConfig;
+    private final Limiter mLimiter;
+    private final AtomicBoolean mCancelled;
+    private final Random mRandom = new Random();
+
+    public KeyRefreshScheduler(String keyserver, Config config, AtomicBoolean cancelled) {
+        mConfig = config;
+        mLimiter = getLimiter(keyserver, config);
+        mCancelled = cancelled;
+    }
+
+    private static Limiter getLimiter(String keyserver, Config config) {
+        String key = keyserver + " " + config.mName;
+        synchronized (sLimiters) {
+            Limiter limiter = sLimiters.get(key);
+            if (limiter == null) {
+                limiter = new Limiter(config);
+                sLimiters.put(key, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Refreshes all given keys, and marks each one done in the queue once it was refreshed or
+     * failed for good. Returns the accumulated result, or a cancelled one if the refresh was
+     * cancelled before all keys were done.
+     */
+    public ImportKeyResult run(List<ParcelableKeyRing> keys, final KeyRefresher refresher,
+                               final KeyRefreshQueue queue) {
+        final ConcurrentLinkedQueue<ParcelableKeyRing> pending = new ConcurrentLinkedQueue<>(keys);
+        final ImportOperation.KeyImportAccumulator accumulator =
+                new ImportOperation.KeyImportAccumulator(keys.size(), null);
+
+        int workers = Math.max(1, Math.min(mConfig.mConcurrency, keys.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        ArrayList<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ParcelableKeyRing keyRing;
+                    while (!isCancelled() && (keyRing = pending.poll()) != null) {
+                        ImportKeyResult result = refreshWithRetries(keyRing, refresher);
+                        if (result == null || result.cancelled()) {
+                            return;
+                        }
+                        synchronized (accumulator) {
+                            accumulator.accumulateKeyImport(result);
+                        }
+                        if (queue != null) {
+                            queue.markDone(keyRing);
+                        }
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "Error in key refresh", e);
+            mCancelled.set(true);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (isCancelled()) {
+            return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
+                    new OperationResult.OperationLog());
+        }
+        return accumulator.getConsolidatedResult();
+    }
+
+    /** Returns the result of the last attempt, or null if cancelled while waiting. */
+    private ImportKeyResult refreshWithRetries(ParcelableKeyRing keyRing, KeyRefresher refresher) {
+        for (int attempt = 1; ; attempt++) {
+            ImportKeyResult result;
+            try {
+                mLimiter.mPermits.acquire();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            try {
+                if (!sleep(mLimiter.reserve(mRandom))) {
+                    return null;
+                }
+                Log.d(Constants.TAG, "Refreshing key " + keyRing.mExpectedFingerprint
+                        + ", attempt " + attempt);
+                result = refresher.refresh(keyRing);
+            } finally {
+                mLimiter.mPermits.release();
+            }
+
+            if (attempt >= mConfig.mMaxAttempts || !isRetryable(result)) {
+                return result;
+            }
+            if (!sleep(getBackoff(attempt))) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A retrieval which failed because the keyserver was temporarily unavailable. Keys which
+     * aren't on the keyserver, or couldn't be saved, fail the same way on every attempt.
+     */
+    static boolean isRetryable(ImportKeyResult result) {
+        return result != null && !result.cancelled() && result.mBadKeys > 0
+                && result.getLog().containsType(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_UNAVAILABLE);
+    }
+
+    /** Exponential backoff, of which the second half is random. */
+    long getBackoff(int attempt) {
+        long backoff = mConfig.mBackoffMillis << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > mConfig.mMaxBackoffMillis) {
+            backoff = mConfig.mMaxBackoffMillis;
+        }
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+
+    private boolean isCancelled() {
+        return mCancelled.get() || Thread.currentThread().isInterrupted();
+    }
+
+    /** Sleeps for the given time, returning early with false if cancelled meanwhile. */
+    private boolean sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long left;
+        while ((left = end - System.currentTimeMillis()) > 0) {
+            if (isCancelled()) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(left, 500));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !isCancelled();
+    }
+
+    /** The limits of requests to a single keyserver. */
+    static class Limiter {
+        final Semaphore mPermits;
+        final TokenBucket mBucket;
+        private final long mSpacingMillis;
+        private final long mJitterMillis;
+        private long mNextRequestMillis = 0;
+
+        Limiter(Config config) {
+            mPermits = new Semaphore(config.mConcurrency, true);
+            mBucket = new TokenBucket(config.mRequestsPerSecond, config.mBurst);
+            mSpacingMillis = config.mSpacingMillis;
+            mJitterMillis = config.mJitterMillis;
+        }
+
+        /** Reserves the next request slot, and returns the time to wait for it. */
+        synchronized long reserve(Random random) {
+            long now = System.currentTimeMillis();
+            long wait = Math.max(mBucket.reserve(), mNextRequestMillis - now);
+            if (mSpacingMillis > 0 || mJitterMillis > 0) {
+                mNextRequestMillis = now + wait + mSpacingMillis
+                        + (long) (random.nextDouble() * mJitterMillis);
+            }
+            return Math.max(wait, 0);
+        }
+    }
+
+    /**
+     * A token bucket which holds up to burst tokens, and gains requestsPerSecond tokens each
+     * second. Reserving a token which isn't there yet takes it in advance, so waiting callers are
+     * served in the order they reserved.
+     */
+    static class TokenBucket {
+        private final double mTokensPerMilli;
+        private final int mBurst;
+        private double mTokens;
+        private long mLastRefill;
+
+        TokenBucket(double requestsPerSecond, int burst) {
+            mTokensPerMilli = requestsPerSecond / 1000;
+            mBurst = burst;
+            mTokens = burst;
+            mLastRefill = now();
+        }
+
+        /** Takes a token, and returns the time in ms until it is actually available. */
+        synchronized long reserve() {
+            long now = now();
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mTokensPerMilli);
+            mLastRefill = now;
+
+            mTokens -= 1;
+            if (mTokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-mTokens / mTokensPerMilli);
+        }
+
+        long now() {
+            return System.currentTimeMillis();
+        }
+    }
+
+}
@@ -36,16 +36,21 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.OrbotRequiredDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientRegistry;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
+import java.io.IOException;
+import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.Random;
+import java.util.HashSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -244,7 +249,9 @@ public class KeyserverSyncAdapterService extends Service {
             stopSelf(startId);
         } else {
             Log.d(Constants.TAG, "Keyserver sync completed: Updated: " + result.mUpdatedKeys
-                    + " Failed: " + result.mBadKeys);
+                    + " Failed: " + result.mBadKeys + " Downloaded: " + result.mDownloadedKeys
+                    + " Unchanged: " + result.mSkippedKeys);
+            Log.d(Constants.TAG, "Keyserver connections: " + OkHttpClientRegistry.getConnectionStats());
             // key sync completed successfully, we can stop
             stopSelf(startId);
         }
@@ -278,103 +285,71 @@ public class KeyserverSyncAdapterService extends Service {
                                                                  final CryptoInputParcel cryptoInputParcel) {
         mCancelled.set(false);
 
-        ArrayList<ParcelableKeyRing> keyList = getKeysToUpdate(context);
+        // resume an interrupted sync where it left off, rather than starting over
+        KeyRefreshQueue queue = new KeyRefreshQueue(context.getFilesDir());
+        ArrayList<ParcelableKeyRing> keysToUpdate = getKeysToUpdate(context);
+        ArrayList<ParcelableKeyRing> keyList =
+                queue.resume(TimeUnit.SECONDS.toMillis(SYNC_INTERVAL), keysToUpdate);
+        if (keyList != null) {
+            Log.d(Constants.TAG, "Resuming keyserver sync with " + keyList.size() + " keys left");
+        } else {
+            keyList = keysToUpdate;
+            try {
+                queue.start(keyList);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Error persisting keyserver sync queue", e);
+            }
+        }
 
         if (isUpdateCancelled()) { // if we've already been cancelled
+            queue.close();
             return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
                     new OperationResult.OperationLog());
         }
 
+        final Proxy proxy;
+        KeyRefreshScheduler.Config config;
         if (cryptoInputParcel.getParcelableProxy() == null) {
-            // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
-            if (Preferences.getPreferences(context).getProxyPrefs().torEnabled) {
-                return staggeredUpdate(context, keyList, cryptoInputParcel);
-            } else {
-                return directUpdate(context, keyList, cryptoInputParcel);
+            // no explicit proxy, retrieve from preferences
+            if (!OrbotHelper.isOrbotInRequiredState(context)) {
+                queue.close();
+                return new ImportKeyResult(null,
+                        RequiredInputParcel.createOrbotRequiredOperation(), cryptoInputParcel);
             }
+            Preferences.ProxyPrefs proxyPrefs = Preferences.getPreferences(context).getProxyPrefs();
+            proxy = proxyPrefs.getProxy();
+            // over Tor, space out requests so they are not linkable by circuit
+            config = proxyPrefs.torEnabled
+                    ? KeyRefreshScheduler.Config.forTor(
+                            TimeUnit.SECONDS.toMillis(ORBOT_CIRCUIT_TIMEOUT_SECONDS))
+                    : KeyRefreshScheduler.Config.forDirect();
         } else {
-            return directUpdate(context, keyList, cryptoInputParcel);
+            proxy = cryptoInputParcel.getParcelableProxy().getProxy();
+            config = KeyRefreshScheduler.Config.forDirect();
         }
-    }
 
-    private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                         CryptoInputParcel cryptoInputParcel) {
-        Log.d(Constants.TAG, "Starting normal update");
-        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null);
-        return importOp.execute(
-                new ImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
-    }
-
-    /**
-     * will perform a staggered update of user's keys using delays to ensure new Tor circuits, as
-     * performed by parcimonie. Relevant issue and method at:
-     * https://github.com/open-keychain/open-keychain/issues/1337
-     *
-     * @return result of the sync
-     */
-    private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                            CryptoInputParcel cryptoInputParcel) {
-        Log.d(Constants.TAG, "Starting staggered update");
-        // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
-        // we are limiting our randomness to ORBOT_CIRCUIT_TIMEOUT_SECONDS for now
-        final int WEEK_IN_SECONDS = 0;
-
-        ImportOperation.KeyImportAccumulator accumulator
-                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
-
-        // so that the first key can be updated without waiting. This is so that there isn't a
-        // large gap between a "Start Orbot" notification and the next key update
-        boolean first = true;
-
-        for (ParcelableKeyRing keyRing : keyList) {
-            int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
-            if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT_SECONDS) {
-                waitTime = staggeredTime;
-            } else {
-                waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS
-                        + new Random().nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
-            }
-
-            if (first) {
-                waitTime = 0;
-                first = false;
-            }
-
-            Log.d(Constants.TAG, "Updating key with fingerprint " + keyRing.mExpectedFingerprint +
-                    " with a wait time of " + waitTime + "s");
-            try {
-                Thread.sleep(waitTime * 1000);
-            } catch (InterruptedException e) {
-                Log.e(Constants.TAG, "Exception during sleep between key updates", e);
-                // skip this one
-                continue;
-            }
-            ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
-            keyWrapper.add(keyRing);
-            if (isUpdateCancelled()) {
-                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
-                        new OperationResult.OperationLog());
-            }
-            ImportKeyResult result =
-                    new ImportOperation(context, new ProviderHelper(context), null, mCancelled)
-                            .execute(
-                                    new ImportKeyringParcel(
-                                            keyWrapper,
-                                            Preferences.getPreferences(context)
-                                                    .getPreferredKeyserver()
-                                    ),
-                                    cryptoInputParcel
-                            );
-            if (result.isPending()) {
-                return result;
-            }
-            accumulator.accumulateKeyImport(result);
+        final String keyserver = Preferences.getPreferences(context).getPreferredKeyserver();
+        // shared, so saves of all workers are serialized by synchronizing on it
+        final ProviderHelper providerHelper = new ProviderHelper(context);
+        Log.d(Constants.TAG, "Starting " + config.mName + " update of " + keyList.size() + " keys");
+
+        ImportKeyResult result = new KeyRefreshScheduler(keyserver, config, mCancelled).run(keyList,
+                new KeyRefreshScheduler.KeyRefresher() {
+                    @Override
+                    public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                        return new ImportOperation(context, providerHelper, null, mCancelled)
+                                .serialKeyRingImport(Collections.singletonList(keyRing).iterator(),
+                                        1, keyserver, proxy);
+                    }
+                }, queue);
+
+        if (result.cancelled()) {
+            queue.close();
+        } else {
+            queue.finish();
         }
-        return accumulator.getConsolidatedResult();
+        ContactSyncAdapterService.requestContactsSync();
+        return result;
     }
 
     /**
@@ -404,7 +379,7 @@ public class KeyserverSyncAdapterService extends Service {
                 null
         );
 
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
+        HashSet<Long> ignoreMasterKeyIds = new HashSet<>();
         while (updatedKeysCursor != null && updatedKeysCursor.moveToNext()) {
             long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
             Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
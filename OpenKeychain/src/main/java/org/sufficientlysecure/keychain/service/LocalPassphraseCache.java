@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.SuspendedSignatureCache;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * An in-process mirror of the passphrases held by PassphraseCacheService.
+ *
+ * The PassphraseCacheService runs in its own process, so each lookup from there requires a
+ * round trip through the service, plus a database query for the type of the requested key.
+ * This class keeps the results of such lookups in a concurrent map, so that repeated lookups
+ * from the same process come down to a lock-free map access.
+ *
+ * The service stays the authority on which passphrases are cached. Entries in this class expire
+ * after at most MAX_TTL_MILLIS, or earlier if their passphrase times out in the service. They
+ * are dropped immediately when the service removes passphrases from its cache, when the screen
+ * is turned off, or when any keyring in the database changes. The UnlockedKeyCache of this
+ * process is cleared along with it. So is the SuspendedSignatureCache, except on keyring
+ * changes.
+ *
+ * Each clear starts a new generation. A lookup from the service which was started before a
+ * clear must not refill the mirror with what it found, so callers pass the generation they
+ * observed before the lookup to put, and entries of an older generation are dropped.
+ */
+public class LocalPassphraseCache {
+
+    /** Maximum time a passphrase is kept in the mirror, without asking the service again. */
+    public static final long MAX_TTL_MILLIS = 60 * 1000;
+
+    private static volatile LocalPassphraseCache sInstance;
+
+    private final ConcurrentHashMap<CacheKey, CachedEntry> mEntries = new ConcurrentHashMap<>();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public static LocalPassphraseCache getInstance(Context context) {
+        LocalPassphraseCache instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (LocalPassphraseCache.class) {
+            if (sInstance == null) {
+                LocalPassphraseCache cache = new LocalPassphraseCache();
+                cache.registerInvalidation(context.getApplicationContext());
+                sInstance = cache;
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the instance of this process, or null if there is none yet. In that case, no
+     * passphrase has been looked up from this process.
+     */
+    public static LocalPassphraseCache peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Creates a cache which is not registered for invalidation, and not used for lookups from
+     * PassphraseCacheService. This is only useful for benchmarks and tests, use getInstance.
+     */
+    public LocalPassphraseCache() {
+    }
+
+    private void registerInvalidation(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(Constants.TAG, "LocalPassphraseCache: received " + intent.getAction() + ", clearing");
+                clear();
+                UnlockedKeyCache.getInstance().clear();
+                SuspendedSignatureCache.getInstance().clear();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(receiver, filter);
+
+        // a changed keyring might mean a changed passphrase, or a different secret key type
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                        UnlockedKeyCache.getInstance().clear();
+                    }
+                });
+    }
+
+    /**
+     * Returns a copy of the cached passphrase for the given key ids, or null if there is no
+     * valid entry in this process.
+     */
+    public Passphrase get(long masterKeyId, long subKeyId) {
+        CacheKey key = new CacheKey(masterKeyId, subKeyId);
+        CachedEntry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (now() >= entry.mExpiryTime) {
+            if (mEntries.remove(key, entry)) {
+                entry.wipe();
+            }
+            return null;
+        }
+        char[] passphrase = entry.mPassphrase.clone();
+        // entries are only wiped after removal, so if this one is still mapped our copy is good
+        if (mEntries.get(key) != entry) {
+            Arrays.fill(passphrase, ' ');
+            return null;
+        }
+        return new Passphrase(passphrase);
+    }
+
+    /**
+     * Returns the time at which the cached passphrase for the given key ids expires, in the time
+     * base of SystemClock.elapsedRealtime, if it is equal to the given passphrase. Returns 0 if
+     * no such passphrase is cached.
+     */
+    public long getExpiryTime(long masterKeyId, long subKeyId, Passphrase passphrase) {
+        CachedEntry entry = mEntries.get(new CacheKey(masterKeyId, subKeyId));
+        if (entry == null || now() >= entry.mExpiryTime) {
+            return 0;
+        }
+        // compared on a copy, entries are only wiped after removal
+        char[] cached = entry.mPassphrase.clone();
+        boolean matches = Arrays.equals(cached, passphrase.getCharArray());
+        Arrays.fill(cached, ' ');
+        if (!matches || mEntries.get(new CacheKey(masterKeyId, subKeyId)) != entry) {
+            return 0;
+        }
+        return entry.mExpiryTime;
+    }
+
+    /** Returns the current generation, to be passed to put after a lookup from the service. */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Caches a copy of the passphrase for the given key ids, for at most ttlMillis.
+     */
+    public void put(long masterKeyId, long subKeyId, Passphrase passphrase, long ttlMillis) {
+        put(masterKeyId, subKeyId, passphrase, ttlMillis, getGeneration());
+    }
+
+    /**
+     * Caches a copy of the passphrase for the given key ids, for at most ttlMillis, unless the
+     * cache was cleared since the given generation.
+     */
+    public void put(long masterKeyId, long subKeyId, Passphrase passphrase, long ttlMillis,
+                    int generation) {
+        if (passphrase == null || ttlMillis <= 0 || generation != mGeneration.get()) {
+            return;
+        }
+        long expiryTime = now() + Math.min(ttlMillis, MAX_TTL_MILLIS);
+        CacheKey key = new CacheKey(masterKeyId, subKeyId);
+        CachedEntry entry = new CachedEntry(passphrase.getCharArray().clone(), expiryTime);
+        CachedEntry oldEntry = mEntries.put(key, entry);
+        if (oldEntry != null) {
+            oldEntry.wipe();
+        }
+        // a clear which raced with this put might have missed the new entry
+        if (generation != mGeneration.get() && mEntries.remove(key, entry)) {
+            entry.wipe();
+        }
+    }
+
+    /** Removes all passphrases from this process, overwriting them in memory. */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        Iterator<Entry<CacheKey, CachedEntry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            CachedEntry entry = it.next().getValue();
+            it.remove();
+            entry.wipe();
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static class CacheKey {
+        private final long mMasterKeyId;
+        private final long mSubKeyId;
+
+        CacheKey(long masterKeyId, long subKeyId) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return mMasterKeyId == that.mMasterKeyId && mSubKeyId == that.mSubKeyId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mMasterKeyId ^ (mMasterKeyId >>> 32))
+                    + (int) (mSubKeyId ^ (mSubKeyId >>> 32));
+        }
+    }
+
+    private static class CachedEntry {
+        private final char[] mPassphrase;
+        private final long mExpiryTime;
+
+        CachedEntry(char[] passphrase, long expiryTime) {
+            mPassphrase = passphrase;
+            mExpiryTime = expiryTime;
+        }
+
+        void wipe() {
+            Arrays.fill(mPassphrase, ' ');
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
@@ -40,7 +41,9 @@ import android.support.v4.util.LongSparseArray;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -73,6 +76,11 @@ import java.util.Date;
  * rare occurrence, and caching by keyring is what the user expects in the vast majority of
  * cases, this is not the default behavior.
  *
+ * Lookups are answered from a LocalPassphraseCache in the calling process if possible, which
+ * mirrors the results of earlier lookups from this service. The service remains responsible for
+ * timeouts and the notification, and broadcasts BROADCAST_ACTION_PASSPHRASE_CACHE_CHANGED
+ * whenever passphrases are removed, so that the mirrors can be cleared.
+ *
  */
 public class PassphraseCacheService extends Service {
 
@@ -85,6 +93,8 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_CHANGED = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_CHANGED";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -101,6 +111,9 @@ public class PassphraseCacheService extends Service {
     private BroadcastReceiver mIntentReceiver;
 
     private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+    // secret key types by subkey id, cleared whenever a keyring changes
+    private LongSparseArray<SecretKeyType> mKeyTypeCache = new LongSparseArray<>();
+    private ContentObserver mKeyRingObserver;
 
     Context mContext;
 
@@ -139,6 +152,9 @@ public class PassphraseCacheService extends Service {
     public static void clearCachedPassphrase(Context context, long masterKeyId, long subKeyId) {
         Log.d(Constants.TAG, "PassphraseCacheService.clearCachedPassphrase() for " + masterKeyId);
 
+        LocalPassphraseCache.getInstance(context).clear();
+        UnlockedKeyCache.getInstance().clear();
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_CLEAR);
 
@@ -151,6 +167,9 @@ public class PassphraseCacheService extends Service {
     public static void clearCachedPassphrases(Context context) {
         Log.d(Constants.TAG, "PassphraseCacheService.clearCachedPassphrase()");
 
+        LocalPassphraseCache.getInstance(context).clear();
+        UnlockedKeyCache.getInstance().clear();
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_CLEAR);
 
@@ -158,12 +177,39 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory. If it has been looked up from this process recently,
+     * it is returned from the in-process cache. Otherwise, an intent is sent to the service, and
+     * this method waits until the service returns the passphrase.
      *
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
     public static Passphrase getCachedPassphrase(Context context, long masterKeyId, long subKeyId) throws KeyNotFoundException {
+        LocalPassphraseCache localCache = LocalPassphraseCache.getInstance(context);
+        Passphrase passphrase = localCache.get(masterKeyId, subKeyId);
+        if (passphrase != null) {
+            return passphrase;
+        }
+
+        int generation = localCache.getGeneration();
+        Bundle returnData = getCachedPassphraseFromService(context, masterKeyId, subKeyId);
+        passphrase = returnData.getParcelable(EXTRA_PASSPHRASE);
+        if (passphrase != null) {
+            long ttlMillis = returnData.getLong(EXTRA_TTL, -1);
+            localCache.put(masterKeyId, subKeyId, passphrase,
+                    ttlMillis >= 0 ? ttlMillis : LocalPassphraseCache.MAX_TTL_MILLIS, generation);
+        }
+        return passphrase;
+    }
+
+    /**
+     * Gets a cached passphrase by sending an intent to the service, bypassing the in-process
+     * cache. This method is designed to wait until the service returns the passphrase.
+     *
+     * @return a bundle with the passphrase, which is null if it is not cached, and the
+     * remaining time to live in milliseconds, or -1 if it doesn't time out.
+     */
+    public static Bundle getCachedPassphraseFromService(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
@@ -212,7 +258,7 @@ public class PassphraseCacheService extends Service {
             case MSG_PASSPHRASE_CACHE_GET_OKAY:
                 Bundle returnData = returnMessage.getData();
                 returnData.setClassLoader(context.getClassLoader());
-                return returnData.getParcelable(EXTRA_PASSPHRASE);
+                return returnData;
             case MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND:
                 throw new KeyNotFoundException();
             default:
@@ -224,7 +270,7 @@ public class PassphraseCacheService extends Service {
     /**
      * Internal implementation to get cached passphrase.
      */
-    private Passphrase getCachedPassphraseImpl(long masterKeyId, long subKeyId) throws ProviderHelper.NotFoundException {
+    private CachedPassphrase getCachedPassphraseImpl(long masterKeyId, long subKeyId) throws ProviderHelper.NotFoundException {
         // on "none" key, just do nothing
         if (masterKeyId == Constants.key.none) {
             return null;
@@ -233,24 +279,18 @@ public class PassphraseCacheService extends Service {
         // passphrase for symmetric encryption?
         if (masterKeyId == Constants.key.symmetric) {
             Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
-            CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
-            if (cachedPassphrase == null) {
-                return null;
-            }
-            return cachedPassphrase.mPassphrase;
+            return mPassphraseCache.get(Constants.key.symmetric);
         }
 
         // try to get master key id which is used as an identifier for cached passphrases
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphraseImpl() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
-        // get the type of key (from the database)
-        CachedPublicKeyRing keyRing = new ProviderHelper(this).getCachedPublicKeyRing(masterKeyId);
-        SecretKeyType keyType = keyRing.getSecretKeyType(subKeyId);
+        SecretKeyType keyType = getSecretKeyType(masterKeyId, subKeyId);
 
         switch (keyType) {
             case PASSPHRASE_EMPTY:
-                return new Passphrase("");
+                return CachedPassphrase.getPassphraseNoTimeout(new Passphrase(""), null);
             case UNAVAILABLE:
                 throw new ProviderHelper.NotFoundException("secret key for this subkey is not available");
             case GNU_DUMMY:
@@ -284,7 +324,18 @@ public class PassphraseCacheService extends Service {
 
         }
 
-        return cachedPassphrase.mPassphrase;
+        return cachedPassphrase;
+    }
+
+    /** Gets the type of a secret key, from the database or from the cache of key types. */
+    private SecretKeyType getSecretKeyType(long masterKeyId, long subKeyId) throws ProviderHelper.NotFoundException {
+        SecretKeyType keyType = mKeyTypeCache.get(subKeyId);
+        if (keyType == null) {
+            CachedPublicKeyRing keyRing = new ProviderHelper(this).getCachedPublicKeyRing(masterKeyId);
+            keyType = keyRing.getSecretKeyType(subKeyId);
+            mKeyTypeCache.put(subKeyId, keyType);
+        }
+        return keyType;
     }
 
     /**
@@ -368,9 +419,9 @@ public class PassphraseCacheService extends Service {
                 } else if (timeoutTtl >= Integer.MAX_VALUE) {
                     cachedPassphrase = CachedPassphrase.getPassphraseNoTimeout(passphrase, primaryUserID);
                 } else {
-                    cachedPassphrase = CachedPassphrase.getPassphraseTtlTimeout(passphrase, primaryUserID, timeoutTtl);
-
                     long triggerTime = new Date().getTime() + (timeoutTtl * 1000);
+                    cachedPassphrase = CachedPassphrase.getPassphraseTtlTimeout(passphrase, primaryUserID, triggerTime);
+
                     // register new alarm with keyId for this passphrase
                     AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
                     am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
@@ -392,10 +443,13 @@ public class PassphraseCacheService extends Service {
                         Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
                         msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                     } else {
-                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
+                        CachedPassphrase cachedPassphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
                         msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         Bundle bundle = new Bundle();
-                        bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
+                        if (cachedPassphrase != null) {
+                            bundle.putParcelable(EXTRA_PASSPHRASE, cachedPassphrase.mPassphrase);
+                            bundle.putLong(EXTRA_TTL, cachedPassphrase.getRemainingTtlMillis());
+                        }
                         msg.setData(bundle);
                     }
                 } catch (ProviderHelper.NotFoundException e) {
@@ -424,6 +478,7 @@ public class PassphraseCacheService extends Service {
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
+                    notifyCacheChanged();
 
                 } else {
 
@@ -435,6 +490,7 @@ public class PassphraseCacheService extends Service {
                         }
                     }
                     mPassphraseCache.clear();
+                    notifyCacheChanged();
 
                 }
                 break;
@@ -465,6 +521,7 @@ public class PassphraseCacheService extends Service {
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
 
+        notifyCacheChanged();
         updateService();
     }
 
@@ -483,9 +540,17 @@ public class PassphraseCacheService extends Service {
 
         Log.d(Constants.TAG, "PassphraseCacheService Removing all cached-until-lock passphrases from memory!");
 
+        notifyCacheChanged();
         updateService();
     }
 
+    /** Tells the LocalPassphraseCache in all processes to drop their copies. */
+    private void notifyCacheChanged() {
+        Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_CHANGED);
+        intent.setPackage(getPackageName());
+        sendBroadcast(intent);
+    }
+
     private void updateService() {
         if (mPassphraseCache.size() > 0) {
             startForeground(Constants.Notification.PASSPHRASE_CACHE, getNotification());
@@ -545,6 +610,15 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
 
         registerReceiver();
+
+        // handled on the main thread, like all other accesses to the caches
+        mKeyRingObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mKeyTypeCache.clear();
+            }
+        };
+        getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, mKeyRingObserver);
     }
 
     @Override
@@ -553,6 +627,7 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService, onDestroy()");
 
         unregisterReceiver(mIntentReceiver);
+        getContentResolver().unregisterContentObserver(mKeyRingObserver);
     }
 
     @Override
@@ -576,6 +651,7 @@ public class PassphraseCacheService extends Service {
         private String mPrimaryUserId;
         private Passphrase mPassphrase;
         private TimeoutMode mTimeoutMode;
+        // absolute time in milliseconds, only for TimeoutMode.TTL
         private Long mTimeoutTime;
 
         private CachedPassphrase(Passphrase passphrase, String primaryUserId, TimeoutMode timeoutMode, Long timeoutTime) {
@@ -585,6 +661,14 @@ public class PassphraseCacheService extends Service {
             mTimeoutTime = timeoutTime;
         }
 
+        /** @return remaining time until this passphrase times out, or -1 if it doesn't. */
+        long getRemainingTtlMillis() {
+            if (mTimeoutMode != TimeoutMode.TTL || mTimeoutTime == null) {
+                return -1;
+            }
+            return Math.max(0, mTimeoutTime - new Date().getTime());
+        }
+
         static CachedPassphrase getPassphraseNoTimeout(Passphrase passphrase, String primaryUserId) {
             return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.NEVER, null);
         }
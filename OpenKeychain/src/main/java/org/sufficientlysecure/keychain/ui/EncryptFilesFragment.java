@@ -623,6 +623,10 @@ public class EncryptFilesFragment
         SignEncryptParcel data = new SignEncryptParcel();
 
         data.addInputUris(mFilesAdapter.getAsArrayList());
+        // a single file can't be processed in parallel, but its stages can
+        data.setParallel(true);
+        data.setPipelined(mFilesAdapter.getModelCount() == 1);
+        data.setResumable(true);
 
         if (mUseCompression) {
             data.setCompressionAlgorithm(
@@ -18,11 +18,14 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysList;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
@@ -35,6 +38,7 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
@@ -108,6 +112,35 @@ public class ImportKeysListCloudLoader
         super.deliverResult(data);
     }
 
+    /**
+     * Delivers the results found so far whenever a keyserver answers, so the list fills up
+     * progressively instead of waiting for the slowest keyserver. Deliveries are posted to the
+     * main thread, where they are handled before the final result of this loader.
+     *
+     * Later batches are merged into the entries of earlier ones, so each delivery is a snapshot
+     * of copies, and entries which are already shown are never modified in the background.
+     */
+    private class PartialResultDeliverer implements CloudSearch.SearchListener {
+        private final ImportKeysList mPartialResults = new ImportKeysList(0);
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void onSearchResults(Keyserver keyserver, List<ImportKeysListEntry> results) {
+            mPartialResults.addAll(results);
+            final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialWrapper =
+                    new AsyncTaskResultWrapper<>(CloudSearch.copyEntries(mPartialResults),
+                            new GetKeyResult(GetKeyResult.RESULT_OK, null));
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isStarted() && !isAbandoned()) {
+                        deliverResult(partialWrapper);
+                    }
+                }
+            });
+        }
+    }
+
     /**
      * Query keyserver
      */
@@ -132,11 +165,15 @@ public class ImportKeysListCloudLoader
             parcelableProxy = mParcelableProxy;
         }
 
+        // with a fingerprint, only the final result is meaningful
+        CloudSearch.SearchListener listener = enforceFingerprint ? null : new PartialResultDeliverer();
+
         try {
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mServerQuery,
                     mCloudPrefs,
-                    parcelableProxy.getProxy()
+                    parcelableProxy.getProxy(),
+                    listener
             );
 
             mEntryList.clear();
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+
+import org.sufficientlysecure.keychain.Constants;
+
+
+/**
+ * A registry of shared OkHttpClients, for all keyserver traffic.
+ *
+ * OkHttp can only reuse a pooled connection for a client with the same proxy and the same
+ * SSLSocketFactory. Creating a fresh client and pinning its certificate for every request
+ * therefore means a fresh TCP and TLS handshake for every request. This class keeps one client
+ * per proxy and pinned certificate, all of them sharing a single connection pool. Clients are
+ * not kept per host, since they don't differ by host apart from pinning, so their number is
+ * bounded by the number of proxies and pinned certificates no matter which hosts are queried.
+ *
+ * The clients returned by getClient are shallow copies, which may be configured freely (e.g.
+ * timeouts or redirects) without affecting other users, while still sharing pooled connections.
+ * Per-host numbers on connection reuse are available from getConnectionStats.
+ */
+public class OkHttpClientRegistry {
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MILLIS = 5 * 60 * 1000;
+
+    private static final ConnectionPool sConnectionPool =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MILLIS);
+
+    private static final ConcurrentHashMap<ClientKey, OkHttpClient> sClients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ConnectionStats> sStats = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a client for the given url, with a pinned certificate if one is available for its
+     * host.
+     *
+     * @param url   url to be queried by client
+     * @param proxy proxy to be used by client, or null to use the system default
+     */
+    public static OkHttpClient getClient(URL url, Proxy proxy) throws IOException {
+        return getClient(url, proxy, false);
+    }
+
+    /**
+     * Returns a client for the given url, which only accepts the pinned certificate for its
+     * host. If no certificate is pinned for the host, this throws an IOException.
+     */
+    public static OkHttpClient getPinnedClient(URL url, Proxy proxy) throws IOException {
+        return getClient(url, proxy, true);
+    }
+
+    private static OkHttpClient getClient(URL url, Proxy proxy, boolean requirePinning)
+            throws IOException {
+        String pinnedHost = TlsHelper.getPinnedHost(url);
+        if (requirePinning && pinnedHost == null) {
+            throw new IOException("no pinned certificate found for URL!");
+        }
+
+        ClientKey key = new ClientKey(proxy, pinnedHost);
+        OkHttpClient client = sClients.get(key);
+        if (client == null) {
+            OkHttpClient newClient = createClient(proxy);
+            try {
+                TlsHelper.usePinnedCertificateIfAvailable(newClient, url);
+            } catch (TlsHelper.TlsHelperException e) {
+                if (requirePinning) {
+                    Log.e(Constants.TAG, "TlsHelper failed", e);
+                    throw new IOException("TlsHelper failed");
+                }
+                // not shared, so pinning is attempted again for the next request
+                Log.w(Constants.TAG, e);
+                return newClient;
+            }
+            client = sClients.putIfAbsent(key, newClient);
+            if (client == null) {
+                client = newClient;
+            }
+        }
+
+        return client.clone();
+    }
+
+    private static OkHttpClient createClient(Proxy proxy) {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(sConnectionPool);
+        client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+        if (proxy != null) {
+            client.setProxy(proxy);
+        }
+
+        // an explicit socket factory, so all unpinned clients share one and can share connections
+        client.setSslSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+
+        client.networkInterceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                String host = chain.request().httpUrl().host();
+                ConnectionStats stats = sStats.get(host);
+                if (stats == null) {
+                    ConnectionStats newStats = new ConnectionStats();
+                    stats = sStats.putIfAbsent(host, newStats);
+                    if (stats == null) {
+                        stats = newStats;
+                    }
+                }
+                stats.onRequest(chain.connection());
+                return chain.proceed(chain.request());
+            }
+        });
+
+        return client;
+    }
+
+    /** Returns a snapshot of connection statistics, by host. */
+    public static Map<String, ConnectionStats> getConnectionStats() {
+        return new HashMap<>(sStats);
+    }
+
+    public static class ConnectionStats {
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mConnections = new AtomicLong();
+        // weak, so connections evicted from the pool can be garbage collected
+        private final Set<Connection> mSeenConnections =
+                Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+        void onRequest(Connection connection) {
+            mRequests.incrementAndGet();
+            synchronized (mSeenConnections) {
+                if (connection == null || mSeenConnections.add(connection)) {
+                    mConnections.incrementAndGet();
+                }
+            }
+        }
+
+        /** Number of requests made to this host. */
+        public long getRequests() {
+            return mRequests.get();
+        }
+
+        /** Number of distinct connections opened to this host. */
+        public long getConnections() {
+            return mConnections.get();
+        }
+
+        /** Number of requests which were made over an already established connection. */
+        public long getReusedConnections() {
+            return mRequests.get() - mConnections.get();
+        }
+
+        @Override
+        public String toString() {
+            return "requests: " + getRequests() + ", connections: " + getConnections()
+                    + ", reused: " + getReusedConnections();
+        }
+    }
+
+    private static class ClientKey {
+        private final Proxy mProxy;
+        private final String mPinnedHost;
+
+        ClientKey(Proxy proxy, String pinnedHost) {
+            mProxy = proxy;
+            mPinnedHost = pinnedHost;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey that = (ClientKey) o;
+            return (mProxy == null ? that.mProxy == null : mProxy.equals(that.mProxy))
+                    && (mPinnedHost == null ? that.mPinnedHost == null : mPinnedHost.equals(that.mPinnedHost));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mProxy != null ? mProxy.hashCode() : 0;
+            result = 31 * result + (mPinnedHost != null ? mPinnedHost.hashCode() : 0);
+            return result;
+        }
+    }
+
+}
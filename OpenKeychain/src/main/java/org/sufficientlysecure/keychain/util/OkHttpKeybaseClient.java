@@ -21,8 +21,6 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.OkUrlFactory;
 import com.textuality.keybase.lib.KeybaseUrlConnectionClient;
 
-import org.sufficientlysecure.keychain.Constants;
-
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
@@ -34,38 +32,24 @@ import java.util.concurrent.TimeUnit;
  */
 public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
 
-    private OkUrlFactory generateUrlFactory() {
-        OkHttpClient client = new OkHttpClient();
-        return new OkUrlFactory(client);
-    }
-
     @Override
     public URLConnection openConnection(URL url, Proxy proxy, boolean isKeybase) throws IOException {
-        OkUrlFactory factory = generateUrlFactory();
+        // forced the usage of api.keybase.io pinned certificate
+        OkHttpClient client = isKeybase
+                ? OkHttpClientRegistry.getPinnedClient(url, proxy)
+                : OkHttpClientRegistry.getClient(url, proxy);
+
         if (proxy != null) {
-            factory.client().setProxy(proxy);
-            factory.client().setConnectTimeout(30000, TimeUnit.MILLISECONDS);
-            factory.client().setReadTimeout(40000, TimeUnit.MILLISECONDS);
+            client.setConnectTimeout(30000, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(40000, TimeUnit.MILLISECONDS);
         } else {
-            factory.client().setConnectTimeout(5000, TimeUnit.MILLISECONDS);
-            factory.client().setReadTimeout(25000, TimeUnit.MILLISECONDS);
+            client.setConnectTimeout(5000, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
-        factory.client().setFollowSslRedirects(false);
-
-        // forced the usage of api.keybase.io pinned certificate
-        if (isKeybase) {
-            try {
-                if (!TlsHelper.usePinnedCertificateIfAvailable(factory.client(), url)) {
-                    throw new IOException("no pinned certificate found for URL!");
-                }
-            } catch (TlsHelper.TlsHelperException e) {
-                Log.e(Constants.TAG, "TlsHelper failed", e);
-                throw new IOException("TlsHelper failed");
-            }
-        }
+        client.setFollowSslRedirects(false);
 
-        return factory.open(url);
+        return new OkUrlFactory(client).open(url);
     }
 
     @Override
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.sufficientlysecure.keychain.Constants;
+
+
+/**
+ * An OutputStream which writes to the wrapped stream on a thread of its own, so the work of the
+ * wrapped stream (e.g. compression, encryption or armoring) runs concurrently to the work of the
+ * writing thread.
+ * <p/>
+ * Data is handed over in fixed-size buffers through a bounded queue, and the buffers are recycled
+ * once written. Since the data is written in the same order, the output of the wrapped stream is
+ * the same as if it was written to directly.
+ * <p/>
+ * Like the stream generators of Bouncy Castle, closing this stream does not close the wrapped
+ * stream: close() waits until all data is written, so the wrapped stream can be finished by the
+ * calling thread afterwards. Errors of the wrapped stream are thrown by the next write, flush or
+ * close.
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    private static final Chunk FLUSH = new Chunk(0);
+    private static final Chunk CLOSE = new Chunk(0);
+
+    private final OutputStream mOut;
+    private final ArrayBlockingQueue<Chunk> mFilled;
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final Thread mThread;
+
+    private Chunk mCurrent;
+    private boolean mClosed;
+    // after detach, data is written to the wrapped stream directly
+    private boolean mDetached;
+    private volatile IOException mError;
+
+    public PipelinedOutputStream(OutputStream out, String name) {
+        this(out, name, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    public PipelinedOutputStream(OutputStream out, String name, int bufferSize, int bufferCount) {
+        mOut = out;
+        // room for all buffers plus a flush and the close marker, so a put never blocks for long
+        mFilled = new ArrayBlockingQueue<>(bufferCount + 2);
+        mFree = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount - 1; i++) {
+            mFree.add(new Chunk(bufferSize));
+        }
+        mCurrent = new Chunk(bufferSize);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Chunk chunk = mFilled.take();
+                if (chunk == CLOSE) {
+                    return;
+                }
+                // after an error, the data is dropped but buffers are still recycled, so the
+                // writing thread never blocks before it sees the error
+                if (mError == null) {
+                    try {
+                        if (chunk == FLUSH) {
+                            mOut.flush();
+                        } else {
+                            mOut.write(chunk.mData, 0, chunk.mLength);
+                        }
+                    } catch (IOException e) {
+                        mError = e;
+                    } catch (RuntimeException e) {
+                        Log.e(Constants.TAG, "Error in output pipeline", e);
+                        mError = new IOException(e);
+                    }
+                }
+                if (chunk != FLUSH) {
+                    chunk.mLength = 0;
+                    mFree.put(chunk);
+                }
+            }
+        } catch (InterruptedException e) {
+            // aborted
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkState();
+        if (mDetached) {
+            mOut.write(b);
+            return;
+        }
+        if (mCurrent.mLength == mCurrent.mData.length) {
+            handOver();
+        }
+        mCurrent.mData[mCurrent.mLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkState();
+        if (mDetached) {
+            mOut.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (mCurrent.mLength == mCurrent.mData.length) {
+                handOver();
+            }
+            int n = Math.min(len, mCurrent.mData.length - mCurrent.mLength);
+            System.arraycopy(b, off, mCurrent.mData, mCurrent.mLength, n);
+            mCurrent.mLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Hands the buffered data over to the wrapped stream, which is flushed once it is written. */
+    @Override
+    public void flush() throws IOException {
+        checkState();
+        if (mDetached) {
+            mOut.flush();
+            return;
+        }
+        if (mCurrent.mLength > 0) {
+            handOver();
+        }
+        put(FLUSH);
+    }
+
+    /** Waits until all data is written to the wrapped stream, which is not closed. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            checkState();
+            if (!mDetached) {
+                drainAndStop();
+            }
+        } finally {
+            mClosed = true;
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all data is written to the wrapped stream, and stops the thread. Further data
+     * is written to the wrapped stream directly, by the calling thread. This is for streams which
+     * are kept open for a long time, without any data to write.
+     */
+    public void detach() throws IOException {
+        checkState();
+        if (mDetached) {
+            return;
+        }
+        try {
+            drainAndStop();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        mDetached = true;
+        // the buffers are not needed anymore
+        mCurrent = null;
+        mFree.clear();
+    }
+
+    private void drainAndStop() throws IOException {
+        if (mCurrent.mLength > 0) {
+            handOver();
+        }
+        put(CLOSE);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for output pipeline");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /** Stops writing without waiting for the data, e.g. after an error of the writing thread. */
+    public void abort() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    private void handOver() throws IOException {
+        put(mCurrent);
+        try {
+            mCurrent = mFree.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for output pipeline");
+        }
+        checkState();
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            mFilled.put(chunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for output pipeline");
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (mClosed) {
+            throw new IOException("output pipeline is closed");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private static class Chunk {
+        final byte[] mData;
+        int mLength;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+}
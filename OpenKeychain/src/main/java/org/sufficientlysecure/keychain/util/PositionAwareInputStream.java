@@ -32,7 +32,9 @@ public class PositionAwareInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         int ch = mStream.read();
-        ++mPosition;
+        if (ch >= 0) {
+            ++mPosition;
+        }
         return ch;
     }
 
@@ -54,14 +56,18 @@ public class PositionAwareInputStream extends InputStream {
     @Override
     public int read(byte[] b) throws IOException {
         int result = mStream.read(b);
-        mPosition += result;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
         int result = mStream.read(b, offset, length);
-        mPosition += result;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
@@ -81,16 +81,29 @@ public class TlsHelper {
      * @throws IOException
      */
     public static boolean usePinnedCertificateIfAvailable(OkHttpClient client, URL url) throws TlsHelperException, IOException {
-        if (url.getProtocol().equals("https")) {
+        String host = getPinnedHost(url);
+        if (host != null) {
             // use certificate PIN from assets if we have one
+            pinCertificate(sPinnedCertificates.get(host), client);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the host a pinned certificate was added for, if it applies to this URL.
+     *
+     * @return the host of the matching pinned certificate, or null if there is none
+     */
+    public static String getPinnedHost(URL url) {
+        if (url.getProtocol().equals("https")) {
             for (String host : sPinnedCertificates.keySet()) {
                 if (url.getHost().endsWith(host)) {
-                    pinCertificate(sPinnedCertificates.get(host), client);
-                    return true;
+                    return host;
                 }
             }
         }
-        return false;
+        return null;
     }
 
     /**
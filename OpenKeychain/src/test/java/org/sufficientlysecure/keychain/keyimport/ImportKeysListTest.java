@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ImportKeysListTest {
+
+    static final int NUM_ENTRIES = 10000;
+
+    private static ImportKeysListEntry createEntry(int i, String origin, String userId) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setFingerprintHex(String.format("%040x", i));
+        entry.setKeyIdHex(String.format("0x%016x", i));
+        entry.setUserIds(new ArrayList<>(Arrays.asList(userId)));
+        entry.addOrigin(origin);
+        return entry;
+    }
+
+    @Test
+    public void testMergeDupes() throws Exception {
+        ImportKeysList list = new ImportKeysList(2);
+
+        list.add(createEntry(1, "hkp", "Alice <alice@example.com>"));
+        ImportKeysListEntry keybaseEntry = createEntry(1, "keybase", "alice on keybase");
+        keybaseEntry.setKeybaseName("alice");
+        keybaseEntry.setRevoked(true);
+        list.add(keybaseEntry);
+        list.add(createEntry(2, "hkp", "Bob <bob@example.com>"));
+
+        Assert.assertEquals("entries with the same fingerprint must be merged", 2, list.size());
+        ImportKeysListEntry merged = list.get(0);
+        Assert.assertEquals("merged entry must have user ids of both sources",
+                Arrays.asList("Alice <alice@example.com>", "alice on keybase"), merged.getUserIds());
+        Assert.assertEquals("merged entry must have origins of both sources",
+                Arrays.asList("hkp", "keybase"), merged.getOrigins());
+        Assert.assertEquals("merged entry must keep keybase name", "alice", merged.getKeybaseName());
+        Assert.assertTrue("merged entry must be revoked if any source says so", merged.isRevoked());
+
+        list.remove(0);
+        list.add(createEntry(1, "hkp", "Alice <alice@example.com>"));
+        Assert.assertEquals("entry must not be merged after its dupe was removed", 2, list.size());
+
+        list.clear();
+        list.add(createEntry(2, "hkp", "Bob <bob@example.com>"));
+        Assert.assertEquals("entry must not be merged after list was cleared", 1, list.size());
+    }
+
+    @Test
+    public void testMergeCopies() throws Exception {
+        ArrayList<ImportKeysListEntry> hkpBatch = new ArrayList<>();
+        hkpBatch.add(createEntry(1, "hkp", "Alice <alice@example.com>"));
+        ArrayList<ImportKeysListEntry> keybaseBatch = new ArrayList<>();
+        keybaseBatch.add(createEntry(1, "keybase", "alice on keybase"));
+
+        // as in a cloud search, where partial results are merged separately from the final ones
+        ImportKeysList partial = new ImportKeysList(0);
+        ImportKeysList results = new ImportKeysList(2);
+        partial.addAll(CloudSearch.copyEntries(hkpBatch));
+        results.addAll(hkpBatch);
+        ArrayList<ImportKeysListEntry> shown = CloudSearch.copyEntries(partial);
+        partial.addAll(CloudSearch.copyEntries(keybaseBatch));
+        results.addAll(keybaseBatch);
+
+        Assert.assertEquals("final entry must have each origin once",
+                Arrays.asList("hkp", "keybase"), results.get(0).getOrigins());
+        Assert.assertEquals("partial entry must have each origin once",
+                Arrays.asList("hkp", "keybase"), partial.get(0).getOrigins());
+        Assert.assertEquals("shown snapshot must not be modified by later merges",
+                Arrays.asList("hkp"), shown.get(0).getOrigins());
+        Assert.assertEquals("shown snapshot must not be modified by later merges",
+                Arrays.asList("Alice <alice@example.com>"), shown.get(0).getUserIds());
+    }
+
+    @Test
+    public void testMergeManyEntries() throws Exception {
+        ArrayList<ImportKeysListEntry> hkpEntries = new ArrayList<>(NUM_ENTRIES);
+        ArrayList<ImportKeysListEntry> keybaseEntries = new ArrayList<>(NUM_ENTRIES);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            hkpEntries.add(createEntry(i, "hkp", "user " + i + " <user" + i + "@example.com>"));
+            // half of these are dupes of hkp entries
+            keybaseEntries.add(createEntry(i + NUM_ENTRIES / 2, "keybase", "keybase user " + i));
+        }
+
+        ImportKeysList list = new ImportKeysList(2);
+        long startTime = System.currentTimeMillis();
+        list.addAll(hkpEntries);
+        list.addAll(keybaseEntries);
+        long mergeTime = System.currentTimeMillis() - startTime;
+
+        Log.d(Constants.TAG, "merging " + NUM_ENTRIES + " entries took " + mergeTime + "ms");
+
+        Assert.assertEquals("dupes must be merged", NUM_ENTRIES + NUM_ENTRIES / 2, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            ImportKeysListEntry entry = list.get(i);
+            boolean isDupe = i >= NUM_ENTRIES / 2 && i < NUM_ENTRIES;
+            Assert.assertEquals("entry " + i + " must have user ids of all its sources",
+                    isDupe ? 2 : 1, entry.getUserIds().size());
+            Assert.assertEquals("entry " + i + " must have all its origins",
+                    isDupe ? 2 : 1, entry.getOrigins().size());
+        }
+    }
+
+}
@@ -18,10 +18,12 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -35,9 +37,12 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
@@ -52,6 +57,8 @@ import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
@@ -78,4 +85,50 @@ public class BenchmarkOperationTest {
         op.execute(new BenchmarkInputParcel(), null);
     }
 
+    @Test
+    public void testBackupExportBenchmark() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        // don't log every single import
+        ShadowLog.stream = oldShadowStream;
+        for (UncachedKeyRing ring : KeyringTestingHelper.generatePublicKeyRings(100)) {
+            providerHelper.savePublicKeyRing(ring, new ProgressScaler(), null);
+        }
+        ShadowLog.stream = System.out;
+
+        BackupOperation op = new BackupOperation(RuntimeEnvironment.application, providerHelper, null);
+
+        OperationLog serialLog = new OperationLog();
+        ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+        long startTime = System.currentTimeMillis();
+        Assert.assertTrue("serial export must succeed",
+                op.exportKeysToStream(serialLog, null, false, serialOut, 1));
+        long serialTime = System.currentTimeMillis() - startTime;
+
+        OperationLog parallelLog = new OperationLog();
+        ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+        startTime = System.currentTimeMillis();
+        Assert.assertTrue("parallel export must succeed",
+                op.exportKeysToStream(parallelLog, null, false, parallelOut, 4));
+        long parallelTime = System.currentTimeMillis() - startTime;
+
+        Log.d(Constants.TAG, "export of 100 keyrings: serial " + serialTime + "ms, parallel "
+                + parallelTime + "ms");
+
+        Assert.assertArrayEquals("parallel export must produce the same output as serial export",
+                serialOut.toByteArray(), parallelOut.toByteArray());
+        List<LogEntryParcel> serialEntries = serialLog.toList();
+        List<LogEntryParcel> parallelEntries = parallelLog.toList();
+        Assert.assertEquals("parallel export must produce the same log as serial export",
+                serialEntries.size(), parallelEntries.size());
+        for (int i = 0; i < serialEntries.size(); i++) {
+            LogEntryParcel serialEntry = serialEntries.get(i), parallelEntry = parallelEntries.get(i);
+            Assert.assertEquals("log entries must be in the same order",
+                    serialEntry.mType, parallelEntry.mType);
+            Assert.assertEquals("log entries must have the same indent",
+                    serialEntry.mIndent, parallelEntry.mIndent);
+            Assert.assertArrayEquals("log entries must have the same parameters",
+                    serialEntry.mParameters, parallelEntry.mParameters);
+        }
+    }
+
 }
@@ -20,8 +20,6 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.Iterator;
@@ -72,6 +70,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -288,17 +287,9 @@ public class ExportTest {
         Application spyApplication;
         ContentResolver mockResolver = mock(ContentResolver.class);
 
-        Uri fakePipedUri, fakeOutputUri;
+        Uri fakeOutputUri;
         ByteArrayOutputStream outStream; {
 
-            fakePipedUri = Uri.parse("content://fake/pipe/1");
-            PipedInputStream pipedInStream = new PipedInputStream(8192);
-            PipedOutputStream pipedOutStream = new PipedOutputStream(pipedInStream);
-            when(mockResolver.openOutputStream(fakePipedUri)).thenReturn(pipedOutStream);
-            when(mockResolver.openInputStream(fakePipedUri)).thenReturn(pipedInStream);
-            when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
-                    .thenReturn(fakePipedUri);
-
             fakeOutputUri = Uri.parse("content://fake/out/1");
             outStream = new ByteArrayOutputStream();
             when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
@@ -318,11 +309,12 @@ public class ExportTest {
 
             ExportResult result = op.execute(parcel, null);
 
-            verify(mockResolver).openOutputStream(fakePipedUri);
-            verify(mockResolver).openInputStream(fakePipedUri);
+            // the plaintext export must not be written to a temporary file
+            verify(mockResolver, never()).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
             verify(mockResolver).openOutputStream(fakeOutputUri);
 
             assertTrue("export must succeed", result.success());
+            assertTrue("exported size must be reported", result.mExportedBytes > 0);
             TestingUtils.assertArrayEqualsPrefix("exported data must start with ascii armor header",
                     "-----BEGIN PGP MESSAGE-----\n".getBytes(), outStream.toByteArray());
         }
@@ -377,6 +369,29 @@ public class ExportTest {
 
     }
 
+    @Test(timeout = 60000)
+    public void testExportEncryptedNonExistentKey() throws Exception {
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Uri fakeOutputUri = Uri.parse("content://fake/out/1");
+        when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(new ByteArrayOutputStream());
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        BackupOperation op = new BackupOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        // e.g. a key which was deleted after it was selected for backup
+        BackupKeyringParcel parcel = new BackupKeyringParcel(new Passphrase("abcde"),
+                new long[] { 0x1234567812345678L }, false, fakeOutputUri);
+
+        // with nothing to export, the encryption must not wait for data forever
+        ExportResult result = op.execute(parcel, null);
+
+        assertFalse("export of a non-existent key must fail", result.success());
+        Assert.assertTrue("should contain database error log entry",
+                result.getLog().containsType(LogType.MSG_BACKUP_ERROR_DB));
+    }
 
     /** This function checks whether or not there are any local signatures in a keyring. */
     private boolean checkForLocal(UncachedKeyRing ring) {
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayOutputStream;
+import java.net.Proxy;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyserverKeyState;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/** Tests the import of keys which are unchanged on the keyserver. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ImportOperationTest {
+
+    static final String KEYSERVER = "hkp://keyserver.example.com";
+    static final String OTHER_KEYSERVER = "hkps://other.example.com";
+    static final String NEW_ETAG = "\"new etag\"";
+    static final byte[] CONTENT_HASH = new byte[] { 1, 2, 3 };
+    static final String ETAG = "\"etag\"";
+    static final String LAST_MODIFIED = "Sat, 01 Oct 2016 10:00:00 GMT";
+    static final long LAST_UPDATED = 1000L;
+
+    static UncachedKeyRing mRing;
+
+    ProviderHelper mProviderHelper;
+    long mMasterKeyId;
+    NotModifiedKeyserver mKeyserver;
+    ImportOperation mOperation;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("alice");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mRing = result.getRing().extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mMasterKeyId = mRing.getMasterKeyId();
+
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mRing, new ProgressScaler(), null).success());
+        mProviderHelper.renewKeyLastUpdatedTime(mMasterKeyId,
+                new KeyserverKeyState(KEYSERVER, CONTENT_HASH, ETAG, LAST_MODIFIED),
+                LAST_UPDATED, TimeUnit.SECONDS);
+
+        mKeyserver = new NotModifiedKeyserver();
+        mOperation = new ImportOperation(RuntimeEnvironment.application, mProviderHelper, null) {
+            @Override
+            HkpKeyserver createKeyserver(String keyServerUri, Proxy proxy) {
+                return mKeyserver;
+            }
+        };
+    }
+
+    @Test
+    public void testSerialImportSkipsNotModified() throws Exception {
+        ImportKeyResult result = mOperation.serialKeyRingImport(
+                getEntries().iterator(), 1, KEYSERVER, Proxy.NO_PROXY);
+        assertSkipped(result);
+    }
+
+    @Test
+    public void testPipelinedImportSkipsNotModified() throws Exception {
+        ImportKeyResult result = mOperation.execute(new ImportKeyringParcel(getEntries(), KEYSERVER),
+                new CryptoInputParcel(ParcelableProxy.getForNoProxy()));
+        assertSkipped(result);
+    }
+
+    @Test
+    public void testStateOfOtherKeyserverIsIgnored() throws Exception {
+        ByteArrayOutputStream armored = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(armored);
+        mRing.encode(armorOut);
+        armorOut.close();
+        mKeyserver.mArmoredKey = armored.toString("UTF-8");
+
+        ImportKeyResult result = mOperation.serialKeyRingImport(
+                getEntries().iterator(), 1, OTHER_KEYSERVER, Proxy.NO_PROXY);
+
+        Assert.assertTrue("import must succeed", result.success());
+        Assert.assertNull("state of another keyserver must not be sent along",
+                mKeyserver.mKnownState);
+        Assert.assertEquals("key must be downloaded", 1, result.mDownloadedKeys);
+        Assert.assertEquals("key must not be skipped", 0, result.mSkippedKeys);
+
+        KeyserverKeyState state = mProviderHelper.getKeyserverKeyState(mMasterKeyId, OTHER_KEYSERVER);
+        Assert.assertNotNull("state must be recorded for the new keyserver", state);
+        Assert.assertEquals(NEW_ETAG, state.mETag);
+        Assert.assertNull("state of the old keyserver must be overwritten",
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER));
+    }
+
+    private ArrayList<ParcelableKeyRing> getEntries() {
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(new ParcelableKeyRing(
+                KeyFormattingUtils.convertFingerprintToHex(mRing.getFingerprint()), null));
+        return entries;
+    }
+
+    private void assertSkipped(ImportKeyResult result) throws Exception {
+        Assert.assertTrue("import of an unchanged key must succeed", result.success());
+        Assert.assertEquals("key must be fetched once", 1, mKeyserver.mRequests);
+        Assert.assertNotNull("stored state must be sent along", mKeyserver.mKnownState);
+        Assert.assertEquals("stored etag must be sent along", ETAG, mKeyserver.mKnownState.mETag);
+
+        Assert.assertEquals("unchanged key must be skipped", 1, result.mSkippedKeys);
+        Assert.assertEquals("nothing must be downloaded", 0, result.mDownloadedKeys);
+        Assert.assertEquals("no key must be new", 0, result.mNewKeys);
+        Assert.assertEquals("no key must be updated", 0, result.mUpdatedKeys);
+        Assert.assertEquals("no key must be bad", 0, result.mBadKeys);
+        Assert.assertTrue("skip must be logged",
+                result.getLog().containsType(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED));
+        Assert.assertFalse("unchanged key must not be merged or saved",
+                result.getLog().containsType(LogType.MSG_IP));
+
+        KeyserverKeyState state = mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER);
+        Assert.assertNotNull("state must be kept", state);
+        Assert.assertArrayEquals("content hash must be kept", CONTENT_HASH, state.mContentHash);
+        Assert.assertEquals("etag must be kept", ETAG, state.mETag);
+        Assert.assertEquals("last modified must be kept", LAST_MODIFIED, state.mLastModified);
+
+        Cursor cursor = mProviderHelper.getContentResolver().query(UpdatedKeys.CONTENT_URI,
+                new String[] { UpdatedKeys.LAST_UPDATED }, UpdatedKeys.MASTER_KEY_ID + " = ?",
+                new String[] { Long.toString(mMasterKeyId) }, null);
+        Assert.assertNotNull(cursor);
+        try {
+            Assert.assertEquals("key must have a single updated_keys row", 1, cursor.getCount());
+            cursor.moveToFirst();
+            Assert.assertTrue("last updated time must be renewed",
+                    cursor.getLong(0) > LAST_UPDATED);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A keyserver which answers every conditional request with 304 Not Modified, and
+     * unconditional ones with mArmoredKey, if set.
+     */
+    static class NotModifiedKeyserver extends HkpKeyserver {
+        int mRequests;
+        KeyserverKeyState mKnownState;
+        String mArmoredKey;
+
+        NotModifiedKeyserver() {
+            super("keyserver.example.com", Proxy.NO_PROXY);
+        }
+
+        @Override
+        public GetResult get(String keyIdHex, KeyserverKeyState knownState)
+                throws QueryFailedException {
+            mRequests += 1;
+            mKnownState = knownState;
+            if (knownState == null) {
+                if (mArmoredKey != null) {
+                    return new GetResult(mArmoredKey, NEW_ETAG, null);
+                }
+                throw new QueryFailedException("unconditional request");
+            }
+            return new GetResult(null, knownState.mETag, knownState.mLastModified);
+        }
+
+        @Override
+        public String get(String keyIdHex) throws QueryFailedException {
+            throw new QueryFailedException("unconditional request");
+        }
+    }
+
+}
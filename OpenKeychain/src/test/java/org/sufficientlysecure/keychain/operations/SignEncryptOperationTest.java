@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Date;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.SuspendedSignatureCache;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyChange;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SignEncryptOperationTest {
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("snips");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new ProviderHelper(RuntimeEnvironment.application).saveSecretKeyRing(
+                mStaticRing, new ProgressScaler());
+    }
+
+    @Test
+    public void testParallelSignEncrypt() throws Exception {
+
+        int numFiles = 8;
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        ArrayList<Uri> inputUris = new ArrayList<>(), outputUris = new ArrayList<>();
+        ArrayList<String> plaintexts = new ArrayList<>();
+        ArrayList<ByteArrayOutputStream> outStreams = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            String plaintext = "file " + i + " " + TestingUtils.genPassphrase(true);
+            Uri inputUri = Uri.parse("content://fake/in/" + i);
+            Uri outputUri = Uri.parse("content://fake/out/" + i);
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            when(mockResolver.openInputStream(inputUri)).thenReturn(
+                    new ByteArrayInputStream(plaintext.getBytes()));
+            when(mockResolver.openOutputStream(outputUri)).thenReturn(outStream);
+
+            plaintexts.add(plaintext);
+            inputUris.add(inputUri);
+            outputUris.add(outputUri);
+            outStreams.add(outStream);
+        }
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        SignEncryptParcel input = new SignEncryptParcel();
+        input.addInputUris(inputUris);
+        input.addOutputUris(outputUris);
+        input.setParallel(true);
+        input.setSignatureMasterKeyId(mStaticRing.getMasterKeyId());
+        input.setEncryptionMasterKeyIds(new long[] { mStaticRing.getMasterKeyId() });
+        input.setAdditionalEncryptId(mStaticRing.getMasterKeyId());
+
+        SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        SignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase));
+
+        Assert.assertTrue("sign/encrypt must succeed", result.success());
+        Assert.assertTrue("files must be processed in parallel",
+                result.getLog().containsType(LogType.MSG_SE_PARALLEL));
+        Assert.assertEquals("each file must have a result", numFiles, result.getResults().size());
+        Assert.assertEquals("throughput must count all files", numFiles, result.mProcessedFiles);
+        Assert.assertTrue("throughput must count processed bytes", result.mProcessedBytes > 0);
+        Assert.assertEquals("encryption ids must not be modified per file",
+                1, input.getEncryptionMasterKeyIds().length);
+
+        for (int i = 0; i < numFiles; i++) {
+            ByteArrayInputStream in = new ByteArrayInputStream(outStreams.get(i).toByteArray());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            PgpDecryptVerifyOperation decryptOp = new PgpDecryptVerifyOperation(
+                    RuntimeEnvironment.application, new ProviderHelper(RuntimeEnvironment.application), null);
+            DecryptVerifyResult decryptResult = decryptOp.execute(new PgpDecryptVerifyInputParcel(),
+                    new CryptoInputParcel(mKeyPhrase), new InputData(in, in.available()), out);
+
+            Assert.assertTrue("decryption must succeed", decryptResult.success());
+            Assert.assertEquals("output must be in input order", plaintexts.get(i), out.toString());
+            Assert.assertEquals("signature must be valid",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED,
+                    decryptResult.getSignatureResult().getResult());
+        }
+
+    }
+
+    @Test
+    public void testParallelFailureIsReturned() throws Exception {
+
+        int numFiles = 8, failingFile = 5;
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        ArrayList<Uri> inputUris = new ArrayList<>(), outputUris = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            Uri inputUri = Uri.parse("content://fake/in/" + i);
+            Uri outputUri = Uri.parse("content://fake/out/" + i);
+            if (i == failingFile) {
+                when(mockResolver.openInputStream(inputUri)).thenThrow(new FileNotFoundException());
+            } else {
+                when(mockResolver.openInputStream(inputUri)).thenReturn(
+                        new ByteArrayInputStream(("file " + i).getBytes()));
+            }
+            when(mockResolver.openOutputStream(outputUri)).thenReturn(new ByteArrayOutputStream());
+            inputUris.add(inputUri);
+            outputUris.add(outputUri);
+        }
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        SignEncryptParcel input = new SignEncryptParcel();
+        input.addInputUris(inputUris);
+        input.addOutputUris(outputUris);
+        input.setParallel(true);
+        input.setEncryptionMasterKeyIds(new long[] { mStaticRing.getMasterKeyId() });
+
+        SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        SignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase));
+
+        // however the workers raced, the failure is reported, rather than a cancellation
+        Assert.assertEquals("failure of a file must fail the operation",
+                SignEncryptResult.RESULT_ERROR, result.getResult());
+        Assert.assertTrue("failure of the file must be logged",
+                result.getLog().containsType(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND));
+        Assert.assertFalse("operation must not be reported as cancelled",
+                result.getLog().containsType(LogType.MSG_OPERATION_CANCELLED));
+        Assert.assertTrue("only files before the failing one must have results",
+                result.getResults().size() <= failingFile);
+    }
+
+    @Test
+    public void testStaleTempFilesAreDeleted() throws Exception {
+        File tempFilesDir = SuspendedSignatureCache.getTempFilesDir(RuntimeEnvironment.application);
+        Assert.assertTrue(tempFilesDir.isDirectory() || tempFilesDir.mkdirs());
+        File stale = File.createTempFile("pse", ".tmp", tempFilesDir);
+        // a file of someone else in the cache dir, which happens to look the same
+        File other = File.createTempFile("pse", ".tmp", RuntimeEnvironment.application.getCacheDir());
+
+        // as on startup, after the process was killed while an operation was suspended
+        SuspendedSignatureCache.deleteTempFiles(RuntimeEnvironment.application);
+
+        Assert.assertFalse("temp file of suspended operation must be deleted", stale.exists());
+        Assert.assertTrue("other files must be kept", other.exists());
+        Assert.assertTrue(other.delete());
+    }
+
+    @Test
+    public void testResumableSignEncryptWithToken() throws Exception {
+
+        Passphrase passphrase = TestingUtils.genPassphrase(true);
+        UncachedKeyRing ring;
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+            parcel.mAddUserIds.add("token");
+            parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+            PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+            Assert.assertTrue("token test key creation must succeed", result.success());
+            ring = result.getRing();
+        }
+        long signKeyId = KeyringTestingHelper.getSubkeyId(ring, 1);
+
+        // the private key which the mocked token signs with
+        PGPPrivateKey pgpPrivateKey = new PGPSecretKeyRing(ring.getEncoded(), new JcaKeyFingerprintCalculator())
+                .getSecretKey(signKeyId).extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray()));
+        PrivateKey tokenKey = new JcaPGPKeyConverter()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).getPrivateKey(pgpPrivateKey);
+
+        { // move the signing key to the token, so it diverts to card
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mMasterKeyId = ring.getMasterKeyId();
+            parcel.mFingerprint = ring.getFingerprint();
+            parcel.mChangeSubKeys.add(new SubkeyChange(signKeyId, false, true));
+
+            CryptoInputParcel moveInput = new CryptoInputParcel(new Date(), passphrase);
+            moveInput.addCryptoData(ByteBuffer.allocate(8).putLong(signKeyId).array(), new byte[] {
+                    0x6a, 0x6f, 0x6c, 0x6f, 0x73, 0x77, 0x61, 0x67,
+                    0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            });
+            PgpEditKeyResult result = new PgpKeyOperation(null).modifySecretKeyRing(
+                    new CanonicalizedSecretKeyRing(ring.getEncoded(), false, 0), moveInput, parcel);
+            Assert.assertTrue("moving key to token must succeed", result.success());
+            new ProviderHelper(RuntimeEnvironment.application).saveSecretKeyRing(
+                    result.getRing(), new ProgressScaler());
+        }
+
+        byte[] plaintext = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) ('a' + i % 23);
+        }
+        Uri inputUri = Uri.parse("content://fake/in/large");
+        Uri outputUri = Uri.parse("content://fake/out/large");
+        ByteArrayInputStream firstIn = new ByteArrayInputStream(plaintext);
+        ByteArrayInputStream secondIn = new ByteArrayInputStream(plaintext);
+        ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openInputStream(inputUri)).thenReturn(firstIn, secondIn);
+        when(mockResolver.openOutputStream(outputUri)).thenReturn(firstOut, secondOut);
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        SignEncryptParcel input = new SignEncryptParcel();
+        ArrayList<Uri> inputUris = new ArrayList<>(), outputUris = new ArrayList<>();
+        inputUris.add(inputUri);
+        outputUris.add(outputUri);
+        input.addInputUris(inputUris);
+        input.addOutputUris(outputUris);
+        input.setResumable(true);
+        input.setSignatureMasterKeyId(ring.getMasterKeyId());
+        input.setSignatureSubKeyId(signKeyId);
+        input.setSignatureHashAlgorithm(HashAlgorithmTags.SHA256);
+        input.setEncryptionMasterKeyIds(new long[] { ring.getMasterKeyId() });
+
+        Date signatureTime = new Date();
+        SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        SignEncryptResult result = op.execute(input, new CryptoInputParcel(signatureTime));
+
+        Assert.assertTrue("first pass must wait for the token", result.isPending());
+        RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+        Assert.assertEquals(RequiredInputType.NFC_SIGN, requiredInput.mType);
+        Assert.assertTrue("output must be kept for the second pass",
+                result.getLog().containsType(LogType.MSG_PSE_SUSPENDED));
+        Assert.assertEquals("nothing must be written to the output yet", 0, firstOut.size());
+        Assert.assertEquals(1, SuspendedSignatureCache.getInstance().size());
+
+        // the mocked token: a pkcs#1 signature of the DigestInfo, as an OpenPGP card creates it
+        CryptoInputParcel tokenInput = new CryptoInputParcel(requiredInput.mSignatureTime);
+        for (int i = 0; i < requiredInput.mInputData.length; i++) {
+            Assert.assertEquals(HashAlgorithmTags.SHA256, requiredInput.mSignAlgos[i]);
+            Signature token = Signature.getInstance("NONEwithRSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            token.initSign(tokenKey);
+            token.update(Hex.decode("3031300D060960864801650304020105000420"));
+            token.update(requiredInput.mInputData[i]);
+            tokenInput.addCryptoData(requiredInput.mInputData[i], token.sign());
+        }
+
+        result = op.execute(input, tokenInput);
+
+        Assert.assertTrue("second pass must succeed", result.success());
+        Assert.assertTrue("second pass must only append the signature",
+                result.getLog().containsType(LogType.MSG_PSE_RESUMING));
+        Assert.assertEquals("input must not be read again", plaintext.length, secondIn.available());
+        Assert.assertEquals(0, SuspendedSignatureCache.getInstance().size());
+        File[] tempFiles = SuspendedSignatureCache.getTempFilesDir(RuntimeEnvironment.application).listFiles();
+        Assert.assertTrue("temp file must be deleted", tempFiles == null || tempFiles.length == 0);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(secondOut.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyOperation decryptOp = new PgpDecryptVerifyOperation(
+                RuntimeEnvironment.application, new ProviderHelper(RuntimeEnvironment.application), null);
+        DecryptVerifyResult decryptResult = decryptOp.execute(new PgpDecryptVerifyInputParcel(),
+                new CryptoInputParcel(passphrase), new InputData(in, in.available()), out);
+
+        Assert.assertTrue("decryption must succeed", decryptResult.success());
+        Assert.assertArrayEquals("plaintext must be intact", plaintext, out.toByteArray());
+        Assert.assertEquals("signature from the token must be valid",
+                OpenPgpSignatureResult.RESULT_VALID_CONFIRMED,
+                decryptResult.getSignatureResult().getResult());
+
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.SignatureException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CleartextCanonicalizerTest {
+
+    static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+    ByteArrayOutputStream mText;
+    ByteArrayOutputStream mSigned;
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+        mText = new ByteArrayOutputStream();
+        mSigned = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void testLineEndings() throws Exception {
+        assertCanonical("", "", "\r\n");
+        assertCanonical("a", "a", "a\r\n");
+        assertCanonical("a\n", "a", "a\r\n");
+        assertCanonical("a\n\n", "a\r\n", "a\r\n\r\n");
+        assertCanonical("a\r\nb\rc\nd", "a\r\nb\r\nc\r\nd", "a\r\nb\r\nc\r\nd\r\n");
+        assertCanonical("a\r\rb", "a\r\n\r\nb", "a\r\n\r\nb\r\n");
+        assertCanonical("\n\na", "\r\n\r\na", "\r\n\r\na\r\n");
+    }
+
+    @Test
+    public void testTrailingWhitespace() throws Exception {
+        assertCanonical("   ", "", "\r\n");
+        assertCanonical("a \t \nb\t", "a\r\nb", "a\r\nb\r\n");
+        assertCanonical("a\n  \nb", "a\r\n\r\nb", "a\r\n\r\nb\r\n");
+        assertCanonical(" a b  c \r\n", " a b  c", " a b  c\r\n");
+        // only space and tab are stripped, as in rfc 4880
+        assertCanonical("a\u000b\n", "a\u000b", "a\u000b\r\n");
+    }
+
+    @Test
+    public void testChunkBoundaries() throws Exception {
+        byte[] data = createText(new Random(23), 20000);
+
+        CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer(mText, signedSink(mSigned));
+        canonicalizer.update(data, 0, data.length);
+        canonicalizer.finish();
+        byte[] expectedText = mText.toByteArray(), expectedSigned = mSigned.toByteArray();
+
+        // whitespace runs and CRLF pairs are split across calls in every possible way
+        for (int chunkSize : new int[] { 1, 2, 3, 7, 64, 1000 }) {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            ByteArrayOutputStream signed = new ByteArrayOutputStream();
+            canonicalizer = new CleartextCanonicalizer(text, signedSink(signed));
+            for (int off = 0; off < data.length; off += chunkSize) {
+                canonicalizer.update(data, off, Math.min(chunkSize, data.length - off));
+            }
+            canonicalizer.finish();
+
+            Assert.assertArrayEquals("text must not depend on chunk size " + chunkSize,
+                    expectedText, text.toByteArray());
+            Assert.assertArrayEquals("signed data must not depend on chunk size " + chunkSize,
+                    expectedSigned, signed.toByteArray());
+        }
+    }
+
+    @Test
+    public void testSameAsStringImplementation() throws Exception {
+        byte[] data = createText(new Random(42), 100000);
+
+        CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer(mText, signedSink(mSigned));
+        canonicalizer.update(data, 0, data.length);
+        canonicalizer.finish();
+
+        ByteArrayOutputStream legacyText = new ByteArrayOutputStream();
+        ByteArrayOutputStream legacySigned = new ByteArrayOutputStream();
+        canonicalizeWithStrings(data, legacyText, legacySigned);
+
+        Assert.assertArrayEquals("text must be the same as before",
+                legacyText.toByteArray(), mText.toByteArray());
+        Assert.assertArrayEquals("signed data must be the same as before",
+                legacySigned.toByteArray(), mSigned.toByteArray());
+    }
+
+    @Test
+    public void testReadLine() throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream("ab \r\ncd\re\n\nf".getBytes());
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int lookAhead = CleartextCanonicalizer.readLine(line, in, CleartextCanonicalizer.NO_LOOKAHEAD);
+        Assert.assertEquals("ab ", line.toString());
+        Assert.assertEquals("lookahead must be first byte of next line", 'c', lookAhead);
+
+        lookAhead = CleartextCanonicalizer.readLine(line, in, lookAhead);
+        Assert.assertEquals("cd", line.toString());
+        lookAhead = CleartextCanonicalizer.readLine(line, in, lookAhead);
+        Assert.assertEquals("e", line.toString());
+        Assert.assertEquals('\n', lookAhead);
+        lookAhead = CleartextCanonicalizer.readLine(line, in, lookAhead);
+        Assert.assertEquals("", line.toString());
+        lookAhead = CleartextCanonicalizer.readLine(line, in, lookAhead);
+        Assert.assertEquals("f", line.toString());
+        Assert.assertEquals("end of input must be returned", -1, lookAhead);
+
+        // lines longer than the initial buffer
+        byte[] longLine = new byte[1000];
+        new Random(1).nextBytes(longLine);
+        for (int i = 0; i < longLine.length; i++) {
+            longLine[i] = (byte) ('a' + (longLine[i] & 0x0f));
+        }
+        lookAhead = CleartextCanonicalizer.readLine(
+                line, new ByteArrayInputStream(longLine), CleartextCanonicalizer.NO_LOOKAHEAD);
+        Assert.assertEquals(-1, lookAhead);
+        Assert.assertEquals(new String(longLine), line.toString());
+    }
+
+    private void assertCanonical(String input, String signed, String text) throws Exception {
+        mText.reset();
+        mSigned.reset();
+        CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer(mText, signedSink(mSigned));
+        byte[] data = input.getBytes("UTF-8");
+        canonicalizer.update(data, 0, data.length);
+        canonicalizer.finish();
+
+        Assert.assertEquals("signed data of '" + input + "'", signed, mSigned.toString("UTF-8"));
+        Assert.assertEquals("text of '" + input + "'", text, mText.toString("UTF-8"));
+    }
+
+    private static CleartextCanonicalizer.SignedDataSink signedSink(final ByteArrayOutputStream out) {
+        return new CleartextCanonicalizer.SignedDataSink() {
+            @Override
+            public void update(byte[] data, int off, int len) {
+                out.write(data, off, len);
+            }
+        };
+    }
+
+    /** ASCII lines of words, with trailing whitespace and mixed line endings. */
+    private static byte[] createText(Random random, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 100);
+        while (out.size() < size) {
+            int words = random.nextInt(12);
+            for (int i = 0; i < words; i++) {
+                int length = 1 + random.nextInt(8);
+                for (int j = 0; j < length; j++) {
+                    out.write('a' + random.nextInt(26));
+                }
+                out.write(random.nextInt(10) == 0 ? '\t' : ' ');
+            }
+            for (int i = random.nextInt(3); i > 0; i--) {
+                out.write(' ');
+            }
+            int lineEnding = random.nextInt(10);
+            if (lineEnding == 0) {
+                out.write('\r');
+            } else if (lineEnding < 4) {
+                out.write(CRLF, 0, CRLF.length);
+            } else {
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** The line handling of PgpSignEncryptOperation before CleartextCanonicalizer. */
+    private static void canonicalizeWithStrings(byte[] data, OutputStream textOut, OutputStream signedOut)
+            throws IOException, SignatureException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+
+        processLine(reader.readLine(), textOut, signedOut);
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                textOut.write(CRLF);
+                break;
+            }
+            textOut.write(CRLF);
+            if (signedOut != null) {
+                signedOut.write(CRLF);
+            }
+            processLine(line, textOut, signedOut);
+        }
+    }
+
+    private static void processLine(String line, OutputStream textOut, OutputStream signedOut)
+            throws IOException {
+        if (line == null) {
+            return;
+        }
+        char[] chars = line.toCharArray();
+        int len = chars.length;
+        while (len > 0 && Character.isWhitespace(chars[len - 1])) {
+            len--;
+        }
+        byte[] data = line.substring(0, len).getBytes("UTF-8");
+        textOut.write(data);
+        if (signedOut != null) {
+            signedOut.write(data);
+        }
+    }
+
+}
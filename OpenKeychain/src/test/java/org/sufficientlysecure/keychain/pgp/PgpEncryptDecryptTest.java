@@ -20,9 +20,11 @@ package org.sufficientlysecure.keychain.pgp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -41,12 +43,19 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPKeyFlags;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -289,6 +298,78 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testSymmetricDecryptMetadataFromHeader() throws Exception {
+
+        byte[] plaindata = ("dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true)).getBytes();
+        byte[] ciphertext;
+
+        { // encrypt with a literal data packet of fixed length, which OpenKeychain doesn't do itself
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
+                    new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_128)
+                            .setWithIntegrityPacket(true).setProvider("BC"));
+            encGen.addMethod(new JcePBEKeyEncryptionMethodGenerator(
+                    mSymmetricPassphrase.getCharArray()).setProvider("BC"));
+            OutputStream encOut = encGen.open(out, new byte[1 << 8]);
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(encOut, PGPLiteralData.BINARY,
+                    "plaintext.bin", plaindata.length, new Date());
+            literalOut.write(plaindata);
+            literalGen.close();
+            encGen.close();
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // metadata should be read from the packet header, so a truncated body doesn't matter
+            // cut off the mdc packet (22 bytes) and the end of the literal data
+            byte[] truncated = Arrays.copyOf(ciphertext, ciphertext.length - 30);
+            ByteArrayInputStream in = new ByteArrayInputStream(truncated);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setAllowSymmetricDecryption(true);
+            input.setDecryptMetadataOnly(true);
+            DecryptVerifyResult result = op.execute(
+                    input, new CryptoInputParcel(mSymmetricPassphrase), data, null);
+
+            Assert.assertTrue("metadata decryption must succeed", result.success());
+            Assert.assertTrue("result must have metadata-only log entry",
+                    result.getLog().containsType(LogType.MSG_DC_OK_META_ONLY));
+
+            OpenPgpMetadata metadata = result.getDecryptionMetadata();
+            Assert.assertEquals("filename must be correct",
+                    "plaintext.bin", metadata.getFilename());
+            Assert.assertEquals("filesize must be correct",
+                    plaindata.length, metadata.getOriginalSize());
+        }
+
+        { // full decryption should report the same size
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setAllowSymmetricDecryption(true);
+            DecryptVerifyResult result = op.execute(
+                    input, new CryptoInputParcel(mSymmetricPassphrase), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaindata, out.toByteArray());
+            Assert.assertEquals("filesize must be correct",
+                    plaindata.length, result.getDecryptionMetadata().getOriginalSize());
+        }
+
+    }
+
     @Test
     public void testAsymmetricSignLiteral() {
 
@@ -914,6 +995,72 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testPipelinedSignEncryptDecrypt() {
+
+        // a few buffers worth of plaintext, so all pipeline stages are busy at the same time
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 300 * 1024) {
+            builder.append("dies ist ein plaintext ☭").append(TestingUtils.genPassphrase(true));
+        }
+        String plaintext = builder.toString();
+
+        int[] algorithms = new int[] {
+                CompressionAlgorithmTags.UNCOMPRESSED, CompressionAlgorithmTags.ZIP,
+                CompressionAlgorithmTags.ZLIB, CompressionAlgorithmTags.BZIP2
+        };
+        for (int algorithm : algorithms) {
+            byte[] ciphertext;
+
+            { // sign and encrypt in pipelined mode
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+                PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                        new ProviderHelper(RuntimeEnvironment.application), null);
+
+                InputData data = new InputData(in, in.available());
+                PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+                b.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+                b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+                b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+                b.setSymmetricEncryptionAlgorithm(
+                        PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+                b.setCompressionAlgorithm(algorithm);
+                b.setEnableAsciiArmorOutput(true);
+                b.setPipelined(true);
+
+                PgpSignEncryptResult result = op.execute(b,
+                        new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+                Assert.assertTrue("pipelined encryption must succeed", result.success());
+                Assert.assertTrue("encryption must be pipelined",
+                        result.getLog().containsType(LogType.MSG_PSE_PIPELINED));
+
+                ciphertext = out.toByteArray();
+            }
+
+            { // decryption must yield the plaintext, with a valid signature
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+                DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+                Assert.assertTrue("decryption must succeed", result.success());
+                Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                        plaintext.getBytes(), out.toByteArray());
+                Assert.assertEquals("signature should be verified and certified",
+                        OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+            }
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
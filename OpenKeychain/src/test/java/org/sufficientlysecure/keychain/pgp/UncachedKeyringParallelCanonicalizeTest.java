@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/** Tests that parallel verification of self signatures doesn't change UncachedKeyRing.canonicalize. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class UncachedKeyringParallelCanonicalizeTest {
+
+    static final int USER_IDS = 60;
+
+    static UncachedKeyRing staticRing;
+    // more than one thread regardless of the cpus of the machine running the test
+    static ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        for (int i = 0; i < USER_IDS; i++) {
+            parcel.mAddUserIds.add("twi " + i + " <twi" + i + "@example.com>");
+        }
+        parcel.mAddUserAttribute.add(WrappedUserAttribute.fromSubpacket(100,
+                "sunshine, sunshine, ladybugs awake~".getBytes()));
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        staticRing = result.getRing();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSameResultAsSerial() throws Exception {
+        assertSameAsSerial(staticRing.extractPublicKeyRing());
+        assertSameAsSerial(staticRing);
+    }
+
+    @Test
+    public void testBrokenCertificateSameAsSerial() throws Exception {
+        UncachedKeyRing ring = staticRing.extractPublicKeyRing();
+
+        // the self certificate of the first user id, injected after the second one
+        Iterator<RawPacket> it = KeyringTestingHelper.parseKeyring(ring.getEncoded());
+        RawPacket uidSig = KeyringTestingHelper.getNth(it, 2);
+        UncachedKeyRing modified = KeyringTestingHelper.injectPacket(ring, uidSig.buf, 4);
+
+        OperationLog log = assertSameAsSerial(modified);
+        Assert.assertTrue("log must contain bad certificate", log.containsType(LogType.MSG_KC_UID_BAD));
+    }
+
+    @Test
+    public void testVerifiesInParallel() throws Exception {
+        UncachedKeyRing ring = staticRing.extractPublicKeyRing();
+
+        SelfSignatureVerifier verifier =
+                new SelfSignatureVerifier(ring.mRing.getPublicKey(), null, executor);
+        verifier.addAll(ring.mRing);
+        verifier.verifyAll();
+        // one per user id and user attribute, and one binding per subkey
+        Assert.assertEquals("all self signatures must be verified up front",
+                USER_IDS + 1 + 2, verifier.getVerifiedCount());
+
+        SelfSignatureVerifier serialVerifier =
+                new SelfSignatureVerifier(ring.mRing.getPublicKey(), null, null);
+        serialVerifier.addAll(ring.mRing);
+        serialVerifier.verifyAll();
+        Assert.assertEquals("nothing must be verified up front without executor",
+                0, serialVerifier.getVerifiedCount());
+    }
+
+    private OperationLog assertSameAsSerial(UncachedKeyRing ring) throws Exception {
+        OperationLog serialLog = new OperationLog();
+        CanonicalizedKeyRing serial = ring.canonicalize(serialLog, 0, false, null, null);
+        Assert.assertNotNull("serial canonicalization must succeed", serial);
+
+        OperationLog log = new OperationLog();
+        CanonicalizedKeyRing parallel = ring.canonicalize(log, 0, false, null, executor);
+        Assert.assertNotNull("parallel canonicalization must succeed", parallel);
+
+        Assert.assertArrayEquals("canonicalized keyring must be the same as serial",
+                serial.getEncoded(), parallel.getEncoded());
+
+        List<LogEntryParcel> serialEntries = serialLog.toList();
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals("log must be the same as serial", serialEntries.size(), entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Assert.assertEquals("log must be the same as serial",
+                    serialEntries.get(i).mType, entries.get(i).mType);
+            Assert.assertEquals("log must be the same as serial",
+                    serialEntries.get(i).mIndent, entries.get(i).mIndent);
+            Assert.assertTrue("log must be the same as serial", Arrays.deepEquals(
+                    serialEntries.get(i).mParameters, entries.get(i).mParameters));
+        }
+        return log;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.Security;
+
+import android.os.SystemClock;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.LocalPassphraseCache;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class UnlockedKeyCacheTest {
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mPassphrase = TestingUtils.genPassphrase(true);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("twi");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mPassphrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        LocalPassphraseCache.getInstance(RuntimeEnvironment.application).clear();
+        UnlockedKeyCache.getInstance().clear();
+    }
+
+    private void cachePassphrase(long ttlMillis) {
+        long masterKeyId = mStaticRing.getMasterKeyId();
+        LocalPassphraseCache.getInstance(RuntimeEnvironment.application)
+                .put(masterKeyId, masterKeyId, mPassphrase, ttlMillis);
+    }
+
+    private CanonicalizedSecretKey getSecretKey() {
+        CanonicalizedSecretKeyRing ring = (CanonicalizedSecretKeyRing)
+                mStaticRing.canonicalize(new OperationLog(), 0);
+        return ring.getSecretKey(mStaticRing.getMasterKeyId());
+    }
+
+    @Test
+    public void testUnlockIsCached() throws Exception {
+        UnlockedKeyCache cache = UnlockedKeyCache.getInstance();
+        cachePassphrase(5000);
+
+        Assert.assertTrue("unlock with correct passphrase must succeed",
+                getSecretKey().unlock(mPassphrase));
+        Assert.assertEquals("unlocked key must be cached", 1, cache.size());
+
+        Assert.assertTrue("unlock with correct passphrase must succeed from cache",
+                getSecretKey().unlock(new Passphrase(mPassphrase.getCharArray().clone())));
+        Assert.assertFalse("unlock with wrong passphrase must fail despite cached key",
+                getSecretKey().unlock(new Passphrase("wrong")));
+
+        cache.clear();
+        Assert.assertEquals("clear must drop all unlocked keys", 0, cache.size());
+        Assert.assertTrue("unlock must still work after clearing the cache",
+                getSecretKey().unlock(mPassphrase));
+    }
+
+    @Test
+    public void testUnlockIsNotCachedWithoutCachedPassphrase() throws Exception {
+        Assert.assertTrue("unlock with correct passphrase must succeed",
+                getSecretKey().unlock(mPassphrase));
+        Assert.assertEquals("unlocked key must not be cached if its passphrase isn't",
+                0, UnlockedKeyCache.getInstance().size());
+    }
+
+    @Test
+    public void testClearingPassphraseCacheClearsUnlockedKeys() throws Exception {
+        cachePassphrase(5000);
+        Assert.assertTrue("unlock with correct passphrase must succeed",
+                getSecretKey().unlock(mPassphrase));
+        Assert.assertEquals("unlocked key must be cached", 1, UnlockedKeyCache.getInstance().size());
+
+        PassphraseCacheService.clearCachedPassphrases(RuntimeEnvironment.application);
+        Assert.assertEquals("clearing the passphrase cache must drop unlocked keys",
+                0, UnlockedKeyCache.getInstance().size());
+    }
+
+    @Test
+    public void testExpiredKeyIsSwept() throws Exception {
+        cachePassphrase(100);
+        Assert.assertTrue("unlock with correct passphrase must succeed",
+                getSecretKey().unlock(mPassphrase));
+        Assert.assertEquals("unlocked key must be cached", 1, UnlockedKeyCache.getInstance().size());
+
+        // no lookups from here on, the key must be removed by the sweep alone
+        for (int i = 0; i < 100 && UnlockedKeyCache.getInstance().size() > 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals("unlocked key must be swept after the passphrase ttl",
+                0, UnlockedKeyCache.getInstance().size());
+    }
+
+    @Test
+    public void testWrongPassphraseIsNotCached() throws Exception {
+        cachePassphrase(5000);
+        Assert.assertFalse("unlock with wrong passphrase must fail",
+                getSecretKey().unlock(new Passphrase("wrong")));
+        Assert.assertEquals("failed unlock must not be cached",
+                0, UnlockedKeyCache.getInstance().size());
+    }
+
+    @Test
+    public void testPutAfterClearIsDropped() throws Exception {
+        PGPSecretKey secretKey = ((PGPSecretKeyRing) mStaticRing.mRing).getSecretKey();
+        UnlockedKeyCache cache = UnlockedKeyCache.getInstance();
+        long expiryTime = SystemClock.elapsedRealtime() + 5000;
+
+        // a clear while the key was being unlocked
+        int generation = cache.getGeneration();
+        cache.clear();
+        cache.put(secretKey, mPassphrase, null, expiryTime, generation);
+        Assert.assertEquals("key unlocked before a clear must not be cached", 0, cache.size());
+
+        cache.put(secretKey, mPassphrase, null, expiryTime, cache.getGeneration());
+        Assert.assertEquals("key of the current generation must be cached", 1, cache.size());
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LongSparseArray;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CachedPublicKeyRingTest {
+
+    static List<UncachedKeyRing> mStaticRings;
+
+    ProviderHelper mProviderHelper;
+    KeyRingMetadataCache mCache;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+        mStaticRings = KeyringTestingHelper.generatePublicKeyRings(2);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mCache = KeyRingMetadataCache.getInstance(RuntimeEnvironment.application);
+        for (UncachedKeyRing ring : mStaticRings) {
+            Assert.assertTrue("saving keyring must succeed",
+                    mProviderHelper.savePublicKeyRing(ring, new ProgressScaler(), null).success());
+        }
+    }
+
+    @Test
+    public void testGettersMatchKeyRing() throws Exception {
+        UncachedKeyRing ring = mStaticRings.get(0);
+        long masterKeyId = ring.getMasterKeyId();
+        CachedPublicKeyRing cachedRing = mProviderHelper.getCachedPublicKeyRing(masterKeyId);
+
+        Assert.assertEquals("master key id must match", masterKeyId, cachedRing.getMasterKeyId());
+        Assert.assertArrayEquals("fingerprint must match",
+                ring.getFingerprint(), cachedRing.getFingerprint());
+        Assert.assertEquals("primary user id must match",
+                "synthetic 0 <synthetic0@example.com>", cachedRing.getPrimaryUserId());
+        Assert.assertFalse("keyring must not be revoked", cachedRing.isRevoked());
+        Assert.assertEquals("encrypt id must be the ecdh subkey",
+                KeyringTestingHelper.getSubkeyId(ring, 1), cachedRing.getEncryptId());
+        Assert.assertFalse("public keyring must not have a secret", cachedRing.hasAnySecret());
+        Assert.assertEquals("public keyring must have no secret key",
+                SecretKeyType.UNAVAILABLE, cachedRing.getSecretKeyType(masterKeyId));
+    }
+
+    @Test
+    public void testMetadataIsCached() throws Exception {
+        long masterKeyId = mStaticRings.get(0).getMasterKeyId();
+        CachedPublicKeyRing cachedRing = mProviderHelper.getCachedPublicKeyRing(masterKeyId);
+
+        cachedRing.getPrimaryUserId();
+        long hits = mCache.getHits();
+        long misses = mCache.getMisses();
+
+        cachedRing.getPrimaryUserId();
+        cachedRing.getEncryptId();
+        mProviderHelper.getCachedPublicKeyRing(masterKeyId).isRevoked();
+        Assert.assertEquals("repeated lookups must be served from cache", hits + 3, mCache.getHits());
+        Assert.assertEquals("repeated lookups must not miss", misses, mCache.getMisses());
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertEquals("deleting a keyring must clear the cache", 0, mCache.size());
+        try {
+            cachedRing.getPrimaryUserId();
+            Assert.fail("deleted keyring must not be found");
+        } catch (PgpKeyNotFoundException e) {
+            // good
+        }
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        long firstId = mStaticRings.get(0).getMasterKeyId();
+        long secondId = mStaticRings.get(1).getMasterKeyId();
+
+        LongSparseArray<CachedPublicKeyRing> snapshots = mProviderHelper.getCachedPublicKeyRingSnapshots(
+                new long[] { firstId, secondId, 0x1234L });
+        Assert.assertEquals("snapshots must be returned for existing keyrings only", 2, snapshots.size());
+        Assert.assertEquals("snapshot must have the correct user id",
+                "synthetic 1 <synthetic1@example.com>", snapshots.get(secondId).getPrimaryUserId());
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(secondId), null, null);
+        Assert.assertEquals("snapshot must not change after keyring was deleted",
+                secondId, snapshots.get(secondId).getMasterKeyId());
+
+        try {
+            mProviderHelper.getCachedPublicKeyRingSnapshot(secondId);
+            Assert.fail("snapshot of deleted keyring must not be found");
+        } catch (PgpKeyNotFoundException e) {
+            // good
+        }
+    }
+
+    @Test
+    public void testKeyRingWithoutUserId() throws Exception {
+        UncachedKeyRing ring = mStaticRings.get(0);
+        long masterKeyId = ring.getMasterKeyId();
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("UPDATE " + Tables.USER_PACKETS + " SET " + UserPackets.USER_ID + " = NULL"
+                + " WHERE " + UserPackets.MASTER_KEY_ID + " = ?", new Object[] { masterKeyId });
+        mCache.clear();
+
+        CachedPublicKeyRing snapshot = mProviderHelper.getCachedPublicKeyRingSnapshot(masterKeyId);
+        Assert.assertArrayEquals("keyring without user id must still be found",
+                ring.getFingerprint(), snapshot.getFingerprint());
+        Assert.assertEquals("keyring without user id must be cached", 1, mCache.size());
+        try {
+            snapshot.getPrimaryUserId();
+            Assert.fail("missing user id must not be returned as null");
+        } catch (PgpKeyNotFoundException e) {
+            // good
+        }
+    }
+
+}
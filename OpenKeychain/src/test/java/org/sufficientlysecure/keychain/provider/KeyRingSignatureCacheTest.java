@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import android.content.ContentValues;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.VerifiedSignatureCache;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingSignatureCacheTest {
+
+    static final int USER_IDS = 40;
+
+    static UncachedKeyRing mStaticRing;
+    // one per user id and subkey binding, plus the primary key binding of the signing subkey
+    static int mSelfSignatures;
+
+    ProviderHelper mProviderHelper;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        for (int i = 0; i < USER_IDS; i++) {
+            parcel.mAddUserIds.add("twi " + i + " <twi" + i + "@example.com>");
+        }
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing().extractPublicKeyRing();
+        mSelfSignatures = USER_IDS + 3;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testCanonicalizeWithCache() throws Exception {
+        OperationLog log = new OperationLog();
+        CanonicalizedKeyRing expected = mStaticRing.canonicalize(log, 0);
+        Assert.assertNotNull("canonicalization must succeed", expected);
+
+        MemorySignatureCache cache = new MemorySignatureCache();
+        OperationLog coldLog = new OperationLog();
+        CanonicalizedKeyRing cold = mStaticRing.canonicalize(coldLog, 0, false, cache);
+        Assert.assertEquals("all self signatures must be cached after first canonicalization",
+                mSelfSignatures, cache.size());
+        assertSameResult(log, expected, coldLog, cold);
+
+        Assert.assertEquals("no self signature must be known on first canonicalization",
+                0, cache.mHits);
+        int verifications = cache.mVerifications;
+
+        OperationLog warmLog = new OperationLog();
+        CanonicalizedKeyRing warm = mStaticRing.canonicalize(warmLog, 0, false, cache);
+        Assert.assertEquals("no new signatures must be cached on refresh",
+                mSelfSignatures, cache.size());
+        Assert.assertEquals("no self signature must be verified again on refresh",
+                verifications, cache.mVerifications);
+        Assert.assertTrue("all self signatures must be looked up on refresh",
+                cache.mHits >= mSelfSignatures);
+        assertSameResult(log, expected, warmLog, warm);
+    }
+
+    @Test
+    public void testOtherKeyringIsVerified() throws Exception {
+        MemorySignatureCache cache = new MemorySignatureCache();
+        mStaticRing.canonicalize(new OperationLog(), 0, false, cache);
+
+        // a cache entry is only good for the exact keyring it was created for
+        UncachedKeyRing otherRing;
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("twi 0 <twi0@example.com>");
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+            PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+            Assert.assertTrue("test key creation must succeed", result.success());
+            otherRing = result.getRing().extractPublicKeyRing();
+        }
+
+        int size = cache.size();
+        Assert.assertNotNull("canonicalization must succeed",
+                otherRing.canonicalize(new OperationLog(), 0, false, cache));
+        Assert.assertEquals("self signature of a different key must not be known",
+                size + 1, cache.size());
+    }
+
+    @Test
+    public void testVerifiedSignaturesArePersisted() throws Exception {
+        long masterKeyId = mStaticRing.getMasterKeyId();
+
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mStaticRing, new ProgressScaler(), null).success());
+        KeyRingSignatureCache cache =
+                KeyRingSignatureCache.load(mProviderHelper.getContentResolver(), masterKeyId);
+        Assert.assertEquals("verified signatures must be saved with the keyring",
+                mSelfSignatures, cache.getKnownCount());
+
+        // a refresh which brings nothing new must not need to verify anything
+        Assert.assertTrue("saving keyring again must succeed", mProviderHelper.savePublicKeyRing(
+                mStaticRing, new ProgressScaler(), null).success());
+        Assert.assertEquals("refresh must not add verified signatures", mSelfSignatures,
+                KeyRingSignatureCache.load(mProviderHelper.getContentResolver(), masterKeyId)
+                        .getKnownCount());
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertEquals("verified signatures must be deleted with the keyring", 0,
+                KeyRingSignatureCache.load(mProviderHelper.getContentResolver(), masterKeyId)
+                        .getKnownCount());
+    }
+
+    @Test
+    public void testUnusedSignaturesArePruned() throws Exception {
+        long masterKeyId = mStaticRing.getMasterKeyId();
+
+        // left behind by a signature which is no longer part of the keyring
+        ContentValues values = new ContentValues();
+        values.put(VerifiedSignatures.DIGEST, new byte[32]);
+        mProviderHelper.getContentResolver().insert(
+                VerifiedSignatures.buildVerifiedSignaturesUri(masterKeyId), values);
+
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mStaticRing, new ProgressScaler(), null).success());
+        Assert.assertEquals("digests of signatures not in the keyring must be deleted",
+                mSelfSignatures,
+                KeyRingSignatureCache.load(mProviderHelper.getContentResolver(), masterKeyId)
+                        .getKnownCount());
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRings.buildUnifiedKeyRingsUri(), null, null);
+        Assert.assertEquals("verified signatures must be deleted with all keyrings", 0,
+                KeyRingSignatureCache.load(mProviderHelper.getContentResolver(), masterKeyId)
+                        .getKnownCount());
+    }
+
+    private static void assertSameResult(OperationLog expectedLog, CanonicalizedKeyRing expected,
+                                         OperationLog log, CanonicalizedKeyRing ring)
+            throws Exception {
+        Assert.assertNotNull("canonicalization must succeed", ring);
+        Assert.assertArrayEquals("canonicalized keyring must be the same with cache",
+                expected.getEncoded(), ring.getEncoded());
+
+        List<LogEntryParcel> expectedEntries = expectedLog.toList();
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals("log must be the same with cache",
+                expectedEntries.size(), entries.size());
+        Iterator<LogEntryParcel> it = entries.iterator();
+        for (LogEntryParcel expectedEntry : expectedEntries) {
+            LogEntryParcel entry = it.next();
+            Assert.assertEquals("log must be the same with cache", expectedEntry.mType, entry.mType);
+            Assert.assertEquals("log must be the same with cache",
+                    expectedEntry.mIndent, entry.mIndent);
+            Assert.assertTrue("log must be the same with cache",
+                    Arrays.deepEquals(expectedEntry.mParameters, entry.mParameters));
+        }
+    }
+
+    private static class MemorySignatureCache implements VerifiedSignatureCache {
+        private final HashSet<ByteBuffer> mDigests = new HashSet<>();
+        // signatures which were found in the cache, and ones which had to be verified
+        int mHits;
+        int mVerifications;
+
+        @Override
+        public synchronized boolean isVerified(byte[] digest) {
+            boolean verified = mDigests.contains(ByteBuffer.wrap(digest));
+            if (verified) {
+                mHits += 1;
+            }
+            return verified;
+        }
+
+        @Override
+        public synchronized void onVerified(byte[] digest) {
+            mVerifications += 1;
+            mDigests.add(ByteBuffer.wrap(digest));
+        }
+
+        synchronized int size() {
+            return mDigests.size();
+        }
+    }
+
+}
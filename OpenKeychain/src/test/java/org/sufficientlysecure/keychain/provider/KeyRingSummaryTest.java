@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Tests the flags of the unified keyring query, which are read from keyring_summaries, against
+ * the per row joins and subqueries they replace.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingSummaryTest {
+
+    static final int KEY_RINGS = 10000;
+    static final int ROUNDS = 3;
+
+    static final String[] PROJECTION = new String[] {
+            KeyRings.MASTER_KEY_ID, KeyRings.HAS_DUPLICATE_USER_ID, KeyRings.HAS_ENCRYPT,
+            KeyRings.HAS_SIGN, KeyRings.HAS_CERTIFY, KeyRings.HAS_AUTHENTICATE
+    };
+
+    KeychainDatabase mDatabase;
+    ProviderHelper mProviderHelper;
+    long mNow;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = new KeychainDatabase(RuntimeEnvironment.application);
+        mDatabase.clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mNow = new Date().getTime() / 1000;
+    }
+
+    @Test
+    public void testSameFlagsAsJoins() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < KEY_RINGS; i++) {
+            addKeyRing(operations, i);
+            if (operations.size() > 2000) {
+                mProviderHelper.getContentResolver().applyBatch(
+                        KeychainContract.CONTENT_AUTHORITY, operations);
+                operations.clear();
+            }
+        }
+        mProviderHelper.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+        HashMap<Long, Flags> expected = queryWithJoins();
+        HashMap<Long, Flags> flags = queryWithSummaries();
+        Assert.assertEquals("all keyrings must be listed", KEY_RINGS, flags.size());
+        Assert.assertEquals("flags must be the same as with joins", expected, flags);
+
+        long joinTime = 0, summaryTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long startTime = System.nanoTime();
+            queryWithJoins();
+            joinTime += System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            queryWithSummaries();
+            summaryTime += System.nanoTime() - startTime;
+        }
+        Log.d(Constants.TAG, "key list benchmark, " + KEY_RINGS + " keyrings: "
+                + (joinTime / ROUNDS / 1000000) + "ms with joins, "
+                + (summaryTime / ROUNDS / 1000000) + "ms with summaries");
+    }
+
+    @Test
+    public void testDuplicatesAreMaintained() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        addKeyRing(operations, 1, "twi <twi@example.com>");
+        addKeyRing(operations, 2, "twi <twi@example.com>");
+        addKeyRing(operations, 3, "twi <twi@example.com>");
+        addKeyRing(operations, 4, "pinkie <pinkie@example.com>");
+        mProviderHelper.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        assertDuplicates(true, true, true, false);
+
+        mProviderHelper.getContentResolver().delete(KeyRingData.buildPublicKeyRingUri(1), null, null);
+        assertDuplicates(null, true, true, false);
+
+        // changing the primary user id, the way an incremental update does
+        mProviderHelper.getContentResolver().delete(UserPackets.buildUserPacketsUri(3),
+                UserPackets.RANK + " = 0", null);
+        mProviderHelper.getContentResolver().insert(UserPackets.buildUserIdsUri(3),
+                buildUserIdValues(3, 0, "pinkie <pinkie@example.com>"));
+        assertDuplicates(null, false, true, true);
+
+        Assert.assertEquals("flags must be the same as with joins", queryWithJoins(), queryWithSummaries());
+    }
+
+    @Test
+    public void testCapabilitiesAreMaintained() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(KeyRingData.buildPublicKeyRingUri(1))
+                .withValues(buildKeyRingValues(1)).build());
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(1))
+                .withValues(buildKeyValues(1, 0, 0, true, false, false, false, mNow - 10)).build());
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(1))
+                .withValues(buildKeyValues(1, 1, 0, false, false, true, false, mNow - 10)).build());
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(1))
+                .withValues(buildKeyValues(1, 2, 0, false, false, true, false, mNow + 1000)).build());
+        operations.add(ContentProviderOperation.newInsert(UserPackets.buildUserIdsUri(1))
+                .withValues(buildUserIdValues(1, 0, "twi <twi@example.com>")).build());
+        mProviderHelper.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+        Flags flags = queryWithSummaries().get(1L);
+        Assert.assertEquals("key which expires last must be used", Long.valueOf(3), flags.mEncrypt);
+        Assert.assertNull("expired or secretless key must not certify", flags.mCertify);
+
+        ContentValues values = new ContentValues();
+        values.put(Keys.HAS_SECRET, 2);
+        mProviderHelper.getContentResolver().update(Keys.buildKeysUri(1), values, null, null);
+        mProviderHelper.getContentResolver().delete(Keys.buildKeysUri(1), Keys.RANK + " = 2", null);
+        Assert.assertEquals("flags must follow updates of keys", queryWithJoins(), queryWithSummaries());
+        Assert.assertNull("expired keys must not be used", queryWithSummaries().get(1L).mEncrypt);
+    }
+
+    private void assertDuplicates(Boolean... expected) {
+        HashMap<Long, Flags> flags = queryWithSummaries();
+        for (int i = 0; i < expected.length; i++) {
+            Flags keyRingFlags = flags.get((long) i + 1);
+            if (expected[i] == null) {
+                Assert.assertNull("deleted keyring must not be listed", keyRingFlags);
+            } else {
+                Assert.assertEquals("duplicate flag of keyring " + (i + 1),
+                        expected[i], keyRingFlags.mHasDuplicate);
+            }
+        }
+    }
+
+    /**
+     * Adds a keyring with a certify only master key, and signing and encryption subkeys. Secret
+     * keys, expiry and revocation vary with the index, and some primary user ids are shared.
+     */
+    private void addKeyRing(ArrayList<ContentProviderOperation> operations, int i) {
+        String userId = i < KEY_RINGS / 10 ? "shared " + (i / 2) : "user " + i;
+        addKeyRing(operations, i + 1, userId);
+
+        long masterKeyId = i + 1;
+        int hasSecret = i % 3 == 0 ? 2 : 0;
+        Long expiry = i % 5 == 0 ? mNow - 1000 : i % 5 == 1 ? mNow + 100000 : null;
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(masterKeyId))
+                .withValues(buildKeyValues(masterKeyId, 1, hasSecret, false, true, false, i % 11 == 0,
+                        expiry)).build());
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(masterKeyId))
+                .withValues(buildKeyValues(masterKeyId, 2, hasSecret, false, false, true, i % 7 == 0,
+                        expiry)).build());
+    }
+
+    private void addKeyRing(ArrayList<ContentProviderOperation> operations, long masterKeyId,
+                            String userId) {
+        operations.add(ContentProviderOperation.newInsert(KeyRingData.buildPublicKeyRingUri(masterKeyId))
+                .withValues(buildKeyRingValues(masterKeyId)).build());
+        operations.add(ContentProviderOperation.newInsert(Keys.buildKeysUri(masterKeyId))
+                .withValues(buildKeyValues(masterKeyId, 0, masterKeyId % 3 == 1 ? 2 : 0,
+                        true, false, false, false, null)).build());
+        operations.add(ContentProviderOperation.newInsert(UserPackets.buildUserIdsUri(masterKeyId))
+                .withValues(buildUserIdValues(masterKeyId, 0, userId)).build());
+        operations.add(ContentProviderOperation.newInsert(UserPackets.buildUserIdsUri(masterKeyId))
+                .withValues(buildUserIdValues(masterKeyId, 1, "other " + masterKeyId)).build());
+    }
+
+    private static ContentValues buildKeyRingValues(long masterKeyId) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, new byte[] { 1, 2, 3 });
+        return values;
+    }
+
+    private static ContentValues buildKeyValues(long masterKeyId, int rank, int hasSecret,
+            boolean certify, boolean sign, boolean encrypt, boolean revoked, Long expiry) {
+        ContentValues values = new ContentValues();
+        values.put(Keys.MASTER_KEY_ID, masterKeyId);
+        values.put(Keys.RANK, rank);
+        values.put(Keys.KEY_ID, masterKeyId + rank);
+        values.put(Keys.FINGERPRINT, new byte[20]);
+        values.put(Keys.CAN_CERTIFY, certify);
+        values.put(Keys.CAN_SIGN, sign);
+        values.put(Keys.CAN_ENCRYPT, encrypt);
+        values.put(Keys.CAN_AUTHENTICATE, sign);
+        values.put(Keys.IS_REVOKED, revoked);
+        values.put(Keys.HAS_SECRET, hasSecret);
+        values.put(Keys.CREATION, 0);
+        values.put(Keys.EXPIRY, expiry);
+        return values;
+    }
+
+    private static ContentValues buildUserIdValues(long masterKeyId, int rank, String userId) {
+        ContentValues values = new ContentValues();
+        values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
+        values.put(UserPackets.USER_ID, userId);
+        values.put(UserPackets.IS_PRIMARY, rank == 0);
+        values.put(UserPackets.IS_REVOKED, false);
+        values.put(UserPackets.RANK, rank);
+        return values;
+    }
+
+    private HashMap<Long, Flags> queryWithSummaries() {
+        return readFlags(mProviderHelper.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), PROJECTION, null, null, null));
+    }
+
+    /** The query of the key list before keyring_summaries, for the same columns. */
+    private HashMap<Long, Flags> queryWithJoins() {
+        SQLiteDatabase db = mDatabase.getReadableDatabase();
+        return readFlags(db.rawQuery("SELECT keys.master_key_id,"
+                + " (EXISTS (SELECT * FROM user_packets AS dups"
+                    + " WHERE dups.master_key_id != keys.master_key_id AND dups.rank = 0"
+                    + " AND dups.user_id = user_packets.user_id)),"
+                + " kE.key_id, kS.key_id, kC.key_id, kA.key_id"
+                + " FROM keys INNER JOIN user_packets ON (keys.master_key_id = user_packets.master_key_id"
+                    + " AND user_packets.rank = 0)"
+                + " LEFT JOIN certs ON (keys.master_key_id = certs.master_key_id AND certs.verified = 1)"
+                + buildCapabilityJoin("kE", Keys.CAN_ENCRYPT, false)
+                + buildCapabilityJoin("kS", Keys.CAN_SIGN, true)
+                + buildCapabilityJoin("kC", Keys.CAN_CERTIFY, true)
+                + buildCapabilityJoin("kA", Keys.CAN_AUTHENTICATE, true)
+                + " WHERE keys.rank = 0 GROUP BY keys.master_key_id ORDER BY user_packets.user_id ASC",
+                null));
+    }
+
+    private String buildCapabilityJoin(String alias, String column, boolean needsSecret) {
+        return " LEFT JOIN keys AS " + alias + " ON (" + alias + ".master_key_id = keys.master_key_id"
+                + " AND " + alias + ".is_revoked = 0 AND " + alias + "." + column + " = 1"
+                + (needsSecret ? " AND " + alias + ".has_secret > 1" : "")
+                + " AND (" + alias + ".expiry IS NULL OR " + alias + ".expiry >= " + mNow + "))";
+    }
+
+    private static HashMap<Long, Flags> readFlags(Cursor cursor) {
+        Assert.assertNotNull("query must succeed", cursor);
+        HashMap<Long, Flags> result = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                Flags flags = new Flags();
+                flags.mHasDuplicate = cursor.getInt(1) > 0;
+                flags.mEncrypt = cursor.isNull(2) ? null : cursor.getLong(2);
+                flags.mSign = cursor.isNull(3) ? null : cursor.getLong(3);
+                flags.mCertify = cursor.isNull(4) ? null : cursor.getLong(4);
+                flags.mAuthenticate = cursor.isNull(5) ? null : cursor.getLong(5);
+                result.put(cursor.getLong(0), flags);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static class Flags {
+        boolean mHasDuplicate;
+        Long mEncrypt, mSign, mCertify, mAuthenticate;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Flags)) {
+                return false;
+            }
+            Flags other = (Flags) o;
+            return mHasDuplicate == other.mHasDuplicate && equal(mEncrypt, other.mEncrypt)
+                    && equal(mSign, other.mSign) && equal(mCertify, other.mCertify)
+                    && equal(mAuthenticate, other.mAuthenticate);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHasDuplicate ? 1 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mHasDuplicate + " " + mEncrypt + " " + mSign + " " + mCertify + " " + mAuthenticate;
+        }
+
+        private static boolean equal(Long a, Long b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+}
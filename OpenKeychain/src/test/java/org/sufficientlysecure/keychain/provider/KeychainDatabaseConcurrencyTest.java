@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Pair;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+
+
+/** Tests inserts through compiled statements, and measures reader latency during an import. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainDatabaseConcurrencyTest {
+
+    static final int KEY_RINGS = 2000;
+    static final int KEY_RINGS_PER_BATCH = 50;
+    static final int USER_IDS = 5;
+
+    static final String[] KEY_PROJECTION = new String[] {
+            Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.KEY_CURVE_OID, Keys.ALGORITHM,
+            Keys.FINGERPRINT, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT,
+            Keys.IS_REVOKED, Keys.HAS_SECRET, Keys.CREATION, Keys.EXPIRY
+    };
+    static final String[] USER_PACKET_PROJECTION = new String[] {
+            UserPackets.RANK, UserPackets.TYPE, UserPackets.USER_ID, UserPackets.ATTRIBUTE_DATA,
+            UserPackets.IS_PRIMARY, UserPackets.IS_REVOKED
+    };
+
+    ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mContentResolver = new ProviderHelper(RuntimeEnvironment.application).getContentResolver();
+    }
+
+    @Test
+    public void testCompiledInsertSameAsInsert() throws Exception {
+        // all operations of a batch run in a transaction, and use compiled statements
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        addKeyRing(operations, 1);
+        mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+        // single inserts don't
+        for (Pair<Uri, ContentValues> row : buildKeyRing(2)) {
+            mContentResolver.insert(row.first, row.second);
+        }
+
+        assertSameRows(Keys.buildKeysUri(1), Keys.buildKeysUri(2), KEY_PROJECTION);
+        assertSameRows(UserPackets.buildUserPacketsUri(1), UserPackets.buildUserPacketsUri(2),
+                USER_PACKET_PROJECTION);
+        Assert.assertEquals("certs must be replaced, not duplicated", 2 * USER_IDS,
+                count(Certs.buildCertsUri(1)));
+        Assert.assertEquals("certs must be replaced, not duplicated", 2 * USER_IDS,
+                count(Certs.buildCertsUri(2)));
+    }
+
+    @Test
+    public void testReaderLatencyDuringImport() throws Exception {
+        final AtomicReference<Exception> writerException = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                    for (int i = 1; i <= KEY_RINGS; i++) {
+                        addKeyRing(operations, i);
+                        if (i % KEY_RINGS_PER_BATCH == 0) {
+                            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+                            operations.clear();
+                        }
+                    }
+                } catch (Exception e) {
+                    writerException.set(e);
+                }
+            }
+        });
+
+        writer.start();
+
+        int reads = 0;
+        while (writer.isAlive()) {
+            Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                    new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID, KeyRings.HAS_ENCRYPT },
+                    null, null, null);
+            Assert.assertNotNull("query must succeed during import", cursor);
+            cursor.getCount();
+            cursor.close();
+            reads += 1;
+        }
+        writer.join();
+
+        Assert.assertNull("import must succeed", writerException.get());
+        Assert.assertEquals("all keyrings must be imported", KEY_RINGS,
+                count(KeyRings.buildUnifiedKeyRingsUri()));
+        Assert.assertTrue("reads must happen during import", reads > 0);
+    }
+
+    private void assertSameRows(Uri expectedUri, Uri uri, String[] projection) {
+        // the first column is the rank
+        Cursor expected = mContentResolver.query(expectedUri, projection, null, null, projection[0]);
+        Cursor cursor = mContentResolver.query(uri, projection, null, null, projection[0]);
+        Assert.assertNotNull("query must succeed", expected);
+        Assert.assertNotNull("query must succeed", cursor);
+        try {
+            Assert.assertEquals("row count must be the same", expected.getCount(), cursor.getCount());
+            while (expected.moveToNext() && cursor.moveToNext()) {
+                for (int i = 0; i < projection.length; i++) {
+                    Assert.assertEquals("type of " + projection[i] + " must be the same",
+                            expected.getType(i), cursor.getType(i));
+                    // these contain the master key id
+                    if (projection[i].equals(Keys.KEY_ID) || projection[i].equals(UserPackets.USER_ID)) {
+                        continue;
+                    }
+                    Assert.assertEquals("value of " + projection[i] + " must be the same",
+                            expected.getString(i), cursor.getString(i));
+                }
+            }
+        } finally {
+            expected.close();
+            cursor.close();
+        }
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, new String[] { KeyRings.MASTER_KEY_ID },
+                null, null, null);
+        Assert.assertNotNull("query must succeed", cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addKeyRing(ArrayList<ContentProviderOperation> operations, long masterKeyId) {
+        for (Pair<Uri, ContentValues> row : buildKeyRing(masterKeyId)) {
+            operations.add(ContentProviderOperation.newInsert(row.first).withValues(row.second).build());
+        }
+    }
+
+    /** Returns the rows of a keyring, in the order ProviderHelper inserts them. */
+    private static ArrayList<Pair<Uri, ContentValues>> buildKeyRing(long masterKeyId) {
+        ArrayList<Pair<Uri, ContentValues>> rows = new ArrayList<>();
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, new byte[] { 1, 2, 3 });
+        rows.add(Pair.create(KeyRingData.buildPublicKeyRingUri(masterKeyId), values));
+
+        for (int rank = 0; rank < 3; rank++) {
+            values = new ContentValues();
+            values.put(Keys.MASTER_KEY_ID, masterKeyId);
+            values.put(Keys.RANK, rank);
+            values.put(Keys.KEY_ID, masterKeyId * 10 + rank);
+            values.put(Keys.KEY_SIZE, 256);
+            values.put(Keys.KEY_CURVE_OID, rank == 2 ? null : "1.2.840.10045.3.1.7");
+            values.put(Keys.ALGORITHM, 19);
+            values.put(Keys.FINGERPRINT, new byte[] { (byte) rank, 1, 2, 3 });
+            values.put(Keys.CAN_CERTIFY, rank == 0);
+            values.put(Keys.CAN_SIGN, rank == 1);
+            values.put(Keys.CAN_ENCRYPT, rank == 2);
+            values.put(Keys.CAN_AUTHENTICATE, false);
+            values.put(Keys.IS_REVOKED, false);
+            values.put(Keys.HAS_SECRET, 0);
+            values.put(Keys.CREATION, 1400000000L + rank);
+            values.put(Keys.EXPIRY, rank == 2 ? 2000000000L : null);
+            rows.add(Pair.create(Keys.buildKeysUri(masterKeyId), values));
+        }
+
+        for (int rank = 0; rank < USER_IDS; rank++) {
+            values = new ContentValues();
+            values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
+            values.put(UserPackets.USER_ID, "user " + masterKeyId + " <user" + rank + "@example.com>");
+            values.put(UserPackets.IS_PRIMARY, rank == 0);
+            values.put(UserPackets.IS_REVOKED, rank == USER_IDS - 1);
+            values.put(UserPackets.RANK, rank);
+            rows.add(Pair.create(UserPackets.buildUserIdsUri(masterKeyId), values));
+
+            // each certificate twice, only the later one is kept
+            for (int i = 0; i < 4; i++) {
+                values = new ContentValues();
+                values.put(Certs.MASTER_KEY_ID, masterKeyId);
+                values.put(Certs.RANK, rank);
+                values.put(Certs.KEY_ID_CERTIFIER, (long) (i / 2));
+                values.put(Certs.TYPE, 0x10);
+                values.put(Certs.VERIFIED, Certs.UNVERIFIED);
+                values.put(Certs.CREATION, 1400000000L + i);
+                values.put(Certs.DATA, new byte[] { (byte) i });
+                rows.add(Pair.create(Certs.buildCertsUri(masterKeyId), values));
+            }
+        }
+
+        return rows;
+    }
+
+}
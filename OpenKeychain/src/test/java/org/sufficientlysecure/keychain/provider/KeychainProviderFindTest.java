@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/** Tests lookups of keyrings by email and subkey id, which use the user_emails table and indexes. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainProviderFindTest {
+
+    static UncachedKeyRing mAliceRing, mBobRing;
+
+    ProviderHelper mProviderHelper;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        mAliceRing = createRing("Alice <Alice@Example.com>", "alice (work) <alice@work.example>",
+                "alice without email");
+        mBobRing = createRing("Bob <bob@example.com>", "<alice@example.com>");
+    }
+
+    private static UncachedKeyRing createRing(String... userIds) throws Exception {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.addAll(Arrays.asList(userIds));
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        return result.getRing().extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mAliceRing, new ProgressScaler(), null).success());
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mBobRing, new ProgressScaler(), null).success());
+    }
+
+    @Test
+    public void testExtractEmail() throws Exception {
+        Assert.assertEquals("alice@example.com", KeyRing.extractEmail("Alice <Alice@Example.com>"));
+        Assert.assertEquals("alice@example.com", KeyRing.extractEmail("<alice@example.com>"));
+        Assert.assertEquals("a@b", KeyRing.extractEmail("x <y> (c) <a@b>"));
+        Assert.assertNull(KeyRing.extractEmail("alice@example.com"));
+        Assert.assertNull(KeyRing.extractEmail("Alice <alice@example.com> (comment)"));
+        Assert.assertNull(KeyRing.extractEmail("Alice <>"));
+        Assert.assertNull(KeyRing.extractEmail(null));
+    }
+
+    @Test
+    public void testFindByEmail() throws Exception {
+        Assert.assertEquals("email lookup must ignore case and match all keyrings",
+                sorted(mAliceRing.getMasterKeyId(), mBobRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri("ALICE@example.com")));
+        Assert.assertEquals("email lookup must find non-primary user ids",
+                sorted(mAliceRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri("alice@work.example")));
+        Assert.assertEquals("email lookup must accept a list",
+                sorted(mBobRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri(
+                        "nobody@example.com, bob@example.com")));
+        Assert.assertEquals("email lookup must match whole addresses only",
+                sorted(), findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri("alice")));
+    }
+
+    @Test
+    public void testFindBySubkey() throws Exception {
+        long subKeyId = KeyringTestingHelper.getSubkeyId(mAliceRing, 1);
+        Assert.assertEquals("subkey lookup must find its keyring", sorted(mAliceRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)));
+        Assert.assertEquals("subkey lookup must find master keys", sorted(mBobRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(mBobRing.getMasterKeyId())));
+        Assert.assertEquals("subkey lookup must not find unknown keys", sorted(),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId + 1)));
+    }
+
+    @Test
+    public void testEmailsAreDeletedWithKeyring() throws Exception {
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mBobRing.getMasterKeyId()), null, null);
+        Assert.assertEquals("emails of deleted keyring must not be found",
+                sorted(mAliceRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri("alice@example.com")));
+
+        // saving again replaces all rows of the keyring
+        Assert.assertTrue("saving keyring again must succeed", mProviderHelper.savePublicKeyRing(
+                mAliceRing, new ProgressScaler(), null).success());
+        Assert.assertEquals("emails must be found after saving again",
+                sorted(mAliceRing.getMasterKeyId()),
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri("alice@work.example")));
+    }
+
+    private List<Long> findMasterKeyIds(Uri uri) {
+        ArrayList<Long> result = new ArrayList<>();
+        Cursor cursor = mProviderHelper.getContentResolver().query(
+                uri, new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull("query must succeed", cursor);
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<Long> sorted(Long... masterKeyIds) {
+        List<Long> result = new ArrayList<>(Arrays.asList(masterKeyIds));
+        Collections.sort(result);
+        return result;
+    }
+
+}
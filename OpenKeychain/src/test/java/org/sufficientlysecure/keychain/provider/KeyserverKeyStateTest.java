@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.KeyserverKeyState;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/** Tests that the keyserver state of keys in updated_keys is stored and kept. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyserverKeyStateTest {
+
+    static final String KEYSERVER = "hkp://keyserver.example.com";
+
+    static UncachedKeyRing mRing;
+
+    ProviderHelper mProviderHelper;
+    long mMasterKeyId;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("alice");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mRing = result.getRing().extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mMasterKeyId = mRing.getMasterKeyId();
+
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mRing, new ProgressScaler(), null).success());
+    }
+
+    @Test
+    public void testStateIsStored() throws Exception {
+        Assert.assertNull("keys never downloaded must have no state",
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER));
+
+        mProviderHelper.renewKeyLastUpdatedTime(mMasterKeyId, new KeyserverKeyState(KEYSERVER,
+                new byte[] { 1, 2, 3 }, "\"etag\"", "Sat, 01 Oct 2016 10:00:00 GMT"),
+                1000L, TimeUnit.SECONDS);
+
+        KeyserverKeyState state = mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER);
+        Assert.assertNotNull("state must be stored", state);
+        Assert.assertEquals(KEYSERVER, state.mKeyserver);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, state.mContentHash);
+        Assert.assertEquals("\"etag\"", state.mETag);
+        Assert.assertEquals("Sat, 01 Oct 2016 10:00:00 GMT", state.mLastModified);
+
+        Assert.assertNull("state must not be returned for another keyserver",
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, "hkps://other.example.com"));
+    }
+
+    @Test
+    public void testStateIsKept() throws Exception {
+        mProviderHelper.renewKeyLastUpdatedTime(mMasterKeyId,
+                new KeyserverKeyState(KEYSERVER, new byte[] { 1, 2, 3 }, null, null),
+                1000L, TimeUnit.SECONDS);
+
+        // renewing only the time, as for unchanged keys
+        LinkedHashMap<Long, KeyserverKeyState> states = new LinkedHashMap<>();
+        states.put(mMasterKeyId, null);
+        mProviderHelper.renewKeysLastUpdatedTime(states, 2000L, TimeUnit.SECONDS);
+        Assert.assertArrayEquals("renewing the time must keep the state", new byte[] { 1, 2, 3 },
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER).mContentHash);
+
+        // saving deletes and re-inserts all rows of the keyring
+        Assert.assertTrue("saving keyring again must succeed", mProviderHelper.savePublicKeyRing(
+                mRing, new ProgressScaler(), null).success());
+        Assert.assertArrayEquals("saving the keyring must keep the state", new byte[] { 1, 2, 3 },
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER).mContentHash);
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mMasterKeyId), null, null);
+        Assert.assertNull("state must be deleted with the keyring",
+                mProviderHelper.getKeyserverKeyState(mMasterKeyId, KEYSERVER));
+    }
+
+}
@@ -39,11 +39,14 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.PreparedPublicKeyRing;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +252,36 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testSavePreparedBatch() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+
+        List<PreparedPublicKeyRing> prepared = new ArrayList<>();
+        prepared.add(new ProviderHelper(RuntimeEnvironment.application).preparePublicKeyRing(first, null));
+        prepared.add(new ProviderHelper(RuntimeEnvironment.application).preparePublicKeyRing(second, null));
+        Assert.assertNull("new keyrings should need writing", prepared.get(0).getResult());
+
+        List<SaveKeyringResult> results = mProviderHelper.savePreparedPublicKeyRings(prepared);
+        Assert.assertEquals("there should be one result per keyring", 2, results.size());
+        for (SaveKeyringResult result : results) {
+            Assert.assertTrue("batch import of keyring should succeed", result.success());
+            Assert.assertFalse("keyring should be new", result.updated());
+        }
+
+        Assert.assertEquals("first keyring should be in the database", first.getMasterKeyId(),
+                mProviderHelper.getCanonicalizedPublicKeyRing(first.getMasterKeyId()).getMasterKeyId());
+        Assert.assertEquals("second keyring should be in the database", second.getMasterKeyId(),
+                mProviderHelper.getCanonicalizedPublicKeyRing(second.getMasterKeyId()).getMasterKeyId());
+
+        // preparing the same data again should not require another write
+        PreparedPublicKeyRing again =
+                new ProviderHelper(RuntimeEnvironment.application).preparePublicKeyRing(first, null);
+        Assert.assertNotNull("identical keyring should not need writing", again.getResult());
+        Assert.assertTrue("identical keyring should be reported as updated", again.getResult().updated());
+
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ProviderHelperUpsertTest {
+
+    static final int ROUNDS = 10;
+
+    static final String[] KEY_COLUMNS = new String[] {
+            Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.KEY_CURVE_OID, Keys.ALGORITHM,
+            Keys.FINGERPRINT, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT,
+            Keys.CAN_AUTHENTICATE, Keys.IS_REVOKED, Keys.HAS_SECRET, Keys.CREATION, Keys.EXPIRY
+    };
+    static final String[] USER_PACKET_COLUMNS = new String[] {
+            UserPackets.RANK, UserPackets.TYPE, UserPackets.USER_ID, UserPackets.ATTRIBUTE_DATA,
+            UserPackets.IS_PRIMARY, UserPackets.IS_REVOKED
+    };
+    static final String[] CERT_COLUMNS = new String[] {
+            Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.VERIFIED, Certs.CREATION, Certs.DATA
+    };
+
+    static UncachedKeyRing mCertifierRing, mStaticRing;
+    static Passphrase mCertifierPhrase = TestingUtils.genPassphrase(true);
+    static Passphrase mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    ProviderHelper mProviderHelper;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("certifier");
+            parcel.mNewUnlock = new ChangeUnlockParcel(mCertifierPhrase);
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mCertifierRing = result.getRing();
+        }
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+            parcel.mAddUserIds.add("alice <alice@example.com>");
+            parcel.mAddUserIds.add("alice <alice@work.example.com>");
+            parcel.mAddUserIds.add("alice");
+            parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRing = result.getRing();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        Assert.assertTrue("saving certifier must succeed",
+                mProviderHelper.saveSecretKeyRing(mCertifierRing, new ProgressScaler()).success());
+    }
+
+    @Test
+    public void testUpsertNoChange() throws Exception {
+        CanonicalizedPublicKeyRing ring = canonicalize(mStaticRing.extractPublicKeyRing());
+        assertUpsertMatchesRewrite("no change", ring, 0);
+    }
+
+    @Test
+    public void testUpsertNewCert() throws Exception {
+        CanonicalizedPublicKeyRing ring = certifyFirstUserId();
+        assertUpsertMatchesRewrite("one new cert", ring, 1);
+    }
+
+    @Test
+    public void testUpsertNewSubkey() throws Exception {
+        CanonicalizedPublicKeyRing ring = canonicalize(addSubkey().extractPublicKeyRing());
+        // only the new subkey is inserted
+        assertUpsertMatchesRewrite("new subkey", ring, 1);
+    }
+
+    @Test
+    public void testUpsertSecretKeyRing() throws Exception {
+        long masterKeyId = mStaticRing.getMasterKeyId();
+        Assert.assertTrue("saving secret keyring must succeed",
+                mProviderHelper.saveSecretKeyRing(mStaticRing, new ProgressScaler()).success());
+
+        UncachedKeyRing modified = addSubkey();
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(modified, new ProgressScaler());
+        Assert.assertTrue("saving modified secret keyring must succeed", result.success());
+
+        CachedPublicKeyRing cachedRing = mProviderHelper.getCachedPublicKeyRing(masterKeyId);
+        Assert.assertTrue("keyring must still have a secret", cachedRing.hasAnySecret());
+        Assert.assertEquals("new subkey must be available as secret key", SecretKeyType.PASSPHRASE,
+                cachedRing.getSecretKeyType(KeyringTestingHelper.getSubkeyId(modified, 3)));
+        Assert.assertEquals("keyring must be marked as own key", Certs.VERIFIED_SECRET,
+                cachedRing.getVerified());
+        Assert.assertNotNull("secret keyring must be retrievable",
+                mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId));
+    }
+
+    /**
+     * Saves the given ring on top of the initial version, once incrementally and once by
+     * rewriting all rows, and checks that both leave the same rows in the database. Rows
+     * written and average wall time for both are logged.
+     */
+    private void assertUpsertMatchesRewrite(String name, CanonicalizedPublicKeyRing ring,
+            int expectedChangedRows) throws Exception {
+
+        long[] upsert = measureSave(ring, true);
+        List<String> upsertRows = dumpRows(ring.getMasterKeyId());
+        long[] rewrite = measureSave(ring, false);
+        List<String> rewriteRows = dumpRows(ring.getMasterKeyId());
+
+        Log.d(Constants.TAG, "upsert benchmark, " + name + ": "
+                + upsert[0] + " rows in " + upsert[1] / 1000 + "us incrementally, "
+                + rewrite[0] + " rows in " + rewrite[1] / 1000 + "us rewriting");
+
+        Assert.assertEquals("incremental upsert must leave the same rows as a rewrite",
+                rewriteRows, upsertRows);
+        // update of the keyring blob and delete of the secret keyring are always written
+        Assert.assertEquals("incremental upsert must only write changed rows",
+                2 + expectedChangedRows, upsert[0]);
+        Assert.assertTrue("incremental upsert must write fewer rows", upsert[0] < rewrite[0]);
+    }
+
+    /** Returns the number of operations of the last round and the average time per round in ns. */
+    private long[] measureSave(CanonicalizedPublicKeyRing ring, boolean incremental) throws Exception {
+        long operations = 0;
+        long totalTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            saveInitialRing();
+
+            ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+            providerHelper.mIncrementalUpsert = incremental;
+            ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+
+            long startTime = System.nanoTime();
+            int result = providerHelper.buildPublicKeyRingOperations(
+                    ring, new ProgressScaler(), false, batch);
+            Assert.assertNotEquals("building operations must succeed",
+                    SaveKeyringResult.RESULT_ERROR, result);
+            Assert.assertEquals("upsert must only be used if enabled", incremental,
+                    (result & SaveKeyringResult.UPDATED) != 0);
+            providerHelper.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, batch);
+            totalTime += System.nanoTime() - startTime;
+
+            operations = batch.size();
+        }
+        return new long[] { operations, totalTime / ROUNDS };
+    }
+
+    private void saveInitialRing() throws Exception {
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mStaticRing.getMasterKeyId()), null, null);
+        Assert.assertTrue("saving initial keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mStaticRing.extractPublicKeyRing(), new ProgressScaler(), null).success());
+    }
+
+    private CanonicalizedPublicKeyRing certifyFirstUserId() throws Exception {
+        saveInitialRing();
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        CertifyActionsParcel actions = new CertifyActionsParcel(mCertifierRing.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing.getMasterKeyId(),
+                Arrays.asList("alice <alice@example.com>"), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mCertifierPhrase));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        return mProviderHelper.getCanonicalizedPublicKeyRing(mStaticRing.getMasterKeyId());
+    }
+
+    private UncachedKeyRing addSubkey() throws Exception {
+        CanonicalizedSecretKeyRing secretRing = (CanonicalizedSecretKeyRing)
+                mStaticRing.canonicalize(new OperationLog(), 0);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel(
+                mStaticRing.getMasterKeyId(), mStaticRing.getFingerprint());
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).modifySecretKeyRing(
+                secretRing, new CryptoInputParcel(new Date(), mKeyPhrase), parcel);
+        Assert.assertTrue("adding subkey must succeed", result.success());
+        return result.getRing();
+    }
+
+    private static CanonicalizedPublicKeyRing canonicalize(UncachedKeyRing ring) {
+        return (CanonicalizedPublicKeyRing) ring.canonicalize(new OperationLog(), 0);
+    }
+
+    private List<String> dumpRows(long masterKeyId) {
+        ArrayList<String> rows = new ArrayList<>();
+        dumpRows(rows, Keys.buildKeysUri(masterKeyId), KEY_COLUMNS);
+        dumpRows(rows, UserPackets.buildUserPacketsUri(masterKeyId), USER_PACKET_COLUMNS);
+        dumpRows(rows, Certs.buildCertsUri(masterKeyId), CERT_COLUMNS);
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private void dumpRows(List<String> rows, Uri uri, String[] columns) {
+        Cursor cursor = mProviderHelper.getContentResolver().query(uri, columns, null, null, null);
+        Assert.assertNotNull("query must succeed", cursor);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder(uri.getLastPathSegment());
+                for (int i = 0; i < columns.length; i++) {
+                    row.append('|');
+                    if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                        row.append(Arrays.toString(cursor.getBlob(i)));
+                    } else {
+                        row.append(cursor.getString(i));
+                    }
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class TrustedKeysCacheTest {
+
+    static UncachedKeyRing mCertifierRing, mStaticRing;
+    static List<UncachedKeyRing> mOtherRings;
+    static Passphrase mCertifierPhrase = TestingUtils.genPassphrase(true);
+
+    ProviderHelper mProviderHelper;
+    TrustedKeysCache mCache;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("certifier");
+            parcel.mNewUnlock = new ChangeUnlockParcel(mCertifierPhrase);
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mCertifierRing = result.getRing();
+        }
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            // enough user ids that their certificates are verified in parallel
+            for (int i = 0; i < 6; i++) {
+                parcel.mAddUserIds.add("bob " + i + " <bob" + i + "@example.com>");
+            }
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRing = result.getRing().extractPublicKeyRing();
+        }
+
+        mOtherRings = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("other " + i);
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mOtherRings.add(result.getRing().extractPublicKeyRing());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mCache = TrustedKeysCache.getInstance(RuntimeEnvironment.application);
+
+        Assert.assertTrue("saving certifier must succeed",
+                mProviderHelper.saveSecretKeyRing(mCertifierRing, new ProgressScaler()).success());
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                mStaticRing, new ProgressScaler(), null).success());
+    }
+
+    @Test
+    public void testTrustedKeysAreLoadedOnce() throws Exception {
+        long loads = mCache.getLoads();
+        for (UncachedKeyRing ring : mOtherRings) {
+            Assert.assertTrue("saving keyring must succeed",
+                    mProviderHelper.savePublicKeyRing(ring, new ProgressScaler(), null).success());
+        }
+        Assert.assertTrue("trusted keys must be loaded at most once for many public keyrings",
+                mCache.getLoads() <= loads + 1);
+
+        long version = mCache.getVersion();
+        Assert.assertTrue("saving secret keyring must succeed",
+                mProviderHelper.saveSecretKeyRing(mCertifierRing, new ProgressScaler()).success());
+        Assert.assertTrue("saving a secret keyring must drop trusted keys",
+                mCache.getVersion() > version);
+    }
+
+    @Test
+    public void testCertsAreVerifiedAgainstTrustedKeys() throws Exception {
+        long masterKeyId = mStaticRing.getMasterKeyId();
+
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+        CertifyActionsParcel actions = new CertifyActionsParcel(mCertifierRing.getMasterKeyId());
+        actions.add(new CertifyAction(masterKeyId,
+                mStaticRing.getPublicKey().getUnorderedUserIds(), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mCertifierPhrase));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        UncachedKeyRing certifiedRing =
+                mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
+        Assert.assertEquals("certified keyring must be verified", Certs.VERIFIED_SECRET,
+                mProviderHelper.getCachedPublicKeyRing(masterKeyId).getVerified());
+
+        long version = mCache.getVersion();
+        // this deletes the secret keyring on cascade
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mCertifierRing.getMasterKeyId()), null, null);
+        Assert.assertTrue("deleting a secret keyring must drop trusted keys",
+                mCache.getVersion() > version);
+
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertTrue("saving keyring must succeed", mProviderHelper.savePublicKeyRing(
+                certifiedRing, new ProgressScaler(), null).success());
+        Assert.assertEquals("keyring must not be verified after certifier was deleted",
+                Certs.UNVERIFIED, mProviderHelper.getCachedPublicKeyRing(masterKeyId).getVerified());
+    }
+
+}
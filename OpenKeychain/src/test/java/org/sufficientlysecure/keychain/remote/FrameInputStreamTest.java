@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class FrameInputStreamTest {
+
+    @Test
+    public void testMultipleFrames() throws Exception {
+        InputStream in = new ByteArrayInputStream(frames("abc".getBytes(), "defgh".getBytes()));
+
+        FrameInputStream frame = FrameInputStream.readFrame(in);
+        Assert.assertNotNull("first frame must be read", frame);
+        Assert.assertEquals("length of first frame must be read", 3, frame.getLength());
+        Assert.assertEquals("abc", readAll(frame));
+
+        frame = FrameInputStream.readFrame(in);
+        Assert.assertNotNull("second frame must be read", frame);
+        Assert.assertEquals("length of second frame must be read", 5, frame.getLength());
+        Assert.assertEquals("defgh", readAll(frame));
+
+        Assert.assertNull("end of input must end the batch", FrameInputStream.readFrame(in));
+    }
+
+    @Test
+    public void testSkipRemaining() throws Exception {
+        InputStream in = new ByteArrayInputStream(frames("abc".getBytes(), "de".getBytes()));
+
+        FrameInputStream frame = FrameInputStream.readFrame(in);
+        Assert.assertEquals('a', frame.read());
+        frame.skipRemaining();
+        Assert.assertEquals("frame must end after skipping the rest", -1, frame.read());
+
+        frame = FrameInputStream.readFrame(in);
+        Assert.assertEquals("next frame must start after the skipped one", "de", readAll(frame));
+    }
+
+    @Test
+    public void testZeroLengthFrame() throws Exception {
+        InputStream in = new ByteArrayInputStream(frames(new byte[0], "a".getBytes()));
+
+        FrameInputStream frame = FrameInputStream.readFrame(in);
+        Assert.assertNotNull("empty frame must be read", frame);
+        Assert.assertEquals(0, frame.getLength());
+        Assert.assertEquals("empty frame must have no content", -1, frame.read());
+        Assert.assertEquals("empty frame must have no content", -1, frame.read(new byte[8], 0, 8));
+        frame.skipRemaining();
+
+        frame = FrameInputStream.readFrame(in);
+        Assert.assertEquals("frame after empty frame must be read", "a", readAll(frame));
+    }
+
+    @Test
+    public void testTruncatedLength() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 1 });
+        try {
+            FrameInputStream.readFrame(in);
+            Assert.fail("input ending within a length must not be taken as end of batch");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNegativeLength() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[] { (byte) 0x80, 0, 0, 0 });
+        try {
+            FrameInputStream.readFrame(in);
+            Assert.fail("negative length must be rejected");
+        } catch (EOFException e) {
+            Assert.fail("negative length is not the end of input");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEofWithinFrame() throws Exception {
+        byte[] data = frames("abcdef".getBytes());
+        byte[] truncated = new byte[data.length - 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        FrameInputStream frame = FrameInputStream.readFrame(new ByteArrayInputStream(truncated));
+        Assert.assertEquals("frame must be readable up to the end of input", "abcd", readAll(frame));
+        try {
+            frame.skipRemaining();
+            Assert.fail("input ending within a frame must be an error");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseKeepsBatchOpen() throws Exception {
+        InputStream in = new ByteArrayInputStream(frames("ab".getBytes(), "cd".getBytes()));
+
+        FrameInputStream frame = FrameInputStream.readFrame(in);
+        frame.close();
+        frame.skipRemaining();
+
+        Assert.assertEquals("batch must still be readable after closing a frame",
+                "cd", readAll(FrameInputStream.readFrame(in)));
+    }
+
+    static byte[] frames(byte[]... messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(out);
+        for (byte[] message : messages) {
+            dataOut.writeInt(message.length);
+            dataOut.write(message);
+        }
+        dataOut.flush();
+        return out.toByteArray();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[2];
+        int read;
+        while ((read = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toString();
+    }
+
+}
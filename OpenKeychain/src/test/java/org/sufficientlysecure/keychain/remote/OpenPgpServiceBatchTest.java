@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.ArrayList;
+
+import android.content.Intent;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OpenPgpServiceBatchTest {
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    OpenPgpService mService;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("bloom");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new ProviderHelper(RuntimeEnvironment.application)
+                .saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        mService = Robolectric.buildService(OpenPgpService.class).create().get();
+    }
+
+    @Test
+    public void testEncryptBatchRoundTrip() throws Exception {
+        String[] plaintexts = { "dies ist ein plaintext", "und dies ein zweiter ☭" };
+        byte[] input = FrameInputStreamTest.frames(
+                plaintexts[0].getBytes("UTF-8"), plaintexts[1].getBytes("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Intent result = mService.batchImpl(
+                getBatchIntent(OpenPgpApi.ACTION_ENCRYPT), new ByteArrayInputStream(input), out);
+
+        Assert.assertEquals("batch must succeed", OpenPgpApi.RESULT_CODE_SUCCESS,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+        ArrayList<Intent> results =
+                result.getParcelableArrayListExtra(OpenPgpService.RESULT_BATCH_RESULTS);
+        Assert.assertNotNull("batch must return the results of its messages", results);
+        Assert.assertEquals("batch must return a result per message", 2, results.size());
+        for (Intent messageResult : results) {
+            Assert.assertEquals("each message must be encrypted", OpenPgpApi.RESULT_CODE_SUCCESS,
+                    messageResult.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+        }
+
+        ByteArrayInputStream outputIn = new ByteArrayInputStream(out.toByteArray());
+        for (String plaintext : plaintexts) {
+            FrameInputStream frame = FrameInputStream.readFrame(outputIn);
+            Assert.assertNotNull("output must have a frame per message", frame);
+            Assert.assertTrue("encrypted message must not be empty", frame.getLength() > 0);
+            Assert.assertEquals("each message must decrypt to its own plaintext",
+                    plaintext, decrypt(frame, frame.getLength()));
+        }
+        Assert.assertNull("output must end after the last message",
+                FrameInputStream.readFrame(outputIn));
+    }
+
+    @Test
+    public void testBatchEndingWithinMessage() throws Exception {
+        byte[] input = FrameInputStreamTest.frames("dies ist ein plaintext".getBytes("UTF-8"));
+        byte[] truncated = new byte[input.length - 4];
+        System.arraycopy(input, 0, truncated, 0, truncated.length);
+
+        Intent result = mService.batchImpl(getBatchIntent(OpenPgpApi.ACTION_ENCRYPT),
+                new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+        Assert.assertEquals("batch ending within a message must fail", OpenPgpApi.RESULT_CODE_ERROR,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS));
+    }
+
+    private Intent getBatchIntent(String batchAction) {
+        Intent data = new Intent(OpenPgpService.ACTION_BATCH);
+        data.putExtra(OpenPgpService.EXTRA_BATCH_ACTION, batchAction);
+        data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+        data.putExtra(OpenPgpApi.EXTRA_KEY_IDS, new long[] { mStaticRing.getMasterKeyId() });
+        data.putExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, false);
+        return data;
+    }
+
+    private String decrypt(FrameInputStream in, long length) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                new CryptoInputParcel(mKeyPhrase), new InputData(in, length), out);
+        Assert.assertTrue("decryption must succeed", result.success());
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SecurityTokenConnectionTest {
+
+    static RSAPrivateCrtKey staticSignKey;
+    static RSAPrivateCrtKey staticEncryptKey;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4));
+        staticSignKey = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+        staticEncryptKey = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testCommandApduEncoding() throws Exception {
+        // the four cases of ISO 7816-3, with short and extended length fields
+        CommandApdu case1 = new CommandApdu(0x00, 0xE6, 0x00, 0x00);
+        Assert.assertEquals("00e60000", Hex.toHexString(case1.toBytes(false)));
+
+        CommandApdu case2 = new CommandApdu(0x00, 0xCA, 0x00, 0x6E, CommandApdu.MAX_EXTENDED_NE);
+        Assert.assertEquals("00ca006e00", Hex.toHexString(case2.toBytes(false)));
+        Assert.assertEquals("00ca006e000000", Hex.toHexString(case2.toBytes(true)));
+
+        CommandApdu case3 = new CommandApdu(0x00, 0x20, 0x00, 0x81, "123456".getBytes());
+        Assert.assertEquals("0020008106313233343536", Hex.toHexString(case3.toBytes(false)));
+        Assert.assertEquals("00200081000006313233343536", Hex.toHexString(case3.toBytes(true)));
+
+        CommandApdu case4 = new CommandApdu(0x00, 0x47, 0x80, 0x00, Hex.decode("B600"), 0x0800);
+        Assert.assertEquals("0047800002b60000", Hex.toHexString(case4.toBytes(false)));
+        Assert.assertEquals("00478000000002b6000800", Hex.toHexString(case4.toBytes(true)));
+
+        for (CommandApdu apdu : new CommandApdu[] { case1, case2, case3, case4 }) {
+            Assert.assertEquals(apdu.toBytes(false).length, apdu.getEncodedLength(false));
+            Assert.assertEquals(apdu.toBytes(true).length, apdu.getEncodedLength(true));
+        }
+
+        // only the last part of a chained command has Le, and no chaining bit
+        CommandApdu first = case4.getChainedPart(0, 1, false);
+        CommandApdu last = case4.getChainedPart(1, 1, true);
+        Assert.assertEquals("1047800001b6", Hex.toHexString(first.toBytes(false)));
+        Assert.assertEquals("00478000010000", Hex.toHexString(last.toBytes(false)));
+    }
+
+    @Test
+    public void testCardCapabilities() throws Exception {
+        SecurityTokenConnection connection = connect(new SoftwareOpenPgpCard(false));
+        Assert.assertFalse("short only card must not be sent extended apdus",
+                connection.getCardCapabilities().hasExtendedLength());
+
+        connection = connect(new SoftwareOpenPgpCard(true));
+        CardCapabilities capabilities = connection.getCardCapabilities();
+        Assert.assertTrue("extended length must be read from historical bytes", capabilities.hasExtendedLength());
+        Assert.assertEquals(SoftwareOpenPgpCard.MAX_EXTENDED_DATA_LENGTH, capabilities.getMaxCommandLength());
+        Assert.assertEquals(SoftwareOpenPgpCard.MAX_EXTENDED_DATA_LENGTH, capabilities.getMaxResponseLength());
+
+        // a version 2 card, with maximum lengths in the extended capabilities
+        byte[] appData = SoftwareOpenPgpCard.tlv(0x6E,
+                SoftwareOpenPgpCard.tlv(0x4F, Hex.decode("D2760001240102000005000012340000")),
+                SoftwareOpenPgpCard.tlv(0x5F52, Hex.decode("00730000C0059000")),
+                SoftwareOpenPgpCard.tlv(0x73, SoftwareOpenPgpCard.tlv(0xC0, Hex.decode("7C000800080004000400"))));
+        capabilities = CardCapabilities.fromApplicationRelatedData(Iso7816TLV.readSingle(appData, true));
+        Assert.assertTrue(capabilities.hasExtendedLength());
+        Assert.assertEquals(0x0400, capabilities.getMaxCommandLength());
+        Assert.assertEquals(0x0400, capabilities.getMaxResponseLength());
+    }
+
+    @Test
+    public void testPutKeyAndSign() throws Exception {
+        for (SoftwareOpenPgpCard card : createCards()) {
+            SecurityTokenConnection connection = connect(card);
+            connection.putKey(0xB6, staticSignKey);
+
+            assertSignatureValid(connection, getPublicKey(staticSignKey));
+            assertSignatureValid(connection, getPublicKey(staticSignKey));
+            Assert.assertEquals("card must count signatures", 2, card.getSignatureCounter());
+        }
+    }
+
+    @Test
+    public void testPutKeyAndDecrypt() throws Exception {
+        byte[] sessionKey = new byte[35];
+        new Random(42).nextBytes(sessionKey);
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, getPublicKey(staticEncryptKey));
+        byte[] cryptogram = cipher.doFinal(sessionKey);
+
+        // the session key as an MPI, as in the public key encrypted session key packet
+        BigInteger value = new BigInteger(1, cryptogram);
+        byte[] mpiValue = value.toByteArray();
+        int off = mpiValue[0] == 0 ? 1 : 0;
+        byte[] mpi = new byte[2 + mpiValue.length - off];
+        mpi[0] = (byte) (value.bitLength() >> 8);
+        mpi[1] = (byte) value.bitLength();
+        System.arraycopy(mpiValue, off, mpi, 2, mpiValue.length - off);
+
+        for (SoftwareOpenPgpCard card : createCards()) {
+            SecurityTokenConnection connection = connect(card);
+            connection.putKey(0xB8, staticEncryptKey);
+
+            Assert.assertArrayEquals("session key must be decrypted",
+                    sessionKey, connection.decryptSessionKey(mpi));
+        }
+    }
+
+    @Test
+    public void testGenerateKey() throws Exception {
+        for (SoftwareOpenPgpCard card : createCards()) {
+            SecurityTokenConnection connection = connect(card);
+            byte[] publicKeyData = connection.generateKey(0xB6);
+
+            Iso7816TLV tlv = Iso7816TLV.readSingle(publicKeyData, true);
+            BigInteger modulus = new BigInteger(1, Iso7816TLV.findRecursive(tlv, 0x81).mV);
+            BigInteger exponent = new BigInteger(1, Iso7816TLV.findRecursive(tlv, 0x82).mV);
+            Assert.assertEquals("modulus must be 2048 bits", 2048, modulus.bitLength());
+            Assert.assertEquals(BigInteger.valueOf(65537), exponent);
+
+            RSAPublicKey publicKey = (RSAPublicKey) KeyFactory.getInstance("RSA")
+                    .generatePublic(new RSAPublicKeySpec(modulus, exponent));
+            assertSignatureValid(connection, publicKey);
+        }
+    }
+
+    @Test
+    public void testDataObjects() throws Exception {
+        SecurityTokenConnection connection = connect(new SoftwareOpenPgpCard(false));
+
+        byte[] fingerprint = new byte[20];
+        new Random(1).nextBytes(fingerprint);
+        connection.putData(0xC8, fingerprint);
+        connection.putData(0x5B, "Doe<<John".getBytes());
+
+        byte[] fingerprints = connection.getFingerprints();
+        Assert.assertEquals(60, fingerprints.length);
+        Assert.assertArrayEquals(fingerprint, Arrays.copyOfRange(fingerprints, 20, 40));
+        Assert.assertEquals("Doe  John", connection.getUserId());
+        Assert.assertArrayEquals(SoftwareOpenPgpCard.AID, connection.getAid());
+        Assert.assertEquals("pw status bytes without status word", 7, connection.getPwStatusBytes().length);
+
+        // a certificate which needs command chaining
+        byte[] certificate = new byte[1000];
+        new Random(2).nextBytes(certificate);
+        connection.putData(0x7F21, certificate);
+    }
+
+    @Test
+    public void testWrongPin() throws Exception {
+        SoftwareOpenPgpCard card = new SoftwareOpenPgpCard(true);
+        SecurityTokenConnection connection = connect(card);
+        connection.putKey(0xB6, staticSignKey);
+
+        connection = new SecurityTokenConnection(card);
+        connection.setPin(new Passphrase("654321"));
+        connection.connect();
+        try {
+            connection.calculateSignature(new byte[32], HashAlgorithmTags.SHA256);
+            Assert.fail("signing with wrong pin must fail");
+        } catch (CardException e) {
+            Assert.assertEquals("status must indicate two tries left", 0x63C2, e.getResponseCode());
+        }
+    }
+
+    @Test
+    public void testModifyPinAndReset() throws Exception {
+        SoftwareOpenPgpCard card = new SoftwareOpenPgpCard(false);
+        SecurityTokenConnection connection = connect(card);
+        connection.putKey(0xB6, staticSignKey);
+        connection.putData(0xC7, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 });
+        connection.modifyPin(0x81, "111111".getBytes());
+
+        connection = new SecurityTokenConnection(card);
+        connection.setPin(new Passphrase("111111"));
+        connection.connect();
+        assertSignatureValid(connection, getPublicKey(staticSignKey));
+
+        connection.resetAndWipeToken();
+
+        connection = connect(card);
+        Assert.assertArrayEquals("fingerprints must be wiped", new byte[60], connection.getFingerprints());
+        try {
+            connection.calculateSignature(new byte[32], HashAlgorithmTags.SHA256);
+            Assert.fail("key must be wiped");
+        } catch (CardException e) {
+            Assert.assertEquals(SoftwareOpenPgpCard.SW_DATA_NOT_FOUND, e.getResponseCode());
+        }
+    }
+
+    /**
+     * Counts APDU round trips and bytes of each operation, for a token which only supports
+     * short APDUs, one with extended length APDUs, and one with extended length APDUs on a
+     * phone which can only send short ones.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        SoftwareOpenPgpCard limitedCard = new SoftwareOpenPgpCard(true);
+        limitedCard.setMaxTransceiveLength(SoftwareOpenPgpCard.MAX_SHORT_TRANSCEIVE_LENGTH);
+        limitedCard.setExtendedLengthApduSupported(false);
+        SoftwareOpenPgpCard[] cards = new SoftwareOpenPgpCard[] {
+                new SoftwareOpenPgpCard(false), new SoftwareOpenPgpCard(true), limitedCard
+        };
+        String[] names = new String[] { "short", "extended", "extended, short transport" };
+
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("benchmark".getBytes());
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, getPublicKey(staticEncryptKey));
+        byte[] cryptogram = cipher.doFinal(new byte[35]);
+        byte[] mpi = new byte[2 + cryptogram.length];
+        mpi[0] = 0x08; // cryptogram of a 2048 bit key, assuming no leading zeroes
+        System.arraycopy(cryptogram, 0, mpi, 2, cryptogram.length);
+
+        int[][] roundTrips = new int[cards.length][];
+        for (int i = 0; i < cards.length; i++) {
+            CountingTransport transport = new CountingTransport(cards[i]);
+            SecurityTokenConnection connection = new SecurityTokenConnection(transport);
+            connection.setPin(new Passphrase(SoftwareOpenPgpCard.DEFAULT_PIN));
+            connection.setAdminPin(new Passphrase(SoftwareOpenPgpCard.DEFAULT_ADMIN_PIN));
+
+            StringBuilder report = new StringBuilder("security token round trips, " + names[i] + ":");
+            roundTrips[i] = new int[5];
+
+            connection.connect();
+            roundTrips[i][0] = transport.report(report, "connect");
+
+            // PINs are verified beforehand, so only the operations themselves are counted
+            connection.verifyPin(0x81);
+            connection.verifyPin(0x82);
+            connection.verifyPin(0x83);
+            transport.reset();
+
+            connection.putKey(0xB8, staticEncryptKey);
+            roundTrips[i][1] = transport.report(report, "put key");
+            connection.generateKey(0xB6);
+            roundTrips[i][2] = transport.report(report, "generate key");
+            connection.calculateSignature(hash, HashAlgorithmTags.SHA256);
+            roundTrips[i][3] = transport.report(report, "sign");
+            connection.decryptSessionKey(mpi);
+            roundTrips[i][4] = transport.report(report, "decrypt");
+
+            Log.d(Constants.TAG, report.toString());
+        }
+
+        // connecting takes SELECT and GET DATA either way, the other operations take one
+        // round trip per short APDU, or a single extended one if the transport allows it
+        Assert.assertArrayEquals(new int[] { 2, 4, 2, 1, 2 }, roundTrips[0]);
+        Assert.assertArrayEquals(new int[] { 2, 1, 1, 1, 1 }, roundTrips[1]);
+        Assert.assertArrayEquals(new int[] { 2, 4, 2, 1, 2 }, roundTrips[2]);
+    }
+
+    private static SoftwareOpenPgpCard[] createCards() {
+        return new SoftwareOpenPgpCard[] { new SoftwareOpenPgpCard(false), new SoftwareOpenPgpCard(true) };
+    }
+
+    private static SecurityTokenConnection connect(Transport transport) throws IOException {
+        SecurityTokenConnection connection = new SecurityTokenConnection(transport);
+        connection.setPin(new Passphrase(SoftwareOpenPgpCard.DEFAULT_PIN));
+        connection.setAdminPin(new Passphrase(SoftwareOpenPgpCard.DEFAULT_ADMIN_PIN));
+        connection.connect();
+        return connection;
+    }
+
+    private static void assertSignatureValid(SecurityTokenConnection connection, RSAPublicKey publicKey)
+            throws Exception {
+        byte[] data = "signed data".getBytes();
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        byte[] signature = connection.calculateSignature(hash, HashAlgorithmTags.SHA256);
+
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        Assert.assertTrue("signature by token must be valid", verifier.verify(signature));
+    }
+
+    private static RSAPublicKey getPublicKey(RSAPrivateCrtKey key) throws Exception {
+        return (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+    }
+
+    /** Counts round trips and bytes in both directions. */
+    static class CountingTransport implements Transport {
+        private final Transport mTransport;
+        private int mRoundTrips;
+        private int mBytesSent;
+        private int mBytesReceived;
+
+        CountingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) throws IOException {
+            mRoundTrips += 1;
+            mBytesSent += command.length;
+            byte[] response = mTransport.transceive(command);
+            mBytesReceived += response.length;
+            return response;
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mTransport.getMaxTransceiveLength();
+        }
+
+        @Override
+        public boolean isExtendedLengthApduSupported() {
+            return mTransport.isExtendedLengthApduSupported();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mTransport.isConnected();
+        }
+
+        int report(StringBuilder report, String operation) {
+            int roundTrips = mRoundTrips;
+            report.append(String.format("\n  %-13s %2d round trips, %5d bytes sent, %5d bytes received",
+                    operation, mRoundTrips, mBytesSent, mBytesReceived));
+            reset();
+            return roundTrips;
+        }
+
+        void reset() {
+            mRoundTrips = 0;
+            mBytesSent = 0;
+            mBytesReceived = 0;
+        }
+    }
+
+}
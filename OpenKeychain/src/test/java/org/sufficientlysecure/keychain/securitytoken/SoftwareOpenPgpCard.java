@@ -0,0 +1,717 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+
+import org.bouncycastle.util.encoders.Hex;
+
+
+/**
+ * An OpenPGP card in software, for testing and benchmarking SecurityTokenConnection off-device.
+ *
+ * This implements the commands of the Functional Specification of the OpenPGP application on
+ * ISO Smart Card Operating Systems, version 3.0, which are used by SecurityTokenConnection, with
+ * RSA 2048 keys in all three slots. Short APDUs and command chaining are always accepted,
+ * extended length APDUs only if enabled. Response data which exceeds Ne is held back for GET
+ * RESPONSE, with status 61xx.
+ */
+public class SoftwareOpenPgpCard implements Transport {
+
+    public static final String DEFAULT_PIN = "123456";
+    public static final String DEFAULT_ADMIN_PIN = "12345678";
+
+    // version 3.0, manufacturer 0x0005, serial number 0x00001234
+    static final byte[] AID = Hex.decode("D2760001240103000005000012340000");
+    static final byte[] OPENPGP_AID_PREFIX = Hex.decode("D27600012401");
+
+    static final int MAX_EXTENDED_DATA_LENGTH = 0x0800;
+    static final int MAX_SHORT_TRANSCEIVE_LENGTH = 261;
+
+    static final int SW_SUCCESS = 0x9000;
+    static final int SW_TERMINATED = 0x6285;
+    static final int SW_WRONG_LENGTH = 0x6700;
+    static final int SW_CHAINING_ERROR = 0x6883;
+    static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    static final int SW_AUTHENTICATION_BLOCKED = 0x6983;
+    static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    static final int SW_WRONG_DATA = 0x6A80;
+    static final int SW_FILE_NOT_FOUND = 0x6A82;
+    static final int SW_DATA_NOT_FOUND = 0x6A88;
+    static final int SW_WRONG_P1P2 = 0x6B00;
+    static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    static final int SW_UNKNOWN = 0x6F00;
+
+    private static final int MAX_PIN_RETRIES = 3;
+
+    private final boolean mExtendedLength;
+    private int mMaxTransceiveLength;
+    private boolean mExtendedLengthApduSupported;
+
+    private byte[] mPw1;
+    private byte[] mPw3;
+    private int mPw1Retries;
+    private int mPw3Retries;
+    private boolean mPw1ValidForMultipleSignatures;
+    private boolean mPw1VerifiedForSignature;
+    private boolean mPw1VerifiedForOther;
+    private boolean mPw3Verified;
+
+    private boolean mSelected;
+    private boolean mTerminated;
+
+    private HashMap<Integer, RSAPrivateCrtKey> mKeys;
+    private HashMap<Integer, byte[]> mDataObjects;
+    private int mSignatureCounter;
+
+    // the data of a chained command received so far, and its INS, P1 and P2
+    private ByteArrayOutputStream mChainedData;
+    private int mChainedHeader;
+
+    // response data which is left for GET RESPONSE
+    private byte[] mPendingResponse;
+    private int mPendingOffset;
+
+    public SoftwareOpenPgpCard(boolean extendedLength) {
+        mExtendedLength = extendedLength;
+        mMaxTransceiveLength = extendedLength
+                ? 4 + 3 + MAX_EXTENDED_DATA_LENGTH + 2 : MAX_SHORT_TRANSCEIVE_LENGTH;
+        mExtendedLengthApduSupported = extendedLength;
+        factoryReset();
+    }
+
+    /** Limits the length of commands, as the NFC controller of a phone does. */
+    public void setMaxTransceiveLength(int maxTransceiveLength) {
+        mMaxTransceiveLength = maxTransceiveLength;
+    }
+
+    /** Disables extended length APDUs on the transport, as the NFC controller of a phone may. */
+    public void setExtendedLengthApduSupported(boolean extendedLengthApduSupported) {
+        mExtendedLengthApduSupported = extendedLengthApduSupported;
+    }
+
+    public int getSignatureCounter() {
+        return mSignatureCounter;
+    }
+
+    private void factoryReset() {
+        mPw1 = DEFAULT_PIN.getBytes();
+        mPw3 = DEFAULT_ADMIN_PIN.getBytes();
+        mPw1Retries = MAX_PIN_RETRIES;
+        mPw3Retries = MAX_PIN_RETRIES;
+        mPw1ValidForMultipleSignatures = true;
+        mPw1VerifiedForSignature = false;
+        mPw1VerifiedForOther = false;
+        mPw3Verified = false;
+        mTerminated = false;
+        mKeys = new HashMap<>();
+        mDataObjects = new HashMap<>();
+        mSignatureCounter = 0;
+        mChainedData = null;
+        mPendingResponse = null;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        if (command.length > mMaxTransceiveLength) {
+            throw new IOException("Command exceeds maximum transceive length: " + command.length);
+        }
+        return process(command).toBytes();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mMaxTransceiveLength;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return mExtendedLengthApduSupported;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /** Decodes a command APDU in any of the cases of ISO 7816-3, section 12.1.3, and runs it. */
+    private ResponseApdu process(byte[] apdu) {
+        if (apdu.length < 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        int cla = apdu[0] & 0xff;
+        int header = ((apdu[1] & 0xff) << 16) | ((apdu[2] & 0xff) << 8) | (apdu[3] & 0xff);
+
+        byte[] data = new byte[0];
+        int ne = 0;
+        if (apdu.length == 5) {
+            ne = decodeLe(apdu[4] & 0xff, CommandApdu.MAX_SHORT_NE);
+        } else if (apdu.length > 5 && apdu[4] != 0) {
+            int nc = apdu[4] & 0xff;
+            if (apdu.length == 6 + nc) {
+                ne = decodeLe(apdu[5 + nc] & 0xff, CommandApdu.MAX_SHORT_NE);
+            } else if (apdu.length != 5 + nc) {
+                return status(SW_WRONG_LENGTH);
+            }
+            data = Arrays.copyOfRange(apdu, 5, 5 + nc);
+        } else if (apdu.length > 5) {
+            if (!mExtendedLength || apdu.length < 7) {
+                return status(SW_WRONG_LENGTH);
+            }
+            int length = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+            if (apdu.length == 7) {
+                ne = decodeLe(length, CommandApdu.MAX_EXTENDED_NE);
+            } else {
+                if (apdu.length == 9 + length) {
+                    ne = decodeLe(((apdu[7 + length] & 0xff) << 8) | (apdu[8 + length] & 0xff),
+                            CommandApdu.MAX_EXTENDED_NE);
+                } else if (apdu.length != 7 + length) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                data = Arrays.copyOfRange(apdu, 7, 7 + length);
+            }
+        }
+
+        int ins = header >> 16;
+        if (ins == 0xC0) {
+            return getResponse(ne);
+        }
+        mPendingResponse = null;
+
+        if ((cla & CommandApdu.CLA_CHAINING) != 0) {
+            if (mChainedData == null) {
+                mChainedData = new ByteArrayOutputStream();
+                mChainedHeader = header;
+            } else if (mChainedHeader != header) {
+                mChainedData = null;
+                return status(SW_CHAINING_ERROR);
+            }
+            mChainedData.write(data, 0, data.length);
+            return status(SW_SUCCESS);
+        }
+        if (mChainedData != null) {
+            if (mChainedHeader != header) {
+                mChainedData = null;
+                return status(SW_CHAINING_ERROR);
+            }
+            mChainedData.write(data, 0, data.length);
+            data = mChainedData.toByteArray();
+            mChainedData = null;
+        }
+
+        ResponseApdu response;
+        try {
+            response = execute(ins, (header >> 8) & 0xff, header & 0xff, data);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            response = status(SW_UNKNOWN);
+        }
+        if (!response.isSuccess() || response.getData().length <= ne) {
+            return response;
+        }
+        mPendingResponse = response.getData();
+        mPendingOffset = 0;
+        return getResponse(ne);
+    }
+
+    private static int decodeLe(int le, int max) {
+        return le == 0 ? max : le;
+    }
+
+    private ResponseApdu getResponse(int ne) {
+        if (mPendingResponse == null) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        int length = Math.min(ne, mPendingResponse.length - mPendingOffset);
+        byte[] data = Arrays.copyOfRange(mPendingResponse, mPendingOffset, mPendingOffset + length);
+        mPendingOffset += length;
+
+        int remaining = mPendingResponse.length - mPendingOffset;
+        if (remaining == 0) {
+            mPendingResponse = null;
+            return new ResponseApdu(data, SW_SUCCESS);
+        }
+        return new ResponseApdu(data, 0x6100 | (Math.min(remaining, 256) & 0xff));
+    }
+
+    private ResponseApdu execute(int ins, int p1, int p2, byte[] data)
+            throws GeneralSecurityException, IOException {
+        if (mTerminated && ins != 0x44) {
+            return status(SW_TERMINATED);
+        }
+        if (!mSelected && ins != 0xA4) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        switch (ins) {
+            case 0xA4: {
+                return select(p1, data);
+            }
+            case 0xCA: {
+                byte[] dataObject = getDataObject((p1 << 8) | p2);
+                return dataObject != null ? new ResponseApdu(dataObject, SW_SUCCESS) : status(SW_DATA_NOT_FOUND);
+            }
+            case 0x20: {
+                return verify(p2, data);
+            }
+            case 0x24: {
+                return changeReferenceData(p2, data);
+            }
+            case 0xDA: {
+                return putData((p1 << 8) | p2, data);
+            }
+            case 0xDB: {
+                if (p1 != 0x3F || p2 != 0xFF) {
+                    return status(SW_WRONG_P1P2);
+                }
+                if (!mPw3Verified) {
+                    return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                return importKey(data);
+            }
+            case 0x47: {
+                return generateKey(p1, data);
+            }
+            case 0x2A: {
+                if (p1 == 0x9E && p2 == 0x9A) {
+                    return computeDigitalSignature(data);
+                } else if (p1 == 0x80 && p2 == 0x86) {
+                    return decipher(data);
+                }
+                return status(SW_WRONG_P1P2);
+            }
+            case 0xE6: {
+                // TERMINATE DF is allowed once the Admin PIN is blocked
+                if (mPw3Retries > 0 && !mPw3Verified) {
+                    return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                mTerminated = true;
+                return status(SW_SUCCESS);
+            }
+            case 0x44: {
+                // ACTIVATE FILE resets a terminated card, and does nothing otherwise
+                if (mTerminated) {
+                    factoryReset();
+                    mSelected = true;
+                }
+                return status(SW_SUCCESS);
+            }
+            default: {
+                return status(SW_INS_NOT_SUPPORTED);
+            }
+        }
+    }
+
+    private ResponseApdu select(int p1, byte[] aid) {
+        if (p1 != 0x04 || aid.length < OPENPGP_AID_PREFIX.length
+                || !Arrays.equals(OPENPGP_AID_PREFIX, Arrays.copyOf(aid, OPENPGP_AID_PREFIX.length))) {
+            return status(SW_FILE_NOT_FOUND);
+        }
+        mSelected = true;
+        mPw1VerifiedForSignature = false;
+        mPw1VerifiedForOther = false;
+        mPw3Verified = false;
+        return status(SW_SUCCESS);
+    }
+
+    private ResponseApdu verify(int mode, byte[] pin) {
+        if (mode != 0x81 && mode != 0x82 && mode != 0x83) {
+            return status(SW_WRONG_P1P2);
+        }
+        boolean admin = mode == 0x83;
+        int retries = admin ? mPw3Retries : mPw1Retries;
+
+        // without data, VERIFY returns whether the PIN is verified already
+        if (pin.length == 0) {
+            boolean verified = mode == 0x81 ? mPw1VerifiedForSignature
+                    : mode == 0x82 ? mPw1VerifiedForOther : mPw3Verified;
+            return status(verified ? SW_SUCCESS : 0x63C0 | retries);
+        }
+        if (retries == 0) {
+            return status(SW_AUTHENTICATION_BLOCKED);
+        }
+
+        if (!MessageDigest.isEqual(pin, admin ? mPw3 : mPw1)) {
+            if (admin) {
+                mPw3Retries -= 1;
+                mPw3Verified = false;
+            } else {
+                mPw1Retries -= 1;
+                mPw1VerifiedForSignature = false;
+                mPw1VerifiedForOther = false;
+            }
+            return status(0x63C0 | (retries - 1));
+        }
+
+        if (admin) {
+            mPw3Retries = MAX_PIN_RETRIES;
+            mPw3Verified = true;
+        } else {
+            mPw1Retries = MAX_PIN_RETRIES;
+            if (mode == 0x81) {
+                mPw1VerifiedForSignature = true;
+            } else {
+                mPw1VerifiedForOther = true;
+            }
+        }
+        return status(SW_SUCCESS);
+    }
+
+    private ResponseApdu changeReferenceData(int pw, byte[] data) {
+        if (pw != 0x81 && pw != 0x83) {
+            return status(SW_WRONG_P1P2);
+        }
+        boolean admin = pw == 0x83;
+        byte[] oldPin = admin ? mPw3 : mPw1;
+        int retries = admin ? mPw3Retries : mPw1Retries;
+        if (retries == 0) {
+            return status(SW_AUTHENTICATION_BLOCKED);
+        }
+
+        byte[] newPin = Arrays.copyOfRange(data, Math.min(oldPin.length, data.length), data.length);
+        if (data.length < oldPin.length || !MessageDigest.isEqual(oldPin, Arrays.copyOf(data, oldPin.length))) {
+            if (admin) {
+                mPw3Retries -= 1;
+            } else {
+                mPw1Retries -= 1;
+            }
+            return status(0x63C0 | (retries - 1));
+        }
+        if (newPin.length < (admin ? 8 : 6) || newPin.length > 127) {
+            return status(SW_WRONG_DATA);
+        }
+
+        if (admin) {
+            mPw3 = newPin;
+            mPw3Retries = MAX_PIN_RETRIES;
+            mPw3Verified = false;
+        } else {
+            mPw1 = newPin;
+            mPw1Retries = MAX_PIN_RETRIES;
+            mPw1VerifiedForSignature = false;
+            mPw1VerifiedForOther = false;
+        }
+        return status(SW_SUCCESS);
+    }
+
+    private ResponseApdu putData(int tag, byte[] data) {
+        boolean privateUse = tag == 0x0101 || tag == 0x0103;
+        if (privateUse ? !mPw1VerifiedForOther : !mPw3Verified) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (tag == 0xC4) {
+            // only the first byte of the PW status bytes can be changed
+            if (data.length != 1) {
+                return status(SW_WRONG_DATA);
+            }
+            mPw1ValidForMultipleSignatures = data[0] == 1;
+            return status(SW_SUCCESS);
+        }
+        mDataObjects.put(tag, data);
+        return status(SW_SUCCESS);
+    }
+
+    /**
+     * Imports a key from an extended header list (page 23 of version 2.0): a control reference
+     * template naming the slot, a private key template listing tags and lengths of the key
+     * components, and the concatenated key components.
+     */
+    private ResponseApdu importKey(byte[] data) throws GeneralSecurityException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (readTag(buf) != 0x4D) {
+            return status(SW_WRONG_DATA);
+        }
+        readLength(buf);
+
+        int slot = readTag(buf);
+        int crtLength = readLength(buf);
+        buf.position(buf.position() + crtLength);
+        if (slot != 0xB6 && slot != 0xB8 && slot != 0xA4) {
+            return status(SW_WRONG_DATA);
+        }
+
+        if (readTag(buf) != 0x7F48) {
+            return status(SW_WRONG_DATA);
+        }
+        int templateLength = readLength(buf);
+        int templateEnd = buf.position() + templateLength;
+        HashMap<Integer, Integer> lengths = new HashMap<>();
+        int[] tags = new int[7];
+        int count = 0;
+        while (buf.position() < templateEnd && count < tags.length) {
+            int tag = readTag(buf);
+            lengths.put(tag, readLength(buf));
+            tags[count++] = tag;
+        }
+
+        if (readTag(buf) != 0x5F48) {
+            return status(SW_WRONG_DATA);
+        }
+        readLength(buf);
+        HashMap<Integer, BigInteger> components = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] component = new byte[lengths.get(tags[i])];
+            buf.get(component);
+            components.put(tags[i], new BigInteger(1, component));
+            Arrays.fill(component, (byte) 0);
+        }
+
+        BigInteger e = components.get(0x91), p = components.get(0x92), q = components.get(0x93);
+        BigInteger n = components.get(0x97);
+        if (e == null || p == null || q == null || n == null || !p.multiply(q).equals(n)) {
+            return status(SW_WRONG_DATA);
+        }
+        BigInteger d = e.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+        RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec(n, e, d, p, q,
+                components.get(0x95), components.get(0x96), components.get(0x94));
+        storeKey(slot, (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(spec));
+
+        return status(SW_SUCCESS);
+    }
+
+    private ResponseApdu generateKey(int mode, byte[] crt) throws GeneralSecurityException {
+        if (crt.length < 1) {
+            return status(SW_WRONG_DATA);
+        }
+        int slot = crt[0] & 0xff;
+        if (slot != 0xB6 && slot != 0xB8 && slot != 0xA4) {
+            return status(SW_WRONG_DATA);
+        }
+
+        if (mode == 0x80) {
+            if (!mPw3Verified) {
+                return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4));
+            KeyPair keyPair = generator.generateKeyPair();
+            storeKey(slot, (RSAPrivateCrtKey) keyPair.getPrivate());
+        } else if (mode != 0x81) {
+            return status(SW_WRONG_P1P2);
+        }
+
+        RSAPrivateCrtKey key = mKeys.get(slot);
+        if (key == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        return new ResponseApdu(tlv(0x7F49,
+                tlv(0x81, unsigned(key.getModulus())),
+                tlv(0x82, unsigned(key.getPublicExponent()))), SW_SUCCESS);
+    }
+
+    private void storeKey(int slot, RSAPrivateCrtKey key) {
+        mKeys.put(slot, key);
+        if (slot == 0xB6) {
+            mSignatureCounter = 0;
+        }
+    }
+
+    private ResponseApdu computeDigitalSignature(byte[] digestInfo) throws GeneralSecurityException {
+        if (!mPw1VerifiedForSignature) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        RSAPrivateCrtKey key = mKeys.get(0xB6);
+        if (key == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        // at most 40% of the modulus length, page 39
+        if (digestInfo.length > key.getModulus().bitLength() / 8 * 2 / 5) {
+            return status(SW_WRONG_LENGTH);
+        }
+
+        // PKCS#1 v1.5 signature of the DigestInfo as given
+        Signature signature = Signature.getInstance("NONEwithRSA");
+        signature.initSign(key);
+        signature.update(digestInfo);
+        byte[] result = signature.sign();
+
+        mSignatureCounter += 1;
+        if (!mPw1ValidForMultipleSignatures) {
+            mPw1VerifiedForSignature = false;
+        }
+        return new ResponseApdu(result, SW_SUCCESS);
+    }
+
+    private ResponseApdu decipher(byte[] data) throws GeneralSecurityException {
+        if (!mPw1VerifiedForOther) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        RSAPrivateCrtKey key = mKeys.get(0xB8);
+        if (key == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        // padding indicator byte, followed by the cryptogram (page 41)
+        if (data.length < 2 || data[0] != 0x00) {
+            return status(SW_WRONG_DATA);
+        }
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        try {
+            return new ResponseApdu(cipher.doFinal(data, 1, data.length - 1), SW_SUCCESS);
+        } catch (BadPaddingException e) {
+            return status(SW_WRONG_DATA);
+        }
+    }
+
+    private byte[] getDataObject(int tag) {
+        switch (tag) {
+            case 0x4F:
+                return AID;
+            case 0x5F52:
+                return getHistoricalBytes();
+            case 0x65:
+                return tlv(0x65,
+                        tlv(0x5B, getStoredDataObject(0x5B, 0)),
+                        tlv(0x5F2D, "en".getBytes()),
+                        tlv(0x5F35, new byte[] { '9' }));
+            case 0x6E: {
+                ByteArrayOutputStream appData = new ByteArrayOutputStream();
+                write(appData, tlv(0x4F, AID));
+                write(appData, tlv(0x5F52, getHistoricalBytes()));
+                if (mExtendedLength) {
+                    write(appData, tlv(0x7F66, getExtendedLengthInformation()));
+                }
+                write(appData, tlv(0x73,
+                        tlv(0xC0, Hex.decode("7C000000080000FF0000")),
+                        tlv(0xC1, Hex.decode("010800002000")),
+                        tlv(0xC2, Hex.decode("010800002000")),
+                        tlv(0xC3, Hex.decode("010800002000")),
+                        tlv(0xC4, getPwStatusBytes()),
+                        tlv(0xC5, concat(getStoredDataObject(0xC7, 20),
+                                getStoredDataObject(0xC8, 20), getStoredDataObject(0xC9, 20))),
+                        tlv(0xC6, new byte[60]),
+                        tlv(0xCD, concat(getStoredDataObject(0xCE, 4),
+                                getStoredDataObject(0xCF, 4), getStoredDataObject(0xD0, 4)))));
+                return tlv(0x6E, appData.toByteArray());
+            }
+            case 0x7A:
+                return tlv(0x7A, tlv(0x93, new byte[] {
+                        (byte) (mSignatureCounter >> 16), (byte) (mSignatureCounter >> 8), (byte) mSignatureCounter
+                }));
+            case 0x7F66:
+                return mExtendedLength ? getExtendedLengthInformation() : null;
+            case 0xC4:
+                return getPwStatusBytes();
+            default:
+                return mDataObjects.get(tag);
+        }
+    }
+
+    private byte[] getStoredDataObject(int tag, int defaultLength) {
+        byte[] data = mDataObjects.get(tag);
+        return data != null ? data : new byte[defaultLength];
+    }
+
+    /** Category indicator 00, card capabilities (tag 7, length 3), status indicator. */
+    private byte[] getHistoricalBytes() {
+        // command chaining, and extended Lc and Le fields if enabled
+        byte capabilities = (byte) (mExtendedLength ? 0xC0 : 0x80);
+        return new byte[] { 0x00, 0x73, 0x00, 0x00, capabilities, 0x05, (byte) 0x90, 0x00 };
+    }
+
+    private byte[] getExtendedLengthInformation() {
+        byte[] maxLength = new byte[] { (byte) (MAX_EXTENDED_DATA_LENGTH >> 8), (byte) MAX_EXTENDED_DATA_LENGTH };
+        return concat(tlv(0x02, maxLength), tlv(0x02, maxLength));
+    }
+
+    private byte[] getPwStatusBytes() {
+        return new byte[] {
+                (byte) (mPw1ValidForMultipleSignatures ? 1 : 0), 127, 127, 127,
+                (byte) mPw1Retries, 0, (byte) mPw3Retries
+        };
+    }
+
+    private static ResponseApdu status(int sw) {
+        return new ResponseApdu(new byte[0], sw);
+    }
+
+    private static int readTag(ByteBuffer buf) {
+        int tag = buf.get() & 0xff;
+        if ((tag & 0x1f) == 0x1f) {
+            tag = (tag << 8) | (buf.get() & 0xff);
+        }
+        return tag;
+    }
+
+    private static int readLength(ByteBuffer buf) {
+        int length = buf.get() & 0xff;
+        if (length == 0x81) {
+            length = buf.get() & 0xff;
+        } else if (length == 0x82) {
+            length = ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+        }
+        return length;
+    }
+
+    static byte[] tlv(int tag, byte[]... values) {
+        byte[] value = concat(values);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag > 0xff) {
+            out.write(tag >> 8);
+        }
+        out.write(tag);
+        if (value.length > 0xff) {
+            out.write(0x82);
+            out.write(value.length >> 8);
+        } else if (value.length > 0x7f) {
+            out.write(0x81);
+        }
+        out.write(value.length);
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] value : values) {
+            write(out, value);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0 && bytes.length > 1) {
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.service.KeyRefreshScheduler.KeyRefresher;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRefreshSchedulerTest {
+
+    long mNow;
+    File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        mDir = RuntimeEnvironment.application.getFilesDir();
+        new KeyRefreshQueue(mDir).finish();
+    }
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        mNow = 1000;
+        KeyRefreshScheduler.TokenBucket bucket = new KeyRefreshScheduler.TokenBucket(2.0, 2) {
+            @Override
+            long now() {
+                return mNow;
+            }
+        };
+
+        Assert.assertEquals("burst must be available immediately", 0, bucket.reserve());
+        Assert.assertEquals("burst must be available immediately", 0, bucket.reserve());
+        Assert.assertEquals("next token must come after 1/rate", 500, bucket.reserve());
+        Assert.assertEquals("reservations must queue up", 1000, bucket.reserve());
+
+        mNow += 10000;
+        Assert.assertEquals("bucket must refill up to burst", 0, bucket.reserve());
+        Assert.assertEquals("bucket must refill up to burst", 0, bucket.reserve());
+        Assert.assertEquals("bucket must refill up to burst only", 500, bucket.reserve());
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler("concurrency",
+                new KeyRefreshScheduler.Config("test", 3, 1000.0, 1000, 0, 0, 1, 0, 0),
+                new AtomicBoolean(false));
+
+        ImportKeyResult result = scheduler.run(createKeys(30), new KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                running.decrementAndGet();
+                return updated();
+            }
+        }, null);
+
+        Assert.assertEquals("all keys must be refreshed", 30, result.mUpdatedKeys);
+        Assert.assertTrue("requests must run concurrently", maxRunning.get() > 1);
+        Assert.assertTrue("concurrency limit must hold", maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        final ConcurrentHashMap<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler("retries",
+                new KeyRefreshScheduler.Config("test", 2, 1000.0, 1000, 0, 0, 3, 10, 20),
+                new AtomicBoolean(false));
+
+        List<ParcelableKeyRing> keys = createKeys(2);
+        final String flaky = keys.get(0).mExpectedFingerprint;
+        ImportKeyResult result = scheduler.run(keys, new KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                attempts.putIfAbsent(keyRing.mExpectedFingerprint, new AtomicInteger());
+                int attempt = attempts.get(keyRing.mExpectedFingerprint).incrementAndGet();
+                // the first key succeeds on the second attempt, the other one never
+                return keyRing.mExpectedFingerprint.equals(flaky) && attempt == 2
+                        ? updated() : unavailable();
+            }
+        }, null);
+
+        Assert.assertEquals("failed retrieval must be retried", 2, attempts.get(flaky).get());
+        Assert.assertEquals("retries must stop after max attempts", 3,
+                attempts.get(keys.get(1).mExpectedFingerprint).get());
+        Assert.assertEquals(1, result.mUpdatedKeys);
+        Assert.assertEquals(1, result.mBadKeys);
+    }
+
+    @Test
+    public void testNotFoundIsFinal() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler("not found",
+                new KeyRefreshScheduler.Config("test", 1, 1000.0, 1000, 0, 0, 3, 10, 20),
+                new AtomicBoolean(false));
+
+        ImportKeyResult result = scheduler.run(createKeys(1), new KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                attempts.incrementAndGet();
+                return notFound();
+            }
+        }, null);
+
+        Assert.assertEquals("key which isn't on the keyserver must not be retried", 1, attempts.get());
+        Assert.assertEquals(1, result.mBadKeys);
+    }
+
+    @Test
+    public void testTorSpacing() throws Exception {
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler("spacing",
+                KeyRefreshScheduler.Config.forTor(50), new AtomicBoolean(false));
+
+        final ArrayList<Long> times = new ArrayList<>();
+        scheduler.run(createKeys(4), new KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                times.add(System.currentTimeMillis());
+                return updated();
+            }
+        }, null);
+
+        for (int i = 1; i < times.size(); i++) {
+            long spacing = times.get(i) - times.get(i - 1);
+            Assert.assertTrue("requests must be spaced, was " + spacing + "ms", spacing >= 50);
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler("resume",
+                new KeyRefreshScheduler.Config("test", 1, 1000.0, 1000, 0, 0, 1, 0, 0), cancelled);
+
+        List<ParcelableKeyRing> keys = createKeys(10);
+        KeyRefreshQueue queue = new KeyRefreshQueue(mDir);
+        queue.start(keys);
+
+        // interrupted after four keys
+        final AtomicInteger refreshed = new AtomicInteger();
+        ImportKeyResult result = scheduler.run(keys, new KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                if (refreshed.incrementAndGet() == 4) {
+                    cancelled.set(true);
+                }
+                return updated();
+            }
+        }, queue);
+        queue.close();
+        Assert.assertTrue("result must be cancelled", result.cancelled());
+
+        List<ParcelableKeyRing> left = new KeyRefreshQueue(mDir).resume(60000, keys);
+        Assert.assertNotNull("queue must be resumable", left);
+        Assert.assertEquals("only keys which are not done must be left", 6, left.size());
+        Assert.assertEquals(keys.get(4).mExpectedFingerprint, left.get(0).mExpectedFingerprint);
+        Assert.assertEquals(keys.get(4).mKeyIdHex, left.get(0).mKeyIdHex);
+
+        // one key which is left was deleted meanwhile
+        ArrayList<ParcelableKeyRing> current = new ArrayList<>(keys);
+        current.remove(5);
+        left = new KeyRefreshQueue(mDir).resume(60000, current);
+        Assert.assertEquals("deleted key must not be resumed", 5, left.size());
+        for (ParcelableKeyRing key : left) {
+            Assert.assertFalse("deleted key must not be resumed",
+                    key.mExpectedFingerprint.equals(keys.get(5).mExpectedFingerprint));
+        }
+
+        Assert.assertNull("outdated queue must not be resumed",
+                new KeyRefreshQueue(mDir).resume(-1, keys));
+        Assert.assertNull("outdated queue must be deleted",
+                new KeyRefreshQueue(mDir).resume(60000, keys));
+    }
+
+    private static List<ParcelableKeyRing> createKeys(int num) {
+        ParcelableKeyRing[] keys = new ParcelableKeyRing[num];
+        for (int i = 0; i < num; i++) {
+            String keyId = String.format("%016x", 0x1000L + i);
+            keys[i] = new ParcelableKeyRing("0123456789abcdef0123" + "4567" + keyId, "0x" + keyId);
+        }
+        return Arrays.asList(keys);
+    }
+
+    private static ImportKeyResult updated() {
+        return new ImportKeyResult(ImportKeyResult.RESULT_OK_UPDATED, new OperationLog(),
+                0, 1, 0, 0, new long[] { 1L });
+    }
+
+    private static ImportKeyResult unavailable() {
+        return fetchFailed(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_UNAVAILABLE, "unavailable");
+    }
+
+    private static ImportKeyResult notFound() {
+        return fetchFailed(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, "not found");
+    }
+
+    private static ImportKeyResult fetchFailed(LogType type, String message) {
+        OperationLog log = new OperationLog();
+        log.add(type, 3, message);
+        return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log, 0, 0, 1, 0, new long[] {});
+    }
+
+}
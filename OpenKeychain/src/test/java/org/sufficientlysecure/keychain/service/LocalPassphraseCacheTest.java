@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class LocalPassphraseCacheTest {
+
+    long mNow;
+    LocalPassphraseCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        mNow = 1000;
+        mCache = new LocalPassphraseCache() {
+            @Override
+            long now() {
+                return mNow;
+            }
+        };
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        Passphrase passphrase = new Passphrase("swordfish");
+        mCache.put(1L, 2L, passphrase, 5000);
+
+        Assert.assertEquals("cached passphrase must be returned for same key ids",
+                passphrase, mCache.get(1L, 2L));
+        Assert.assertNull("other subkey must not be returned", mCache.get(1L, 3L));
+        Assert.assertNull("other master key must not be returned", mCache.get(4L, 2L));
+
+        passphrase.removeFromMemory();
+        Assert.assertEquals("cache must hold its own copy of the passphrase",
+                new Passphrase("swordfish"), mCache.get(1L, 2L));
+
+        mCache.get(1L, 2L).removeFromMemory();
+        Assert.assertEquals("returned passphrase must be a copy",
+                new Passphrase("swordfish"), mCache.get(1L, 2L));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        mCache.put(1L, 2L, new Passphrase("swordfish"), 5000);
+        mCache.put(1L, 3L, new Passphrase("swordfish"), Long.MAX_VALUE);
+
+        mNow += 4999;
+        Assert.assertNotNull("passphrase must be returned before ttl is over", mCache.get(1L, 2L));
+
+        mNow += 1;
+        Assert.assertNull("passphrase must not be returned after ttl is over", mCache.get(1L, 2L));
+        Assert.assertEquals("expired passphrase must be removed", 1, mCache.size());
+
+        mNow += LocalPassphraseCache.MAX_TTL_MILLIS;
+        Assert.assertNull("ttl must be bounded by MAX_TTL_MILLIS", mCache.get(1L, 3L));
+        Assert.assertEquals("expired passphrase must be removed", 0, mCache.size());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        mCache.put(1L, 2L, new Passphrase("swordfish"), 5000);
+        mCache.put(1L, 3L, new Passphrase("swordfish"), 5000);
+        mCache.put(1L, 4L, new Passphrase("swordfish"), 0);
+
+        Assert.assertEquals("passphrase with no ttl must not be cached", 2, mCache.size());
+
+        mCache.clear();
+        Assert.assertEquals("clear must remove all passphrases", 0, mCache.size());
+        Assert.assertNull("cleared passphrase must not be returned", mCache.get(1L, 2L));
+    }
+
+    @Test
+    public void testPutAfterClear() throws Exception {
+        // a lookup from the service starts, and the cache is cleared before it returns
+        int generation = mCache.getGeneration();
+        mCache.clear();
+        mCache.put(1L, 2L, new Passphrase("swordfish"), 5000, generation);
+
+        Assert.assertEquals("lookup from before a clear must not refill the cache", 0, mCache.size());
+        Assert.assertNull("stale passphrase must not be returned", mCache.get(1L, 2L));
+
+        mCache.put(1L, 2L, new Passphrase("swordfish"), 5000, mCache.getGeneration());
+        Assert.assertNotNull("lookup after the clear must be cached", mCache.get(1L, 2L));
+    }
+
+}
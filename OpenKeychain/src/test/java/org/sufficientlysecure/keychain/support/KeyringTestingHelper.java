@@ -20,11 +20,18 @@ package org.sufficientlysecure.keychain.support;
 
 import android.content.Context;
 
+import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.Arrays;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.ByteArrayInputStream;
@@ -345,6 +352,28 @@ public class KeyringTestingHelper {
         return getNth(ring.getPublicKeys(), position).getKeyId();
     }
 
+    /** Generates count distinct public keyrings, with an ECDSA master key and ECDH subkey each. */
+    public static List<UncachedKeyRing> generatePublicKeyRings(int count) throws Exception {
+        PgpKeyOperation op = new PgpKeyOperation(null);
+        List<UncachedKeyRing> rings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+            parcel.mAddUserIds.add("synthetic " + i + " <synthetic" + i + "@example.com>");
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            if (!result.success()) {
+                throw new AssertionError("synthetic key creation failed");
+            }
+            rings.add(result.getRing().extractPublicKeyRing());
+        }
+        return rings;
+    }
+
     private void retrieveKeyAndExpectNotFound(ProviderHelper providerHelper, long masterKeyId) {
         try {
             providerHelper.getCanonicalizedPublicKeyRing(masterKeyId);
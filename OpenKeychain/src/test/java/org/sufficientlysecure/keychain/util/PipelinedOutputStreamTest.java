@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <look@my.amazin.horse>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PipelinedOutputStreamTest {
+
+    static final Date DATE = new Date(1476000000000L);
+
+    byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        // compressible data, from an alphabet of 16 characters
+        mData = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(mData);
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) ('a' + (mData[i] & 0x0f));
+        }
+    }
+
+    @Test
+    public void testOutputIsIdentical() throws Exception {
+        int[] algorithms = new int[] {
+                CompressionAlgorithmTags.UNCOMPRESSED, CompressionAlgorithmTags.ZIP,
+                CompressionAlgorithmTags.ZLIB, CompressionAlgorithmTags.BZIP2
+        };
+        for (int algorithm : algorithms) {
+            Assert.assertArrayEquals("pipelined output must be identical for algorithm " + algorithm,
+                    literalCompressArmor(algorithm, false), literalCompressArmor(algorithm, true));
+        }
+    }
+
+    @Test
+    public void testSmallBuffers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipelinedOutputStream pipe = new PipelinedOutputStream(out, "test", 7, 2);
+        for (int i = 0; i < 1000; i++) {
+            pipe.write(mData, i * 13, 13);
+            pipe.write(mData[i]);
+        }
+        pipe.flush();
+        pipe.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            expected.write(mData, i * 13, 13);
+            expected.write(mData[i]);
+        }
+        Assert.assertArrayEquals("data must be written in order", expected.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    public void testErrorIsPropagated() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+
+        PipelinedOutputStream pipe = new PipelinedOutputStream(failing, "test", 1024, 2);
+        try {
+            for (int i = 0; i < 100; i++) {
+                pipe.write(mData, 0, 1024);
+            }
+            pipe.close();
+            Assert.fail("error of the wrapped stream must be thrown");
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        } finally {
+            pipe.abort();
+        }
+    }
+
+    @Test
+    public void testDetach() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipelinedOutputStream pipe = new PipelinedOutputStream(out, "test", 7, 2);
+        pipe.write(mData, 0, 1000);
+        pipe.detach();
+        Assert.assertEquals("all data must be written on detach", 1000, out.size());
+
+        pipe.write(mData, 1000, 13);
+        pipe.write(mData[1013]);
+        Assert.assertEquals("data must be written directly after detach", 1014, out.size());
+        pipe.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(mData, 0, 1014);
+        Assert.assertArrayEquals("data must be written in order", expected.toByteArray(), out.toByteArray());
+    }
+
+    /** Writes a literal data packet, compressed and armored, as done by PgpSignEncryptOperation. */
+    private byte[] literalCompressArmor(int algorithm, boolean pipelined) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(result);
+
+        OutputStream compressedTarget = armorOut;
+        PipelinedOutputStream outputPipe = null;
+        if (pipelined) {
+            outputPipe = new PipelinedOutputStream(armorOut, "test-output");
+            compressedTarget = outputPipe;
+        }
+
+        PGPCompressedDataGenerator compressGen = new PGPCompressedDataGenerator(algorithm);
+        OutputStream compressedOut = compressGen.open(compressedTarget);
+        PipelinedOutputStream compressionPipe = null;
+        if (pipelined) {
+            compressionPipe = new PipelinedOutputStream(compressedOut, "test-compress");
+            compressedOut = compressionPipe;
+        }
+
+        BCPGOutputStream bcpgOut = new BCPGOutputStream(compressedOut);
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "data", DATE, new byte[1 << 16]);
+
+        // odd sized writes, so the buffers of the pipeline never line up with them
+        for (int off = 0; off < mData.length; off += 10007) {
+            pOut.write(mData, off, Math.min(10007, mData.length - off));
+        }
+        literalGen.close();
+
+        if (compressionPipe != null) {
+            compressionPipe.close();
+        }
+        compressGen.close();
+        if (outputPipe != null) {
+            outputPipe.close();
+        }
+        armorOut.close();
+
+        return result.toByteArray();
+    }
+
+}